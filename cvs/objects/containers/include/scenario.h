@@ -101,7 +101,8 @@ public:
     void setName(std::string newName);
 
     const std::string& getName() const;
-    bool run( const int aSinglePeriod, const bool aPrintDebugging, const std::string& aFilenameEnding = "" );
+    bool run( const int aSinglePeriod, const bool aPrintDebugging, const std::string& aFilenameEnding = "",
+              const bool aSendLiveResults = true );
     void setTax( const GHGPolicy* aTax );
     std::map<std::string, const Curve*> getEmissionsQuantityCurves( const std::string& ghgName ) const;
     std::map<std::string, const Curve*> getEmissionsPriceCurves( const std::string& ghgName ) const;
@@ -162,7 +163,8 @@ protected:
     bool calculatePeriod( const int aPeriod,
         std::ostream& aXMLDebugFile,
         Tabs* aTabs,
-        const bool aPrintDebugging );
+        const bool aPrintDebugging,
+        const bool aSendLiveResults );
 
     void printGraphs( const int aPeriod ) const;
     void printLandAllocatorGraph( const int aPeriod, const bool aPrintValues ) const;
@@ -66,6 +66,7 @@
 #include "containers/include/imodel_feedback_calc.h"
 #include "util/base/include/manage_state_variables.hpp"
 #include "util/base/include/supply_demand_curve_saver.h"
+#include "reporting/include/xml_db_outputter.h"
 
 #if GCAM_PARALLEL_ENABLED && PARALLEL_DEBUG
 #include <stdlib.h>
@@ -276,11 +277,16 @@ const string& Scenario::getName() const {
 * \param aPrintDebugging Whether to print extra debugging files.
 * \param aFilenameEnding The string to add to the end of the debug output file
 *        for uniqueness.
+* \param aSendLiveResults Whether to send a snapshot of the results to any live
+*        queries as each period is solved.  This should only be set for the main
+*        run of the scenario and not for additional runs such as the policy cost
+*        calculation so that the results monitored are not mixed up.
 * \return Whether all model runs solved successfully.
 */
 bool Scenario::run( const int aSinglePeriod,
                     const bool aPrintDebugging,
-                    const string& aFilenameEnding )
+                    const string& aFilenameEnding,
+                    const bool aSendLiveResults )
 {
     // Avoid accumulating unsolved periods.
     mUnsolvedPeriods.clear();
@@ -308,7 +314,7 @@ bool Scenario::run( const int aSinglePeriod,
     // time steps and operate model.
     if( aSinglePeriod == RUN_ALL_PERIODS ){
         for( int per = 0; per < mModeltime->getmaxper(); per++ ){
-            success &= calculatePeriod( per, *XMLDebugFile, &tabs, aPrintDebugging );
+            success &= calculatePeriod( per, *XMLDebugFile, &tabs, aPrintDebugging, aSendLiveResults );
         }
     }
     // Check if the single period is invalid.
@@ -322,7 +328,7 @@ bool Scenario::run( const int aSinglePeriod,
         // Run all periods up to the single period which are invalid.
         for( int per = 0; per < aSinglePeriod; per++ ){
             if( !mIsValidPeriod[ per ] ){
-                success &= calculatePeriod( per, *XMLDebugFile, &tabs, aPrintDebugging );
+                success &= calculatePeriod( per, *XMLDebugFile, &tabs, aPrintDebugging, aSendLiveResults );
             }
         }
         
@@ -333,7 +339,7 @@ bool Scenario::run( const int aSinglePeriod,
 
         // Now run the requested period. Results past this period will no longer
         // be valid. Do not attempt to use them!
-        success &= calculatePeriod( aSinglePeriod, *XMLDebugFile, &tabs, aPrintDebugging );
+        success &= calculatePeriod( aSinglePeriod, *XMLDebugFile, &tabs, aPrintDebugging, aSendLiveResults );
     }
     
     // Print any unsolved periods.
@@ -377,12 +383,14 @@ bool Scenario::run( const int aSinglePeriod,
 * \param aXMLDebugFile XML debugging file.
 * \param aTabs Tabs formatting object.
 * \param aPrintDebugging Whether to print debugging information.
+* \param aSendLiveResults Whether to send the results to any live queries.
 * \return Whether the period was calculated successfully.
 */
 bool Scenario::calculatePeriod( const int aPeriod,
                                 ostream& aXMLDebugFile,
                                 Tabs* aTabs,
-                                bool aPrintDebugging )
+                                bool aPrintDebugging,
+                                const bool aSendLiveResults )
 {
     logPeriodBeginning( aPeriod );
 
@@ -494,6 +502,17 @@ bool Scenario::calculatePeriod( const int aPeriod,
         modelFeedback->calcFeedbacksAfterPeriod( this, mWorld->getClimateModel(), aPeriod );
     }
 
+    // Send the results so far to any live queries configured for the XML database
+    // so that they may be monitored while the rest of the periods are solved.
+    if( aSendLiveResults ) {
+        XMLDBOutputter liveOutputter( aPeriod );
+        if( liveOutputter.isOpen() ) {
+            accept( &liveOutputter, -1 );
+            liveOutputter.finish();
+            liveOutputter.finalizeAndClose();
+        }
+    }
+
     logPeriodEnding( aPeriod );
     
     // Write out the results for debugging.
@@ -213,9 +213,10 @@ bool TotalPolicyCostCalculator::runTrials(){
 
         // Run the scenario with the add-on extension to the output file names
         // as the point number. This allows the output file to be named debug +
-        // point number.
+        // point number.  These runs are not sent to the live queries as they
+        // monitor the main run of the scenario.
         success &= mSingleScenario->getInternalScenario()->run( Scenario::RUN_ALL_PERIODS, true,
-                                                                util::toString( currPoint ) );
+                                                                util::toString( currPoint ), false );
 
         // Save information.
         mEmissionsQCurves[ currPoint ] = getEmissionsQuantityCurve();
@@ -405,7 +406,11 @@ void TotalPolicyCostCalculator::printOutput() const {
     
     // Append the data to the XML database.
     if( Configuration::getInstance()->shouldWriteFile( "xmldb-location" ) ) {
-        mSingleScenario->getXMLDBOutputter()->appendData( xmlString, UPDATE_LOCATION );
+        if( !mSingleScenario->getXMLDBOutputter()->appendData( xmlString, UPDATE_LOCATION ) ) {
+            ILogger& mainLog = ILogger::getLogger( "main_log" );
+            mainLog.setLevel( ILogger::WARNING );
+            mainLog << "Failed to append the cost curves to the XML database." << endl;
+        }
     }
 }
 
@@ -0,0 +1,153 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+package xmldb.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Generates synthetic XML in the same shape as the GCAM scenario output so that
+ * the XMLDBDriver ingest pipeline can be benchmarked without running GCAM.  The
+ * size of the document is controlled by the number of regions, sectors and model
+ * periods, roughly mirroring how the real output scales.
+ */
+public class SyntheticGCAMOutput {
+    /**
+     * The number of subsectors to write in each sector.
+     */
+    private static final int NUM_SUBSECTORS = 3;
+
+    /**
+     * The number of technologies to write in each subsector.
+     */
+    private static final int NUM_TECHNOLOGIES = 3;
+
+    /**
+     * The first model year, subsequent periods are five years apart.
+     */
+    private static final int START_YEAR = 1975;
+
+    /**
+     * The number of years in each model period.
+     */
+    private static final int TIMESTEP = 5;
+
+    /**
+     * Generate a document.
+     * @param aNumRegions The number of regions to write.
+     * @param aNumSectors The number of supply sectors to write in each region.
+     * @param aNumPeriods The number of model periods to write values for.
+     * @return The UTF-8 encoded XML document.
+     */
+    public static byte[] generate( final int aNumRegions, final int aNumSectors, final int aNumPeriods )
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new OutputStreamWriter( bytes, "UTF-8" );
+        out.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+        out.write( "<scenario name=\"Reference\" date=\"2020-1-1T00:00:00-00:00\">\n" );
+        out.write( "\t<model-version>ver_benchmark</model-version>\n" );
+        out.write( "\t<world>\n" );
+        for( int region = 0; region < aNumRegions; ++region ) {
+            out.write( "\t\t<region name=\"region" + region + "\" type=\"region\">\n" );
+            writeYearValues( out, "\t\t\t", "gdp-mer", "Million1990US$", aNumPeriods, region );
+            writeYearValues( out, "\t\t\t", "population", "thous", aNumPeriods, region );
+            for( int sector = 0; sector < aNumSectors; ++sector ) {
+                out.write( "\t\t\t<supplysector name=\"sector" + sector + "\" type=\"sector\">\n" );
+                writeYearValues( out, "\t\t\t\t", "price", "1975$/GJ", aNumPeriods, sector );
+                for( int subsector = 0; subsector < NUM_SUBSECTORS; ++subsector ) {
+                    out.write( "\t\t\t\t<subsector name=\"subsector" + subsector + "\" type=\"subsector\">\n" );
+                    writeYearValues( out, "\t\t\t\t\t", "share-weight", "", aNumPeriods, subsector );
+                    for( int tech = 0; tech < NUM_TECHNOLOGIES; ++tech ) {
+                        for( int period = 0; period < aNumPeriods; ++period ) {
+                            final int year = START_YEAR + period * TIMESTEP;
+                            out.write( "\t\t\t\t\t<technology name=\"tech" + tech + "\" type=\"technology\" year=\""
+                                       + year + "\">\n" );
+                            out.write( "\t\t\t\t\t\t<output name=\"sector" + sector + "\" type=\"output\">\n" );
+                            writeYearValues( out, "\t\t\t\t\t\t\t", "physical-output", "EJ", aNumPeriods, tech );
+                            out.write( "\t\t\t\t\t\t</output>\n" );
+                            out.write( "\t\t\t\t\t\t<input name=\"input" + tech + "\" type=\"input\">\n" );
+                            writeYearValues( out, "\t\t\t\t\t\t\t", "demand-physical", "EJ", aNumPeriods, tech );
+                            out.write( "\t\t\t\t\t\t</input>\n" );
+                            out.write( "\t\t\t\t\t\t<GHG name=\"CO2\" type=\"GHG\">\n" );
+                            writeYearValues( out, "\t\t\t\t\t\t\t", "emissions", "MTC", aNumPeriods, tech );
+                            out.write( "\t\t\t\t\t\t</GHG>\n" );
+                            out.write( "\t\t\t\t\t</technology>\n" );
+                        }
+                    }
+                    out.write( "\t\t\t\t</subsector>\n" );
+                }
+                out.write( "\t\t\t</supplysector>\n" );
+            }
+            out.write( "\t\t</region>\n" );
+        }
+        out.write( "\t</world>\n" );
+        out.write( "\t<Marketplace>\n" );
+        for( int region = 0; region < aNumRegions; ++region ) {
+            for( int sector = 0; sector < aNumSectors; ++sector ) {
+                out.write( "\t\t<market name=\"region" + region + "sector" + sector + "\" type=\"market\">\n" );
+                writeYearValues( out, "\t\t\t", "price", "1975$/GJ", aNumPeriods, sector );
+                writeYearValues( out, "\t\t\t", "supply", "EJ", aNumPeriods, sector );
+                writeYearValues( out, "\t\t\t", "demand", "EJ", aNumPeriods, sector );
+                out.write( "\t\t</market>\n" );
+            }
+        }
+        out.write( "\t</Marketplace>\n" );
+        out.write( "</scenario>\n" );
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a value for each model period in the same style as the GCAM
+     * XMLDBOutputter.
+     * @param aOut The writer to write to.
+     * @param aTabs The indentation to use.
+     * @param aName The element name.
+     * @param aUnit The unit attribute.
+     * @param aNumPeriods The number of periods to write.
+     * @param aSeed A number to vary the values with.
+     */
+    private static void writeYearValues( final Writer aOut, final String aTabs, final String aName,
+                                         final String aUnit, final int aNumPeriods, final int aSeed )
+        throws IOException
+    {
+        for( int period = 0; period < aNumPeriods; ++period ) {
+            final int year = START_YEAR + period * TIMESTEP;
+            aOut.write( aTabs + "<" + aName + " unit=\"" + aUnit + "\" year=\"" + year + "\">"
+                        + ( ( aSeed + 1 ) * 1.0371 * ( period + 1 ) ) + "</" + aName + ">\n" );
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+package xmldb.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the XMLDBDriver ingest pipeline.  Each invocation stores one
+ * synthetic scenario document by making the same sequence of calls GCAM would:
+ * construct the driver, send the XML through receiveDataFromGCAM, finish, then
+ * finalizeAndClose.  The XMLDBDriver classes live in the default package so they
+ * are looked up by name, which is also how GCAM finds them through JNI.
+ *
+ * The primary result is scenarios stored per second and the bytesStored counter
+ * gives the ingest rate in bytes per second.  Run with "-prof gc" (as the Makefile
+ * run target does) to also get the allocation rate.  All of the parameters below
+ * are swept by default, use -p name=value to narrow them down, for instance:
+ *   java -jar benchmarks.jar -prof gc -p inMemory=false -p path=unfiltered
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class XMLDBDriverBenchmark {
+    /**
+     * The size of the chunks GCAM sends through receiveDataFromGCAM.
+     */
+    private static final int GCAM_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * An STX filter script which drops all of the emissions from the output, which
+     * is typical of the kinds of filters users write.
+     */
+    private static final String FILTER_SCRIPT =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<stx:transform xmlns:stx=\"http://stx.sourceforge.net/2002/ns\" version=\"1.0\" pass-through=\"all\">\n"
+        + "  <stx:template match=\"GHG\"/>\n"
+        + "</stx:transform>\n";
+
+    /**
+     * Handles to the XMLDBDriver methods GCAM calls.
+     */
+    private static final MethodHandle NEW_DRIVER;
+    private static final MethodHandle RECEIVE_DIRECT;
+    private static final MethodHandle RECEIVE_ARRAY;
+    private static final MethodHandle GET_RING_SIZE;
+    private static final MethodHandle FINISH;
+    private static final MethodHandle FINALIZE_AND_CLOSE;
+
+    static {
+        try {
+            final Class<?> driverClass = Class.forName( "XMLDBDriver" );
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            NEW_DRIVER = lookup.findConstructor( driverClass,
+                MethodType.methodType( void.class, String.class, String.class, Properties.class ) );
+            RECEIVE_DIRECT = lookup.findVirtual( driverClass, "receiveDataFromGCAM",
+                MethodType.methodType( boolean.class, ByteBuffer.class, int.class ) );
+            RECEIVE_ARRAY = lookup.findVirtual( driverClass, "receiveDataFromGCAM",
+                MethodType.methodType( boolean.class, byte[].class, int.class ) );
+            GET_RING_SIZE = lookup.findVirtual( driverClass, "getDirectBufferRingSize",
+                MethodType.methodType( int.class ) );
+            FINISH = lookup.findVirtual( driverClass, "finish", MethodType.methodType( void.class ) );
+            FINALIZE_AND_CLOSE = lookup.findVirtual( driverClass, "finalizeAndClose", MethodType.methodType( void.class ) );
+        }
+        catch( Exception error ) {
+            throw new ExceptionInInitializerError( error );
+        }
+    }
+
+    /**
+     * The size of the synthetic document.
+     */
+    @Param( { "32" } )
+    public int numRegions;
+
+    @Param( { "5" } )
+    public int numSectors;
+
+    @Param( { "10" } )
+    public int numPeriods;
+
+    /**
+     * If the XML should be sent unfiltered, through an STX filter, or through a
+     * projection filter.  Both filters drop the same elements.
+     */
+    @Param( { "unfiltered", "stx-filtered", "projection-filtered" } )
+    public String path;
+
+    /**
+     * If the database should be in memory or on disk.
+     */
+    @Param( { "true", "false" } )
+    public boolean inMemory;
+
+    /**
+     * How GCAM hands over the data: in direct buffers or by copying into a byte array.
+     */
+    @Param( { "direct", "array" } )
+    public String transport;
+
+    /**
+     * The number of workers to load the regions on in parallel, 0 to load the
+     * document in one go.  This compares the parallel loads plus the serial merge
+     * against a single load.
+     */
+    @Param( { "0", "4" } )
+    public int shardWorkers;
+
+    /**
+     * The chunk size of the pipes between stages (the successor to BUFFER_SIZE).
+     */
+    @Param( { "65536", "1048576" } )
+    public int chunkSize;
+
+    /**
+     * The BaseX options used while adding.
+     */
+    @Param( { "true", "false" } )
+    public boolean chop;
+
+    @Param( { "true", "false" } )
+    public boolean addCache;
+
+    @Param( { "true", "false" } )
+    public boolean intParse;
+
+    /**
+     * The synthetic document to store.
+     */
+    private byte[] mDocument;
+
+    /**
+     * The configuration to give each XMLDBDriver.
+     */
+    private final Properties mConfig = new Properties();
+
+    /**
+     * A scratch directory for the databases and filter script.
+     */
+    private File mTempDir;
+
+    /**
+     * The direct buffers used to send data when transport is direct.
+     */
+    private ByteBuffer[] mDirectBuffers = new ByteBuffer[ 0 ];
+
+    /**
+     * The byte array used to send data when transport is array.
+     */
+    private final byte[] mArrayBuffer = new byte[ GCAM_BUFFER_SIZE ];
+
+    /**
+     * Counts invocations so that each gets a unique document and database name.
+     */
+    private int mRunCount = 0;
+
+    /**
+     * Counts the bytes stored which JMH reports as a rate.
+     */
+    @AuxCounters( AuxCounters.Type.EVENTS )
+    @State( Scope.Thread )
+    public static class Counters {
+        public long bytesStored;
+
+        @Setup( Level.Iteration )
+        public void reset() {
+            bytesStored = 0;
+        }
+    }
+
+    @Setup( Level.Trial )
+    public void setUp() throws IOException {
+        mDocument = SyntheticGCAMOutput.generate( numRegions, numSectors, numPeriods );
+        mTempDir = File.createTempFile( "xmldb-benchmark", "" );
+        mTempDir.delete();
+        mTempDir.mkdirs();
+
+        mConfig.setProperty( "in-memory", Boolean.toString( inMemory ) );
+        mConfig.setProperty( "pipe-chunk-size", Integer.toString( chunkSize ) );
+        mConfig.setProperty( "basex-chop", Boolean.toString( chop ) );
+        mConfig.setProperty( "basex-addcache", Boolean.toString( addCache ) );
+        mConfig.setProperty( "basex-intparse", Boolean.toString( intParse ) );
+        mConfig.setProperty( "shard-workers", Integer.toString( shardWorkers ) );
+        if( path.equals( "stx-filtered" ) ) {
+            File filterScript = new File( mTempDir, "filter.stx" );
+            Writer out = new OutputStreamWriter( new FileOutputStream( filterScript ), "UTF-8" );
+            out.write( FILTER_SCRIPT );
+            out.close();
+            mConfig.setProperty( "filter-script", filterScript.getPath() );
+        }
+        else if( path.equals( "projection-filtered" ) ) {
+            mConfig.setProperty( "projection-exclude", "GHG" );
+        }
+    }
+
+    @TearDown( Level.Iteration )
+    public void deleteDatabases() {
+        File[] databases = mTempDir.listFiles();
+        if( databases != null ) {
+            for( File database : databases ) {
+                if( database.isDirectory() ) {
+                    delete( database );
+                }
+            }
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() {
+        delete( mTempDir );
+    }
+
+    /**
+     * Recursively delete a file or directory.
+     * @param aFile The file to delete.
+     */
+    private static void delete( final File aFile ) {
+        File[] children = aFile.listFiles();
+        if( children != null ) {
+            for( File child : children ) {
+                delete( child );
+            }
+        }
+        aFile.delete();
+    }
+
+    /**
+     * Store one scenario.
+     * @param aCounters Counters to record the amount of data stored.
+     */
+    @Benchmark
+    public void ingest( final Counters aCounters ) throws Throwable {
+        ++mRunCount;
+        final String dbLocation = new File( mTempDir, "db" + mRunCount ).getPath();
+        final Object driver = NEW_DRIVER.invoke( dbLocation, "scenario" + mRunCount, mConfig );
+
+        boolean hadError = false;
+        if( transport.equals( "direct" ) ) {
+            // cycle through a ring of direct buffers just as GCAM does
+            final int ringSize = (int)GET_RING_SIZE.invoke( driver );
+            if( mDirectBuffers.length < ringSize ) {
+                mDirectBuffers = new ByteBuffer[ ringSize ];
+                for( int i = 0; i < ringSize; ++i ) {
+                    mDirectBuffers[ i ] = ByteBuffer.allocateDirect( GCAM_BUFFER_SIZE );
+                }
+            }
+            int currBuffer = 0;
+            for( int offset = 0; offset < mDocument.length && !hadError; offset += GCAM_BUFFER_SIZE ) {
+                final int length = Math.min( GCAM_BUFFER_SIZE, mDocument.length - offset );
+                final ByteBuffer buffer = mDirectBuffers[ currBuffer ];
+                buffer.clear();
+                buffer.put( mDocument, offset, length );
+                hadError = (boolean)RECEIVE_DIRECT.invoke( driver, buffer, length );
+                currBuffer = ( currBuffer + 1 ) % ringSize;
+            }
+        }
+        else {
+            for( int offset = 0; offset < mDocument.length && !hadError; offset += GCAM_BUFFER_SIZE ) {
+                final int length = Math.min( GCAM_BUFFER_SIZE, mDocument.length - offset );
+                System.arraycopy( mDocument, offset, mArrayBuffer, 0, length );
+                hadError = (boolean)RECEIVE_ARRAY.invoke( driver, mArrayBuffer, length );
+            }
+        }
+        if( hadError ) {
+            throw new IllegalStateException( "XMLDBDriver reported an error receiving data" );
+        }
+
+        FINISH.invoke( driver );
+        FINALIZE_AND_CLOSE.invoke( driver );
+        aCounters.bytesStored += mDocument.length;
+    }
+}
@@ -0,0 +1,576 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import org.basex.core.Context;
+import org.basex.core.cmd.XQuery;
+
+import ModelInterface.InterfaceMain;
+
+/**
+ * Runs the queries of a ModelInterface batch file and remembers the results so
+ * that they are not recomputed when the same query is run against the same
+ * scenario again, for instance when each scenario in a GCAM batch runs a batch
+ * file which queries all of the scenarios in the database so far.
+ * Each XMLDB Batch File command which writes CSV is split up into one small batch
+ * per query and scenario, as that is what the results are remembered by, and only
+ * those which are not already known are run through the ModelInterface on the
+ * already open database.  The results are then merged back together, in the
+ * original order, into the output file of the command with the tables for the
+ * same query combined.  Any other command is run as it is.
+ * Note the batches are run one at a time, and this class runs nothing in
+ * parallel, as the ModelInterface keeps global state, such as the standard output
+ * it redirects to the log, and so is not safe to run from several threads at once.
+ * The only speed up is from the results which do not need to be run again.
+ */
+public class BatchQueryExecutor {
+    /**
+     * The name of the batch command which runs queries.
+     */
+    private static final String XMLDB_BATCH_COMMAND = "XMLDB Batch File";
+
+    /**
+     * The results of queries run so far in this process keyed by a digest of the
+     * query and the scenario document it was run against.  This is static so that
+     * results are remembered across scenarios.
+     */
+    private static final Map<String, String> sResultCache = new LinkedHashMap<String, String>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( final Map.Entry<String, String> aEldest ) {
+            return size() > sResultCacheSize;
+        }
+    };
+
+    /**
+     * The maximum number of results to keep in the cache.
+     */
+    private static volatile int sResultCacheSize = 0;
+
+    /**
+     * A scenario document in the database.
+     */
+    private static class Scenario {
+        String mDocPath;
+        String mName;
+        String mDate;
+    }
+
+    /**
+     * A small batch of a single query against a single scenario which is the unit
+     * of work run through the ModelInterface.  If the query is null the command is
+     * instead run as it is.
+     */
+    private class QueryJob implements Callable<String> {
+        final Element mCommand;
+        final Element mQuery;
+        final Scenario mScenario;
+        final String mCacheKey;
+
+        QueryJob( final Element aCommand, final Element aQuery, final Scenario aScenario ) throws Exception {
+            mCommand = aCommand;
+            mQuery = aQuery;
+            mScenario = aScenario;
+            mCacheKey = aQuery == null ? null : digest( toXMLString( aQuery ), mDBLocation, aScenario.mDocPath,
+                                                        aScenario.mName, aScenario.mDate );
+        }
+
+        /**
+         * Run the query, unless the results are already known.
+         * @return The CSV results of the query or null if a command was run as it is
+         *         or the query failed.
+         */
+        public String call() throws Exception {
+            if( mCacheKey != null ) {
+                synchronized( sResultCache ) {
+                    String cachedResult = sResultCache.get( mCacheKey );
+                    if( cachedResult != null ) {
+                        return cachedResult;
+                    }
+                }
+            }
+            File tempDir = createTempDir();
+            try {
+                Element command = (Element)mCommand.cloneNode( true );
+                File outFile = new File( tempDir, "results.csv" );
+                if( mQuery != null ) {
+                    Document queryDoc = newDocument();
+                    Element queries = queryDoc.createElement( "queries" );
+                    queryDoc.appendChild( queries );
+                    queries.appendChild( queryDoc.importNode( mQuery, true ) );
+                    File queryFile = new File( tempDir, "query.xml" );
+                    writeXML( queryDoc, queryFile );
+
+                    // only keep the scenario we are running
+                    for( Element scenario : getChildElements( command, "scenario" ) ) {
+                        command.removeChild( scenario );
+                    }
+                    Element scenario = command.getOwnerDocument().createElement( "scenario" );
+                    scenario.setAttribute( "name", mScenario.mName );
+                    if( !mScenario.mDate.isEmpty() ) {
+                        scenario.setAttribute( "date", mScenario.mDate );
+                    }
+                    command.insertBefore( scenario, command.getFirstChild() );
+                    setChildText( command, "queryFile", queryFile.getAbsolutePath() );
+                    setChildText( command, "outFile", outFile.getAbsolutePath() );
+                    setChildText( command, "batchQueryReplaceResults", "true" );
+                }
+                Document batchDoc = newDocument();
+                Element batch = batchDoc.createElement( "ModelInterfaceBatch" );
+                batchDoc.appendChild( batch );
+                Element commandClass = (Element)batchDoc.importNode( mCommand.getParentNode(), false );
+                batch.appendChild( commandClass );
+                commandClass.appendChild( batchDoc.importNode( command, true ) );
+                File batchFile = new File( tempDir, "batch.xml" );
+                writeXML( batchDoc, batchFile );
+
+                File logFile = new File( tempDir, "batch.log" );
+                List<String> args = new ArrayList<String>();
+                args.add( "-b" );
+                args.add( batchFile.getAbsolutePath() );
+                if( !mLogFile.isEmpty() ) {
+                    args.add( "-l" );
+                    args.add( logFile.getAbsolutePath() );
+                }
+                InterfaceMain.main( args.toArray( new String[0] ) );
+                if( !mLogFile.isEmpty() && logFile.exists() ) {
+                    appendLog( readFile( logFile ) );
+                }
+
+                if( mQuery == null ) {
+                    return null;
+                }
+                if( !outFile.exists() ) {
+                    System.err.println( "ERROR: No results for query " + getQueryTitle( mQuery )
+                                        + " on scenario " + mScenario.mName );
+                    return null;
+                }
+                String result = readFile( outFile );
+                synchronized( sResultCache ) {
+                    sResultCache.put( mCacheKey, result );
+                }
+                return result;
+            }
+            finally {
+                deleteAll( tempDir );
+            }
+        }
+    }
+
+    /**
+     * The batch file to run.
+     */
+    private final String mBatchFile;
+
+    /**
+     * The file to collect the ModelInterface output in or empty to print it.
+     */
+    private final String mLogFile;
+
+    /**
+     * The location of the database being queried which is used to tell results
+     * from different databases apart in the cache.
+     */
+    private String mDBLocation;
+
+    /**
+     * Constructor.
+     * @param aBatchFile The ModelInterface batch file to run.
+     * @param aLogFile Optional file into which to direct ModelInterface's stdout.
+     * @param aCacheSize The maximum number of query results to remember across scenarios
+     *                   or zero to not remember any.
+     */
+    public BatchQueryExecutor( final String aBatchFile, final String aLogFile, final int aCacheSize ) {
+        mBatchFile = aBatchFile;
+        mLogFile = aLogFile;
+        sResultCacheSize = Math.max( 0, aCacheSize );
+    }
+
+    /**
+     * Run all of the commands in the batch file.  The ModelInterface must have
+     * already been given the database context with XMLDB.openDatabase.
+     * @param aDBLocation The location of the database to query.
+     * @param aContext The database context to query.
+     */
+    public void run( final String aDBLocation, final Context aContext ) throws Exception {
+        mDBLocation = new File( aDBLocation ).getAbsolutePath();
+        System.out.println( "Running batch file: " + mBatchFile );
+        Document batchDoc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( new File( mBatchFile ) );
+        List<Scenario> dbScenarios = getScenarios( aContext );
+
+        // run the jobs for each command keeping track of which results belong
+        // in which output file
+        Map<String, List<List<String>>> resultsByOutFile = new LinkedHashMap<String, List<List<String>>>();
+        Map<String, Boolean> replaceOutFile = new LinkedHashMap<String, Boolean>();
+        for( Element commandClass : getChildElements( batchDoc.getDocumentElement(), "class" ) ) {
+            for( Element command : getChildElements( commandClass, "command" ) ) {
+                String outFile = getChildText( command, "outFile" );
+                if( !XMLDB_BATCH_COMMAND.equals( command.getAttribute( "name" ) )
+                        || !outFile.toLowerCase().endsWith( ".csv" ) )
+                {
+                    runJob( new QueryJob( command, null, null ) );
+                    continue;
+                }
+                List<Scenario> scenarios = selectScenarios( command, dbScenarios );
+                List<List<String>> outFileResults = resultsByOutFile.get( outFile );
+                if( outFileResults == null ) {
+                    outFileResults = new ArrayList<List<String>>();
+                    resultsByOutFile.put( outFile, outFileResults );
+                    replaceOutFile.put( outFile, !"false".equals( getChildText( command, "batchQueryReplaceResults" ) ) );
+                }
+                Document queryDoc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse( new File( getChildText( command, "queryFile" ) ) );
+                for( Element query : getChildElements( queryDoc.getDocumentElement(), "aQuery" ) ) {
+                    List<String> tables = new ArrayList<String>();
+                    for( Scenario scenario : scenarios ) {
+                        String table = runJob( new QueryJob( command, query, scenario ) );
+                        if( table != null ) {
+                            tables.add( table );
+                        }
+                    }
+                    outFileResults.add( tables );
+                }
+            }
+        }
+
+        // write the results in the order they would have been written in
+        for( Map.Entry<String, List<List<String>>> outFileResults : resultsByOutFile.entrySet() ) {
+            StringBuilder output = new StringBuilder();
+            for( List<String> tables : outFileResults.getValue() ) {
+                output.append( mergeTables( tables ) );
+            }
+            File outFile = new File( outFileResults.getKey() );
+            if( outFile.getAbsoluteFile().getParentFile() != null ) {
+                outFile.getAbsoluteFile().getParentFile().mkdirs();
+            }
+            OutputStream out = new FileOutputStream( outFile, !replaceOutFile.get( outFileResults.getKey() ) );
+            try {
+                out.write( output.toString().getBytes( "UTF-8" ) );
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Run a job printing any error that occurred.
+     * @param aJob The job to run.
+     * @return The result or null if there was an error.
+     */
+    private static String runJob( final QueryJob aJob ) {
+        try {
+            return aJob.call();
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Get all of the scenarios in the database in document order.
+     * @param aContext The database context to query.
+     * @return The scenarios.
+     */
+    private static List<Scenario> getScenarios( final Context aContext ) throws Exception {
+        final String listQuery = "for $s in collection()/scenario "
+            + "return string-join((db:path($s), $s/@name, $s/@date), '&#9;')";
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+        for( String line : new XQuery( listQuery ).execute( aContext ).split( "\r?\n" ) ) {
+            String[] fields = line.split( "\t", -1 );
+            if( fields.length < 2 ) {
+                continue;
+            }
+            Scenario scenario = new Scenario();
+            scenario.mDocPath = fields[ 0 ];
+            scenario.mName = fields[ 1 ];
+            scenario.mDate = fields.length > 2 ? fields[ 2 ] : "";
+            scenarios.add( scenario );
+        }
+        return scenarios;
+    }
+
+    /**
+     * Select the scenarios a command will query the same way the ModelInterface does:
+     * the latest scenario with each name (or name and date) listed, or the latest
+     * scenario in the database if none are listed.
+     * @param aCommand The batch command.
+     * @param aDBScenarios All of the scenarios in the database in document order.
+     * @return The scenarios to query.
+     */
+    private static List<Scenario> selectScenarios( final Element aCommand, final List<Scenario> aDBScenarios ) {
+        List<Scenario> selected = new ArrayList<Scenario>();
+        List<Element> scenarioSpecs = getChildElements( aCommand, "scenario" );
+        if( scenarioSpecs.isEmpty() && !aDBScenarios.isEmpty() ) {
+            selected.add( aDBScenarios.get( aDBScenarios.size() - 1 ) );
+        }
+        for( Element spec : scenarioSpecs ) {
+            Scenario match = null;
+            for( Scenario scenario : aDBScenarios ) {
+                if( scenario.mName.equals( spec.getAttribute( "name" ) )
+                        && ( !spec.hasAttribute( "date" ) || scenario.mDate.equals( spec.getAttribute( "date" ) ) ) )
+                {
+                    match = scenario;
+                }
+            }
+            if( match == null ) {
+                System.err.println( "ERROR: Could not find scenario " + spec.getAttribute( "name" ) + " to query." );
+            }
+            else {
+                selected.add( match );
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Merge the CSV tables of a single query run against different scenarios.  The
+     * rows of tables which have the same title and header as the first one are
+     * added to it, any others are kept as separate tables.
+     * @param aTables The CSV tables each starting with the query title and header.
+     * @return The merged tables followed by a blank line.
+     */
+    static String mergeTables( final List<String> aTables ) {
+        if( aTables.isEmpty() ) {
+            return "";
+        }
+        List<String> merged = new ArrayList<String>( trimmedLines( aTables.get( 0 ) ) );
+        for( int i = 1; i < aTables.size(); ++i ) {
+            List<String> lines = trimmedLines( aTables.get( i ) );
+            if( lines.size() >= 2 && merged.size() >= 2 && lines.get( 0 ).equals( merged.get( 0 ) )
+                    && lines.get( 1 ).equals( merged.get( 1 ) ) )
+            {
+                merged.addAll( lines.subList( 2, lines.size() ) );
+            }
+            else {
+                merged.add( "" );
+                merged.addAll( lines );
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        for( String line : merged ) {
+            result.append( line ).append( '\n' );
+        }
+        return result.append( '\n' ).toString();
+    }
+
+    /**
+     * Split text into lines dropping any blank lines at the end.
+     * @param aText The text to split.
+     * @return The lines.
+     */
+    private static List<String> trimmedLines( final String aText ) {
+        List<String> lines = new ArrayList<String>();
+        Collections.addAll( lines, aText.split( "\r?\n" ) );
+        while( !lines.isEmpty() && lines.get( lines.size() - 1 ).trim().isEmpty() ) {
+            lines.remove( lines.size() - 1 );
+        }
+        return lines;
+    }
+
+    /**
+     * Append the output of a query to the log file.
+     * @param aLog The output to append.
+     */
+    private synchronized void appendLog( final String aLog ) throws IOException {
+        OutputStream out = new FileOutputStream( mLogFile, true );
+        try {
+            out.write( aLog.getBytes( "UTF-8" ) );
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Compute a digest of the given strings to use as a cache key.
+     */
+    private static String digest( final String... aParts ) throws Exception {
+        MessageDigest sha = MessageDigest.getInstance( "SHA-1" );
+        for( String part : aParts ) {
+            sha.update( part.getBytes( "UTF-8" ) );
+            sha.update( (byte)0 );
+        }
+        return new BigInteger( 1, sha.digest() ).toString( 16 );
+    }
+
+    /**
+     * Create a new empty DOM document.
+     */
+    private static Document newDocument() throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    }
+
+    /**
+     * Serialize a DOM node to a string.
+     */
+    private static String toXMLString( final Node aNode ) throws Exception {
+        StringWriter xml = new StringWriter();
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty( OutputKeys.OMIT_XML_DECLARATION, "yes" );
+        transformer.transform( new DOMSource( aNode ), new StreamResult( xml ) );
+        return xml.toString();
+    }
+
+    /**
+     * Write a DOM document to the given file.
+     */
+    private static void writeXML( final Document aDoc, final File aFile ) throws Exception {
+        TransformerFactory.newInstance().newTransformer().transform( new DOMSource( aDoc ), new StreamResult( aFile ) );
+    }
+
+    /**
+     * Read the entire contents of a UTF-8 text file.
+     */
+    private static String readFile( final File aFile ) throws IOException {
+        StringBuilder text = new StringBuilder();
+        BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( aFile ), "UTF-8" ) );
+        try {
+            char[] buffer = new char[ 8192 ];
+            int read;
+            while( ( read = in.read( buffer ) ) != -1 ) {
+                text.append( buffer, 0, read );
+            }
+        }
+        finally {
+            in.close();
+        }
+        return text.toString();
+    }
+
+    /**
+     * Create a new uniquely named temporary directory.
+     */
+    private static File createTempDir() throws IOException {
+        File tempDir = File.createTempFile( "batch-query-", "" );
+        if( !tempDir.delete() || !tempDir.mkdir() ) {
+            throw new IOException( "Could not create temporary directory " + tempDir );
+        }
+        return tempDir;
+    }
+
+    /**
+     * Delete a file or a directory and everything in it.
+     */
+    private static void deleteAll( final File aFile ) {
+        File[] children = aFile.listFiles();
+        if( children != null ) {
+            for( File child : children ) {
+                deleteAll( child );
+            }
+        }
+        aFile.delete();
+    }
+
+    /**
+     * Get the child elements with the given name.
+     */
+    private static List<Element> getChildElements( final Element aParent, final String aName ) {
+        List<Element> children = new ArrayList<Element>();
+        NodeList childNodes = aParent.getChildNodes();
+        for( int i = 0; i < childNodes.getLength(); ++i ) {
+            Node child = childNodes.item( i );
+            if( child instanceof Element && child.getNodeName().equals( aName ) ) {
+                children.add( (Element)child );
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Get the title of a query for use in messages.
+     */
+    private static String getQueryTitle( final Element aQuery ) {
+        NodeList childNodes = aQuery.getChildNodes();
+        for( int i = 0; i < childNodes.getLength(); ++i ) {
+            Node child = childNodes.item( i );
+            if( child instanceof Element && ( (Element)child ).hasAttribute( "title" ) ) {
+                return ( (Element)child ).getAttribute( "title" );
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Get the text of the first child element with the given name or empty if
+     * there is none.
+     */
+    private static String getChildText( final Element aParent, final String aName ) {
+        List<Element> children = getChildElements( aParent, aName );
+        return children.isEmpty() ? "" : children.get( 0 ).getTextContent().trim();
+    }
+
+    /**
+     * Set the text of the first child element with the given name creating it
+     * if necessary.
+     */
+    private static void setChildText( final Element aParent, final String aName, final String aText ) {
+        List<Element> children = getChildElements( aParent, aName );
+        Element child;
+        if( children.isEmpty() ) {
+            child = aParent.getOwnerDocument().createElement( aName );
+            aParent.appendChild( child );
+        }
+        else {
+            child = children.get( 0 );
+        }
+        child.setTextContent( aText );
+    }
+}
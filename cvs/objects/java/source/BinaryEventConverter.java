@@ -0,0 +1,271 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Converts the binary event stream from GCAM (see BinaryEventReader) into textual
+ * XML.  This is used as a stage in front of those stages which scan the XML text,
+ * such as the projection filter and sharding, and from the command line to look
+ * at a binary event stream when debugging.  The XML is indented in the same way
+ * GCAM would write it.
+ */
+public class BinaryEventConverter implements Runnable {
+    /**
+     * The thread on which the conversion will run.
+     */
+    private final Thread mWorkerThread = new Thread( this, "BinaryEventConverter" );
+
+    /**
+     * The binary event stream to convert.
+     */
+    private InputStream mEventStream = null;
+
+    /**
+     * The stream to write the XML to.
+     */
+    private OutputStream mXMLStream = null;
+
+    public void setInputStream( final InputStream aInputStream ) {
+        mEventStream = aInputStream;
+    }
+
+    public void setOutputStream( final OutputStream aOutputStream ) {
+        mXMLStream = aOutputStream;
+    }
+
+    public void start() {
+        mWorkerThread.start();
+    }
+
+    public void cancel() {
+        // Note the pipes on either side are canceled by the XMLDBDriver.
+        mWorkerThread.interrupt();
+    }
+
+    public void finish() {
+        try {
+            // This will block until the conversion is done
+            mWorkerThread.join();
+        }
+        catch( InterruptedException interruptError ) {
+            interruptError.printStackTrace();
+        }
+    }
+
+    public void run() {
+        try {
+            toXML( mEventStream, mXMLStream );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+        finally {
+            try {
+                mXMLStream.close();
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Convert a binary event stream to XML.  Textual XML is passed through as well
+     * although it will be reformatted.
+     * @param aIn The binary event stream.
+     * @param aOut The stream to write the XML to which is flushed but not closed.
+     */
+    public static void toXML( final InputStream aIn, final OutputStream aOut ) throws IOException, SAXException {
+        Writer xmlOut = new BufferedWriter( new OutputStreamWriter( aOut, StandardCharsets.UTF_8 ), 64 * 1024 );
+        BinaryEventReader reader = new BinaryEventReader();
+        reader.setContentHandler( new XMLWriter( xmlOut ) );
+        reader.parse( new InputSource( aIn ) );
+        xmlOut.flush();
+    }
+
+    /**
+     * Convert textual XML to a binary event stream.
+     * @param aIn The XML.
+     * @param aOut The stream to write the binary events to which will be closed.
+     */
+    public static void fromXML( final InputStream aIn, final OutputStream aOut ) throws Exception {
+        SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware( true );
+        XMLReader reader = parserFactory.newSAXParser().getXMLReader();
+        reader.setContentHandler( new BinaryEventWriter( aOut ) );
+        reader.parse( new InputSource( aIn ) );
+    }
+
+    /**
+     * Writes SAX events as indented XML.  Text is only expected in elements without
+     * child elements as is the case for GCAM results so whitespace only text, which
+     * would be indentation in textual XML, is dropped.
+     */
+    private static class XMLWriter extends DefaultHandler {
+        private final Writer mOut;
+
+        /**
+         * The number of elements currently open.
+         */
+        private int mDepth = 0;
+
+        /**
+         * If the last event was the end of an element in which case the closing tag
+         * of the parent goes on its own line.
+         */
+        private boolean mAfterChildElement = false;
+
+        /**
+         * The text of the current element which has not yet been written.
+         */
+        private final StringBuilder mText = new StringBuilder();
+
+        XMLWriter( final Writer aOut ) {
+            mOut = aOut;
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+        }
+
+        @Override
+        public void startElement( final String aURI, final String aLocalName, final String aQName,
+                                  final Attributes aAttrs ) throws SAXException
+        {
+            StringBuilder tag = new StringBuilder();
+            appendText( tag );
+            tag.append( '\n' );
+            indent( tag );
+            tag.append( '<' ).append( aQName );
+            for( int i = 0; i < aAttrs.getLength(); ++i ) {
+                tag.append( ' ' ).append( aAttrs.getQName( i ) ).append( "=\"" );
+                escape( aAttrs.getValue( i ), true, tag );
+                tag.append( '"' );
+            }
+            tag.append( '>' );
+            write( tag );
+            ++mDepth;
+            mAfterChildElement = false;
+        }
+
+        @Override
+        public void endElement( final String aURI, final String aLocalName, final String aQName ) throws SAXException {
+            --mDepth;
+            StringBuilder tag = new StringBuilder();
+            appendText( tag );
+            if( mAfterChildElement ) {
+                tag.append( '\n' );
+                indent( tag );
+            }
+            tag.append( "</" ).append( aQName ).append( '>' );
+            write( tag );
+            mAfterChildElement = true;
+        }
+
+        @Override
+        public void characters( final char[] aChars, final int aStart, final int aLength ) throws SAXException {
+            mText.append( aChars, aStart, aLength );
+        }
+
+        /**
+         * Add the text collected since the last element event, if any.
+         */
+        private void appendText( final StringBuilder aOut ) {
+            if( mText.length() > 0 ) {
+                final String text = mText.toString();
+                mText.setLength( 0 );
+                if( !text.trim().isEmpty() ) {
+                    escape( text, false, aOut );
+                    mAfterChildElement = false;
+                }
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            write( "\n" );
+        }
+
+        private void indent( final StringBuilder aOut ) {
+            for( int i = 0; i < mDepth; ++i ) {
+                aOut.append( '\t' );
+            }
+        }
+
+        private void write( final CharSequence aText ) throws SAXException {
+            try {
+                mOut.append( aText );
+            }
+            catch( IOException ioError ) {
+                throw new SAXException( ioError );
+            }
+        }
+
+        private static void escape( final String aText, final boolean aInAttribute, final StringBuilder aOut ) {
+            for( int i = 0; i < aText.length(); ++i ) {
+                final char currChar = aText.charAt( i );
+                switch( currChar ) {
+                    case '&':
+                        aOut.append( "&amp;" );
+                        break;
+                    case '<':
+                        aOut.append( "&lt;" );
+                        break;
+                    case '>':
+                        aOut.append( "&gt;" );
+                        break;
+                    case '"':
+                        aOut.append( aInAttribute ? "&quot;" : "\"" );
+                        break;
+                    default:
+                        aOut.append( currChar );
+                }
+            }
+        }
+    }
+}
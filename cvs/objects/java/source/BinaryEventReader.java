@@ -0,0 +1,383 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Decodes the compact binary event stream GCAM may send instead of textual XML
+ * into SAX events so that they can be built straight into the database (or handed
+ * to any other SAX consumer such as the filter) without formatting and parsing
+ * the XML.  The stream is:
+ *
+ *   MAGIC, followed by events each starting with a tag byte:
+ *   DEFINE_NAME   id name       assigns the element or attribute name id
+ *   START_ELEMENT id            opens an element, followed by its attributes
+ *   ATTRIBUTE     id value      an attribute of the element just opened
+ *   TEXT          value         text content of the current element
+ *   END_ELEMENT                 closes the current element
+ *
+ * Where ids are unsigned LEB128 varints and names are strings.  A name is always
+ * defined before it is first used, although definitions may appear between an
+ * element and its attributes.  Each value starts with a type byte followed by:
+ *   STRING        varint length then that many bytes of UTF-8
+ *   DOUBLE        8 byte big endian IEEE 754 double
+ *   INT           zigzag encoded varint
+ *
+ * See util/base/include/binary_event_writer.h for the GCAM side.  If the stream
+ * does not start with MAGIC it is assumed to be textual XML and is parsed as
+ * usual so that an older GCAM may still be used.
+ */
+public class BinaryEventReader implements XMLReader {
+    /**
+     * The bytes the stream starts with, including the format version.
+     */
+    public static final byte[] MAGIC = { 'G', 'C', 'A', 'M', 'E', 'V', 'T', 1 };
+
+    /**
+     * The event tags.
+     */
+    public static final int DEFINE_NAME = 1;
+    public static final int START_ELEMENT = 2;
+    public static final int ATTRIBUTE = 3;
+    public static final int TEXT = 4;
+    public static final int END_ELEMENT = 5;
+
+    /**
+     * The value types.
+     */
+    public static final int STRING = 1;
+    public static final int DOUBLE = 2;
+    public static final int INT = 3;
+
+    private ContentHandler mContentHandler = null;
+    private DTDHandler mDTDHandler = null;
+    private EntityResolver mEntityResolver = null;
+    private ErrorHandler mErrorHandler = null;
+
+    /**
+     * Features and properties are only used if the stream turns out to be
+     * textual XML in which case they are passed on to the XML parser.
+     */
+    private final Map<String, Boolean> mFeatures = new HashMap<String, Boolean>();
+    private final Map<String, Object> mProperties = new HashMap<String, Object>();
+
+    /**
+     * The names defined so far by id.
+     */
+    private String[] mNames = new String[ 256 ];
+
+    public ContentHandler getContentHandler() {
+        return mContentHandler;
+    }
+
+    public void setContentHandler( final ContentHandler aHandler ) {
+        mContentHandler = aHandler;
+    }
+
+    public DTDHandler getDTDHandler() {
+        return mDTDHandler;
+    }
+
+    public void setDTDHandler( final DTDHandler aHandler ) {
+        mDTDHandler = aHandler;
+    }
+
+    public EntityResolver getEntityResolver() {
+        return mEntityResolver;
+    }
+
+    public void setEntityResolver( final EntityResolver aResolver ) {
+        mEntityResolver = aResolver;
+    }
+
+    public ErrorHandler getErrorHandler() {
+        return mErrorHandler;
+    }
+
+    public void setErrorHandler( final ErrorHandler aHandler ) {
+        mErrorHandler = aHandler;
+    }
+
+    public boolean getFeature( final String aName ) {
+        Boolean value = mFeatures.get( aName );
+        return value != null && value;
+    }
+
+    public void setFeature( final String aName, final boolean aValue ) {
+        mFeatures.put( aName, aValue );
+    }
+
+    public Object getProperty( final String aName ) {
+        return mProperties.get( aName );
+    }
+
+    public void setProperty( final String aName, final Object aValue ) {
+        mProperties.put( aName, aValue );
+    }
+
+    public void parse( final String aSystemId ) throws IOException, SAXException {
+        parse( new InputSource( aSystemId ) );
+    }
+
+    /**
+     * Decode the binary event stream, or parse the XML, from the given source
+     * and send the events to the content handler.
+     * @param aInput The source which must have either a byte stream or a system id.
+     */
+    public void parse( final InputSource aInput ) throws IOException, SAXException {
+        InputStream rawIn = aInput.getByteStream();
+        if( rawIn == null ) {
+            rawIn = new URL( aInput.getSystemId() ).openStream();
+        }
+        final BufferedInputStream bufferedIn = new BufferedInputStream( rawIn, 64 * 1024 );
+        if( !startsWithMagic( bufferedIn ) ) {
+            parseXML( bufferedIn );
+            return;
+        }
+        final DataInputStream in = new DataInputStream( bufferedIn );
+        final ContentHandler handler = mContentHandler != null ? mContentHandler : new DefaultHandler();
+        final AttributesImpl attrs = new AttributesImpl();
+        int[] openElements = new int[ 64 ];
+        int depth = 0;
+
+        handler.startDocument();
+        int tag = in.read();
+        while( tag != -1 ) {
+            switch( tag ) {
+                case DEFINE_NAME: {
+                    readDefinition( in );
+                    tag = in.read();
+                    break;
+                }
+                case START_ELEMENT: {
+                    final int nameId = readNameId( in );
+                    attrs.clear();
+                    tag = in.read();
+                    while( tag == ATTRIBUTE || tag == DEFINE_NAME ) {
+                        if( tag == DEFINE_NAME ) {
+                            readDefinition( in );
+                        }
+                        else {
+                            final String attrName = mNames[ readNameId( in ) ];
+                            attrs.addAttribute( "", attrName, attrName, "CDATA", readValue( in ) );
+                        }
+                        tag = in.read();
+                    }
+                    final String name = mNames[ nameId ];
+                    handler.startElement( "", name, name, attrs );
+                    if( depth == openElements.length ) {
+                        int[] grown = new int[ depth * 2 ];
+                        System.arraycopy( openElements, 0, grown, 0, depth );
+                        openElements = grown;
+                    }
+                    openElements[ depth++ ] = nameId;
+                    break;
+                }
+                case TEXT: {
+                    final char[] text = readValue( in ).toCharArray();
+                    handler.characters( text, 0, text.length );
+                    tag = in.read();
+                    break;
+                }
+                case END_ELEMENT: {
+                    if( depth == 0 ) {
+                        throw new SAXException( "Unbalanced end of element in the binary event stream." );
+                    }
+                    final String name = mNames[ openElements[ --depth ] ];
+                    handler.endElement( "", name, name );
+                    tag = in.read();
+                    break;
+                }
+                default:
+                    throw new SAXException( "Unknown event " + tag + " in the binary event stream." );
+            }
+        }
+        if( depth != 0 ) {
+            throw new SAXException( "Unexpected end of the binary event stream with " + depth + " elements open." );
+        }
+        handler.endDocument();
+    }
+
+    /**
+     * Check if the stream starts with MAGIC leaving the stream positioned at the
+     * first event if it does or at the start otherwise.
+     */
+    private static boolean startsWithMagic( final BufferedInputStream aIn ) throws IOException {
+        aIn.mark( MAGIC.length );
+        for( int i = 0; i < MAGIC.length; ++i ) {
+            if( aIn.read() != ( MAGIC[ i ] & 0xFF ) ) {
+                aIn.reset();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse textual XML with the default SAX parser passing on the handlers,
+     * features, and properties that have been set.
+     */
+    private void parseXML( final InputStream aIn ) throws IOException, SAXException {
+        try {
+            SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+            parserFactory.setNamespaceAware( true );
+            XMLReader reader = parserFactory.newSAXParser().getXMLReader();
+            for( Map.Entry<String, Boolean> feature : mFeatures.entrySet() ) {
+                reader.setFeature( feature.getKey(), feature.getValue() );
+            }
+            for( Map.Entry<String, Object> property : mProperties.entrySet() ) {
+                reader.setProperty( property.getKey(), property.getValue() );
+            }
+            if( mContentHandler != null ) {
+                reader.setContentHandler( mContentHandler );
+            }
+            if( mDTDHandler != null ) {
+                reader.setDTDHandler( mDTDHandler );
+            }
+            if( mEntityResolver != null ) {
+                reader.setEntityResolver( mEntityResolver );
+            }
+            if( mErrorHandler != null ) {
+                reader.setErrorHandler( mErrorHandler );
+            }
+            reader.parse( new InputSource( aIn ) );
+        }
+        catch( javax.xml.parsers.ParserConfigurationException configError ) {
+            throw new SAXException( configError );
+        }
+    }
+
+    /**
+     * Read a name definition.
+     */
+    private void readDefinition( final DataInputStream aIn ) throws IOException {
+        final int id = (int)readVarint( aIn );
+        if( id >= mNames.length ) {
+            String[] grown = new String[ Math.max( mNames.length * 2, id + 1 ) ];
+            System.arraycopy( mNames, 0, grown, 0, mNames.length );
+            mNames = grown;
+        }
+        mNames[ id ] = readString( aIn );
+    }
+
+    /**
+     * Read a reference to a name and check it has been defined.
+     */
+    private int readNameId( final DataInputStream aIn ) throws IOException, SAXException {
+        final long id = readVarint( aIn );
+        if( id >= mNames.length || mNames[ (int)id ] == null ) {
+            throw new SAXException( "Name " + id + " used before it was defined in the binary event stream." );
+        }
+        return (int)id;
+    }
+
+    /**
+     * Read a value as the text it represents.
+     */
+    private static String readValue( final DataInputStream aIn ) throws IOException, SAXException {
+        final int type = aIn.readUnsignedByte();
+        switch( type ) {
+            case STRING:
+                return readString( aIn );
+            case DOUBLE:
+                return formatDouble( aIn.readDouble() );
+            case INT: {
+                final long zigzag = readVarint( aIn );
+                return Long.toString( ( zigzag >>> 1 ) ^ -( zigzag & 1 ) );
+            }
+            default:
+                throw new SAXException( "Unknown value type " + type + " in the binary event stream." );
+        }
+    }
+
+    /**
+     * Format a double as text.  Whole numbers are written without a fraction as
+     * GCAM would and otherwise the shortest text which reads back as the same double
+     * is used.
+     * @param aValue The value to format.
+     * @return The value as text.
+     */
+    public static String formatDouble( final double aValue ) {
+        if( aValue == Math.rint( aValue ) && Math.abs( aValue ) < 1e15 ) {
+            return Long.toString( (long)aValue );
+        }
+        else if( Double.isNaN( aValue ) ) {
+            return "NaN";
+        }
+        else if( Double.isInfinite( aValue ) ) {
+            return aValue > 0 ? "INF" : "-INF";
+        }
+        return Double.toString( aValue );
+    }
+
+    private static String readString( final DataInputStream aIn ) throws IOException {
+        final int length = (int)readVarint( aIn );
+        final byte[] utf8 = new byte[ length ];
+        aIn.readFully( utf8 );
+        return new String( utf8, StandardCharsets.UTF_8 );
+    }
+
+    private static long readVarint( final DataInputStream aIn ) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int currByte;
+        do {
+            currByte = aIn.read();
+            if( currByte == -1 ) {
+                throw new EOFException( "Unexpected end of the binary event stream." );
+            }
+            value |= (long)( currByte & 0x7F ) << shift;
+            shift += 7;
+        } while( ( currByte & 0x80 ) != 0 );
+        return value;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Encodes SAX events into the binary event stream read by BinaryEventReader.
+ * This allows exported GCAM results to be converted to the binary format for
+ * testing and benchmarking.  Text which reads back exactly as a number is sent
+ * as a DOUBLE or INT so that the conversion is lossless.  Whitespace only text is
+ * dropped as GCAM only uses it for indentation.
+ */
+public class BinaryEventWriter extends DefaultHandler {
+    /**
+     * The stream to write the events to.
+     */
+    private final DataOutputStream mOut;
+
+    /**
+     * The id of each name defined so far.
+     */
+    private final Map<String, Integer> mNameIds = new HashMap<String, Integer>();
+
+    /**
+     * The text of the current element which has not yet been written.
+     */
+    private final StringBuilder mText = new StringBuilder();
+
+    /**
+     * Constructor.
+     * @param aOut The stream to write the events to which will be closed at the end
+     *             of the document.
+     */
+    public BinaryEventWriter( final OutputStream aOut ) {
+        mOut = new DataOutputStream( new BufferedOutputStream( aOut, 64 * 1024 ) );
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        try {
+            mOut.write( BinaryEventReader.MAGIC );
+        }
+        catch( IOException ioError ) {
+            throw new SAXException( ioError );
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        try {
+            mOut.close();
+        }
+        catch( IOException ioError ) {
+            throw new SAXException( ioError );
+        }
+    }
+
+    @Override
+    public void startElement( final String aURI, final String aLocalName, final String aQName,
+                              final Attributes aAttrs ) throws SAXException
+    {
+        try {
+            writeText();
+            final int nameId = getNameId( aQName );
+            mOut.write( BinaryEventReader.START_ELEMENT );
+            writeVarint( nameId );
+            for( int i = 0; i < aAttrs.getLength(); ++i ) {
+                final int attrId = getNameId( aAttrs.getQName( i ) );
+                mOut.write( BinaryEventReader.ATTRIBUTE );
+                writeVarint( attrId );
+                writeValue( aAttrs.getValue( i ) );
+            }
+        }
+        catch( IOException ioError ) {
+            throw new SAXException( ioError );
+        }
+    }
+
+    @Override
+    public void endElement( final String aURI, final String aLocalName, final String aQName ) throws SAXException {
+        try {
+            writeText();
+            mOut.write( BinaryEventReader.END_ELEMENT );
+        }
+        catch( IOException ioError ) {
+            throw new SAXException( ioError );
+        }
+    }
+
+    @Override
+    public void characters( final char[] aChars, final int aStart, final int aLength ) {
+        mText.append( aChars, aStart, aLength );
+    }
+
+    /**
+     * Write the text collected since the last element event, if any.
+     */
+    private void writeText() throws IOException {
+        if( mText.length() > 0 ) {
+            final String text = mText.toString();
+            mText.setLength( 0 );
+            if( !text.trim().isEmpty() ) {
+                mOut.write( BinaryEventReader.TEXT );
+                writeValue( text );
+            }
+        }
+    }
+
+    /**
+     * Get the id of a name defining it first if it is new.
+     */
+    private int getNameId( final String aName ) throws IOException {
+        Integer id = mNameIds.get( aName );
+        if( id == null ) {
+            id = mNameIds.size();
+            mNameIds.put( aName, id );
+            mOut.write( BinaryEventReader.DEFINE_NAME );
+            writeVarint( id );
+            writeString( aName );
+        }
+        return id;
+    }
+
+    /**
+     * Write a value as a number if it reads back as exactly the same text, otherwise
+     * as a string.
+     */
+    private void writeValue( final String aValue ) throws IOException {
+        if( !aValue.isEmpty() && aValue.length() < 32 && isNumberStart( aValue.charAt( 0 ) ) ) {
+            try {
+                final double number = Double.parseDouble( aValue );
+                if( BinaryEventReader.formatDouble( number ).equals( aValue ) ) {
+                    if( number == Math.rint( number ) ) {
+                        mOut.write( BinaryEventReader.INT );
+                        final long whole = (long)number;
+                        writeVarint( ( whole << 1 ) ^ ( whole >> 63 ) );
+                    }
+                    else {
+                        mOut.write( BinaryEventReader.DOUBLE );
+                        mOut.writeDouble( number );
+                    }
+                    return;
+                }
+            }
+            catch( NumberFormatException notNumber ) {
+                // write it as a string
+            }
+        }
+        mOut.write( BinaryEventReader.STRING );
+        writeString( aValue );
+    }
+
+    private static boolean isNumberStart( final char aChar ) {
+        return ( aChar >= '0' && aChar <= '9' ) || aChar == '-';
+    }
+
+    private void writeString( final String aValue ) throws IOException {
+        final byte[] utf8 = aValue.getBytes( StandardCharsets.UTF_8 );
+        writeVarint( utf8.length );
+        mOut.write( utf8 );
+    }
+
+    private void writeVarint( long aValue ) throws IOException {
+        while( ( aValue & ~0x7FL ) != 0 ) {
+            mOut.write( (int)( ( aValue & 0x7F ) | 0x80 ) );
+            aValue >>>= 7;
+        }
+        mOut.write( (int)aValue );
+    }
+}
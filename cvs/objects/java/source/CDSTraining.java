@@ -0,0 +1,304 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Creates a class data sharing (CDS) archive of the classes the XMLDBDriver uses so
+ * that the JVM GCAM starts may map them in rather than loading and verifying them
+ * from the jars on every run.  A second JVM is started with the expanded classpath
+ * and -XX:ArchiveClassesAtExit (which requires Java 13 or later) to run a workload
+ * through the driver, either a sample scenario or the results XML given.  The
+ * archive is written to XMLDBDriver.jsa and the classpath it was created with to
+ * XMLDBDriver.jsa.classpath in the working directory which is where GCAM looks for
+ * them (see XMLDBOutputter::createContainer).  The archive is only valid for the
+ * Java runtime which created it, see --print-java-home, and the jars it was created
+ * from.  If either changes the JVM will ignore it and the training should be run
+ * again.
+ */
+public class CDSTraining {
+    /**
+     * The archive file name GCAM will look for.
+     */
+    public static final String ARCHIVE_FILE = "XMLDBDriver.jsa";
+
+    /**
+     * The file name GCAM will look for the classpath the archive was created with.
+     */
+    public static final String CLASSPATH_FILE = ARCHIVE_FILE + ".classpath";
+
+    /**
+     * Create the archive by running the workload in a new JVM.
+     * @param aXMLFile The GCAM results XML to run through the driver or null to
+     *                 generate a sample scenario.
+     * @return True if the archive was created.
+     */
+    public static boolean train( final String aXMLFile ) {
+        final File archiveFile = new File( ARCHIVE_FILE );
+        final File classpathFile = new File( CLASSPATH_FILE );
+        // make sure GCAM will not pick up a stale pair if the training fails
+        classpathFile.delete();
+        try {
+            final String classpath = getExpandedClasspath();
+            List<String> command = new ArrayList<String>();
+            command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getPath() );
+            command.add( "-XX:ArchiveClassesAtExit=" + archiveFile.getPath() );
+            command.add( "-cp" );
+            command.add( classpath );
+            command.add( "XMLDBDriver" );
+            command.add( "--cds-workload" );
+            if( aXMLFile != null ) {
+                command.add( "--xml=" + aXMLFile );
+            }
+            Process workload = new ProcessBuilder( command ).inheritIO().start();
+            if( workload.waitFor() != 0 || !archiveFile.exists() ) {
+                System.err.println( "ERROR: Failed to create " + ARCHIVE_FILE + ", note Java 13 or later is required." );
+                return false;
+            }
+
+            PrintWriter classpathOut = new PrintWriter( new FileWriter( classpathFile ) );
+            try {
+                classpathOut.println( classpath );
+            }
+            finally {
+                classpathOut.close();
+            }
+            System.out.println( "Created " + ARCHIVE_FILE + " for " + System.getProperty( "java.home" ) );
+            return true;
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Get the classpath with any wildcards expanded as the JVM GCAM starts will not
+     * expand them itself.  Entries within the workspace, that is the parent of the
+     * working directory, are kept relative so that the archive keeps working if the
+     * workspace is moved.
+     * @return The expanded classpath.
+     */
+    private static String getExpandedClasspath() throws Exception {
+        List<File> entries = new ArrayList<File>();
+        ClassLoader systemLoader = ClassLoader.getSystemClassLoader();
+        if( systemLoader instanceof URLClassLoader ) {
+            // such as the WildcardExpandingClassLoader
+            for( URL url : ( (URLClassLoader)systemLoader ).getURLs() ) {
+                entries.add( new File( url.toURI() ) );
+            }
+        }
+        else {
+            // the java launcher has already expanded any wildcards
+            for( String entry : System.getProperty( "java.class.path" ).split( File.pathSeparator ) ) {
+                entries.add( new File( entry ) );
+            }
+        }
+
+        final Path workingDir = new File( System.getProperty( "user.dir" ) ).getAbsoluteFile().toPath();
+        final Path workspaceDir = workingDir.getParent() != null ? workingDir.getParent() : workingDir;
+        StringBuilder classpath = new StringBuilder();
+        for( File entry : entries ) {
+            Path entryPath = entry.getAbsoluteFile().toPath().normalize();
+            if( entryPath.startsWith( workspaceDir ) ) {
+                entryPath = workingDir.relativize( entryPath );
+            }
+            if( classpath.length() > 0 ) {
+                classpath.append( File.pathSeparator );
+            }
+            classpath.append( entryPath.toString() );
+        }
+        return classpath.toString();
+    }
+
+    /**
+     * Run the workload the archive is created from.  This mimics a GCAM run
+     * storing results and then runs an export query on them to load the query
+     * classes as well.  The configuration in XMLDBDriver.properties is used so that
+     * the configured stages are included, however everything is written to a
+     * temporary directory and options which would send results elsewhere such as
+     * fan-out-sinks, spool-dir, and batch-queries are ignored.
+     * @param aXMLFile The GCAM results XML to run through the driver or null to
+     *                 generate a sample scenario.
+     */
+    public static void runWorkload( final String aXMLFile ) throws Exception {
+        final File tempDir = File.createTempFile( "gcam-cds", "" );
+        tempDir.delete();
+        tempDir.mkdirs();
+        try {
+            Properties config = XMLDBDriver.loadConfig();
+            for( String option : new String[] { "daemon-address", "spool-dir", "fan-out-sinks", "live-queries",
+                                                 "batch-queries" } )
+            {
+                config.remove( option );
+            }
+            final File exportDir = new File( tempDir, "exports" );
+            config.setProperty( "export-dir", exportDir.getPath() );
+            final File seriesDir = new File( tempDir, "series" );
+            if( !config.getProperty( "series-store-dir", "" ).isEmpty() ) {
+                config.setProperty( "series-store-dir", seriesDir.getPath() );
+            }
+            if( config.getProperty( "export-queries", "" ).isEmpty() ) {
+                File exportDefinition = new File( tempDir, "exports.xml" );
+                writeFile( exportDefinition,
+                    "<exports>\n"
+                  + "  <export name=\"outputs\">\n"
+                  + "    <rows>$scenario//physical-output</rows>\n"
+                  + "    <column name=\"region\" type=\"dictionary\">ancestor::region/@name</column>\n"
+                  + "    <column name=\"output\" type=\"string\">../@name</column>\n"
+                  + "    <column name=\"year\" type=\"int\">@vintage</column>\n"
+                  + "    <column name=\"value\" type=\"double\">.</column>\n"
+                  + "  </export>\n"
+                  + "</exports>\n" );
+                config.setProperty( "export-queries", exportDefinition.getPath() );
+            }
+
+            String xmlFile = aXMLFile;
+            if( xmlFile == null ) {
+                File sampleFile = new File( tempDir, "sample.xml" );
+                writeSampleScenario( sampleFile );
+                xmlFile = sampleFile.getPath();
+            }
+
+            // mimic the sequence of method calls GCAM would make
+            XMLDBDriver driver = new XMLDBDriver( new File( tempDir, "database" ).getPath(), "cds-training", config );
+            XMLDBDriver.sendFile( driver, xmlFile );
+            driver.finishAsync();
+            driver.appendData( "<cds-training/>", "/scenario/world/region[last()]" );
+            driver.finalizeAndClose();
+
+            // read the exports and any series store back as well
+            PrintStream discard = new PrintStream( new OutputStream() {
+                public void write( int aByte ) {
+                }
+            } );
+            File[] exports = exportDir.listFiles();
+            if( exports != null ) {
+                for( File export : exports ) {
+                    ColumnarReader reader = new ColumnarReader( export );
+                    try {
+                        reader.writeCSV( discard );
+                    }
+                    finally {
+                        reader.close();
+                    }
+                }
+            }
+            File[] seriesStores = seriesDir.listFiles();
+            if( seriesStores != null ) {
+                for( File seriesStore : seriesStores ) {
+                    SeriesStore store = new SeriesStore( seriesStore );
+                    try {
+                        String[] groupBy = { "region", "variable" };
+                        SeriesStore.writeCSV( discard, store.getColumns( groupBy ),
+                                              store.query( new HashMap<String, String[]>(), groupBy ) );
+                    }
+                    finally {
+                        store.close();
+                    }
+                }
+            }
+        }
+        finally {
+            delete( tempDir );
+        }
+    }
+
+    /**
+     * Write a small scenario shaped like the results GCAM writes.
+     * @param aFile The file to write to.
+     */
+    private static void writeSampleScenario( final File aFile ) throws IOException {
+        PrintWriter out = new PrintWriter( new FileWriter( aFile ) );
+        try {
+            out.println( "<scenario name=\"cds-training\" date=\"1-1-2000T00:00:00-00:00\">" );
+            out.println( "<world>" );
+            for( int region = 0; region < 32; ++region ) {
+                out.println( "<region name=\"region " + region + "\">" );
+                for( int sector = 0; sector < 10; ++sector ) {
+                    out.println( "<supplysector name=\"sector " + sector + "\"><subsector name=\"subsector\">" );
+                    for( int year = 1990; year <= 2100; year += 5 ) {
+                        out.println( "<technology name=\"technology\" year=\"" + year + "\">" );
+                        out.println( "<output-primary name=\"sector " + sector + "\"><physical-output unit=\"EJ\" vintage=\""
+                                     + year + "\">" + ( region + sector + year / 1000.0 ) + "</physical-output></output-primary>" );
+                        out.println( "</technology>" );
+                    }
+                    out.println( "</subsector></supplysector>" );
+                }
+                out.println( "</region>" );
+            }
+            out.println( "</world>" );
+            out.println( "</scenario>" );
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write a string to a file.
+     */
+    private static void writeFile( final File aFile, final String aContent ) throws IOException {
+        FileWriter out = new FileWriter( aFile );
+        try {
+            out.write( aContent );
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Recursively delete a file or directory.
+     */
+    private static void delete( final File aFile ) {
+        File[] children = aFile.listFiles();
+        if( children != null ) {
+            for( File child : children ) {
+                delete( child );
+            }
+        }
+        aFile.delete();
+    }
+}
@@ -0,0 +1,557 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A channel to pass a stream of bytes from one worker stage to the next, for
+ * instance GCAM -> filter -> DB.  It replaces the java.io piped streams which
+ * synchronize on every read and write, poll for data once a second, and are
+ * limited to a single fixed size buffer.
+ * Instead data is passed in whole chunks through a bounded single producer /
+ * single consumer ring which does not lock.  A thread only blocks (parks) when
+ * the ring is full or empty and is woken up directly by the other side as soon
+ * as that changes.  Chunks written through the output stream are pooled so that
+ * they are reused once the consumer has read them.  Direct buffers may also be
+ * handed over with offer in which case they are read in place without copying.
+ * The producer uses getOutputStream / offer / finishWriting and the consumer
+ * uses getInputStream, each from a single thread.
+ */
+public class ChunkPipe {
+    /**
+     * A marker placed in the ring to indicate the producer has no more data.
+     */
+    private final ByteBuffer END_OF_STREAM = ByteBuffer.allocate( 0 );
+
+    /**
+     * The maximum number of chunks that may be outstanding (queued or currently
+     * being read) at any one time.
+     */
+    private final int mDepth;
+
+    /**
+     * The size of the chunks to pool for data written through the output stream.
+     */
+    private final int mChunkSize;
+
+    /**
+     * The ring of chunks handed over to the consumer.  It has one more slot than
+     * mDepth so that there is always room for the END_OF_STREAM marker.
+     */
+    private final AtomicReferenceArray<ByteBuffer> mSlots;
+
+    /**
+     * The sequence number of the next slot the producer will fill.
+     */
+    private final AtomicLong mHead = new AtomicLong( 0 );
+
+    /**
+     * The number of chunks the consumer has completely finished reading, which
+     * may then be reused by the producer.
+     */
+    private final AtomicLong mReleased = new AtomicLong( 0 );
+
+    /**
+     * The producer thread if it is parked waiting for a free slot.
+     */
+    private volatile Thread mWaitingProducer = null;
+
+    /**
+     * The consumer thread if it is parked waiting for data.
+     */
+    private volatile Thread mWaitingConsumer = null;
+
+    /**
+     * Chunks allocated by the output stream which the consumer has finished
+     * reading and so can be filled again.
+     */
+    private final Queue<ByteBuffer> mRecycledChunks = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * A flag if the producer has indicated no more data will be sent.
+     */
+    private volatile boolean mFinishedWriting = false;
+
+    /**
+     * A flag if the pipe has been closed by the consumer or canceled in which
+     * case both sides should stop.
+     */
+    private volatile boolean mClosed = false;
+
+    /**
+     * The number of bytes handed over to the consumer.  Only updated by the
+     * producer.
+     */
+    private volatile long mBytesWritten = 0;
+
+    /**
+     * The number of bytes taken by the consumer.  Only updated by the consumer.
+     */
+    private volatile long mBytesRead = 0;
+
+    /**
+     * The total time in nanoseconds the producer has spent waiting for room.
+     */
+    private volatile long mProducerBlockedNanos = 0;
+
+    /**
+     * The total time in nanoseconds the consumer has spent waiting for data.
+     */
+    private volatile long mConsumerBlockedNanos = 0;
+
+    /**
+     * The consumer end of the pipe.
+     */
+    private final PipeInputStream mInputStream = new PipeInputStream();
+
+    /**
+     * The producer end of the pipe.
+     */
+    private final PipeOutputStream mOutputStream = new PipeOutputStream();
+
+    /**
+     * Constructor.
+     * @param aDepth The number of chunks that may be outstanding at once.
+     * @param aChunkSize The size in bytes of the chunks to use for data written
+     *                   through the output stream.
+     */
+    public ChunkPipe( final int aDepth, final int aChunkSize ) {
+        if( aDepth < 1 || aChunkSize < 1 ) {
+            throw new IllegalArgumentException( "Invalid pipe depth ("+aDepth+") or chunk size ("+aChunkSize+")" );
+        }
+        mDepth = aDepth;
+        mChunkSize = aChunkSize;
+        mSlots = new AtomicReferenceArray<ByteBuffer>( aDepth + 1 );
+    }
+
+    /**
+     * Get the number of chunks that may be outstanding at once.
+     * @return The depth of this pipe.
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Get the number of chunks which have been handed over but not yet completely
+     * read by the consumer.
+     * @return The number of chunks in the pipe.
+     */
+    public int getQueuedChunks() {
+        return (int)( mHead.get() - mReleased.get() );
+    }
+
+    /**
+     * Get the number of bytes handed over to the consumer so far.
+     * @return The number of bytes written.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Get the number of bytes the consumer has taken so far.
+     * @return The number of bytes read.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Get the total time the producer has spent blocked waiting for the consumer
+     * to make room in the pipe.
+     * @return The time blocked in nanoseconds.
+     */
+    public long getProducerBlockedNanos() {
+        return mProducerBlockedNanos;
+    }
+
+    /**
+     * Get the total time the consumer has spent blocked waiting for the producer
+     * to send more data.
+     * @return The time blocked in nanoseconds.
+     */
+    public long getConsumerBlockedNanos() {
+        return mConsumerBlockedNanos;
+    }
+
+    /**
+     * Get the stream the consumer should read from.
+     * @return The consumer end of the pipe.
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * Get the stream the producer should write to.  Data will be copied into
+     * pooled chunks and handed over as each fills up, on flush, or on close.
+     * Closing this stream is equivalent to calling finishWriting.
+     * @return The producer end of the pipe.
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * Hand over a direct buffer to be read in place without copying it.  The data
+     * between the buffer's position and limit will be read.  This method will block
+     * if the maximum number of chunks are already outstanding.  The caller must not
+     * modify the buffer until it has offered at least depth more buffers, at which
+     * point the consumer is guaranteed to be done with it.  Buffers which are not
+     * direct are copied as if written through the output stream.
+     * @param aBuffer The buffer to read from.
+     * @throws IOException If the pipe has been closed or we were interrupted while
+     *                     waiting.
+     */
+    public void offer( final ByteBuffer aBuffer ) throws IOException {
+        if( !aBuffer.isDirect() ) {
+            write( aBuffer );
+            return;
+        }
+        // keep the data in order with anything already written to the output stream
+        mOutputStream.flush();
+        if( aBuffer.hasRemaining() ) {
+            publish( aBuffer );
+        }
+    }
+
+    /**
+     * Copy the data between the buffer's position and limit into pooled chunks as
+     * if written through the output stream so that the buffer may be reused as soon
+     * as this returns.  This method will block if the maximum number of chunks are
+     * already outstanding.
+     * @param aBuffer The buffer to copy from.
+     * @throws IOException If the pipe has been closed or we were interrupted while
+     *                     waiting.
+     */
+    public void write( final ByteBuffer aBuffer ) throws IOException {
+        while( aBuffer.hasRemaining() ) {
+            mOutputStream.write( aBuffer );
+        }
+    }
+
+    /**
+     * Notify that no more data will be sent.  Once the consumer has read the
+     * remaining chunks it will see the end of the stream.  Note any data written
+     * to the output stream but not yet flushed will be discarded, use close on
+     * the output stream to flush it first.
+     */
+    public void finishWriting() {
+        if( mFinishedWriting || mClosed ) {
+            return;
+        }
+        try {
+            publish( END_OF_STREAM );
+        }
+        catch( IOException ioError ) {
+            // the consumer has gone away so there is no one to notify
+        }
+        mFinishedWriting = true;
+    }
+
+    /**
+     * Cancel the transfer, presumably due to an error.  Both the producer and
+     * consumer will be woken up if they are waiting and receive an error if they
+     * try to continue.
+     */
+    public void cancel() {
+        mClosed = true;
+        LockSupport.unpark( mWaitingProducer );
+        LockSupport.unpark( mWaitingConsumer );
+    }
+
+    /**
+     * Place the given chunk in the next slot of the ring, waiting for room if
+     * necessary, and wake up the consumer.
+     * @param aChunk The chunk to hand over.
+     * @throws IOException If the pipe has been closed or we were interrupted while
+     *                     waiting.
+     */
+    private void publish( final ByteBuffer aChunk ) throws IOException {
+        if( mFinishedWriting ) {
+            throw new IOException( "Write end of pipe already finished" );
+        }
+        final long head = mHead.get();
+        // the END_OF_STREAM marker does not count against the depth
+        final int limit = aChunk == END_OF_STREAM ? mDepth + 1 : mDepth;
+        if( head - mReleased.get() >= limit ) {
+            mWaitingProducer = Thread.currentThread();
+            final long startWait = System.nanoTime();
+            try {
+                // Note the consumer updates mReleased before checking mWaitingProducer
+                // and we set mWaitingProducer before checking mReleased so a wake up
+                // can not be missed.
+                while( head - mReleased.get() >= limit && !mClosed ) {
+                    LockSupport.park( this );
+                    if( Thread.interrupted() ) {
+                        throw new InterruptedIOException( "Interrupted while waiting to send data" );
+                    }
+                }
+            }
+            finally {
+                mWaitingProducer = null;
+                mProducerBlockedNanos += System.nanoTime() - startWait;
+            }
+        }
+        if( mClosed ) {
+            throw new IOException( "Pipe closed" );
+        }
+        mBytesWritten += aChunk.remaining();
+        mSlots.set( (int)( head % mSlots.length() ), aChunk );
+        mHead.set( head + 1 );
+        LockSupport.unpark( mWaitingConsumer );
+    }
+
+    /**
+     * The consumer end of the pipe.
+     */
+    private class PipeInputStream extends InputStream {
+        /**
+         * The sequence number of the next slot to take from the ring.
+         */
+        private long mTail = 0;
+
+        /**
+         * The chunk currently being read.
+         */
+        private ByteBuffer mCurrentChunk = null;
+
+        /**
+         * Get the chunk which has data available to read, waiting if necessary until
+         * the producer has sent more.  Any chunk that has been completely read will be
+         * released back to the producer.
+         * @return The chunk with data to read or null if the end of the stream has been
+         *         reached.
+         * @throws IOException If the pipe has been closed or we were interrupted while
+         *                     waiting.
+         */
+        private ByteBuffer nextReadableChunk() throws IOException {
+            while( mCurrentChunk == null || !mCurrentChunk.hasRemaining() ) {
+                if( mCurrentChunk == END_OF_STREAM ) {
+                    return null;
+                }
+                releaseCurrentChunk();
+                mCurrentChunk = take();
+            }
+            return mCurrentChunk;
+        }
+
+        /**
+         * Take the next chunk from the ring, waiting if it is empty.
+         * @return The next chunk.
+         * @throws IOException If the pipe has been closed or we were interrupted while
+         *                     waiting.
+         */
+        private ByteBuffer take() throws IOException {
+            if( mTail == mHead.get() ) {
+                mWaitingConsumer = Thread.currentThread();
+                final long startWait = System.nanoTime();
+                try {
+                    while( mTail == mHead.get() && !mClosed ) {
+                        LockSupport.park( this );
+                        if( Thread.interrupted() ) {
+                            throw new InterruptedIOException( "Interrupted while waiting for data" );
+                        }
+                    }
+                }
+                finally {
+                    mWaitingConsumer = null;
+                    mConsumerBlockedNanos += System.nanoTime() - startWait;
+                }
+            }
+            if( mClosed ) {
+                throw new IOException( "Pipe closed" );
+            }
+            final int index = (int)( mTail % mSlots.length() );
+            ByteBuffer chunk = mSlots.get( index );
+            mSlots.lazySet( index, null );
+            ++mTail;
+            mBytesRead += chunk.remaining();
+            return chunk;
+        }
+
+        /**
+         * Let the producer know we are done with the current chunk so that it's
+         * slot, and the chunk itself if it came from the pool, can be reused.
+         */
+        private void releaseCurrentChunk() {
+            if( mCurrentChunk != null && mCurrentChunk != END_OF_STREAM ) {
+                // only recycle the chunks allocated by the output stream, direct
+                // buffers belong to the producer
+                if( !mCurrentChunk.isDirect() ) {
+                    mRecycledChunks.offer( mCurrentChunk );
+                }
+                mCurrentChunk = null;
+                mReleased.incrementAndGet();
+                LockSupport.unpark( mWaitingProducer );
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer current = nextReadableChunk();
+            return current == null ? -1 : current.get() & 0xFF;
+        }
+
+        @Override
+        public int read( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException {
+            if( aLength == 0 ) {
+                return 0;
+            }
+            ByteBuffer current = nextReadableChunk();
+            if( current == null ) {
+                return -1;
+            }
+            final int numRead = Math.min( aLength, current.remaining() );
+            current.get( aBuffer, aOffset, numRead );
+            return numRead;
+        }
+
+        @Override
+        public int available() {
+            return mCurrentChunk == null ? 0 : mCurrentChunk.remaining();
+        }
+
+        /**
+         * Close the pipe from the consumer side.  A producer waiting to send data
+         * will be woken up and receive an error.
+         */
+        @Override
+        public void close() {
+            mCurrentChunk = null;
+            cancel();
+        }
+    }
+
+    /**
+     * The producer end of the pipe.
+     */
+    private class PipeOutputStream extends OutputStream {
+        /**
+         * The pooled chunk currently being filled.
+         */
+        private ByteBuffer mFillChunk = null;
+
+        /**
+         * Make sure there is a chunk with room to write into.
+         */
+        private void ensureFillChunk() {
+            if( mFillChunk == null ) {
+                mFillChunk = mRecycledChunks.poll();
+                if( mFillChunk == null ) {
+                    mFillChunk = ByteBuffer.allocate( mChunkSize );
+                }
+                mFillChunk.clear();
+            }
+        }
+
+        /**
+         * Hand over the chunk being filled if it has any data in it.
+         * @throws IOException If the pipe has been closed or we were interrupted while
+         *                     waiting.
+         */
+        private void publishFillChunk() throws IOException {
+            if( mFillChunk != null && mFillChunk.position() > 0 ) {
+                mFillChunk.flip();
+                ByteBuffer chunk = mFillChunk;
+                mFillChunk = null;
+                publish( chunk );
+            }
+        }
+
+        /**
+         * Copy as much of the given data as will fit into the current chunk.
+         * @param aData The data to copy, it's position will be advanced.
+         * @throws IOException If the pipe has been closed or we were interrupted while
+         *                     waiting.
+         */
+        void write( final ByteBuffer aData ) throws IOException {
+            ensureFillChunk();
+            final int numCopy = Math.min( aData.remaining(), mFillChunk.remaining() );
+            ByteBuffer slice = aData.duplicate();
+            slice.limit( slice.position() + numCopy );
+            mFillChunk.put( slice );
+            aData.position( aData.position() + numCopy );
+            if( !mFillChunk.hasRemaining() ) {
+                publishFillChunk();
+            }
+        }
+
+        @Override
+        public void write( final int aByte ) throws IOException {
+            ensureFillChunk();
+            mFillChunk.put( (byte)aByte );
+            if( !mFillChunk.hasRemaining() ) {
+                publishFillChunk();
+            }
+        }
+
+        @Override
+        public void write( final byte[] aData, int aOffset, int aLength ) throws IOException {
+            while( aLength > 0 ) {
+                ensureFillChunk();
+                final int numCopy = Math.min( aLength, mFillChunk.remaining() );
+                mFillChunk.put( aData, aOffset, numCopy );
+                aOffset += numCopy;
+                aLength -= numCopy;
+                if( !mFillChunk.hasRemaining() ) {
+                    publishFillChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            publishFillChunk();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                publishFillChunk();
+            }
+            finally {
+                finishWriting();
+            }
+        }
+    }
+}
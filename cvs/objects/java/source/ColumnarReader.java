@@ -0,0 +1,337 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads back the columnar files written by ColumnarWriter one row group at a
+ * time so that memory use stays bounded however large the file is.  Only the
+ * footer is read when the file is opened.  Each column of a row group is decoded
+ * into an array: DICTIONARY and STRING columns into a String[] (where the values
+ * of a DICTIONARY column are shared with the dictionary), INT columns into an
+ * int[], and DOUBLE columns into a double[].
+ */
+public class ColumnarReader {
+    /**
+     * The file being read.
+     */
+    private final RandomAccessFile mFile;
+
+    /**
+     * The name and type of each column.
+     */
+    private final String[] mColumnNames;
+    private final byte[] mColumnTypes;
+
+    /**
+     * The dictionary of each DICTIONARY column, null for other columns.
+     */
+    private final String[][] mDictionaries;
+
+    /**
+     * The file offset and row count of each row group.
+     */
+    private final long[] mRowGroupOffsets;
+    private final int[] mRowGroupRows;
+
+    /**
+     * The total number of rows.
+     */
+    private final long mTotalRows;
+
+    /**
+     * Constructor which will open the file and read the footer.
+     * @param aFile The file to read.
+     * @throws IOException If the file could not be read or is not a columnar file.
+     */
+    public ColumnarReader( final File aFile ) throws IOException {
+        mFile = new RandomAccessFile( aFile, "r" );
+        try {
+            final int magicLength = ColumnarWriter.MAGIC.length;
+            byte[] magic = new byte[ magicLength ];
+            mFile.readFully( magic );
+            checkMagic( magic, aFile );
+            mFile.seek( mFile.length() - magicLength - 4 );
+            int footerLength = mFile.readInt();
+            mFile.readFully( magic );
+            checkMagic( magic, aFile );
+
+            byte[] footerData = new byte[ footerLength ];
+            mFile.seek( mFile.length() - magicLength - 4 - footerLength );
+            mFile.readFully( footerData );
+            DataInputStream footer = new DataInputStream( new ByteArrayInputStream( footerData ) );
+            final int numColumns = footer.readInt();
+            mColumnNames = new String[ numColumns ];
+            mColumnTypes = new byte[ numColumns ];
+            for( int i = 0; i < numColumns; ++i ) {
+                mColumnNames[ i ] = readString( footer );
+                mColumnTypes[ i ] = footer.readByte();
+            }
+            mDictionaries = new String[ numColumns ][];
+            for( int i = 0; i < numColumns; ++i ) {
+                if( mColumnTypes[ i ] == ColumnarWriter.DICTIONARY ) {
+                    mDictionaries[ i ] = new String[ footer.readInt() ];
+                    for( int j = 0; j < mDictionaries[ i ].length; ++j ) {
+                        mDictionaries[ i ][ j ] = readString( footer );
+                    }
+                }
+            }
+            final int numRowGroups = footer.readInt();
+            mRowGroupOffsets = new long[ numRowGroups ];
+            mRowGroupRows = new int[ numRowGroups ];
+            for( int i = 0; i < numRowGroups; ++i ) {
+                mRowGroupOffsets[ i ] = footer.readLong();
+                mRowGroupRows[ i ] = footer.readInt();
+            }
+            mTotalRows = footer.readLong();
+        }
+        catch( IOException error ) {
+            mFile.close();
+            throw error;
+        }
+    }
+
+    /**
+     * Make sure the file starts and ends with the expected magic bytes.
+     */
+    private static void checkMagic( final byte[] aMagic, final File aFile ) throws IOException {
+        if( !Arrays.equals( aMagic, ColumnarWriter.MAGIC ) ) {
+            throw new IOException( aFile + " is not a complete columnar file" );
+        }
+    }
+
+    /**
+     * @return The name of each column.
+     */
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    /**
+     * @return The type of each column, see ColumnarWriter.
+     */
+    public byte[] getColumnTypes() {
+        return mColumnTypes;
+    }
+
+    /**
+     * Get the dictionary of a DICTIONARY column, such as all of the regions.
+     * @param aColumn The index of the column.
+     * @return The distinct values of the column in the order first seen or null if
+     *         it is not a DICTIONARY column.
+     */
+    public String[] getDictionary( final int aColumn ) {
+        return mDictionaries[ aColumn ];
+    }
+
+    /**
+     * @return The number of row groups in the file.
+     */
+    public int getNumRowGroups() {
+        return mRowGroupOffsets.length;
+    }
+
+    /**
+     * @return The total number of rows in the file.
+     */
+    public long getNumRows() {
+        return mTotalRows;
+    }
+
+    /**
+     * Read and decode all of the columns of a row group.
+     * @param aRowGroup The index of the row group.
+     * @return The values of each column, see the class description for the array
+     *         types used.
+     * @throws IOException If the data could not be read.
+     */
+    public Object[] readRowGroup( final int aRowGroup ) throws IOException {
+        mFile.seek( mRowGroupOffsets[ aRowGroup ] );
+        final int numRows = mFile.readInt();
+        Object[] columns = new Object[ mColumnNames.length ];
+        for( int i = 0; i < columns.length; ++i ) {
+            byte[] compressed = new byte[ mFile.readInt() ];
+            mFile.readFully( compressed );
+            DataInputStream data = new DataInputStream( new ByteArrayInputStream( inflate( compressed ) ) );
+            switch( mColumnTypes[ i ] ) {
+            case ColumnarWriter.DICTIONARY:
+                String[] dictValues = new String[ numRows ];
+                for( int row = 0; row < numRows; ++row ) {
+                    dictValues[ row ] = mDictionaries[ i ][ (int)readVarint( data ) ];
+                }
+                columns[ i ] = dictValues;
+                break;
+            case ColumnarWriter.STRING:
+                String[] strValues = new String[ numRows ];
+                for( int row = 0; row < numRows; ++row ) {
+                    strValues[ row ] = readString( data );
+                }
+                columns[ i ] = strValues;
+                break;
+            case ColumnarWriter.INT:
+                int[] intValues = new int[ numRows ];
+                long prev = 0;
+                for( int row = 0; row < numRows; ++row ) {
+                    long zigzag = readVarint( data );
+                    prev += ( zigzag >>> 1 ) ^ -( zigzag & 1 );
+                    intValues[ row ] = (int)prev;
+                }
+                columns[ i ] = intValues;
+                break;
+            default:
+                double[] dblValues = new double[ numRows ];
+                for( int row = 0; row < numRows; ++row ) {
+                    dblValues[ row ] = data.readDouble();
+                }
+                columns[ i ] = dblValues;
+                break;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Write the entire table as CSV, one row group at a time.  Missing values are
+     * written as empty.
+     * @param aOut The stream to write to.
+     * @throws IOException If the data could not be read.
+     */
+    public void writeCSV( final PrintStream aOut ) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for( int i = 0; i < mColumnNames.length; ++i ) {
+            line.append( i == 0 ? "" : "," ).append( quoteCSV( mColumnNames[ i ] ) );
+        }
+        aOut.println( line );
+        for( int rowGroup = 0; rowGroup < getNumRowGroups(); ++rowGroup ) {
+            Object[] columns = readRowGroup( rowGroup );
+            for( int row = 0; row < mRowGroupRows[ rowGroup ]; ++row ) {
+                line.setLength( 0 );
+                for( int i = 0; i < columns.length; ++i ) {
+                    line.append( i == 0 ? "" : "," );
+                    if( columns[ i ] instanceof String[] ) {
+                        line.append( quoteCSV( ( (String[])columns[ i ] )[ row ] ) );
+                    }
+                    else if( columns[ i ] instanceof int[] ) {
+                        int value = ( (int[])columns[ i ] )[ row ];
+                        line.append( value == ColumnarWriter.MISSING_INT ? "" : Integer.toString( value ) );
+                    }
+                    else {
+                        double value = ( (double[])columns[ i ] )[ row ];
+                        line.append( Double.isNaN( value ) ? "" : Double.toString( value ) );
+                    }
+                }
+                aOut.println( line );
+            }
+        }
+    }
+
+    /**
+     * Close the file.
+     */
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Quote a CSV value if necessary.
+     */
+    static String quoteCSV( final String aValue ) {
+        if( aValue.indexOf( ',' ) == -1 && aValue.indexOf( '"' ) == -1 && aValue.indexOf( '\n' ) == -1 ) {
+            return aValue;
+        }
+        return "\"" + aValue.replace( "\"", "\"\"" ) + "\"";
+    }
+
+    /**
+     * Decompress the data of a column.
+     */
+    private static byte[] inflate( final byte[] aCompressed ) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput( aCompressed );
+            byte[] data = new byte[ Math.max( 1024, aCompressed.length * 4 ) ];
+            int length = 0;
+            while( !inflater.finished() ) {
+                if( length == data.length ) {
+                    data = Arrays.copyOf( data, data.length * 2 );
+                }
+                int inflated = inflater.inflate( data, length, data.length - length );
+                if( inflated == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) {
+                    throw new IOException( "Truncated column data" );
+                }
+                length += inflated;
+            }
+            return Arrays.copyOf( data, length );
+        }
+        catch( DataFormatException error ) {
+            throw new IOException( error );
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Read an unsigned variable length integer written by ColumnarWriter.
+     */
+    static long readVarint( final InputStream aIn ) throws IOException {
+        long value = 0;
+        for( int shift = 0; ; shift += 7 ) {
+            int b = aIn.read();
+            if( b == -1 ) {
+                throw new IOException( "Truncated column data" );
+            }
+            value |= (long)( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Read a string written by ColumnarWriter.
+     */
+    static String readString( final DataInputStream aIn ) throws IOException {
+        byte[] utf8 = new byte[ (int)readVarint( aIn ) ];
+        aIn.readFully( utf8 );
+        return new String( utf8, "UTF-8" );
+    }
+}
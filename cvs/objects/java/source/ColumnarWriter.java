@@ -0,0 +1,365 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a table to a compact, typed, columnar file which is much faster to load
+ * than CSV.  Rows are added one at a time and collected into row groups of a fixed
+ * number of rows.  Once a row group is full each of its columns is encoded and
+ * compressed on its own and written out so that memory use stays bounded however
+ * many rows are written.  The layout of the file is (all numbers big endian):
+ *
+ *   MAGIC
+ *   row groups, each: int row count, then for each column:
+ *                     int compressed length, deflated column data
+ *   footer: int column count, then for each column: string name, byte type
+ *           for each DICTIONARY column: int size, then each string value
+ *           int row group count, then for each: long file offset, int row count
+ *           long total row count
+ *   int footer length
+ *   MAGIC
+ *
+ * Where a string is a varint byte length followed by UTF-8 bytes and the column
+ * data, before compression, is:
+ *   DICTIONARY: a varint index into the column's dictionary for each row
+ *   STRING: a string for each row
+ *   INT: the zig-zag varint difference from the previous row (starting from zero)
+ *        with MISSING_INT for missing values
+ *   DOUBLE: the 8 byte IEEE value for each row with NaN for missing values
+ * Dictionary columns are best suited to labels such as region or sector which
+ * repeat often, and sorted integers such as years shrink to almost nothing.  Note
+ * the dictionaries are kept in memory until the whole file is written so the
+ * number of distinct values in each is limited to MAX_DICTIONARY_SIZE, beyond
+ * which the column should be a STRING column instead.
+ * Files may be read back with ColumnarReader.
+ */
+public class ColumnarWriter {
+    /**
+     * The bytes which start and end every file.
+     */
+    public static final byte[] MAGIC = { 'G', 'C', 'A', 'M', 'C', 'O', 'L', 1 };
+
+    /**
+     * The column types.
+     */
+    public static final byte DICTIONARY = 0;
+    public static final byte STRING = 1;
+    public static final byte INT = 2;
+    public static final byte DOUBLE = 3;
+
+    /**
+     * The value used to indicate a missing value in an INT column.
+     */
+    public static final int MISSING_INT = Integer.MIN_VALUE;
+
+    /**
+     * The maximum number of distinct values in a DICTIONARY column.
+     */
+    public static final int MAX_DICTIONARY_SIZE = 1 << 20;
+
+    /**
+     * The default number of rows in each row group.
+     */
+    public static final int DEFAULT_ROW_GROUP_SIZE = 64 * 1024;
+
+    /**
+     * Parse the name of a column type.
+     * @param aTypeName One of dictionary, string, int, or double.
+     * @return The column type.
+     */
+    public static byte parseType( final String aTypeName ) {
+        if( aTypeName.equals( "dictionary" ) ) {
+            return DICTIONARY;
+        }
+        else if( aTypeName.equals( "string" ) ) {
+            return STRING;
+        }
+        else if( aTypeName.equals( "int" ) ) {
+            return INT;
+        }
+        else if( aTypeName.equals( "double" ) ) {
+            return DOUBLE;
+        }
+        throw new IllegalArgumentException( "Unknown column type: " + aTypeName );
+    }
+
+    /**
+     * The values of a single column in the current row group along with the
+     * dictionary for the entire file if it is a DICTIONARY column.
+     */
+    private static class Column {
+        final String mName;
+        final byte mType;
+        final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        final Map<String, Integer> mDictionaryIndex = new HashMap<String, Integer>();
+        final List<String> mDictionary = new ArrayList<String>();
+        long mPrevInt = 0;
+
+        Column( final String aName, final byte aType ) {
+            mName = aName;
+            mType = aType;
+        }
+    }
+
+    /**
+     * The file being written to.
+     */
+    private final DataOutputStream mOut;
+
+    /**
+     * The number of bytes written to the file so far.
+     */
+    private long mOffset = 0;
+
+    /**
+     * The columns of the table.
+     */
+    private final Column[] mColumns;
+
+    /**
+     * The number of rows in each row group.
+     */
+    private final int mRowGroupSize;
+
+    /**
+     * The number of rows in the current row group.
+     */
+    private int mRowGroupRows = 0;
+
+    /**
+     * The file offset and row count of each row group written so far.
+     */
+    private final List<long[]> mRowGroups = new ArrayList<long[]>();
+
+    /**
+     * The total number of rows written.
+     */
+    private long mTotalRows = 0;
+
+    /**
+     * Used to compress each column.
+     */
+    private final Deflater mDeflater = new Deflater( Deflater.BEST_SPEED );
+
+    /**
+     * A buffer to reuse when compressing.
+     */
+    private byte[] mCompressBuffer = new byte[ 64 * 1024 ];
+
+    /**
+     * Constructor which will create the file and write the header.
+     * @param aFile The file to write to.
+     * @param aColumnNames The name of each column.
+     * @param aColumnTypes The type of each column.
+     * @param aRowGroupSize The number of rows in each row group.
+     * @throws IOException If the file could not be created.
+     */
+    public ColumnarWriter( final File aFile, final String[] aColumnNames, final byte[] aColumnTypes,
+                           final int aRowGroupSize ) throws IOException
+    {
+        mColumns = new Column[ aColumnNames.length ];
+        for( int i = 0; i < mColumns.length; ++i ) {
+            mColumns[ i ] = new Column( aColumnNames[ i ], aColumnTypes[ i ] );
+        }
+        mRowGroupSize = Math.max( 1, aRowGroupSize );
+        mOut = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( aFile ), 64 * 1024 ) );
+        write( MAGIC );
+    }
+
+    /**
+     * Add a row to the table.
+     * @param aValues The value of each column as text, empty for missing values
+     *                in INT and DOUBLE columns.
+     * @throws IOException If the data could not be written.
+     * @throws NumberFormatException If a value of an INT or DOUBLE column is not a number.
+     */
+    public void addRow( final String[] aValues ) throws IOException {
+        for( int i = 0; i < mColumns.length; ++i ) {
+            Column column = mColumns[ i ];
+            String value = aValues[ i ];
+            switch( column.mType ) {
+            case DICTIONARY:
+                Integer index = column.mDictionaryIndex.get( value );
+                if( index == null ) {
+                    if( column.mDictionary.size() >= MAX_DICTIONARY_SIZE ) {
+                        throw new IOException( "Column " + column.mName + " has more than " + MAX_DICTIONARY_SIZE
+                                               + " distinct values, use the string type instead." );
+                    }
+                    index = column.mDictionary.size();
+                    column.mDictionaryIndex.put( value, index );
+                    column.mDictionary.add( value );
+                }
+                writeVarint( column.mData, index );
+                break;
+            case STRING:
+                writeString( column.mData, value );
+                break;
+            case INT:
+                long intValue = value.isEmpty() ? MISSING_INT : Integer.parseInt( value.trim() );
+                long delta = intValue - column.mPrevInt;
+                writeVarint( column.mData, ( delta << 1 ) ^ ( delta >> 63 ) );
+                column.mPrevInt = intValue;
+                break;
+            default:
+                long bits = Double.doubleToLongBits( value.isEmpty() ? Double.NaN : Double.parseDouble( value ) );
+                for( int shift = 56; shift >= 0; shift -= 8 ) {
+                    column.mData.write( (int)( bits >>> shift ) );
+                }
+                break;
+            }
+        }
+        ++mTotalRows;
+        if( ++mRowGroupRows == mRowGroupSize ) {
+            writeRowGroup();
+        }
+    }
+
+    /**
+     * Write out any remaining rows and the footer and close the file.
+     * @throws IOException If the data could not be written.
+     */
+    public void close() throws IOException {
+        try {
+            if( mRowGroupRows > 0 ) {
+                writeRowGroup();
+            }
+            ByteArrayOutputStream footer = new ByteArrayOutputStream();
+            DataOutputStream footerOut = new DataOutputStream( footer );
+            footerOut.writeInt( mColumns.length );
+            for( Column column : mColumns ) {
+                writeString( footerOut, column.mName );
+                footerOut.writeByte( column.mType );
+            }
+            for( Column column : mColumns ) {
+                if( column.mType == DICTIONARY ) {
+                    footerOut.writeInt( column.mDictionary.size() );
+                    for( String value : column.mDictionary ) {
+                        writeString( footerOut, value );
+                    }
+                }
+            }
+            footerOut.writeInt( mRowGroups.size() );
+            for( long[] rowGroup : mRowGroups ) {
+                footerOut.writeLong( rowGroup[ 0 ] );
+                footerOut.writeInt( (int)rowGroup[ 1 ] );
+            }
+            footerOut.writeLong( mTotalRows );
+            footerOut.flush();
+            write( footer.toByteArray() );
+            mOut.writeInt( footer.size() );
+            write( MAGIC );
+        }
+        finally {
+            mOut.close();
+            mDeflater.end();
+        }
+    }
+
+    /**
+     * Compress and write out each column of the current row group.
+     * @throws IOException If the data could not be written.
+     */
+    private void writeRowGroup() throws IOException {
+        mRowGroups.add( new long[] { mOffset, mRowGroupRows } );
+        mOut.writeInt( mRowGroupRows );
+        mOffset += 4;
+        for( Column column : mColumns ) {
+            mDeflater.reset();
+            mDeflater.setInput( column.mData.toByteArray() );
+            mDeflater.finish();
+            int compressedLength = 0;
+            while( !mDeflater.finished() ) {
+                if( compressedLength == mCompressBuffer.length ) {
+                    byte[] larger = new byte[ mCompressBuffer.length * 2 ];
+                    System.arraycopy( mCompressBuffer, 0, larger, 0, compressedLength );
+                    mCompressBuffer = larger;
+                }
+                compressedLength += mDeflater.deflate( mCompressBuffer, compressedLength,
+                                                       mCompressBuffer.length - compressedLength );
+            }
+            mOut.writeInt( compressedLength );
+            mOut.write( mCompressBuffer, 0, compressedLength );
+            mOffset += 4 + compressedLength;
+            column.mData.reset();
+            column.mPrevInt = 0;
+        }
+        mRowGroupRows = 0;
+    }
+
+    /**
+     * Write raw bytes to the file keeping track of the offset.
+     * @param aData The data to write.
+     * @throws IOException If the data could not be written.
+     */
+    private void write( final byte[] aData ) throws IOException {
+        mOut.write( aData );
+        mOffset += aData.length;
+    }
+
+    /**
+     * Write an unsigned variable length integer, seven bits at a time.
+     * @param aOut The stream to write to.
+     * @param aValue The value to write.
+     * @throws IOException If the data could not be written.
+     */
+    static void writeVarint( final OutputStream aOut, long aValue ) throws IOException {
+        while( ( aValue & ~0x7FL ) != 0 ) {
+            aOut.write( (int)( ( aValue & 0x7F ) | 0x80 ) );
+            aValue >>>= 7;
+        }
+        aOut.write( (int)aValue );
+    }
+
+    /**
+     * Write a string as its varint length followed by its UTF-8 bytes.
+     * @param aOut The stream to write to.
+     * @param aValue The value to write.
+     * @throws IOException If the data could not be written.
+     */
+    static void writeString( final OutputStream aOut, final String aValue ) throws IOException {
+        byte[] utf8 = aValue.getBytes( "UTF-8" );
+        writeVarint( aOut, utf8.length );
+        aOut.write( utf8 );
+    }
+}
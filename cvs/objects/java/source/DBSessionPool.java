@@ -0,0 +1,190 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.basex.core.Context;
+import org.basex.core.cmd.Close;
+
+/**
+ * Keeps database contexts open so that they can be reused by successive
+ * XMLDBDriver instances in the same process, such as when running a batch of
+ * scenarios, rather than paying the cost to open and close the database for
+ * each one.  Contexts are reference counted so that it is clear when one is in
+ * use, however idle contexts are kept open for the next scenario and only closed
+ * once closeAll is called, see XMLDBDriver.shutdown.  Note a shutdown hook can not
+ * be relied on to do this as GCAM never destroys the JVM it embeds.
+ */
+public class DBSessionPool {
+    /**
+     * A pooled context and the number of drivers currently using it.
+     */
+    private static class PooledContext {
+        final Context mContext;
+        int mRefCount = 1;
+
+        PooledContext( final Context aContext ) {
+            mContext = aContext;
+        }
+    }
+
+    /**
+     * The pooled contexts keyed by the database they have open.
+     */
+    private static final Map<String, PooledContext> mContexts = new HashMap<String, PooledContext>();
+
+    /**
+     * If the pool has been closed in which case contexts are no longer kept open.
+     */
+    private static boolean mClosed = false;
+
+    private DBSessionPool() {
+        // only static methods
+    }
+
+    /**
+     * Get the key to pool a database context under.
+     * @param aPath The absolute path to the directory containing the database.
+     * @param aContainerName The name of the database.
+     * @param aInMemoryDB If the database is in memory only.
+     * @return The key for the database.
+     */
+    public static String getKey( final String aPath, final String aContainerName, final boolean aInMemoryDB ) {
+        return ( aInMemoryDB ? "memory:" : "disk:" ) + aPath + "/" + aContainerName;
+    }
+
+    /**
+     * Get the pooled context which has the given database open, if any.  If found
+     * the caller must call release once done with it.
+     * @param aKey The key of the database, see getKey.
+     * @return The context with the database open or null if there is none in the pool.
+     */
+    public static synchronized Context acquire( final String aKey ) {
+        PooledContext pooled = mContexts.get( aKey );
+        if( pooled == null || mClosed ) {
+            return null;
+        }
+        ++pooled.mRefCount;
+        return pooled.mContext;
+    }
+
+    /**
+     * Get the pooled context which has the given database open only if no one is
+     * currently using it.  If found the caller must call release once done with it.
+     * @param aKey The key of the database, see getKey.
+     * @return The context with the database open or null if there is none in the
+     *         pool or it is in use.
+     */
+    public static synchronized Context acquireIfIdle( final String aKey ) {
+        PooledContext pooled = mContexts.get( aKey );
+        if( pooled == null || pooled.mRefCount > 0 || mClosed ) {
+            return null;
+        }
+        ++pooled.mRefCount;
+        return pooled.mContext;
+    }
+
+    /**
+     * Check if the given database is being kept open in the pool.
+     * @param aKey The key of the database, see getKey.
+     * @return True if the pool has a context with the database open.
+     */
+    public static synchronized boolean isPooled( final String aKey ) {
+        return mContexts.containsKey( aKey );
+    }
+
+    /**
+     * Add a context which has a database open to the pool.  The caller is then
+     * considered to have acquired it and must call release once done with it.
+     * @param aKey The key of the database, see getKey.
+     * @param aContext The context with the database open.
+     * @return True if the context was pooled, false if the pool has been closed
+     *         in which case the caller must close the context itself.
+     */
+    public static synchronized boolean register( final String aKey, final Context aContext ) {
+        if( mClosed ) {
+            return false;
+        }
+        mContexts.put( aKey, new PooledContext( aContext ) );
+        return true;
+    }
+
+    /**
+     * Notify that the caller is done using the pooled context for the given
+     * database.  The database is left open for the next user unless the pool has
+     * been closed in which case it is closed now.
+     * @param aKey The key of the database, see getKey.
+     */
+    public static synchronized void release( final String aKey ) {
+        PooledContext pooled = mContexts.get( aKey );
+        if( pooled != null && pooled.mRefCount > 0 ) {
+            --pooled.mRefCount;
+            if( mClosed && pooled.mRefCount == 0 ) {
+                mContexts.remove( aKey );
+                close( aKey, pooled );
+            }
+        }
+    }
+
+    /**
+     * Close all of the pooled databases and stop pooling any more.  Databases which
+     * are currently in use are closed once they are released.
+     */
+    public static synchronized void closeAll() {
+        mClosed = true;
+        Iterator<Map.Entry<String, PooledContext>> entryIter = mContexts.entrySet().iterator();
+        while( entryIter.hasNext() ) {
+            Map.Entry<String, PooledContext> entry = entryIter.next();
+            if( entry.getValue().mRefCount == 0 ) {
+                entryIter.remove();
+                close( entry.getKey(), entry.getValue() );
+            }
+        }
+    }
+
+    /**
+     * Close a pooled database.
+     * @param aKey The key of the database, see getKey.
+     * @param aPooled The pooled context to close.
+     */
+    private static void close( final String aKey, final PooledContext aPooled ) {
+        try {
+            new Close().execute( aPooled.mContext );
+        }
+        catch( Exception error ) {
+            System.err.println( "WARNING: failed to close database " + aKey );
+            error.printStackTrace();
+        }
+    }
+}
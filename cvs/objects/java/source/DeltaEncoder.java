@@ -0,0 +1,933 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+
+/**
+ * A class that stores a scenario as the differences from a baseline scenario
+ * already in the database, such as a policy run relative to its reference run,
+ * rather than in full.  The incoming XML is compared to the baseline as it is
+ * streamed through and only the changes are sent on, in a document such as:
+ *
+ *   <scenario name="policy" date="..." xmldb-baseline="reference" xmldb-baseline-hash="...">
+ *     <xmldb-text at="123">4.56</xmldb-text>
+ *     <xmldb-insert parent="45" after="67"><new-element>...</new-element></xmldb-insert>
+ *     <xmldb-delete at="89"/>
+ *   </scenario>
+ *
+ * Where the numbers refer to the elements of the baseline in document order with
+ * the root being zero.  An xmldb-text gives the new text of an element without
+ * child elements, an xmldb-insert gives an element which is not in the baseline
+ * to insert into the parent after the given child, or first if after is -1, and
+ * an xmldb-delete an element of the baseline which is not in the scenario.  Data
+ * appended later is kept in xmldb-appended elements, see WriteLocalBaseXDB.  The
+ * full document can be reconstructed with a DeltaMerger.
+ *
+ * An element of the scenario is the same as one in the baseline if it has the
+ * same name and attributes, and the same position among the siblings which do
+ * too, all the way up to the root.  The root itself is always the same so that it
+ * can have a different name.  Note elements are identified by a 64 bit hash of
+ * this while their text is compared in full, see BaselineIndex.
+ * Comments and processing instructions are not kept other than in new elements.
+ */
+public class DeltaEncoder extends XMLTagScanner implements Runnable {
+    /**
+     * The attribute of the root element with the name of the baseline document.
+     */
+    public static final String BASELINE_ATTRIBUTE = "xmldb-baseline";
+
+    /**
+     * The attribute of the root element with the hash of the baseline as it was
+     * when the differences were found.
+     */
+    public static final String BASELINE_HASH_ATTRIBUTE = "xmldb-baseline-hash";
+
+    /**
+     * The element giving the new text of a baseline element.
+     */
+    public static final String TEXT_ELEMENT = "xmldb-text";
+
+    /**
+     * The element giving a new element to insert.
+     */
+    public static final String INSERT_ELEMENT = "xmldb-insert";
+
+    /**
+     * The element giving a baseline element to delete.
+     */
+    public static final String DELETE_ELEMENT = "xmldb-delete";
+
+    /**
+     * The element holding data appended after the scenario was stored with the
+     * location attribute giving where it was to be inserted after.
+     */
+    public static final String APPENDED_ELEMENT = "xmldb-appended";
+
+    /**
+     * The key of the root element.
+     */
+    private static final long ROOT_KEY = 0x9E3779B97F4A7C15L;
+
+    /**
+     * A buffer of text which can be compared without copying it.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        /**
+         * Get the bytes of the buffer, of which only the first size() are in use.
+         * @return The backing array.
+         */
+        byte[] getBuffer() {
+            return buf;
+        }
+
+        /**
+         * Get the start of the text ignoring any leading whitespace.
+         * @return The offset of the first character which is not whitespace.
+         */
+        int textStart() {
+            int start = 0;
+            while( start < count && buf[ start ] <= ' ' ) {
+                ++start;
+            }
+            return start;
+        }
+
+        /**
+         * Get the end of the text ignoring any trailing whitespace.
+         * @return The offset after the last character which is not whitespace.
+         */
+        int textEnd() {
+            int end = count;
+            while( end > 0 && buf[ end - 1 ] <= ' ' ) {
+                --end;
+            }
+            return end;
+        }
+    }
+
+    /**
+     * Keeps track of the key of each open element, see DeltaEncoder, which is a
+     * hash of its name and attributes, its position among the siblings which have
+     * the same, and the key of its parent.
+     */
+    static class ElementKeys {
+        /**
+         * The keys of the open elements.
+         */
+        private final List<Long> mKeys = new ArrayList<Long>();
+
+        /**
+         * The number of children of each open element so far by their name and
+         * attributes hash.
+         */
+        private final List<Map<Long, Integer>> mChildCounts = new ArrayList<Map<Long, Integer>>();
+
+        /**
+         * Get the key of the next child of the innermost open element and count it.
+         * @param aName The name of the child.
+         * @param aAttributes The attributes of the child.
+         * @return The key of the child or ROOT_KEY if no elements are open.
+         */
+        long nextChildKey( final String aName, final Map<String, String> aAttributes ) {
+            if( mKeys.isEmpty() ) {
+                return ROOT_KEY;
+            }
+            long tagHash = hashString( FNV_OFFSET, aName );
+            for( Map.Entry<String, String> attribute : new TreeMap<String, String>( aAttributes ).entrySet() ) {
+                tagHash = hashString( hashString( tagHash, attribute.getKey() ), attribute.getValue() );
+            }
+            final int last = mKeys.size() - 1;
+            Map<Long, Integer> childCounts = mChildCounts.get( last );
+            if( childCounts == null ) {
+                childCounts = new HashMap<Long, Integer>();
+                mChildCounts.set( last, childCounts );
+            }
+            Integer ordinal = childCounts.get( tagHash );
+            childCounts.put( tagHash, ordinal == null ? 1 : ordinal + 1 );
+            return mix( mix( mKeys.get( last ) + tagHash ) + ( ordinal == null ? 0 : ordinal ) );
+        }
+
+        /**
+         * An element has been opened.
+         * @param aKey The key of the element from nextChildKey.
+         */
+        void push( final long aKey ) {
+            mKeys.add( aKey );
+            mChildCounts.add( null );
+        }
+
+        /**
+         * The innermost element has been closed.
+         */
+        void pop() {
+            mKeys.remove( mKeys.size() - 1 );
+            mChildCounts.remove( mChildCounts.size() - 1 );
+        }
+
+        /**
+         * Get the number of open elements.
+         * @return The number of open elements.
+         */
+        int depth() {
+            return mKeys.size();
+        }
+    }
+
+    /**
+     * An index of the elements of the baseline by their keys along with the index
+     * of their parent and the text of those without child elements.  The baseline
+     * is pushed through the stream returned by getOutputStream.
+     *
+     * The index takes roughly 32 to 64 bytes per element, depending on how full the
+     * arrays are as they double, plus the text of the elements without children.
+     * A reference scenario of a few million elements therefore takes a few hundred
+     * MB so the memory is limited to a maximum, see baseline-index-max-mb, beyond
+     * which the baseline is not used.
+     */
+    static class BaselineIndex extends XMLTagScanner {
+        /**
+         * The keys of the index table, open addressing with linear probing.
+         */
+        private long[] mTableKeys = new long[ 1 << 16 ];
+
+        /**
+         * The element index plus one for each key in the table, zero if the slot is empty.
+         */
+        private int[] mTableValues = new int[ 1 << 16 ];
+
+        /**
+         * The parent of each element, -1 for the root.
+         */
+        private int[] mParents = new int[ 1 << 16 ];
+
+        /**
+         * The start of the text of each element in mTextPool.  Text is only kept
+         * for elements without children and ends where the next element's starts.
+         */
+        private int[] mTextStarts = new int[ 1 << 16 ];
+
+        /**
+         * The text of the elements without children, without surrounding whitespace.
+         */
+        private byte[] mTextPool = new byte[ 1 << 20 ];
+
+        /**
+         * The number of bytes of mTextPool in use.
+         */
+        private int mTextPoolSize = 0;
+
+        /**
+         * The elements which have child elements.
+         */
+        private final BitSet mNonLeaf = new BitSet();
+
+        /**
+         * The most memory in bytes the index may use.
+         */
+        private final long mMaxBytes;
+
+        /**
+         * The number of elements.
+         */
+        private int mNumElements = 0;
+
+        /**
+         * The keys of the open elements.
+         */
+        private final ElementKeys mKeys = new ElementKeys();
+
+        /**
+         * The indices of the open elements.
+         */
+        private final List<Integer> mOpenElements = new ArrayList<Integer>();
+
+        /**
+         * The text of the innermost open element.
+         */
+        private final Buffer mText = new Buffer();
+
+        /**
+         * Used to calculate the hash of the whole baseline.
+         */
+        private final MessageDigest mDigest = newDigest();
+
+        /**
+         * The hash of the whole baseline, set once it has all been read.
+         */
+        private String mHash = null;
+
+        /**
+         * Constructor.
+         * @param aMaxBytes The most memory in bytes the index may use before the
+         *                  baseline is given up on.
+         */
+        BaselineIndex( final long aMaxBytes ) {
+            mMaxBytes = aMaxBytes;
+        }
+
+        /**
+         * Get a stream to push the baseline XML through.  It must be closed once
+         * all of it has been written.
+         * @return The stream to write the baseline to.
+         */
+        OutputStream getOutputStream() {
+            return new OutputStream() {
+                public void write( final int aByte ) throws IOException {
+                    write( new byte[] { (byte)aByte }, 0, 1 );
+                }
+                public void write( final byte[] aData, final int aOffset, final int aLength ) throws IOException {
+                    mDigest.update( aData, aOffset, aLength );
+                    scan( aData, aOffset, aLength );
+                }
+                public void close() {
+                    mHash = new BigInteger( 1, mDigest.digest() ).toString( 16 );
+                }
+            };
+        }
+
+        /**
+         * Get the hash of the whole baseline.
+         * @return The hash or null if the baseline has not been read yet.
+         */
+        String getHash() {
+            return mHash;
+        }
+
+        /**
+         * Get the number of elements in the baseline.
+         * @return The number of elements.
+         */
+        int size() {
+            return mNumElements;
+        }
+
+        /**
+         * Get the parent of an element.
+         * @param aIndex The index of the element.
+         * @return The index of the parent or -1 for the root.
+         */
+        int getParent( final int aIndex ) {
+            return mParents[ aIndex ];
+        }
+
+        /**
+         * Get an estimate of the memory used by the index.
+         * @return The number of bytes used.
+         */
+        long getMemoryUsed() {
+            return mTableKeys.length * 12L + mParents.length * 8L + mTextPool.length + mNonLeaf.size() / 8;
+        }
+
+        /**
+         * Check if an element has no child elements.
+         * @param aIndex The index of the element.
+         * @return True if it has no child elements.
+         */
+        boolean isLeaf( final int aIndex ) {
+            return !mNonLeaf.get( aIndex );
+        }
+
+        /**
+         * Check if an element has any text.
+         * @param aIndex The index of the element.
+         * @return True if it has text other than whitespace.
+         */
+        boolean hasText( final int aIndex ) {
+            return getTextEnd( aIndex ) > mTextStarts[ aIndex ];
+        }
+
+        /**
+         * Compare the text of an element to the given text.
+         * @param aIndex The index of the element.
+         * @param aText The text to compare, surrounding whitespace is ignored.
+         * @return True if the text is the same.
+         */
+        boolean textEquals( final int aIndex, final Buffer aText ) {
+            final int start = aText.textStart();
+            final int end = Math.max( start, aText.textEnd() );
+            final int baselineStart = mTextStarts[ aIndex ];
+            if( getTextEnd( aIndex ) - baselineStart != end - start ) {
+                return false;
+            }
+            for( int i = start; i < end; ++i ) {
+                if( aText.getBuffer()[ i ] != mTextPool[ baselineStart + i - start ] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Get the end of the text of an element in mTextPool.
+         * @param aIndex The index of the element.
+         * @return The offset after the last byte of its text.
+         */
+        private int getTextEnd( final int aIndex ) {
+            return aIndex + 1 < mNumElements ? mTextStarts[ aIndex + 1 ] : mTextPoolSize;
+        }
+
+        /**
+         * Make sure the index may grow by the given amount.
+         * @param aExtraBytes The number of bytes about to be allocated.
+         * @throws IOException If the index would use more than the maximum.
+         */
+        private void reserve( final long aExtraBytes ) throws IOException {
+            if( getMemoryUsed() + aExtraBytes > mMaxBytes ) {
+                throw new IOException( "Indexing the baseline would take more than " + mMaxBytes / ( 1024 * 1024 )
+                                       + " MB, see baseline-index-max-mb" );
+            }
+        }
+
+        /**
+         * Find the element with the given key.
+         * @param aKey The key to look for.
+         * @return The index of the element or -1 if there is none.
+         */
+        int find( final long aKey ) {
+            final int mask = mTableKeys.length - 1;
+            for( int slot = (int)mix( aKey ) & mask; mTableValues[ slot ] != 0; slot = ( slot + 1 ) & mask ) {
+                if( mTableKeys[ slot ] == aKey ) {
+                    return mTableValues[ slot ] - 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Add an element to the table unless an element with the same key, which
+         * could only be a hash collision, is already there.
+         */
+        private void addToTable( final long aKey, final int aIndex ) throws IOException {
+            if( ( mNumElements + 1 ) * 2 > mTableKeys.length ) {
+                // the old table is still held while the new one is filled
+                reserve( mTableKeys.length * 24L );
+                long[] oldKeys = mTableKeys;
+                int[] oldValues = mTableValues;
+                mTableKeys = new long[ oldKeys.length * 2 ];
+                mTableValues = new int[ oldKeys.length * 2 ];
+                for( int i = 0; i < oldKeys.length; ++i ) {
+                    if( oldValues[ i ] != 0 ) {
+                        insert( oldKeys[ i ], oldValues[ i ] );
+                    }
+                }
+            }
+            if( find( aKey ) == -1 ) {
+                insert( aKey, aIndex + 1 );
+            }
+        }
+
+        private void insert( final long aKey, final int aValue ) {
+            final int mask = mTableKeys.length - 1;
+            int slot = (int)mix( aKey ) & mask;
+            while( mTableValues[ slot ] != 0 ) {
+                slot = ( slot + 1 ) & mask;
+            }
+            mTableKeys[ slot ] = aKey;
+            mTableValues[ slot ] = aValue;
+        }
+
+        /**
+         * Collect the text of the innermost element.
+         */
+        protected void processText( final byte[] aBuffer, final int aOffset, final int aLength ) {
+            if( !mOpenElements.isEmpty() ) {
+                mText.write( aBuffer, aOffset, aLength );
+            }
+        }
+
+        /**
+         * Index each element.
+         */
+        protected void processTag() throws IOException {
+            if( isEndTag() ) {
+                endElement();
+            }
+            else if( isStartTag() ) {
+                final long key = mKeys.nextChildKey( tagName(), tagAttributes() );
+                final int index = mNumElements;
+                if( index == mParents.length ) {
+                    reserve( index * 16L );
+                    mParents = Arrays.copyOf( mParents, index * 2 );
+                    mTextStarts = Arrays.copyOf( mTextStarts, index * 2 );
+                }
+                final int parent = mOpenElements.isEmpty() ? -1 : mOpenElements.get( mOpenElements.size() - 1 );
+                mParents[ index ] = parent;
+                if( parent != -1 ) {
+                    mNonLeaf.set( parent );
+                }
+                mTextStarts[ index ] = mTextPoolSize;
+                addToTable( key, index );
+                ++mNumElements;
+                mText.reset();
+                if( !isEmptyTag() ) {
+                    mKeys.push( key );
+                    mOpenElements.add( index );
+                }
+            }
+            else if( startsWith( "<![CDATA[" ) ) {
+                processText( mTag, 0, mTagLength );
+            }
+        }
+
+        private void endElement() throws IOException {
+            final int index = mOpenElements.remove( mOpenElements.size() - 1 );
+            mKeys.pop();
+            // nothing has been added to the pool since the element started if it
+            // has no children so its text goes right after
+            if( !mNonLeaf.get( index ) ) {
+                final int start = mText.textStart();
+                final int length = Math.max( 0, mText.textEnd() - start );
+                if( mTextPoolSize + length > mTextPool.length ) {
+                    final long newLength = Math.max( mTextPool.length * 2L, mTextPoolSize + (long)length );
+                    if( newLength > Integer.MAX_VALUE - 8 ) {
+                        throw new IOException( "The text of the baseline is too large to index" );
+                    }
+                    reserve( newLength );
+                    mTextPool = Arrays.copyOf( mTextPool, (int)newLength );
+                }
+                System.arraycopy( mText.getBuffer(), start, mTextPool, mTextPoolSize, length );
+                mTextPoolSize += length;
+            }
+            mText.reset();
+        }
+    }
+
+    /**
+     * An element of the scenario which is currently open and is in the baseline.
+     */
+    private static class OpenElement {
+        /**
+         * The index of the element in the baseline.
+         */
+        final int mIndex;
+
+        /**
+         * The index in the baseline of the last child of this element which was
+         * also in the baseline, -1 if there has not been one.
+         */
+        int mLastChild = -1;
+
+        /**
+         * If the element has child elements.
+         */
+        boolean mHasChildren = false;
+
+        OpenElement( final int aIndex ) {
+            mIndex = aIndex;
+        }
+    }
+
+    /**
+     * The FNV-1a 64 bit offset basis.
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /**
+     * The FNV-1a 64 bit prime.
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The thread on which the differences will be found.
+     */
+    private final Thread mWorkerThread = new Thread( this );
+
+    /**
+     * The name of the baseline document.
+     */
+    private final String mBaselineName;
+
+    /**
+     * The pending load of the baseline index which will be null if the baseline
+     * could not be loaded in which case the scenario is stored in full.
+     */
+    private final Future<BaselineIndex> mBaselineLoad;
+
+    /**
+     * The baseline index once loaded.
+     */
+    private BaselineIndex mBaseline = null;
+
+    /**
+     * The baseline elements which were found in the scenario.
+     */
+    private final BitSet mFound = new BitSet();
+
+    /**
+     * The keys of the open elements which are in the baseline.
+     */
+    private final ElementKeys mKeys = new ElementKeys();
+
+    /**
+     * The open elements which are in the baseline.
+     */
+    private final List<OpenElement> mOpenElements = new ArrayList<OpenElement>();
+
+    /**
+     * The text of the innermost open element.
+     */
+    private final Buffer mText = new Buffer();
+
+    /**
+     * The nesting depth within a new element being inserted, zero if we are not
+     * currently in one.
+     */
+    private int mInsertDepth = 0;
+
+    /**
+     * The name of the root element.
+     */
+    private String mRootName = null;
+
+    /**
+     * If the root element has been closed.
+     */
+    private boolean mRootClosed = false;
+
+    /**
+     * The stream to read the full XML document from.
+     */
+    private InputStream mInputStream = null;
+
+    /**
+     * The stream to write the differences to.
+     */
+    private OutputStream mOutputStream = null;
+
+    /**
+     * The number of values which changed.
+     */
+    private int mNumChanged = 0;
+
+    /**
+     * The number of elements which were inserted.
+     */
+    private int mNumInserted = 0;
+
+    /**
+     * The number of elements which were deleted.
+     */
+    private int mNumDeleted = 0;
+
+    /**
+     * Constructor.
+     * @param aBaselineName The name of the baseline document.
+     * @param aBaselineLoad The pending load of the baseline index, see
+     *                      WriteLocalBaseXDB.loadBaseline.
+     */
+    public DeltaEncoder( final String aBaselineName, final Future<BaselineIndex> aBaselineLoad ) {
+        mBaselineName = aBaselineName;
+        mBaselineLoad = aBaselineLoad;
+    }
+
+    /**
+     * Set the stream to read the full XML document from.
+     * @param aInputStream The stream to read from.
+     */
+    public void setInputStream( InputStream aInputStream ) {
+        mInputStream = aInputStream;
+    }
+
+    /**
+     * Set the stream to write the differences to.  It will be closed once done.
+     * @param aOutputStream The stream to write to.
+     */
+    public void setOutputStream( OutputStream aOutputStream ) {
+        mOutputStream = aOutputStream;
+    }
+
+    /**
+     * Start the worker thread to find the differences as GCAM will start sending
+     * data soon.
+     */
+    public void start() {
+        mWorkerThread.start();
+    }
+
+    /**
+     * Cancel finding the differences presumably because there was an error.
+     */
+    public void cancel() {
+        mWorkerThread.interrupt();
+    }
+
+    /**
+     * Notify that no more XML will be sent.  This method will wait until all of
+     * the data has been sent on before returning.
+     */
+    public void finish() {
+        try {
+            mWorkerThread.join();
+        }
+        catch( InterruptedException interruptError ) {
+            interruptError.printStackTrace();
+        }
+    }
+
+    /**
+     * Find the differences as the XML is read.  If the baseline could not be loaded
+     * the XML is instead copied through as it is.  The run function implements the
+     * Runnable interface so that it may run on a new thread.
+     */
+    public void run() {
+        try {
+            mBaseline = mBaselineLoad.get();
+            if( mBaseline == null ) {
+                byte[] buffer = new byte[ XMLDBDriver.BUFFER_SIZE ];
+                int read;
+                while( ( read = mInputStream.read( buffer ) ) != -1 ) {
+                    mOutputStream.write( buffer, 0, read );
+                }
+                return;
+            }
+            scan( mInputStream );
+            if( !mRootClosed ) {
+                throw new IOException( "The document ended before the root element was closed" );
+            }
+            System.out.println( "Stored " + mNumChanged + " changed values, " + mNumInserted + " inserted and "
+                                + mNumDeleted + " deleted elements relative to " + mBaselineName );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+        finally {
+            try {
+                mOutputStream.close();
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Copy text through in new elements otherwise collect the text of the innermost
+     * element.
+     */
+    protected void processText( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException {
+        if( mInsertDepth > 0 ) {
+            mOutputStream.write( aBuffer, aOffset, aLength );
+        }
+        else if( !mOpenElements.isEmpty() ) {
+            mText.write( aBuffer, aOffset, aLength );
+        }
+    }
+
+    /**
+     * Compare each element to the baseline and write out the differences.
+     */
+    protected void processTag() throws IOException {
+        if( mInsertDepth > 0 ) {
+            mOutputStream.write( mTag, 0, mTagLength );
+            if( isEndTag() ) {
+                --mInsertDepth;
+            }
+            else if( isStartTag() && !isEmptyTag() ) {
+                ++mInsertDepth;
+            }
+            if( mInsertDepth == 0 ) {
+                writeString( "</" + INSERT_ELEMENT + ">\n" );
+            }
+        }
+        else if( isEndTag() ) {
+            endElement( mOpenElements.remove( mOpenElements.size() - 1 ) );
+            mKeys.pop();
+        }
+        else if( isStartTag() ) {
+            startElement();
+        }
+        else if( startsWith( "<![CDATA[" ) ) {
+            processText( mTag, 0, mTagLength );
+        }
+        else if( mOpenElements.isEmpty() && !mRootClosed ) {
+            // keep the XML declaration
+            mOutputStream.write( mTag, 0, mTagLength );
+        }
+    }
+
+    /**
+     * Match up a start tag with the baseline.
+     */
+    private void startElement() throws IOException {
+        final long key = mKeys.nextChildKey( tagName(), tagAttributes() );
+        if( mOpenElements.isEmpty() ) {
+            // the root is always the same, write it with a reference to the baseline
+            mRootName = tagName();
+            mFound.set( 0 );
+            int tagEnd = mTagLength - ( isEmptyTag() ? 2 : 1 );
+            mOutputStream.write( mTag, 0, tagEnd );
+            writeString( " " + BASELINE_ATTRIBUTE + "=\"" + escapeAttribute( mBaselineName ) + "\" "
+                         + BASELINE_HASH_ATTRIBUTE + "=\"" + mBaseline.getHash() + "\">\n" );
+            mKeys.push( key );
+            mOpenElements.add( new OpenElement( 0 ) );
+            if( isEmptyTag() ) {
+                endElement( mOpenElements.remove( 0 ) );
+                mKeys.pop();
+            }
+            return;
+        }
+
+        OpenElement parent = mOpenElements.get( mOpenElements.size() - 1 );
+        parent.mHasChildren = true;
+        mText.reset();
+        final int index = mBaseline.find( key );
+        if( index == -1 || mFound.get( index ) || mBaseline.getParent( index ) != parent.mIndex ) {
+            // a new element, insert it after the last child we found
+            ++mNumInserted;
+            writeString( "<" + INSERT_ELEMENT + " parent=\"" + parent.mIndex + "\" after=\"" + parent.mLastChild + "\">" );
+            mOutputStream.write( mTag, 0, mTagLength );
+            if( isEmptyTag() ) {
+                writeString( "</" + INSERT_ELEMENT + ">\n" );
+            }
+            else {
+                mInsertDepth = 1;
+            }
+            return;
+        }
+
+        mFound.set( index );
+        parent.mLastChild = index;
+        OpenElement element = new OpenElement( index );
+        if( isEmptyTag() ) {
+            endElement( element );
+        }
+        else {
+            mKeys.push( key );
+            mOpenElements.add( element );
+        }
+    }
+
+    /**
+     * Compare the text of an element which is in the baseline once it is closed.
+     * If it is the root write out the deleted elements and close the document.
+     * @param aElement The element which was closed.
+     */
+    private void endElement( final OpenElement aElement ) throws IOException {
+        final boolean changed;
+        if( aElement.mHasChildren ) {
+            // the text is only dropped if the baseline had some
+            changed = mBaseline.isLeaf( aElement.mIndex ) && mBaseline.hasText( aElement.mIndex );
+        }
+        else {
+            changed = !mBaseline.isLeaf( aElement.mIndex ) || !mBaseline.textEquals( aElement.mIndex, mText );
+        }
+        if( changed ) {
+            ++mNumChanged;
+            writeString( "<" + TEXT_ELEMENT + " at=\"" + aElement.mIndex + "\">" );
+            if( !aElement.mHasChildren ) {
+                mText.writeTo( mOutputStream );
+            }
+            writeString( "</" + TEXT_ELEMENT + ">\n" );
+        }
+        mText.reset();
+
+        if( aElement.mIndex == 0 ) {
+            // only the outermost of the elements not found need to be deleted
+            for( int index = mFound.nextClearBit( 1 ); index < mBaseline.size(); index = mFound.nextClearBit( index + 1 ) ) {
+                if( mFound.get( mBaseline.getParent( index ) ) ) {
+                    ++mNumDeleted;
+                    writeString( "<" + DELETE_ELEMENT + " at=\"" + index + "\"/>\n" );
+                }
+            }
+            writeString( "</" + mRootName + ">" );
+            mRootClosed = true;
+        }
+    }
+
+    /**
+     * Write a string to the output.
+     * @param aString The string to write.
+     */
+    private void writeString( final String aString ) throws IOException {
+        mOutputStream.write( aString.getBytes( UTF8 ) );
+    }
+
+    /**
+     * Escape a string to be used as an attribute value.
+     * @param aValue The value to escape.
+     * @return The escaped value.
+     */
+    static String escapeAttribute( final String aValue ) {
+        return aValue.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( "\"", "&quot;" );
+    }
+
+    /**
+     * Continue a FNV-1a hash with the characters of a string and a separator.
+     * @param aHash The hash so far.
+     * @param aString The string to add.
+     * @return The new hash.
+     */
+    private static long hashString( long aHash, final String aString ) {
+        for( int i = 0; i < aString.length(); ++i ) {
+            aHash = ( aHash ^ aString.charAt( i ) ) * FNV_PRIME;
+        }
+        return ( aHash ^ 0xffff ) * FNV_PRIME;
+    }
+
+    /**
+     * Mix the bits of a hash, the finalizer of SplitMix64.
+     * @param aValue The value to mix.
+     * @return The mixed value.
+     */
+    private static long mix( long aValue ) {
+        aValue = ( aValue ^ ( aValue >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+        aValue = ( aValue ^ ( aValue >>> 27 ) ) * 0x94d049bb133111ebL;
+        return aValue ^ ( aValue >>> 31 );
+    }
+
+    /**
+     * Create a new SHA-1 digest.
+     * @return The digest.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance( "SHA-1" );
+        }
+        catch( NoSuchAlgorithmException error ) {
+            throw new IllegalStateException( error );
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reconstructs a full scenario document from the differences written by a
+ * DeltaEncoder and its baseline.  The differences are pushed through the stream
+ * from getDeltaStream first then the baseline, as it was when the differences
+ * were found, through the stream from getBaselineStream which writes out the full
+ * document as the baseline streams through.  Any data appended to the scenario is
+ * not put in place as the locations are XPaths, see getAppended.
+ */
+public class DeltaMerger {
+    /**
+     * The new text by baseline element index.
+     */
+    private final Map<Integer, byte[]> mTexts = new HashMap<Integer, byte[]>();
+
+    /**
+     * The elements to insert after each baseline element.
+     */
+    private final Map<Integer, List<byte[]>> mInsertsAfter = new HashMap<Integer, List<byte[]>>();
+
+    /**
+     * The elements to insert first in each baseline element.
+     */
+    private final Map<Integer, List<byte[]>> mInsertsFirst = new HashMap<Integer, List<byte[]>>();
+
+    /**
+     * The baseline elements to delete.
+     */
+    private final BitSet mDeleted = new BitSet();
+
+    /**
+     * The location and data of each append.
+     */
+    private final List<String[]> mAppended = new ArrayList<String[]>();
+
+    /**
+     * The start tag of the scenario root element without the closing > and without
+     * the baseline attributes.
+     */
+    private String mRootTag = null;
+
+    /**
+     * The name of the root element.
+     */
+    private String mRootName = null;
+
+    /**
+     * The name of the baseline document.
+     */
+    private String mBaselineName = null;
+
+    /**
+     * The hash of the baseline when the differences were found.
+     */
+    private String mBaselineHash = null;
+
+    /**
+     * Parses the differences.
+     */
+    private class DeltaParser extends XMLTagScanner {
+        /**
+         * The current element nesting depth.
+         */
+        private int mDepth = 0;
+
+        /**
+         * The name and attributes of the current difference.
+         */
+        private String mOpName = null;
+        private Map<String, String> mOpAttributes = null;
+
+        /**
+         * The content of the current difference.
+         */
+        private final ByteArrayOutputStream mContent = new ByteArrayOutputStream();
+
+        protected void processText( final byte[] aBuffer, final int aOffset, final int aLength ) {
+            if( mDepth > 1 ) {
+                mContent.write( aBuffer, aOffset, aLength );
+            }
+        }
+
+        protected void processTag() throws IOException {
+            final boolean isStart = isStartTag();
+            final boolean isEnd = isEndTag();
+            if( mDepth > 1 && !( isEnd && mDepth == 2 ) ) {
+                mContent.write( mTag, 0, mTagLength );
+            }
+            if( isStart && mDepth == 0 ) {
+                Map<String, String> attributes = tagAttributes();
+                mBaselineName = unescape( attributes.get( DeltaEncoder.BASELINE_ATTRIBUTE ) );
+                mBaselineHash = attributes.get( DeltaEncoder.BASELINE_HASH_ATTRIBUTE );
+                mRootName = tagName();
+                mRootTag = trimTag( new String( mTag, 0, mTagLength, UTF8 ) )
+                    .replaceAll( "\\s+(" + DeltaEncoder.BASELINE_ATTRIBUTE + "|" + DeltaEncoder.BASELINE_HASH_ATTRIBUTE
+                                 + ")=(\"[^\"]*\"|'[^']*')", "" );
+            }
+            else if( isStart && mDepth == 1 ) {
+                mOpName = tagName();
+                mOpAttributes = tagAttributes();
+                mContent.reset();
+            }
+            if( isStart && !isEmptyTag() ) {
+                ++mDepth;
+            }
+            else if( isEnd ) {
+                --mDepth;
+            }
+            if( ( isStart && isEmptyTag() && mDepth == 1 ) || ( isEnd && mDepth == 1 ) ) {
+                addOp();
+            }
+        }
+
+        /**
+         * Record the difference which has just been read.
+         */
+        private void addOp() {
+            final byte[] content = mContent.toByteArray();
+            if( mOpName.equals( DeltaEncoder.TEXT_ELEMENT ) ) {
+                mTexts.put( Integer.valueOf( mOpAttributes.get( "at" ) ), content );
+            }
+            else if( mOpName.equals( DeltaEncoder.INSERT_ELEMENT ) ) {
+                final int after = Integer.parseInt( mOpAttributes.get( "after" ) );
+                final Map<Integer, List<byte[]>> inserts = after == -1 ? mInsertsFirst : mInsertsAfter;
+                final Integer target = after == -1 ? Integer.valueOf( mOpAttributes.get( "parent" ) ) : after;
+                List<byte[]> targetInserts = inserts.get( target );
+                if( targetInserts == null ) {
+                    targetInserts = new ArrayList<byte[]>();
+                    inserts.put( target, targetInserts );
+                }
+                targetInserts.add( content );
+            }
+            else if( mOpName.equals( DeltaEncoder.DELETE_ELEMENT ) ) {
+                mDeleted.set( Integer.parseInt( mOpAttributes.get( "at" ) ) );
+            }
+            else if( mOpName.equals( DeltaEncoder.APPENDED_ELEMENT ) ) {
+                mAppended.add( new String[] { unescape( mOpAttributes.get( "location" ) ), new String( content, UTF8 ) } );
+            }
+        }
+    }
+
+    /**
+     * Writes out the full document as the baseline is read.
+     */
+    private class BaselineMerger extends XMLTagScanner {
+        /**
+         * Where to write the full document.
+         */
+        private final OutputStream mOutput;
+
+        /**
+         * Used to check the hash of the baseline.
+         */
+        private final MessageDigest mDigest = DeltaEncoder.newDigest();
+
+        /**
+         * The index of the next baseline element.
+         */
+        private int mNextIndex = 0;
+
+        /**
+         * The indices of the open baseline elements which are being kept.
+         */
+        private final List<Integer> mOpenElements = new ArrayList<Integer>();
+
+        /**
+         * The nesting depth within a deleted element, zero if we are not currently
+         * in one.
+         */
+        private int mDeleteDepth = 0;
+
+        /**
+         * The index of the deleted element we are currently in.
+         */
+        private int mDeleteIndex = -1;
+
+        BaselineMerger( final OutputStream aOutput ) {
+            mOutput = aOutput;
+        }
+
+        /**
+         * Get the stream to write the baseline to.
+         * @return The stream to write the baseline to.
+         */
+        OutputStream getOutputStream() {
+            return new OutputStream() {
+                public void write( final int aByte ) throws IOException {
+                    write( new byte[] { (byte)aByte }, 0, 1 );
+                }
+                public void write( final byte[] aData, final int aOffset, final int aLength ) throws IOException {
+                    mDigest.update( aData, aOffset, aLength );
+                    scan( aData, aOffset, aLength );
+                }
+                public void close() throws IOException {
+                    final String hash = new BigInteger( 1, mDigest.digest() ).toString( 16 );
+                    if( !hash.equals( mBaselineHash ) ) {
+                        // the element numbers no longer refer to the same elements
+                        // so do not close the output to make sure it is not used
+                        throw new IOException( "The baseline " + mBaselineName
+                                               + " has changed since the differences were stored" );
+                    }
+                    mOutput.close();
+                }
+            };
+        }
+
+        /**
+         * Check if the text of the innermost open element has been replaced.
+         */
+        private boolean isTextReplaced() {
+            return !mOpenElements.isEmpty() && mTexts.containsKey( mOpenElements.get( mOpenElements.size() - 1 ) );
+        }
+
+        protected void processText( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException {
+            if( mDeleteDepth == 0 && !isTextReplaced() ) {
+                mOutput.write( aBuffer, aOffset, aLength );
+            }
+        }
+
+        protected void processTag() throws IOException {
+            if( mDeleteDepth > 0 ) {
+                if( isEndTag() ) {
+                    if( --mDeleteDepth == 0 ) {
+                        writeInserts( mInsertsAfter.get( mDeleteIndex ) );
+                    }
+                }
+                else if( isStartTag() ) {
+                    ++mNextIndex;
+                    if( !isEmptyTag() ) {
+                        ++mDeleteDepth;
+                    }
+                }
+            }
+            else if( isEndTag() ) {
+                final int index = mOpenElements.remove( mOpenElements.size() - 1 );
+                if( index == 0 ) {
+                    writeString( "</" + mRootName + ">" );
+                }
+                else {
+                    mOutput.write( mTag, 0, mTagLength );
+                }
+                writeInserts( mInsertsAfter.get( index ) );
+            }
+            else if( isStartTag() ) {
+                startElement( mNextIndex++ );
+            }
+            else if( !( startsWith( "<![CDATA[" ) && isTextReplaced() ) ) {
+                mOutput.write( mTag, 0, mTagLength );
+            }
+        }
+
+        /**
+         * Write out the start of a baseline element with any changes.
+         * @param aIndex The index of the element.
+         */
+        private void startElement( final int aIndex ) throws IOException {
+            final boolean isEmpty = isEmptyTag();
+            if( mDeleted.get( aIndex ) ) {
+                if( isEmpty ) {
+                    writeInserts( mInsertsAfter.get( aIndex ) );
+                }
+                else {
+                    mDeleteDepth = 1;
+                    mDeleteIndex = aIndex;
+                }
+                return;
+            }
+
+            final String name = aIndex == 0 ? mRootName : tagName();
+            final byte[] text = mTexts.get( aIndex );
+            final List<byte[]> insertsFirst = mInsertsFirst.get( aIndex );
+            writeString( aIndex == 0 ? mRootTag : trimTag( new String( mTag, 0, mTagLength, UTF8 ) ) );
+            if( isEmpty && text == null && insertsFirst == null ) {
+                writeString( "/>" );
+                writeInserts( mInsertsAfter.get( aIndex ) );
+                return;
+            }
+            writeString( ">" );
+            if( text != null ) {
+                mOutput.write( text );
+            }
+            writeInserts( insertsFirst );
+            if( isEmpty ) {
+                writeString( "</" + name + ">" );
+                writeInserts( mInsertsAfter.get( aIndex ) );
+            }
+            else {
+                mOpenElements.add( aIndex );
+            }
+        }
+
+        private void writeInserts( final List<byte[]> aInserts ) throws IOException {
+            if( aInserts != null ) {
+                for( byte[] insert : aInserts ) {
+                    mOutput.write( insert );
+                }
+            }
+        }
+
+        private void writeString( final String aString ) throws IOException {
+            mOutput.write( aString.getBytes( UTF8 ) );
+        }
+    }
+
+    /**
+     * Get the stream to write the differences to.  This must be done before the
+     * baseline is written.
+     * @return The stream to write the differences to.
+     */
+    public OutputStream getDeltaStream() {
+        final DeltaParser parser = new DeltaParser();
+        return new OutputStream() {
+            public void write( final int aByte ) throws IOException {
+                write( new byte[] { (byte)aByte }, 0, 1 );
+            }
+            public void write( final byte[] aData, final int aOffset, final int aLength ) throws IOException {
+                parser.scan( aData, aOffset, aLength );
+            }
+        };
+    }
+
+    /**
+     * Get the name of the baseline document.  Only valid once the differences have
+     * been written.
+     * @return The name of the baseline or null if the differences did not give one.
+     */
+    public String getBaselineName() {
+        return mBaselineName;
+    }
+
+    /**
+     * Get the data appended to the scenario after it was stored which must be
+     * inserted after the corresponding location once the document has been
+     * reconstructed.  Only valid once the differences have been written.
+     * @return The location and data of each append in order.
+     */
+    public List<String[]> getAppended() {
+        return mAppended;
+    }
+
+    /**
+     * Get the stream to write the baseline to.  The full document is written to
+     * the given stream as the baseline arrives which is closed along with the
+     * returned stream.  If the baseline is not the same as when the differences
+     * were found closing the returned stream throws an IOException instead and the
+     * given stream is left open.
+     * @param aOutput Where to write the full document.
+     * @return The stream to write the baseline to.
+     */
+    public OutputStream getBaselineStream( final OutputStream aOutput ) {
+        return new BaselineMerger( aOutput ).getOutputStream();
+    }
+
+    /**
+     * Remove the closing > or /> and any trailing whitespace from a start tag.
+     * @param aTag The start tag.
+     * @return The open start tag.
+     */
+    private static String trimTag( final String aTag ) {
+        int end = aTag.length() - 1;
+        if( end > 0 && aTag.charAt( end - 1 ) == '/' ) {
+            --end;
+        }
+        while( end > 0 && Character.isWhitespace( aTag.charAt( end - 1 ) ) ) {
+            --end;
+        }
+        return aTag.substring( 0, end );
+    }
+
+    /**
+     * Expand the predefined entities in an attribute value.
+     * @param aValue The value to unescape, may be null.
+     * @return The unescaped value.
+     */
+    private static String unescape( final String aValue ) {
+        if( aValue == null ) {
+            return null;
+        }
+        return aValue.replace( "&lt;", "<" ).replace( "&gt;", ">" ).replace( "&quot;", "\"" )
+            .replace( "&apos;", "'" ).replace( "&amp;", "&" );
+    }
+}
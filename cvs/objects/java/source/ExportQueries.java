@@ -0,0 +1,232 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import org.basex.core.Context;
+import org.basex.query.QueryProcessor;
+import org.basex.query.iter.Iter;
+import org.basex.query.value.item.Item;
+
+/**
+ * Runs a set of XQuery queries against the scenario that was just stored and
+ * streams the results directly into columnar files (see ColumnarWriter) rather
+ * than going through the ModelInterface.  The results are read lazily from BaseX
+ * one row at a time so memory use stays bounded however large they are.  The
+ * queries are defined in an XML file such as:
+ *
+ *   <exports>
+ *     <export name="primary-energy">
+ *       <rows>$scenario/world/region/resource/output/physical-output</rows>
+ *       <column name="region" type="dictionary">ancestor::region/@name</column>
+ *       <column name="resource" type="dictionary">ancestor::resource/@name</column>
+ *       <column name="year" type="int">@vintage</column>
+ *       <column name="value" type="double">.</column>
+ *     </export>
+ *   </exports>
+ *
+ * Where rows is an XQuery expression that selects one item for each row.  The
+ * variables $db, $doc, and $scenario may be used to refer to the database, the
+ * document name, and its scenario element.  Each column is an XQuery path
+ * evaluated relative to the row item of which the string value of the first
+ * result is used.  The column types are dictionary, string, int, and double.
+ * Each export is written to EXPORT_DIR/DOC_NAME-EXPORT_NAME.gcol.
+ */
+public class ExportQueries {
+    /**
+     * The file extension of the exported files.
+     */
+    public static final String EXPORT_EXTENSION = ".gcol";
+
+    /**
+     * The definition of a single export.
+     */
+    private static class Export {
+        String mName;
+        String mRows;
+        final List<String> mColumnNames = new ArrayList<String>();
+        final List<String> mColumnPaths = new ArrayList<String>();
+        final List<Byte> mColumnTypes = new ArrayList<Byte>();
+    }
+
+    /**
+     * The exports to run.
+     */
+    private final List<Export> mExports = new ArrayList<Export>();
+
+    /**
+     * The directory to write the exported files to.
+     */
+    private final File mExportDir;
+
+    /**
+     * The number of rows in each row group of the exported files.
+     */
+    private final int mRowGroupSize;
+
+    /**
+     * Constructor which reads the export definitions.
+     * @param aDefinitionFile The XML file defining the exports.
+     * @param aExportDir The directory to write the exported files to.
+     * @param aRowGroupSize The number of rows in each row group.
+     * @throws Exception If the definitions could not be read.
+     */
+    public ExportQueries( final String aDefinitionFile, final String aExportDir, final int aRowGroupSize )
+        throws Exception
+    {
+        mExportDir = new File( aExportDir );
+        mRowGroupSize = aRowGroupSize;
+        Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse( new File( aDefinitionFile ) ).getDocumentElement();
+        for( Element exportElement : getChildElements( root, "export" ) ) {
+            Export export = new Export();
+            export.mName = exportElement.getAttribute( "name" );
+            List<Element> rows = getChildElements( exportElement, "rows" );
+            List<Element> columns = getChildElements( exportElement, "column" );
+            if( export.mName.isEmpty() || rows.isEmpty() || columns.isEmpty() ) {
+                throw new IllegalArgumentException( "Each export in " + aDefinitionFile
+                                                    + " must have a name, rows, and at least one column." );
+            }
+            export.mRows = rows.get( 0 ).getTextContent().trim();
+            for( Element column : columns ) {
+                export.mColumnNames.add( column.getAttribute( "name" ) );
+                export.mColumnPaths.add( column.getTextContent().trim() );
+                export.mColumnTypes.add( ColumnarWriter.parseType( column.getAttribute( "type" ) ) );
+            }
+            mExports.add( export );
+        }
+    }
+
+    /**
+     * Run each of the exports against the given document.  An export which fails
+     * is reported and any partial file removed so that the others may continue.
+     * @param aContext The context of the open database.
+     * @param aContainerName The name of the database.
+     * @param aDocName The name of the document to export from.
+     */
+    public void run( final Context aContext, final String aContainerName, final String aDocName ) {
+        mExportDir.mkdirs();
+        for( Export export : mExports ) {
+            File exportFile = new File( mExportDir, aDocName.replaceAll( "[^A-Za-z0-9_-]", "_" ) + "-"
+                                        + export.mName + EXPORT_EXTENSION );
+            File partialFile = new File( exportFile.getPath() + ".part" );
+            try {
+                long numRows = runExport( export, aContext, aContainerName, aDocName, partialFile );
+                if( ( exportFile.exists() && !exportFile.delete() ) || !partialFile.renameTo( exportFile ) ) {
+                    throw new IOException( "Could not move " + partialFile + " to " + exportFile );
+                }
+                System.out.println( "Exported " + numRows + " rows to " + exportFile );
+            }
+            catch( Exception error ) {
+                System.err.println( "ERROR: Could not run export " + export.mName + "." );
+                error.printStackTrace();
+                partialFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Run a single export streaming the rows into the given file.
+     * @return The number of rows exported.
+     */
+    private long runExport( final Export aExport, final Context aContext, final String aContainerName,
+                            final String aDocName, final File aFile ) throws Exception
+    {
+        // have BaseX return the values of each row one after the other, as each
+        // column is a single string there are always exactly as many as columns
+        StringBuilder query = new StringBuilder();
+        query.append( "declare variable $db external; declare variable $doc external; " );
+        query.append( "let $scenario := db:open($db, $doc)/scenario " );
+        query.append( "for $row in (" ).append( aExport.mRows ).append( ") " );
+        query.append( "return (" );
+        for( int i = 0; i < aExport.mColumnPaths.size(); ++i ) {
+            query.append( i == 0 ? "" : ", " );
+            query.append( "string(($row/(" ).append( aExport.mColumnPaths.get( i ) ).append( "))[1])" );
+        }
+        query.append( ")" );
+
+        final int numColumns = aExport.mColumnNames.size();
+        byte[] columnTypes = new byte[ numColumns ];
+        for( int i = 0; i < numColumns; ++i ) {
+            columnTypes[ i ] = aExport.mColumnTypes.get( i );
+        }
+        long numRows = 0;
+        ColumnarWriter writer = new ColumnarWriter( aFile, aExport.mColumnNames.toArray( new String[ 0 ] ),
+                                                    columnTypes, mRowGroupSize );
+        QueryProcessor queryProc = new QueryProcessor( query.toString(), aContext );
+        try {
+            queryProc.bind( "db", aContainerName );
+            queryProc.bind( "doc", aDocName );
+            Iter values = queryProc.iter();
+            String[] row = new String[ numColumns ];
+            for( Item value; ( value = values.next() ) != null; ++numRows ) {
+                row[ 0 ] = new String( value.string( null ), "UTF-8" );
+                for( int i = 1; i < numColumns; ++i ) {
+                    if( ( value = values.next() ) == null ) {
+                        throw new IOException( "Row " + numRows + " has " + i + " values rather than " + numColumns );
+                    }
+                    row[ i ] = new String( value.string( null ), "UTF-8" );
+                }
+                writer.addRow( row );
+            }
+        }
+        finally {
+            queryProc.close();
+            writer.close();
+        }
+        return numRows;
+    }
+
+    /**
+     * Get the child elements with the given name.
+     */
+    private static List<Element> getChildElements( final Element aParent, final String aName ) {
+        List<Element> children = new ArrayList<Element>();
+        NodeList childNodes = aParent.getChildNodes();
+        for( int i = 0; i < childNodes.getLength(); ++i ) {
+            Node child = childNodes.item( i );
+            if( child instanceof Element && child.getNodeName().equals( aName ) ) {
+                children.add( (Element)child );
+            }
+        }
+        return children;
+    }
+}
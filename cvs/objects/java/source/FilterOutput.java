@@ -30,19 +30,34 @@
 *
 */
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.PipedOutputStream;
-import java.io.PipedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLFilter;
+import org.xml.sax.XMLReader;
 
 /**
  * A class that can filter/transform XML results as they are streamed to this
  * class and pass them on as a stream to an XML database to be stored.
+ * Alternatively the filter can be handed to the database as a source of SAX
+ * events (see getSAXSource) in which case the filtered results are never
+ * serialized and no extra thread is needed.
  * @author Pralit Patel
  */
 public class FilterOutput implements Runnable {
@@ -57,22 +72,64 @@ public class FilterOutput implements Runnable {
      */
     private final Transformer mTransformer;
 
+    /**
+     * The compiled filter script.
+     */
+    private final Templates mTemplates;
+
     /**
      * The stream that will recieve data from GCAM for filtering.
      */
-    private final PipedInputStream mSendThroughFilterStream = new PipedInputStream( XMLDBDriver.BUFFER_SIZE );
+    private InputStream mSendThroughFilterStream = null;
 
     /**
      * The stream that will transfer the filtered XML on to write it to the DB.
      */
-    private final PipedOutputStream mSendToDBStream = new PipedOutputStream();
+    private OutputStream mSendToDBStream = null;
+
+    /**
+     * The reader to get the unfiltered results as SAX events from, or null to
+     * parse them as XML.
+     */
+    private XMLReader mReader = null;
+
+    /**
+     * The compiled filter scripts keyed by their canonical path.  These are kept
+     * for the life of the process so that scenarios run in the same process do not
+     * have to re-read and compile the script each time.
+     */
+    private static final Map<String, CachedTemplates> mCompiledScripts = new HashMap<String, CachedTemplates>();
+
+    /**
+     * A compiled filter script along with the modification time of the script
+     * when it was compiled so that we can tell when it has changed.
+     */
+    private static class CachedTemplates {
+        final Templates mTemplates;
+        final long mLastModified;
+
+        CachedTemplates( final Templates aTemplates, final long aLastModified ) {
+            mTemplates = aTemplates;
+            mLastModified = aLastModified;
+        }
+    }
 
     /**
-     * Constructor which will create the transformer and read the filter script.
+     * Constructor which will create the transformer from the filter script.  The
+     * script is only read and compiled if it has not been already or if it has
+     * changed since.
      * @param aFilterScript The script which contains the rules to filter the XML data.
      */
     public FilterOutput( final String aFilterScript ) throws Exception {
-        StreamSource filterScriptSource = new StreamSource( new FileInputStream( aFilterScript ) );
+        mTemplates = getCompiledScript( aFilterScript );
+        mTransformer = mTemplates.newTransformer();
+    }
+
+    /**
+     * Create the factory for the transformer implementation we use to filter.
+     * @return A new transformer factory.
+     */
+    private static SAXTransformerFactory newTransformerFactory() {
         // NOTE: we are loading a custom transformer here called Joost which implements STX = Streaming Transformations for XML
         // http://joost.sourceforge.net
         // This allows us to filter XML as it is generated instead of having to collect
@@ -80,28 +137,90 @@ public class FilterOutput implements Runnable {
         // If we watned to switch back to XSLT the only change necessary is to load the
         // default Transformer implemntation which can be accomplished by calling the
         // factors with no arguments: TransformerFactory.newInstance()
-        mTransformer = TransformerFactory.newInstance( "net.sf.joost.trax.TransformerFactoryImpl",
-                ClassLoader.getSystemClassLoader() ).newTransformer( filterScriptSource );
+        return (SAXTransformerFactory)TransformerFactory.newInstance( "net.sf.joost.trax.TransformerFactoryImpl",
+                ClassLoader.getSystemClassLoader() );
     }
 
     /**
-     * Connect the PipedInputStream to the given PipedOutputStream to recieve the
-     * XML data from GCAM.
-     * @param aOutputStream The PipedOutputStream to connect to.
+     * Get the compiled filter script from the cache, reading and compiling it if
+     * necessary.
+     * @param aFilterScript The script which contains the rules to filter the XML data.
+     * @return The compiled filter script.
      */
-    public void setInputStream( PipedOutputStream aOutputStream ) throws IOException {
-        // Only need to connect one end of the pipe and the other will
-        // automatically be connected as well.
-        aOutputStream.connect( mSendThroughFilterStream );
+    private static synchronized Templates getCompiledScript( final String aFilterScript ) throws Exception {
+        File filterScriptFile = new File( aFilterScript );
+        String cacheKey = filterScriptFile.getCanonicalPath();
+        long lastModified = filterScriptFile.lastModified();
+        CachedTemplates cached = mCompiledScripts.get( cacheKey );
+        if( cached != null && cached.mLastModified == lastModified ) {
+            return cached.mTemplates;
+        }
+
+        StreamSource filterScriptSource = new StreamSource( new FileInputStream( filterScriptFile ) );
+        Templates compiled;
+        try {
+            compiled = newTransformerFactory().newTemplates( filterScriptSource );
+        }
+        finally {
+            filterScriptSource.getInputStream().close();
+        }
+        mCompiledScripts.put( cacheKey, new CachedTemplates( compiled, lastModified ) );
+        return compiled;
+    }
+
+    /**
+     * Get a source of the filtered results as SAX events which the database can
+     * build from directly.  Reading from the source will parse the XML from the
+     * given stream and filter it on the thread doing the reading, so this filter
+     * should not also be started.
+     * @param aInputStream The stream to read the unfiltered XML from.
+     * @return A source of the filtered results.
+     */
+    public SAXSource getSAXSource( InputStream aInputStream ) throws Exception {
+        SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware( true );
+        return getSAXSource( aInputStream, parserFactory.newSAXParser().getXMLReader() );
+    }
+
+    /**
+     * Get a source of the filtered results as SAX events, as above, where the
+     * unfiltered results are read with the given reader such as a BinaryEventReader.
+     * @param aInputStream The stream to read the unfiltered results from.
+     * @param aReader The reader to turn the stream into SAX events.
+     * @return A source of the filtered results.
+     */
+    public SAXSource getSAXSource( InputStream aInputStream, XMLReader aReader ) throws Exception {
+        XMLFilter filter = newTransformerFactory().newXMLFilter( mTemplates );
+        filter.setParent( aReader );
+        return new SAXSource( filter, new InputSource( aInputStream ) );
     }
 
     /**
-     * Get the stream of output that will come out of the filter to send into the
-     * database.
-     * @return The PipedOutputStream which can be used the get the filtered XML.
+     * Set the stream to recieve the XML data from GCAM.
+     * @param aInputStream The stream to read from, typically the consumer end of
+     *                     a ChunkPipe.
      */
-    public PipedOutputStream getOutputStream() {
-        return mSendToDBStream;
+    public void setInputStream( InputStream aInputStream ) {
+        mSendThroughFilterStream = aInputStream;
+    }
+
+    /**
+     * Set the stream the filtered XML will be written to on it's way to the
+     * database.  It will be closed once the filter is done.
+     * @param aOutputStream The stream to write to, typically the producer end
+     *                      of a ChunkPipe.
+     */
+    public void setOutputStream( OutputStream aOutputStream ) {
+        mSendToDBStream = aOutputStream;
+    }
+
+    /**
+     * Set the reader to turn the input stream into SAX events, such as a
+     * BinaryEventReader, rather than parsing it as XML.
+     * @param aReader The reader to use.
+     */
+    public void setXMLReader( XMLReader aReader ) {
+        mReader = aReader;
     }
 
     /**
@@ -120,16 +239,10 @@ public class FilterOutput implements Runnable {
      * an error.
      */
     public void cancel() {
-        // Set the flag that the thread should stop.
+        // Set the flag that the thread should stop.  Note the pipes on either
+        // side are canceled by the XMLDBDriver as they may only be closed from
+        // the thread that is using them.
         mWorkerThread.interrupt();
-
-        try {
-            // close the output stream too
-            mSendToDBStream.close();
-        }
-        catch( IOException error ) {
-            // ignore
-        }
     }
 
     /**
@@ -156,7 +269,9 @@ public class FilterOutput implements Runnable {
     public void run() {
         try {
             // wrap the piped streams into an interface usable by the transformer
-            StreamSource readFromGCAMSource = new StreamSource( mSendThroughFilterStream );
+            Source readFromGCAMSource = mReader != null
+                ? new SAXSource( mReader, new InputSource( mSendThroughFilterStream ) )
+                : new StreamSource( mSendThroughFilterStream );
             StreamResult sendToDBResult = new StreamResult( mSendToDBStream );
             // do the transformation/filter
             mTransformer.transform( readFromGCAMSource, sendToDBResult );
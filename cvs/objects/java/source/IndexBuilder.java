@@ -0,0 +1,343 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.basex.core.Context;
+import org.basex.core.cmd.Close;
+import org.basex.core.cmd.CreateIndex;
+import org.basex.core.cmd.Open;
+
+/**
+ * Builds the text and attribute indexes of a database once results have been
+ * stored.  The indexes are turned off while storing (see WriteLocalBaseXDB) to keep
+ * that fast, however without them every query has to scan the entire database.
+ * The indexes may be built either right after each scenario, overlapping with GCAM
+ * cleaning up, or only once a database has been idle for some time so that a batch
+ * of scenarios does not rebuild them over and over.  Builds of different databases,
+ * such as fan-out sinks, run in parallel on a shared set of workers.
+ *
+ * Idle builds are only run on their timer while the process keeps running, such
+ * as the daemon (see XMLDBDaemon).  Any still waiting must be run explicitly with
+ * runIdleBuildsNow once the process is done with the databases, which
+ * XMLDBDriver.shutdown does.  A shutdown hook can not be used as GCAM never
+ * destroys the JVM it embeds, and would hold up the exit when it does run.
+ */
+public class IndexBuilder {
+    /**
+     * The index policies which may be configured with index-policy.
+     */
+    public static final String NEVER = "never";
+    public static final String AFTER_SCENARIO = "after-scenario";
+    public static final String IDLE = "idle";
+
+    /**
+     * The indexes to build, as named by the BaseX CREATE INDEX command.
+     */
+    private static final String[] INDEX_TYPES = { "text", "attribute" };
+
+    /**
+     * A database waiting to be indexed once it has been idle long enough.
+     */
+    private static class IdleBuild implements Callable<Void> {
+        final String mKey;
+        final String mPath;
+        final String mContainerName;
+        final boolean mInMemoryDB;
+        final int mIdleSeconds;
+        ScheduledFuture<Void> mTimer = null;
+
+        IdleBuild( final String aKey, final String aPath, final String aContainerName,
+                   final boolean aInMemoryDB, final int aIdleSeconds )
+        {
+            mKey = aKey;
+            mPath = aPath;
+            mContainerName = aContainerName;
+            mInMemoryDB = aInMemoryDB;
+            mIdleSeconds = aIdleSeconds;
+        }
+
+        public Void call() {
+            try {
+                buildIdle( this );
+            }
+            finally {
+                // we stay registered while running so that anyone about to use the
+                // database will wait for us, unless we have been replaced
+                synchronized( IndexBuilder.class ) {
+                    if( mIdleBuilds.get( mKey ) == this ) {
+                        mIdleBuilds.remove( mKey );
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The workers which build the indexes, created on first use.
+     */
+    private static ScheduledThreadPoolExecutor mWorkers = null;
+
+    /**
+     * The number of workers to create.
+     */
+    private static int mNumWorkers = 1;
+
+    /**
+     * The databases waiting to be indexed once idle keyed by DBSessionPool.getKey.
+     */
+    private static final Map<String, IdleBuild> mIdleBuilds = new HashMap<String, IdleBuild>();
+
+    private IndexBuilder() {
+        // only static methods
+    }
+
+    /**
+     * Check that an index policy is one of the known policies.
+     * @param aPolicy The policy to check.
+     * @return The policy.
+     * @throws IllegalArgumentException If the policy is not known.
+     */
+    public static String checkPolicy( final String aPolicy ) {
+        if( !aPolicy.equals( NEVER ) && !aPolicy.equals( AFTER_SCENARIO ) && !aPolicy.equals( IDLE ) ) {
+            throw new IllegalArgumentException( "Unknown index-policy: " + aPolicy + ", expected one of "
+                                                + NEVER + ", " + AFTER_SCENARIO + ", or " + IDLE );
+        }
+        return aPolicy;
+    }
+
+    /**
+     * Set the number of databases which may be indexed at the same time.  This only
+     * has an effect before the first index is built.
+     * @param aNumWorkers The number of workers.
+     */
+    public static synchronized void setNumWorkers( final int aNumWorkers ) {
+        if( mWorkers == null ) {
+            mNumWorkers = Math.max( 1, aNumWorkers );
+        }
+    }
+
+    /**
+     * Get the workers, creating them if necessary.
+     * @return The workers.
+     */
+    private static synchronized ScheduledThreadPoolExecutor getWorkers() {
+        if( mWorkers == null ) {
+            mWorkers = new ScheduledThreadPoolExecutor( mNumWorkers, new ThreadFactory() {
+                public Thread newThread( Runnable aRunnable ) {
+                    Thread thread = new Thread( aRunnable, "XMLDBDriver index builder" );
+                    // builds which must finish are waited on explicitly
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+        return mWorkers;
+    }
+
+    /**
+     * Build the indexes of the database a context has open on one of the workers.
+     * @param aContext The context with the database open.
+     * @param aContainerName The name of the database.
+     * @return A handle which completes once the indexes have been built.
+     */
+    public static Future<?> buildAsync( final Context aContext, final String aContainerName ) {
+        return getWorkers().submit( new Runnable() {
+            public void run() {
+                build( aContext, aContainerName );
+            }
+        } );
+    }
+
+    /**
+     * Build the indexes of the database a context has open.  Errors are printed
+     * rather than thrown as queries will still work, just more slowly.
+     * @param aContext The context with the database open.
+     * @param aContainerName The name of the database.
+     */
+    public static void build( final Context aContext, final String aContainerName ) {
+        final long startTime = System.currentTimeMillis();
+        try {
+            for( String indexType : INDEX_TYPES ) {
+                new CreateIndex( indexType ).execute( aContext );
+            }
+            System.out.println( "Built the indexes of " + aContainerName + " in "
+                                + ( System.currentTimeMillis() - startTime ) / 1000.0 + " seconds" );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+    }
+
+    /**
+     * Build the indexes of a database once it has been idle for the given time.
+     * Scheduling the same database again restarts the wait.
+     * @param aKey The key of the database, see DBSessionPool.getKey.
+     * @param aPath The absolute path to the directory containing the database.
+     * @param aContainerName The name of the database.
+     * @param aInMemoryDB If the database is in memory only in which case it can
+     *                    only be indexed if it is kept open in the DBSessionPool.
+     * @param aIdleSeconds The number of seconds the database must be idle for.
+     */
+    public static synchronized void scheduleIdleBuild( final String aKey, final String aPath,
+                                                       final String aContainerName, final boolean aInMemoryDB,
+                                                       final int aIdleSeconds )
+    {
+        IdleBuild previous = mIdleBuilds.remove( aKey );
+        if( previous != null ) {
+            previous.mTimer.cancel( false );
+        }
+        IdleBuild idleBuild = new IdleBuild( aKey, aPath, aContainerName, aInMemoryDB, aIdleSeconds );
+        idleBuild.mTimer = getWorkers().schedule( idleBuild, aIdleSeconds, TimeUnit.SECONDS );
+        mIdleBuilds.put( aKey, idleBuild );
+    }
+
+    /**
+     * Notify that a database is about to be used again so that it is no longer
+     * idle.  If it is being indexed this waits for that to finish.
+     * @param aKey The key of the database, see DBSessionPool.getKey.
+     */
+    public static void cancelIdleBuild( final String aKey ) {
+        IdleBuild idleBuild;
+        synchronized( IndexBuilder.class ) {
+            idleBuild = mIdleBuilds.remove( aKey );
+            if( idleBuild != null && idleBuild.mTimer.cancel( false ) ) {
+                return;
+            }
+        }
+        // the build has already started
+        if( idleBuild != null ) {
+            awaitBuild( idleBuild.mTimer );
+        }
+    }
+
+    /**
+     * Run all of the idle builds which are still waiting now, and wait for any
+     * which are running.  This is done by XMLDBDriver.shutdown once GCAM is done.
+     */
+    public static void runIdleBuildsNow() {
+        IdleBuild[] idleBuilds;
+        synchronized( IndexBuilder.class ) {
+            idleBuilds = mIdleBuilds.values().toArray( new IdleBuild[ mIdleBuilds.size() ] );
+            mIdleBuilds.clear();
+        }
+        for( IdleBuild idleBuild : idleBuilds ) {
+            if( idleBuild.mTimer.cancel( false ) ) {
+                buildIdle( idleBuild );
+            }
+            else {
+                awaitBuild( idleBuild.mTimer );
+            }
+        }
+    }
+
+    /**
+     * Wait for a build to complete.
+     * @param aBuild The pending build.
+     */
+    private static void awaitBuild( final Future<?> aBuild ) {
+        try {
+            aBuild.get();
+        }
+        catch( Exception error ) {
+            // a cancelled build has nothing to wait for
+            if( !aBuild.isCancelled() ) {
+                error.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Build the indexes of an idle database.  If it is kept open in the DBSessionPool
+     * the pooled context is used otherwise it is opened just to build the indexes.
+     * If it is in use, possibly by another process, the build is put off until it
+     * has been idle again.
+     * @param aIdleBuild The database to index.
+     */
+    private static void buildIdle( final IdleBuild aIdleBuild ) {
+        if( DBSessionPool.isPooled( aIdleBuild.mKey ) ) {
+            Context pooledContext = DBSessionPool.acquireIfIdle( aIdleBuild.mKey );
+            if( pooledContext == null ) {
+                rescheduleIdleBuild( aIdleBuild );
+                return;
+            }
+            try {
+                build( pooledContext, aIdleBuild.mContainerName );
+            }
+            finally {
+                DBSessionPool.release( aIdleBuild.mKey );
+            }
+            return;
+        }
+        if( aIdleBuild.mInMemoryDB ) {
+            // the data is gone once it is closed
+            return;
+        }
+
+        Context context = WriteLocalBaseXDB.createContext( aIdleBuild.mPath );
+        try {
+            if( context.pinned( aIdleBuild.mContainerName ) ) {
+                rescheduleIdleBuild( aIdleBuild );
+                return;
+            }
+            new Open( aIdleBuild.mContainerName ).execute( context );
+            build( context, aIdleBuild.mContainerName );
+            new Close().execute( context );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+        finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Try an idle build again once the database has been idle for another period,
+     * unless it has been scheduled again in the meantime.
+     * @param aIdleBuild The database to index.
+     */
+    private static synchronized void rescheduleIdleBuild( final IdleBuild aIdleBuild ) {
+        if( mIdleBuilds.get( aIdleBuild.mKey ) == aIdleBuild ) {
+            scheduleIdleBuild( aIdleBuild.mKey, aIdleBuild.mPath, aIdleBuild.mContainerName,
+                               aIdleBuild.mInMemoryDB, aIdleBuild.mIdleSeconds );
+        }
+    }
+}
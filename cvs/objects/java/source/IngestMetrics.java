@@ -0,0 +1,460 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects telemetry about the stages of an XMLDBDriver so that it is possible
+ * to tell if GCAM, the filter, or BaseX is the bottleneck when storing results.
+ * The counts are read from the pipes connecting the stages when requested so
+ * there is no overhead to collecting them.  Each stage is attached to the pipe
+ * it reads from and the pipe it writes to, or no output pipe if it hands SAX
+ * events straight to the database in which case the two run together.  The metrics are registered as an
+ * MBean under gcam.xmldb:type=IngestMetrics,doc=NAME while the driver is open
+ * and may optionally be printed periodically as well.  The metrics of a fan-out
+ * sink are registered with an additional sink=SINK key.
+ */
+public class IngestMetrics implements IngestMetricsMBean {
+    /**
+     * The name of the document being stored.
+     */
+    private final String mDocName;
+
+    /**
+     * The name of the fan-out sink being stored or null for the primary database.
+     */
+    private final String mSinkName;
+
+    /**
+     * The pipe GCAM writes to.
+     */
+    private volatile ChunkPipe mGCAMPipe = null;
+
+    /**
+     * The name of the STX filter stage.
+     */
+    public static final String FILTER_STAGE = "filter";
+
+    /**
+     * The name of the region splitter stage.
+     */
+    public static final String SHARD_STAGE = "shard";
+
+    /**
+     * A stage between GCAM and the database.
+     */
+    private static class Stage {
+        /**
+         * The name of the stage.
+         */
+        final String mName;
+
+        /**
+         * The pipe the stage reads from.
+         */
+        final ChunkPipe mInputPipe;
+
+        /**
+         * The pipe the stage writes to or null if it hands SAX events to the database.
+         */
+        final ChunkPipe mOutputPipe;
+
+        Stage( final String aName, final ChunkPipe aInputPipe, final ChunkPipe aOutputPipe ) {
+            mName = aName;
+            mInputPipe = aInputPipe;
+            mOutputPipe = aOutputPipe;
+        }
+
+        long getBytesRead() {
+            return mInputPipe.getBytesRead();
+        }
+
+        long getBytesPassed() {
+            return mOutputPipe != null ? mOutputPipe.getBytesWritten() : -1;
+        }
+
+        long getBlockedNanos() {
+            return mInputPipe.getConsumerBlockedNanos()
+                + ( mOutputPipe != null ? mOutputPipe.getProducerBlockedNanos() : 0 );
+        }
+    }
+
+    /**
+     * The stages in order from GCAM to the database.
+     */
+    private final List<Stage> mStages = new CopyOnWriteArrayList<Stage>();
+
+    /**
+     * The database being written to.
+     */
+    private volatile WriteLocalBaseXDB mWriteDB = null;
+
+    /**
+     * The time finish and finalizeAndClose took in nanoseconds or -1 if they
+     * have not completed.
+     */
+    private volatile long mFinishNanos = -1;
+    private volatile long mFinalizeAndCloseNanos = -1;
+
+    /**
+     * The name the MBean was registered under or null if it is not registered.
+     */
+    private ObjectName mRegisteredName = null;
+
+    /**
+     * The thread printing the metrics periodically or null if not enabled.
+     */
+    private ScheduledExecutorService mLogger = null;
+
+    /**
+     * Constructor.
+     * @param aDocName The name of the document being stored.
+     */
+    public IngestMetrics( final String aDocName ) {
+        this( aDocName, null );
+    }
+
+    /**
+     * Constructor for the metrics of a fan-out sink.
+     * @param aDocName The name of the document being stored.
+     * @param aSinkName The name of the fan-out sink or null for the primary database.
+     */
+    public IngestMetrics( final String aDocName, final String aSinkName ) {
+        mDocName = aDocName;
+        mSinkName = aSinkName;
+    }
+
+    /**
+     * Set the ends of the pipeline to collect metrics from.  Any stages in between
+     * are then added in order with addStage.
+     * @param aGCAMPipe The pipe GCAM writes to.
+     * @param aWriteDB The database being written to or null if there is none.
+     */
+    public void setEnds( final ChunkPipe aGCAMPipe, final WriteLocalBaseXDB aWriteDB ) {
+        mGCAMPipe = aGCAMPipe;
+        mWriteDB = aWriteDB;
+        mStages.clear();
+    }
+
+    /**
+     * Add the next stage of the pipeline which reads from the pipe the previous
+     * stage, or GCAM, writes to.
+     * @param aName The name of the stage.
+     * @param aOutputPipe The pipe the stage writes to or null if it hands SAX
+     *                    events straight to the database.
+     */
+    public void addStage( final String aName, final ChunkPipe aOutputPipe ) {
+        ChunkPipe inputPipe = mStages.isEmpty() ? mGCAMPipe : mStages.get( mStages.size() - 1 ).mOutputPipe;
+        if( inputPipe == null ) {
+            throw new IllegalStateException( "The " + aName + " stage must read from a pipe" );
+        }
+        mStages.add( new Stage( aName, inputPipe, aOutputPipe ) );
+    }
+
+    /**
+     * Find a stage by name.
+     * @param aName The name of the stage.
+     * @return The stage or null if there is no such stage.
+     */
+    private Stage getStage( final String aName ) {
+        for( Stage stage : mStages ) {
+            if( stage.mName.equals( aName ) ) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record how long finish took.
+     * @param aNanos The time in nanoseconds.
+     */
+    public void setFinishNanos( final long aNanos ) {
+        mFinishNanos = aNanos;
+    }
+
+    /**
+     * Record how long finalizeAndClose took.
+     * @param aNanos The time in nanoseconds.
+     */
+    public void setFinalizeAndCloseNanos( final long aNanos ) {
+        mFinalizeAndCloseNanos = aNanos;
+    }
+
+    /**
+     * Register these metrics with the platform MBean server and optionally start
+     * printing them periodically.
+     * @param aLogInterval The number of seconds between printing the metrics, zero
+     *                     or less to not print them.
+     */
+    public void start( final int aLogInterval ) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName( "gcam.xmldb:type=IngestMetrics,doc=" + ObjectName.quote( mDocName )
+                    + ( mSinkName != null ? ",sink=" + ObjectName.quote( mSinkName ) : "" ) );
+            if( server.isRegistered( name ) ) {
+                // left over from a previous run with the same document name
+                server.unregisterMBean( name );
+            }
+            server.registerMBean( this, name );
+            mRegisteredName = name;
+        }
+        catch( Exception error ) {
+            // not being able to monitor is no reason to stop storing results
+            error.printStackTrace();
+        }
+
+        if( aLogInterval > 0 ) {
+            mLogger = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                public Thread newThread( Runnable aRunnable ) {
+                    Thread thread = new Thread( aRunnable, "XMLDBDriver metrics" );
+                    // do not keep the JVM alive just to print metrics
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+            mLogger.scheduleAtFixedRate( new Runnable() {
+                public void run() {
+                    System.out.println( IngestMetrics.this );
+                }
+            }, aLogInterval, aLogInterval, TimeUnit.SECONDS );
+        }
+    }
+
+    /**
+     * Stop printing the metrics, printing them one last time if enabled, and
+     * unregister the MBean.
+     */
+    public void stop() {
+        if( mLogger != null ) {
+            mLogger.shutdownNow();
+            mLogger = null;
+            System.out.println( this );
+        }
+        if( mRegisteredName != null ) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean( mRegisteredName );
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+            }
+            mRegisteredName = null;
+        }
+    }
+
+    public String getDocName() {
+        return mDocName;
+    }
+
+    public long getBytesReceived() {
+        return mGCAMPipe != null ? mGCAMPipe.getBytesWritten() : 0;
+    }
+
+    public long getFilterBytesRead() {
+        Stage filter = getStage( FILTER_STAGE );
+        return filter != null ? filter.getBytesRead() : 0;
+    }
+
+    public long getFilterBytesPassed() {
+        Stage filter = getStage( FILTER_STAGE );
+        return filter != null ? filter.getBytesPassed() : 0;
+    }
+
+    public long getFilterBytesDropped() {
+        // Note the filter re-serializes the XML so the output may not be exactly
+        // the size of the input that was kept.
+        long bytesPassed = getFilterBytesPassed();
+        return bytesPassed < 0 ? -1 : Math.max( 0, getFilterBytesRead() - bytesPassed );
+    }
+
+    public boolean isFilterSAXHandoff() {
+        Stage filter = getStage( FILTER_STAGE );
+        return filter != null && filter.mOutputPipe == null;
+    }
+
+    public long getBytesCommitted() {
+        // When the last stage hands SAX events to the database everything it has
+        // read has gone into the database.
+        ChunkPipe dbPipe = getDBPipe();
+        long bytesCommitted = dbPipe != null ? dbPipe.getBytesRead() : 0;
+        if( mWriteDB != null ) {
+            bytesCommitted += mWriteDB.getShardBytesRead();
+        }
+        return bytesCommitted;
+    }
+
+    public long getGCAMBlockedMillis() {
+        return mGCAMPipe != null ? toMillis( mGCAMPipe.getProducerBlockedNanos() ) : 0;
+    }
+
+    public long getFilterBlockedMillis() {
+        Stage filter = getStage( FILTER_STAGE );
+        return filter != null ? toMillis( filter.getBlockedNanos() ) : 0;
+    }
+
+    public long getShardBlockedMillis() {
+        Stage shard = getStage( SHARD_STAGE );
+        return shard != null ? toMillis( shard.getBlockedNanos() ) : 0;
+    }
+
+    public long getDBBlockedMillis() {
+        ChunkPipe dbPipe = getDBPipe();
+        long blockedNanos = dbPipe != null ? dbPipe.getConsumerBlockedNanos() : 0;
+        if( mWriteDB != null ) {
+            blockedNanos += mWriteDB.getShardBlockedNanos();
+        }
+        return toMillis( blockedNanos );
+    }
+
+    public String[] getStageNames() {
+        List<Stage> stages = mStages;
+        String[] names = new String[ stages.size() ];
+        for( int i = 0; i < names.length; ++i ) {
+            names[ i ] = stages.get( i ).mName;
+        }
+        return names;
+    }
+
+    public long[] getStageBytesRead() {
+        List<Stage> stages = mStages;
+        long[] bytesRead = new long[ stages.size() ];
+        for( int i = 0; i < bytesRead.length; ++i ) {
+            bytesRead[ i ] = stages.get( i ).getBytesRead();
+        }
+        return bytesRead;
+    }
+
+    public long[] getStageBytesPassed() {
+        List<Stage> stages = mStages;
+        long[] bytesPassed = new long[ stages.size() ];
+        for( int i = 0; i < bytesPassed.length; ++i ) {
+            bytesPassed[ i ] = stages.get( i ).getBytesPassed();
+        }
+        return bytesPassed;
+    }
+
+    public long[] getStageBlockedMillis() {
+        List<Stage> stages = mStages;
+        long[] blockedMillis = new long[ stages.size() ];
+        for( int i = 0; i < blockedMillis.length; ++i ) {
+            blockedMillis[ i ] = toMillis( stages.get( i ).getBlockedNanos() );
+        }
+        return blockedMillis;
+    }
+
+    public int[] getQueuedChunks() {
+        List<Stage> stages = mStages;
+        int[] queuedChunks = new int[ stages.size() + 1 ];
+        int numPipes = 0;
+        if( mGCAMPipe != null ) {
+            queuedChunks[ numPipes++ ] = mGCAMPipe.getQueuedChunks();
+        }
+        for( Stage stage : stages ) {
+            if( stage.mOutputPipe != null ) {
+                queuedChunks[ numPipes++ ] = stage.mOutputPipe.getQueuedChunks();
+            }
+        }
+        return Arrays.copyOf( queuedChunks, numPipes );
+    }
+
+    public long getFinishMillis() {
+        return mFinishNanos < 0 ? -1 : toMillis( mFinishNanos );
+    }
+
+    public long getFinalizeAndCloseMillis() {
+        return mFinalizeAndCloseNanos < 0 ? -1 : toMillis( mFinalizeAndCloseNanos );
+    }
+
+    /**
+     * Get the pipe the database reads from which is the last of the pipes.  If the
+     * last stage hands SAX events to the database this is the pipe that stage
+     * reads from as they run together.
+     * @return The pipe the database reads from.
+     */
+    private ChunkPipe getDBPipe() {
+        if( mStages.isEmpty() ) {
+            return mGCAMPipe;
+        }
+        Stage lastStage = mStages.get( mStages.size() - 1 );
+        return lastStage.mOutputPipe != null ? lastStage.mOutputPipe : lastStage.mInputPipe;
+    }
+
+    private static long toMillis( final long aNanos ) {
+        return TimeUnit.NANOSECONDS.toMillis( aNanos );
+    }
+
+    /**
+     * Summarize the metrics on a single line suitable for logging.
+     * @return The metrics summary.
+     */
+    public String toString() {
+        final double MB = 1024.0 * 1024.0;
+        StringBuilder line = new StringBuilder( "XMLDBDriver " ).append( mDocName );
+        if( mSinkName != null ) {
+            line.append( " [" ).append( mSinkName ).append( "]" );
+        }
+        line.append( ":" );
+        line.append( String.format( " received %.1f MB", getBytesReceived() / MB ) );
+        for( Stage stage : mStages ) {
+            if( stage.mOutputPipe != null ) {
+                line.append( String.format( ", %s passed %.1f MB", stage.mName, stage.getBytesPassed() / MB ) );
+            }
+            else {
+                line.append( String.format( ", %s read %.1f MB (SAX to db)", stage.mName, stage.getBytesRead() / MB ) );
+            }
+        }
+        line.append( String.format( ", committed %.1f MB", getBytesCommitted() / MB ) );
+        line.append( "; blocked ms gcam=" ).append( getGCAMBlockedMillis() );
+        for( Stage stage : mStages ) {
+            line.append( " " ).append( stage.mName ).append( "=" ).append( toMillis( stage.getBlockedNanos() ) );
+        }
+        line.append( " db=" ).append( getDBBlockedMillis() );
+        line.append( "; queued chunks " ).append( Arrays.toString( getQueuedChunks() ) );
+        if( mFinishNanos >= 0 ) {
+            line.append( "; finish " ).append( getFinishMillis() ).append( " ms" );
+        }
+        if( mFinalizeAndCloseNanos >= 0 ) {
+            line.append( ", finalizeAndClose " ).append( getFinalizeAndCloseMillis() ).append( " ms" );
+        }
+        return line.toString();
+    }
+}
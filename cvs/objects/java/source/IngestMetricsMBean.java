@@ -0,0 +1,136 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+/**
+ * The management interface of IngestMetrics which allows the progress of
+ * storing a scenario to be monitored over JMX, for instance with jconsole.
+ * Byte counts are of the XML text and times are in milliseconds.
+ */
+public interface IngestMetricsMBean {
+    /**
+     * @return The name of the document being stored.
+     */
+    public String getDocName();
+
+    /**
+     * @return The number of bytes received from GCAM.
+     */
+    public long getBytesReceived();
+
+    /**
+     * @return The number of bytes the filter has read.
+     */
+    public long getFilterBytesRead();
+
+    /**
+     * @return The number of bytes the filter has passed on or -1 if it hands SAX
+     *         events straight to the database.
+     */
+    public long getFilterBytesPassed();
+
+    /**
+     * @return The number of bytes the filter has dropped or -1 if it hands SAX
+     *         events straight to the database.
+     */
+    public long getFilterBytesDropped();
+
+    /**
+     * @return If the filter hands SAX events straight to the database in which
+     *         case the filter and database run together and their times overlap.
+     */
+    public boolean isFilterSAXHandoff();
+
+    /**
+     * @return The number of bytes read by the BaseX Add command, including any
+     *         region shards.
+     */
+    public long getBytesCommitted();
+
+    /**
+     * @return The time GCAM spent waiting for room in the pipe to the next stage.
+     */
+    public long getGCAMBlockedMillis();
+
+    /**
+     * @return The time the filter spent waiting on the pipes it reads from and writes to.
+     */
+    public long getFilterBlockedMillis();
+
+    /**
+     * @return The time the region splitter spent waiting on the pipes it reads
+     *         from and writes to.
+     */
+    public long getShardBlockedMillis();
+
+    /**
+     * @return The time the database spent waiting for data, including any region
+     *         shards.
+     */
+    public long getDBBlockedMillis();
+
+    /**
+     * @return The names of the stages between GCAM and the database in order.
+     */
+    public String[] getStageNames();
+
+    /**
+     * @return The number of bytes each stage has read.
+     */
+    public long[] getStageBytesRead();
+
+    /**
+     * @return The number of bytes each stage has passed on, or -1 for a stage which
+     *         hands SAX events straight to the database.
+     */
+    public long[] getStageBytesPassed();
+
+    /**
+     * @return The time each stage spent waiting on the pipes it reads from and writes to.
+     */
+    public long[] getStageBlockedMillis();
+
+    /**
+     * @return The number of chunks currently queued in each pipe, in order from GCAM
+     *         to the database.
+     */
+    public int[] getQueuedChunks();
+
+    /**
+     * @return How long finish took or -1 if it has not yet completed.
+     */
+    public long getFinishMillis();
+
+    /**
+     * @return How long finalizeAndClose took or -1 if it has not yet completed.
+     */
+    public long getFinalizeAndCloseMillis();
+}
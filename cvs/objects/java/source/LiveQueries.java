@@ -0,0 +1,356 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import org.basex.core.Context;
+import org.basex.core.MainOptions;
+import org.basex.core.cmd.CreateDB;
+import org.basex.query.QueryProcessor;
+import org.basex.query.iter.Iter;
+import org.basex.query.value.item.Item;
+
+/**
+ * Evaluates "live" queries on the results of a scenario as soon as each model
+ * period has been solved rather than waiting until the entire scenario has been
+ * run and stored.  After each period GCAM sends a snapshot of the results so far
+ * which is loaded into a temporary in-memory database, the queries are run and
+ * their results published right away.  The database context is kept for all of
+ * the periods of a scenario until closeContext is called.  This allows a long running scenario to be
+ * monitored and killed early if it is going astray.  The queries are defined in
+ * an XML file such as:
+ *
+ *   <live-queries>
+ *     <query name="global-co2">sum($scenario//CO2/emissions[@year = $year])</query>
+ *   </live-queries>
+ *
+ * Where the variables $scenario, $year, $period, and $doc may be used to refer to
+ * the scenario element of the snapshot, the year and period just solved, and the
+ * document name the final results will be stored as.  Note results for periods
+ * that have not been solved yet will be present but meaningless.  The results are
+ * published as one JSON object per line and query, for instance:
+ *
+ *   {"doc":"Reference...","period":3,"year":2015,"query":"global-co2","result":["1234.5"]}
+ *
+ * Either appended to a file or sent to a socket given as tcp://HOST:PORT.
+ */
+public class LiveQueries implements Runnable {
+    /**
+     * The name of the temporary database the snapshot is loaded into.
+     */
+    private static final String LIVE_DB_NAME = "gcam-live";
+
+    /**
+     * The connection to publish results to if publishing to a socket.  This is kept
+     * open across periods.
+     */
+    private static Socket sPublishSocket = null;
+
+    /**
+     * The thread on which the snapshot will be loaded.
+     */
+    private final Thread mWorkerThread = new Thread( this, "LiveQueries" );
+
+    /**
+     * The stream to read the snapshot from.
+     */
+    private InputStream mSnapshotStream = null;
+
+    /**
+     * The context of the temporary database which is shared by all of the periods
+     * of a scenario, along with the document name of that scenario.  Only one
+     * period uses it at a time as each waits for the last to be done.
+     */
+    private static Context sContext = null;
+    private static String sContextDocName = null;
+
+    /**
+     * The context the snapshot is loaded into.
+     */
+    private volatile Context mContext = null;
+
+    /**
+     * If the snapshot was loaded successfully.
+     */
+    private volatile boolean mLoaded = false;
+
+    /**
+     * The name and text of each query.
+     */
+    private final List<String> mQueryNames = new ArrayList<String>();
+    private final List<String> mQueries = new ArrayList<String>();
+
+    /**
+     * Where to publish the results.
+     */
+    private final String mOutput;
+
+    /**
+     * The document name, period, and year the results are for.
+     */
+    private final String mDocName;
+    private final int mPeriod;
+    private final int mYear;
+
+    /**
+     * Constructor which reads the query definitions.
+     * @param aDefinitionFile The XML file defining the live queries.
+     * @param aOutput The file to append results to or tcp://HOST:PORT to send them to.
+     * @param aDocName The document name the final results will be stored as.
+     * @param aPeriod The period just solved.
+     * @param aYear The year of the period just solved.
+     * @throws Exception If the definitions could not be read.
+     */
+    public LiveQueries( final String aDefinitionFile, final String aOutput, final String aDocName,
+                        final int aPeriod, final int aYear ) throws Exception
+    {
+        mOutput = aOutput;
+        mDocName = aDocName;
+        mPeriod = aPeriod;
+        mYear = aYear;
+        Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse( new File( aDefinitionFile ) ).getDocumentElement();
+        NodeList childNodes = root.getChildNodes();
+        for( int i = 0; i < childNodes.getLength(); ++i ) {
+            Node child = childNodes.item( i );
+            if( child instanceof Element && child.getNodeName().equals( "query" ) ) {
+                mQueryNames.add( ( (Element)child ).getAttribute( "name" ) );
+                mQueries.add( child.getTextContent().trim() );
+            }
+        }
+    }
+
+    /**
+     * Get the context to load the snapshot of the given scenario into, creating a
+     * new one if the last was for a different scenario.
+     * @param aDocName The document name the final results will be stored as.
+     * @return The context to use.
+     */
+    private static synchronized Context getContext( final String aDocName ) {
+        if( sContext != null && !aDocName.equals( sContextDocName ) ) {
+            closeContext();
+        }
+        if( sContext == null ) {
+            sContext = new Context();
+            sContext.options.set( MainOptions.MAINMEM, true );
+            sContextDocName = aDocName;
+        }
+        return sContext;
+    }
+
+    /**
+     * Close the context kept for the live queries of the last scenario, if any.
+     */
+    public static synchronized void closeContext() {
+        if( sContext != null ) {
+            sContext.close();
+            sContext = null;
+            sContextDocName = null;
+        }
+    }
+
+    /**
+     * Set the stream to receive the snapshot XML from.
+     * @param aInputStream The stream to read from, typically the consumer end of
+     *                     a ChunkPipe.
+     */
+    public void setInputStream( InputStream aInputStream ) {
+        mSnapshotStream = aInputStream;
+    }
+
+    /**
+     * Start loading the snapshot.
+     */
+    public void start() {
+        mWorkerThread.start();
+    }
+
+    /**
+     * Stop loading the snapshot presumably because there was an error.
+     */
+    public void cancel() {
+        mWorkerThread.interrupt();
+    }
+
+    /**
+     * Wait for the snapshot to be loaded then run the queries and publish the results.
+     */
+    public void finish() {
+        try {
+            mWorkerThread.join();
+            if( mLoaded ) {
+                publish( runQueries() );
+            }
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+    }
+
+    /**
+     * The run function for the worker thread that will load the snapshot.
+     */
+    public void run() {
+        try {
+            // the snapshot of the last period is replaced by this one
+            mContext = getContext( mDocName );
+            CreateDB createCommand = new CreateDB( LIVE_DB_NAME );
+            createCommand.setInput( mSnapshotStream );
+            createCommand.execute( mContext );
+            mLoaded = true;
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+        finally {
+            try {
+                mSnapshotStream.close();
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Run each of the queries on the snapshot.  A query which fails is reported
+     * and left out so that the others are still published.
+     * @return The published lines of results.
+     */
+    private String runQueries() {
+        StringBuilder lines = new StringBuilder();
+        for( int i = 0; i < mQueries.size(); ++i ) {
+            final String query = "declare variable $doc external; declare variable $period external; "
+                + "declare variable $year external; "
+                + "let $scenario := db:open('" + LIVE_DB_NAME + "')/scenario "
+                + "return (" + mQueries.get( i ) + ")";
+            QueryProcessor queryProc = new QueryProcessor( query, mContext );
+            try {
+                queryProc.bind( "doc", mDocName );
+                queryProc.bind( "period", mPeriod );
+                queryProc.bind( "year", mYear );
+                StringBuilder line = new StringBuilder( "{\"doc\":" ).append( toJSON( mDocName ) );
+                line.append( ",\"period\":" ).append( mPeriod ).append( ",\"year\":" ).append( mYear );
+                line.append( ",\"query\":" ).append( toJSON( mQueryNames.get( i ) ) ).append( ",\"result\":[" );
+                Iter results = queryProc.iter();
+                boolean first = true;
+                for( Item result; ( result = results.next() ) != null; first = false ) {
+                    line.append( first ? "" : "," ).append( toJSON( new String( result.string( null ), "UTF-8" ) ) );
+                }
+                lines.append( line ).append( "]}\n" );
+            }
+            catch( Exception error ) {
+                System.err.println( "ERROR: Could not run live query " + mQueryNames.get( i ) + "." );
+                error.printStackTrace();
+            }
+            finally {
+                queryProc.close();
+            }
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Publish results to the configured file or socket.  This is synchronized
+     * across all instances as the socket is shared.
+     * @param aLines The lines of results to publish.
+     */
+    private void publish( final String aLines ) throws IOException {
+        final byte[] data = aLines.getBytes( "UTF-8" );
+        synchronized( LiveQueries.class ) {
+            if( !mOutput.startsWith( "tcp://" ) ) {
+                OutputStream out = new FileOutputStream( mOutput, true );
+                try {
+                    out.write( data );
+                }
+                finally {
+                    out.close();
+                }
+                return;
+            }
+            // try to reconnect once if the connection has gone away
+            for( int attempt = 0; attempt < 2; ++attempt ) {
+                try {
+                    if( sPublishSocket == null ) {
+                        String[] hostPort = mOutput.substring( "tcp://".length() ).split( ":" );
+                        sPublishSocket = new Socket( hostPort[ 0 ], Integer.parseInt( hostPort[ 1 ] ) );
+                    }
+                    sPublishSocket.getOutputStream().write( data );
+                    sPublishSocket.getOutputStream().flush();
+                    return;
+                }
+                catch( IOException error ) {
+                    if( sPublishSocket != null ) {
+                        sPublishSocket.close();
+                        sPublishSocket = null;
+                    }
+                    if( attempt == 1 ) {
+                        throw error;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Quote a string as a JSON string.
+     */
+    private static String toJSON( final String aValue ) {
+        StringBuilder json = new StringBuilder( "\"" );
+        for( int i = 0; i < aValue.length(); ++i ) {
+            char c = aValue.charAt( i );
+            if( c == '"' || c == '\\' ) {
+                json.append( '\\' ).append( c );
+            }
+            else if( c < 0x20 ) {
+                json.append( String.format( "\\u%04x", (int)c ) );
+            }
+            else {
+                json.append( c );
+            }
+        }
+        return json.append( '"' ).toString();
+    }
+}
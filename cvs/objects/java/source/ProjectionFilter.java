@@ -0,0 +1,444 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A fast alternative to an STX filter script for the common case of simply
+ * keeping or dropping whole elements, such as certain regions, sectors, or
+ * emissions gases.  The elements to keep or drop are given as simple paths
+ * and the XML is scanned at the byte level (see XMLTagScanner) so the data is
+ * never fully parsed and dropped elements are skipped over by only counting the
+ * nesting depth.
+ *
+ * Paths are a list of element names separated by / where each name may be * to
+ * match any element and may be followed by any number of attribute predicates
+ * such as [@name='CO2'].  Paths starting with / are matched from the root element
+ * and otherwise match elements at any depth which end with the given path.  For
+ * instance:
+ *   /scenario/world/region[@name='USA']
+ *   technology/GHG[@name='CH4']
+ * If any include paths are given only the elements they match, and everything
+ * within them, will be kept along with the elements which lead down to them.
+ * Include paths must start with /.  Elements which match any exclude path are
+ * always dropped.
+ */
+public class ProjectionFilter extends XMLTagScanner implements Runnable {
+    /**
+     * A single step of a path: an element name and attributes it must have.
+     */
+    private static class Step {
+        final String mName;
+        final Map<String, String> mPredicates;
+
+        Step( final String aName, final Map<String, String> aPredicates ) {
+            mName = aName;
+            mPredicates = aPredicates;
+        }
+
+        boolean matches( final OpenElement aElement ) {
+            if( !mName.equals( "*" ) && !mName.equals( aElement.mName ) ) {
+                return false;
+            }
+            for( Map.Entry<String, String> predicate : mPredicates.entrySet() ) {
+                if( aElement.mAttributes == null
+                    || !predicate.getValue().equals( aElement.mAttributes.get( predicate.getKey() ) ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A parsed path.
+     */
+    private static class Path {
+        final boolean mIsAbsolute;
+        final List<Step> mSteps;
+
+        Path( final boolean aIsAbsolute, final List<Step> aSteps ) {
+            mIsAbsolute = aIsAbsolute;
+            mSteps = aSteps;
+        }
+    }
+
+    /**
+     * An element which is currently open.
+     */
+    private static class OpenElement {
+        final String mName;
+
+        /**
+         * The attributes of the element which are only parsed if some path has
+         * predicates on elements with this name, otherwise null.
+         */
+        final Map<String, String> mAttributes;
+
+        /**
+         * If this element matched an include path in which case everything within
+         * it is kept, other than excluded elements.
+         */
+        final boolean mIncluded;
+
+        OpenElement( final String aName, final Map<String, String> aAttributes, final boolean aIncluded ) {
+            mName = aName;
+            mAttributes = aAttributes;
+            mIncluded = aIncluded;
+        }
+    }
+
+    /**
+     * The thread on which filtering will take place.
+     */
+    private final Thread mWorkerThread = new Thread( this );
+
+    /**
+     * The paths of elements to keep, if empty everything not excluded is kept.
+     */
+    private final List<Path> mIncludes;
+
+    /**
+     * The paths of elements to drop.
+     */
+    private final List<Path> mExcludes;
+
+    /**
+     * The element names for which attributes must be parsed to check predicates.
+     * If a path has a predicate on * this will contain *.
+     */
+    private final Set<String> mNamesWithPredicates = new HashSet<String>();
+
+    /**
+     * The elements which are currently open and being kept.
+     */
+    private final List<OpenElement> mOpenElements = new ArrayList<OpenElement>();
+
+    /**
+     * The nesting depth within an element being dropped, zero if we are not
+     * currently dropping anything.
+     */
+    private int mDropDepth = 0;
+
+    /**
+     * The stream to read the XML from.
+     */
+    private InputStream mInputStream = null;
+
+    /**
+     * The stream to write the filtered XML to.
+     */
+    private OutputStream mOutputStream = null;
+
+    /**
+     * Constructor.
+     * @param aIncludes The paths of elements to keep separated by ; which may be
+     *                  empty to keep everything not excluded.
+     * @param aExcludes The paths of elements to drop separated by ;.
+     */
+    public ProjectionFilter( final String aIncludes, final String aExcludes ) {
+        mIncludes = parsePaths( aIncludes );
+        mExcludes = parsePaths( aExcludes );
+        for( Path include : mIncludes ) {
+            if( !include.mIsAbsolute ) {
+                throw new IllegalArgumentException( "Projection include paths must start with /" );
+            }
+        }
+    }
+
+    /**
+     * Parse the paths given in the configuration.
+     * @param aPaths The paths separated by ;.
+     * @return The parsed paths.
+     */
+    private List<Path> parsePaths( final String aPaths ) {
+        List<Path> paths = new ArrayList<Path>();
+        for( String pathStr : aPaths.split( ";" ) ) {
+            pathStr = pathStr.trim();
+            if( pathStr.isEmpty() ) {
+                continue;
+            }
+            final boolean isAbsolute = pathStr.startsWith( "/" );
+            List<Step> steps = new ArrayList<Step>();
+            for( String stepStr : splitSteps( isAbsolute ? pathStr.substring( 1 ) : pathStr ) ) {
+                steps.add( parseStep( stepStr, pathStr ) );
+            }
+            paths.add( new Path( isAbsolute, steps ) );
+        }
+        return paths;
+    }
+
+    /**
+     * Split a path into steps on the / which are not in a predicate.
+     * @param aPath The path to split.
+     * @return The steps of the path.
+     */
+    private static List<String> splitSteps( final String aPath ) {
+        List<String> steps = new ArrayList<String>();
+        int bracketDepth = 0;
+        char quote = 0;
+        int stepStart = 0;
+        for( int i = 0; i < aPath.length(); ++i ) {
+            final char currChar = aPath.charAt( i );
+            if( quote != 0 ) {
+                if( currChar == quote ) {
+                    quote = 0;
+                }
+            }
+            else if( currChar == '\'' || currChar == '"' ) {
+                quote = currChar;
+            }
+            else if( currChar == '[' ) {
+                ++bracketDepth;
+            }
+            else if( currChar == ']' ) {
+                --bracketDepth;
+            }
+            else if( currChar == '/' && bracketDepth == 0 ) {
+                steps.add( aPath.substring( stepStart, i ) );
+                stepStart = i + 1;
+            }
+        }
+        steps.add( aPath.substring( stepStart ) );
+        return steps;
+    }
+
+    /**
+     * Parse a single step of a path such as: GHG[@name='CO2'].
+     * @param aStep The step to parse.
+     * @param aPath The full path for error messages.
+     * @return The parsed step.
+     */
+    private Step parseStep( final String aStep, final String aPath ) {
+        final int predicateStart = aStep.indexOf( '[' );
+        final String name = ( predicateStart == -1 ? aStep : aStep.substring( 0, predicateStart ) ).trim();
+        if( name.isEmpty() ) {
+            throw new IllegalArgumentException( "Invalid projection path: " + aPath );
+        }
+        Map<String, String> predicates = new LinkedHashMap<String, String>();
+        int pos = predicateStart;
+        while( pos != -1 && pos < aStep.length() ) {
+            // expecting: [@attr='value']
+            final int attrStart = aStep.indexOf( '@', pos );
+            final int equals = aStep.indexOf( '=', pos );
+            if( aStep.charAt( pos ) != '[' || attrStart == -1 || equals == -1 || equals + 1 >= aStep.length() ) {
+                throw new IllegalArgumentException( "Invalid projection path: " + aPath );
+            }
+            final char quote = aStep.charAt( equals + 1 );
+            final int valueEnd = aStep.indexOf( quote, equals + 2 );
+            final int predicateEnd = valueEnd == -1 ? -1 : aStep.indexOf( ']', valueEnd );
+            if( ( quote != '\'' && quote != '"' ) || predicateEnd == -1 ) {
+                throw new IllegalArgumentException( "Invalid projection path: " + aPath );
+            }
+            predicates.put( aStep.substring( attrStart + 1, equals ).trim(), aStep.substring( equals + 2, valueEnd ) );
+            pos = predicateEnd + 1;
+        }
+        if( !predicates.isEmpty() ) {
+            mNamesWithPredicates.add( name );
+        }
+        return new Step( name, predicates );
+    }
+
+    /**
+     * Set the stream to recieve the XML data from.
+     * @param aInputStream The stream to read from, typically the consumer end of
+     *                     a ChunkPipe.
+     */
+    public void setInputStream( InputStream aInputStream ) {
+        mInputStream = aInputStream;
+    }
+
+    /**
+     * Set the stream the filtered XML will be written to.  It will be closed once
+     * the filter is done.
+     * @param aOutputStream The stream to write to, typically the producer end
+     *                      of a ChunkPipe.
+     */
+    public void setOutputStream( OutputStream aOutputStream ) {
+        mOutputStream = aOutputStream;
+    }
+
+    /**
+     * Start the worker thread to filter the data as GCAM will start sending
+     * it soon.
+     */
+    public void start() {
+        mWorkerThread.start();
+    }
+
+    /**
+     * Cancel filtering the data presumably because there was an error.
+     */
+    public void cancel() {
+        // Note the pipes on either side are canceled by the XMLDBDriver.
+        mWorkerThread.interrupt();
+    }
+
+    /**
+     * Notify that no more XML will be sent.  This method will wait until all of
+     * the data has been filtered and sent on before returning.
+     */
+    public void finish() {
+        try {
+            mWorkerThread.join();
+        }
+        catch( InterruptedException interruptError ) {
+            interruptError.printStackTrace();
+        }
+    }
+
+    /**
+     * Filter the XML as it is read.  The run function implements the Runnable
+     * interface so that it may run on a new thread.
+     */
+    public void run() {
+        try {
+            scan( mInputStream );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+        finally {
+            try {
+                mOutputStream.close();
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Copy runs of text straight through unless we are dropping them.
+     */
+    protected void processText( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException {
+        if( mDropDepth == 0 ) {
+            mOutputStream.write( aBuffer, aOffset, aLength );
+        }
+    }
+
+    /**
+     * Decide if the completed tag should be kept and keep track of the elements
+     * which are open.
+     */
+    protected void processTag() throws IOException {
+        if( mDropDepth > 0 ) {
+            // we only need to know when the dropped element ends
+            if( isEndTag() ) {
+                --mDropDepth;
+            }
+            else if( isStartTag() && !isEmptyTag() ) {
+                ++mDropDepth;
+            }
+            return;
+        }
+
+        if( isEndTag() ) {
+            mOpenElements.remove( mOpenElements.size() - 1 );
+        }
+        else if( isStartTag() ) {
+            final String name = tagName();
+            final boolean parseAttributes = mNamesWithPredicates.contains( name ) || mNamesWithPredicates.contains( "*" );
+            final boolean parentIncluded = mIncludes.isEmpty()
+                || ( !mOpenElements.isEmpty() && mOpenElements.get( mOpenElements.size() - 1 ).mIncluded );
+            mOpenElements.add( new OpenElement( name, parseAttributes ? tagAttributes() : null, parentIncluded ) );
+
+            boolean keep;
+            if( matchesAny( mExcludes, false ) ) {
+                keep = false;
+            }
+            else if( parentIncluded ) {
+                keep = true;
+            }
+            else if( matchesAny( mIncludes, false ) ) {
+                // replace with an element which marks everything within as included
+                OpenElement element = mOpenElements.remove( mOpenElements.size() - 1 );
+                mOpenElements.add( new OpenElement( element.mName, element.mAttributes, true ) );
+                keep = true;
+            }
+            else {
+                // keep it only if it is on the way down to an included element
+                keep = matchesAny( mIncludes, true );
+            }
+
+            if( !keep ) {
+                mOpenElements.remove( mOpenElements.size() - 1 );
+                if( !isEmptyTag() ) {
+                    mDropDepth = 1;
+                }
+                return;
+            }
+            if( isEmptyTag() ) {
+                mOpenElements.remove( mOpenElements.size() - 1 );
+            }
+        }
+        mOutputStream.write( mTag, 0, mTagLength );
+    }
+
+    /**
+     * Check if the currently open elements match any of the given paths.
+     * @param aPaths The paths to check.
+     * @param aPrefixOnly If true check if the open elements could lead down to
+     *                    an element matched by a path rather than matching it.
+     * @return True if any of the paths match.
+     */
+    private boolean matchesAny( final List<Path> aPaths, final boolean aPrefixOnly ) {
+        final int numOpen = mOpenElements.size();
+        for( Path path : aPaths ) {
+            final int numSteps = path.mSteps.size();
+            if( aPrefixOnly ? numOpen >= numSteps : ( path.mIsAbsolute ? numOpen != numSteps : numOpen < numSteps ) ) {
+                continue;
+            }
+            // line up the last open element with the last step unless we are
+            // checking a prefix in which case we start from the root
+            final int offset = aPrefixOnly ? 0 : numOpen - numSteps;
+            final int numToCheck = aPrefixOnly ? numOpen : numSteps;
+            boolean matches = true;
+            for( int i = 0; i < numToCheck && matches; ++i ) {
+                matches = path.mSteps.get( i ).matches( mOpenElements.get( offset + i ) );
+            }
+            if( matches ) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -43,6 +43,8 @@ import ModelInterface.ModelGUI2.xmldb.XMLDB;
  * memory only.  Note that GCAM will wait until after the scenario has cleaned
  * up before launching these so we can be sure all data including cost information
  * has been added and memory has been freed.
+ * The results of the queries may optionally be remembered across scenarios
+ * using a BatchQueryExecutor.
  * @author Pralit Patel
  */
 public class RunQueries implements Runnable {
@@ -63,6 +65,18 @@ public class RunQueries implements Runnable {
     private final String mBatchFile;
     private final String mLogFile;
 
+    /**
+     * The executor to run the queries and cache the results, or null
+     * to run the batch file in the ModelInterface directly.
+     */
+    private final BatchQueryExecutor mExecutor;
+
+    /**
+     * The location and context of the database being queried.
+     */
+    private String mDBLocation = null;
+    private Context mContext = null;
+
     /**
      * Constructor which simply stores the batch file location. We will wait until
      * start to load the ModelInterface and begin running.
@@ -70,8 +84,21 @@ public class RunQueries implements Runnable {
      * @param aLogFile Optional file into which to direct ModelInterface's stdout.
      */
     public RunQueries( final String aBatchFile, final String aLogFile ) {
+        this( aBatchFile, aLogFile, 0 );
+    }
+
+    /**
+     * Constructor which allows the query results to be cached.  If there is no
+     * cache the batch file is simply run in the ModelInterface.
+     * @param aBatchFile The ModelInterface batch file to run.
+     * @param aLogFile Optional file into which to direct ModelInterface's stdout.
+     * @param aCacheSize The maximum number of query results to remember across
+     *                   scenarios or zero to not remember any.
+     */
+    public RunQueries( final String aBatchFile, final String aLogFile, final int aCacheSize ) {
         mBatchFile = aBatchFile;
         mLogFile = aLogFile;
+        mExecutor = aCacheSize > 0 ? new BatchQueryExecutor( aBatchFile, aLogFile, aCacheSize ) : null;
     }
 
     /**
@@ -88,6 +115,8 @@ public class RunQueries implements Runnable {
         }
         try {
             XMLDB.openDatabase( aContext );
+            mDBLocation = aDBLocation;
+            mContext = aContext;
             // process the queries on the worker thread
             mWorkerThread.start();
         }
@@ -115,6 +144,15 @@ public class RunQueries implements Runnable {
      * batch mode.
      */
     public void run() {
+        if( mExecutor != null ) {
+            try {
+                mExecutor.run( mDBLocation, mContext );
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+            }
+            return;
+        }
         List<String> args = new ArrayList<String>();
         args.add("-b");
         args.add(mBatchFile);
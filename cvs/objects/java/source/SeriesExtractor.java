@@ -0,0 +1,528 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Picks the year to value series out of the results as they stream into the
+ * database so that they may be written to a series store (see SeriesStoreWriter).
+ * The extractor can either tap a stream of XML, which is scanned at the byte level
+ * (see XMLTagScanner), or sit between an XMLReader and the database as a SAX filter.
+ * In both cases the data is passed on untouched.
+ *
+ * Every element which contains only a number becomes a point.  Its year is taken
+ * from its own year or vintage attribute, or failing that from the closest
+ * enclosing element with a year attribute.  If neither exists it is not part of a
+ * time series and is skipped.  The series it belongs to is identified by:
+ *   region, sector, subsector, technology: the name of the closest enclosing
+ *       element with the corresponding type attribute (see KEY_TYPES), nested
+ *       subsectors are joined with a /
+ *   variable: the elements from below the closest of those down to the point
+ *       joined with a /, each with its identifying attributes in [], for instance
+ *       output[electricity]/physical-output
+ *   unit: the unit attribute of the point
+ *   vintage: if the point has a year of its own, the year of the closest enclosing
+ *       element which has one, for instance the technology vintage
+ * Note GCAM writes the year a technology operates in as the vintage attribute of
+ * its outputs and inputs and the vintage of the technology as its year attribute.
+ */
+public class SeriesExtractor {
+    /**
+     * The dimension of the series keys set by elements of each type.
+     */
+    private static final Map<String, Integer> KEY_TYPES = new HashMap<String, Integer>();
+    static {
+        KEY_TYPES.put( "region", 0 );
+        KEY_TYPES.put( "sector", 1 );
+        KEY_TYPES.put( "resource", 1 );
+        KEY_TYPES.put( "subsector", 2 );
+        KEY_TYPES.put( "subresource", 2 );
+        KEY_TYPES.put( "technology", 3 );
+    }
+
+    /**
+     * The index of the variable and unit in SeriesStoreWriter.DIMENSIONS.
+     */
+    private static final int VARIABLE = 4;
+    private static final int UNIT = 5;
+
+    /**
+     * Attributes which do not identify an element when building the variable.
+     */
+    private static final Set<String> NON_IDENTIFYING_ATTRIBUTES = new HashSet<String>( Arrays.asList(
+        "year", "vintage", "unit", "type", "depth", "fillout" ) );
+
+    /**
+     * An element which is currently open.
+     */
+    private static class OpenElement {
+        /**
+         * The region, sector, subsector, and technology so far.  This is shared
+         * with the parent unless this element changed one of them.
+         */
+        final String[] mKeys;
+
+        /**
+         * The variable path from below the closest key element down to this one.
+         */
+        final String mPath;
+
+        /**
+         * The year or vintage attribute of this element or MISSING_YEAR.
+         */
+        final int mOwnYear;
+
+        /**
+         * The year of this element or the closest enclosing one which has one.
+         */
+        final int mYear;
+
+        /**
+         * The unit attribute of this element or the empty string.
+         */
+        final String mUnit;
+
+        /**
+         * If any elements have been opened within this one.
+         */
+        boolean mHasChildren = false;
+
+        OpenElement( final String[] aKeys, final String aPath, final int aOwnYear, final int aYear,
+                     final String aUnit )
+        {
+            mKeys = aKeys;
+            mPath = aPath;
+            mOwnYear = aOwnYear;
+            mYear = aYear;
+            mUnit = aUnit;
+        }
+    }
+
+    /**
+     * The keys used for elements outside of any key element.
+     */
+    private static final String[] EMPTY_KEYS = { "", "", "", "" };
+
+    /**
+     * The elements which are currently open.
+     */
+    private final List<OpenElement> mOpenElements = new ArrayList<OpenElement>();
+
+    /**
+     * The text of the innermost open element as long as it has no children.
+     */
+    private final StringBuilder mText = new StringBuilder();
+
+    /**
+     * The series collected so far.
+     */
+    private final SeriesStoreWriter mWriter = new SeriesStoreWriter();
+
+    /**
+     * The keys of the point being added, reused to avoid the allocation.
+     */
+    private final String[] mPointKeys = new String[ SeriesStoreWriter.DIMENSIONS.length ];
+
+    /**
+     * If extraction failed in which case the collected series are incomplete.
+     */
+    private volatile boolean mFailed = false;
+
+    /**
+     * Get the writer holding the series collected so far.
+     * @return The series writer.
+     */
+    public SeriesStoreWriter getWriter() {
+        return mWriter;
+    }
+
+    /**
+     * Check if extraction failed part way through.  The error would have already
+     * been printed.
+     * @return True if the collected series are incomplete.
+     */
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Wrap a stream of XML so that it is scanned for series as it is read.
+     * @param aInputStream The stream to wrap.
+     * @return A stream which reads exactly what aInputStream would.
+     */
+    public InputStream tee( final InputStream aInputStream ) {
+        final XMLTagScanner scanner = new XMLTagScanner() {
+            protected void processText( final byte[] aBuffer, final int aOffset, final int aLength ) {
+                if( isCollectingText() ) {
+                    mText.append( new String( aBuffer, aOffset, aLength, UTF8 ) );
+                }
+            }
+
+            protected void processTag() {
+                if( isStartTag() ) {
+                    Map<String, String> attributes = tagAttributes();
+                    for( Map.Entry<String, String> attribute : attributes.entrySet() ) {
+                        if( attribute.getValue().indexOf( '&' ) != -1 ) {
+                            attribute.setValue( unescape( attribute.getValue() ) );
+                        }
+                    }
+                    startElement( tagName(), attributes );
+                    if( isEmptyTag() ) {
+                        endElement();
+                    }
+                }
+                else if( isEndTag() ) {
+                    endElement();
+                }
+            }
+        };
+        return new FilterInputStream( aInputStream ) {
+            private final byte[] mSingleByte = new byte[ 1 ];
+
+            public int read() throws IOException {
+                final int read = in.read();
+                if( read != -1 ) {
+                    mSingleByte[ 0 ] = (byte)read;
+                    scan( mSingleByte, 0, 1 );
+                }
+                return read;
+            }
+
+            public int read( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException {
+                final int read = in.read( aBuffer, aOffset, aLength );
+                if( read > 0 ) {
+                    scan( aBuffer, aOffset, read );
+                }
+                return read;
+            }
+
+            public long skip( final long aLength ) throws IOException {
+                // read rather than skip so that the skipped bytes are scanned too
+                byte[] skipBuffer = new byte[ (int)Math.min( aLength, XMLDBDriver.BUFFER_SIZE ) ];
+                final int read = read( skipBuffer, 0, skipBuffer.length );
+                return Math.max( read, 0 );
+            }
+
+            public boolean markSupported() {
+                return false;
+            }
+
+            private void scan( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException {
+                if( mFailed ) {
+                    return;
+                }
+                try {
+                    scanner.scan( aBuffer, aOffset, aLength );
+                }
+                catch( RuntimeException error ) {
+                    // don't let a problem extracting series stop the data from being stored
+                    error.printStackTrace();
+                    mFailed = true;
+                }
+            }
+        };
+    }
+
+    /**
+     * Wrap an XMLReader so that the SAX events it generates are scanned for series
+     * as they are passed on.
+     * @param aReader The reader to wrap.
+     * @return A reader which generates exactly the events aReader would.
+     */
+    public XMLReader tee( final XMLReader aReader ) {
+        return new XMLFilterImpl( aReader ) {
+            public void startElement( final String aURI, final String aLocalName, final String aQName,
+                                      final Attributes aAttributes ) throws SAXException
+            {
+                if( !mFailed ) {
+                    Map<String, String> attributes = new HashMap<String, String>();
+                    for( int i = 0; i < aAttributes.getLength(); ++i ) {
+                        attributes.put( aAttributes.getQName( i ), aAttributes.getValue( i ) );
+                    }
+                    try {
+                        SeriesExtractor.this.startElement( aQName.isEmpty() ? aLocalName : aQName, attributes );
+                    }
+                    catch( RuntimeException error ) {
+                        error.printStackTrace();
+                        mFailed = true;
+                    }
+                }
+                super.startElement( aURI, aLocalName, aQName, aAttributes );
+            }
+
+            public void characters( final char[] aChars, final int aStart, final int aLength ) throws SAXException {
+                if( !mFailed && isCollectingText() ) {
+                    mText.append( aChars, aStart, aLength );
+                }
+                super.characters( aChars, aStart, aLength );
+            }
+
+            public void endElement( final String aURI, final String aLocalName, final String aQName )
+                throws SAXException
+            {
+                if( !mFailed ) {
+                    try {
+                        SeriesExtractor.this.endElement();
+                    }
+                    catch( RuntimeException error ) {
+                        error.printStackTrace();
+                        mFailed = true;
+                    }
+                }
+                super.endElement( aURI, aLocalName, aQName );
+            }
+        };
+    }
+
+    /**
+     * Check if text should be kept, that is the innermost open element has no
+     * children so far.
+     * @return True if text belongs to a potential point.
+     */
+    private boolean isCollectingText() {
+        return !mOpenElements.isEmpty() && !mOpenElements.get( mOpenElements.size() - 1 ).mHasChildren;
+    }
+
+    /**
+     * Handle the start of an element.
+     * @param aName The element name.
+     * @param aAttributes The attributes of the element by name.
+     */
+    private void startElement( final String aName, final Map<String, String> aAttributes ) {
+        mText.setLength( 0 );
+        final OpenElement parent = mOpenElements.isEmpty() ? null : mOpenElements.get( mOpenElements.size() - 1 );
+        final String type = aAttributes.get( "type" );
+        final Integer keyDim = type != null ? KEY_TYPES.get( type ) : null;
+
+        String[] keys = parent != null ? parent.mKeys : EMPTY_KEYS;
+        String path;
+        if( keyDim != null ) {
+            // a key element starts a new variable path
+            keys = keys.clone();
+            final String name = aAttributes.containsKey( "name" ) ? aAttributes.get( "name" ) : "";
+            // nested subsectors are joined
+            keys[ keyDim ] = keyDim == 2 && parent != null && !parent.mKeys[ keyDim ].isEmpty()
+                && parent.mPath.isEmpty() ? parent.mKeys[ keyDim ] + "/" + name : name;
+            // anything more specific than this no longer applies
+            for( int dim = keyDim + 1; dim < keys.length; ++dim ) {
+                keys[ dim ] = "";
+            }
+            path = "";
+        }
+        else if( parent == null ) {
+            // the document element does not add to the path
+            path = "";
+        }
+        else {
+            path = getPathStep( aName, aAttributes );
+            if( !parent.mPath.isEmpty() ) {
+                path = parent.mPath + "/" + path;
+            }
+        }
+
+        int ownYear = parseYear( aAttributes.get( "year" ) );
+        if( ownYear == SeriesStoreWriter.MISSING_YEAR ) {
+            ownYear = parseYear( aAttributes.get( "vintage" ) );
+        }
+        final int year = ownYear != SeriesStoreWriter.MISSING_YEAR ? ownYear
+            : ( parent != null ? parent.mYear : SeriesStoreWriter.MISSING_YEAR );
+        final String unit = aAttributes.containsKey( "unit" ) ? aAttributes.get( "unit" ) : "";
+
+        if( parent != null ) {
+            parent.mHasChildren = true;
+        }
+        mOpenElements.add( new OpenElement( keys, path, ownYear, year, unit ) );
+    }
+
+    /**
+     * Handle the end of the innermost open element which becomes a point if it
+     * only contained a number and has a year.
+     */
+    private void endElement() {
+        if( mOpenElements.isEmpty() ) {
+            return;
+        }
+        final OpenElement element = mOpenElements.remove( mOpenElements.size() - 1 );
+        if( element.mHasChildren || element.mYear == SeriesStoreWriter.MISSING_YEAR || element.mPath.isEmpty() ) {
+            return;
+        }
+        final String text = mText.toString().trim();
+        mText.setLength( 0 );
+        if( text.isEmpty() || !isNumberStart( text.charAt( 0 ) ) ) {
+            return;
+        }
+        final double value;
+        try {
+            value = Double.parseDouble( text );
+        }
+        catch( NumberFormatException notANumber ) {
+            return;
+        }
+
+        final OpenElement parent = mOpenElements.isEmpty() ? null : mOpenElements.get( mOpenElements.size() - 1 );
+        System.arraycopy( element.mKeys, 0, mPointKeys, 0, element.mKeys.length );
+        mPointKeys[ VARIABLE ] = element.mPath;
+        mPointKeys[ UNIT ] = element.mUnit;
+        final int vintage = element.mOwnYear != SeriesStoreWriter.MISSING_YEAR && parent != null
+            ? parent.mYear : SeriesStoreWriter.MISSING_YEAR;
+        mWriter.addPoint( mPointKeys, vintage, element.mYear, value );
+    }
+
+    /**
+     * Get the step of the variable path for an element which is its name followed
+     * by the values of any identifying attributes in [].  If the only identifying
+     * attribute is the name just its value is given otherwise each is given as
+     * name=value separated by ; in order of the attribute names.
+     * @param aName The element name.
+     * @param aAttributes The attributes of the element by name.
+     * @return The path step.
+     */
+    private static String getPathStep( final String aName, final Map<String, String> aAttributes ) {
+        Map<String, String> identifying = null;
+        for( Map.Entry<String, String> attribute : aAttributes.entrySet() ) {
+            if( !NON_IDENTIFYING_ATTRIBUTES.contains( attribute.getKey() ) ) {
+                if( identifying == null ) {
+                    identifying = new TreeMap<String, String>();
+                }
+                identifying.put( attribute.getKey(), attribute.getValue() );
+            }
+        }
+        if( identifying == null ) {
+            return aName;
+        }
+        if( identifying.size() == 1 && identifying.containsKey( "name" ) ) {
+            return aName + "[" + identifying.get( "name" ) + "]";
+        }
+        StringBuilder step = new StringBuilder( aName ).append( '[' );
+        boolean first = true;
+        for( Map.Entry<String, String> attribute : identifying.entrySet() ) {
+            if( !first ) {
+                step.append( ';' );
+            }
+            step.append( attribute.getKey() ).append( '=' ).append( attribute.getValue() );
+            first = false;
+        }
+        return step.append( ']' ).toString();
+    }
+
+    /**
+     * Parse a year attribute.
+     * @param aYear The attribute value which may be null.
+     * @return The year or MISSING_YEAR if it is not set or not a number.
+     */
+    private static int parseYear( final String aYear ) {
+        if( aYear == null || aYear.isEmpty() ) {
+            return SeriesStoreWriter.MISSING_YEAR;
+        }
+        try {
+            return Integer.parseInt( aYear.trim() );
+        }
+        catch( NumberFormatException notAYear ) {
+            return SeriesStoreWriter.MISSING_YEAR;
+        }
+    }
+
+    /**
+     * A quick check to avoid trying to parse text which clearly is not a number.
+     * @param aChar The first character of the text.
+     * @return True if the text might be a number.
+     */
+    private static boolean isNumberStart( final char aChar ) {
+        return ( aChar >= '0' && aChar <= '9' ) || aChar == '-' || aChar == '+' || aChar == '.'
+            || aChar == 'N' || aChar == 'I';
+    }
+
+    /**
+     * Expand the predefined entities and character references in an attribute
+     * value read directly from the XML.
+     * @param aValue The escaped value.
+     * @return The unescaped value.
+     */
+    private static String unescape( final String aValue ) {
+        StringBuilder unescaped = new StringBuilder( aValue.length() );
+        int pos = 0;
+        while( pos < aValue.length() ) {
+            final int amp = aValue.indexOf( '&', pos );
+            final int semi = amp == -1 ? -1 : aValue.indexOf( ';', amp );
+            if( semi == -1 ) {
+                unescaped.append( aValue, pos, aValue.length() );
+                break;
+            }
+            unescaped.append( aValue, pos, amp );
+            final String entity = aValue.substring( amp + 1, semi );
+            if( entity.equals( "amp" ) ) {
+                unescaped.append( '&' );
+            }
+            else if( entity.equals( "lt" ) ) {
+                unescaped.append( '<' );
+            }
+            else if( entity.equals( "gt" ) ) {
+                unescaped.append( '>' );
+            }
+            else if( entity.equals( "quot" ) ) {
+                unescaped.append( '"' );
+            }
+            else if( entity.equals( "apos" ) ) {
+                unescaped.append( '\'' );
+            }
+            else if( entity.startsWith( "#x" ) || entity.startsWith( "#" ) ) {
+                try {
+                    final boolean isHex = entity.startsWith( "#x" );
+                    unescaped.appendCodePoint( Integer.parseInt( entity.substring( isHex ? 2 : 1 ), isHex ? 16 : 10 ) );
+                }
+                catch( NumberFormatException badReference ) {
+                    unescaped.append( aValue, amp, semi + 1 );
+                }
+            }
+            else {
+                unescaped.append( aValue, amp, semi + 1 );
+            }
+            pos = semi + 1;
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,492 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a series store written by SeriesStoreWriter and answers queries on it.
+ * The series and points are memory mapped rather than loaded so opening a store
+ * only reads the dictionaries and a query only touches the series it selects.
+ *
+ * A query selects series by giving the values allowed for any of the dimensions
+ * (see SeriesStoreWriter.DIMENSIONS, as well as vintage).  A value may use * to
+ * match any number of characters and ? to match any single character, for instance
+ * a variable of *physical-output.  The selected series may be returned as is or
+ * summed by year grouped by some of the dimensions, as most queries do over
+ * technologies or vintages.
+ */
+public class SeriesStore {
+    /**
+     * The name of the vintage dimension which may be used in queries along with
+     * SeriesStoreWriter.DIMENSIONS.
+     */
+    public static final String VINTAGE = "vintage";
+
+    /**
+     * A series returned by a query.
+     */
+    public static class Series {
+        private final String[] mKeys;
+        private final int[] mYears;
+        private final double[] mValues;
+
+        Series( final String[] aKeys, final int[] aYears, final double[] aValues ) {
+            mKeys = aKeys;
+            mYears = aYears;
+            mValues = aValues;
+        }
+
+        /**
+         * Get the value of each of the dimensions the query returned in the
+         * order given by SeriesStore.getColumns.
+         * @return The dimension values.
+         */
+        public String[] getKeys() {
+            return mKeys;
+        }
+
+        /**
+         * Get the years of the points in increasing order.
+         * @return The years.
+         */
+        public int[] getYears() {
+            return mYears;
+        }
+
+        /**
+         * Get the value of each point.
+         * @return The values.
+         */
+        public double[] getValues() {
+            return mValues;
+        }
+    }
+
+    /**
+     * The file the store is mapped from.
+     */
+    private final RandomAccessFile mFile;
+
+    /**
+     * The names of the dimensions.
+     */
+    private final String[] mDimensions;
+
+    /**
+     * The distinct values of each dimension.
+     */
+    private final String[][] mDictionaries;
+
+    /**
+     * The number of series and points in the store.
+     */
+    private final int mNumSeries;
+    private final int mNumPoints;
+
+    /**
+     * The dictionary index of each dimension of each series.
+     */
+    private final IntBuffer[] mSeriesKeys;
+
+    /**
+     * The vintage of each series.
+     */
+    private final IntBuffer mSeriesVintages;
+
+    /**
+     * The index of the first point of each series followed by the number of points.
+     */
+    private final IntBuffer mSeriesFirstPoints;
+
+    /**
+     * The year and value of each point.
+     */
+    private final IntBuffer mPointYears;
+    private final DoubleBuffer mPointValues;
+
+    /**
+     * Get the file the series of a document in a database are stored in.
+     * @param aStoreDir The directory series stores are kept in.
+     * @param aContainerName The name of the database container.
+     * @param aDocName The name of the document.
+     * @return The series store file.
+     */
+    public static File getStoreFile( final File aStoreDir, final String aContainerName, final String aDocName ) {
+        return new File( aStoreDir, ( aContainerName + "_" + aDocName ).replaceAll( "[^A-Za-z0-9_-]", "_" ) + ".series" );
+    }
+
+    /**
+     * Constructor which will open the file and map the series.
+     * @param aFile The file to read.
+     * @throws IOException If the file could not be read or is not a series store.
+     */
+    public SeriesStore( final File aFile ) throws IOException {
+        mFile = new RandomAccessFile( aFile, "r" );
+        try {
+            byte[] magic = new byte[ SeriesStoreWriter.MAGIC.length ];
+            mFile.readFully( magic );
+            if( !Arrays.equals( magic, SeriesStoreWriter.MAGIC ) ) {
+                throw new IOException( aFile + " is not a series store" );
+            }
+            byte[] headerData = new byte[ mFile.readInt() ];
+            mFile.readFully( headerData );
+            DataInputStream header = new DataInputStream( new ByteArrayInputStream( headerData ) );
+            final int numDimensions = header.readInt();
+            mDimensions = new String[ numDimensions ];
+            mDictionaries = new String[ numDimensions ][];
+            for( int dim = 0; dim < numDimensions; ++dim ) {
+                mDimensions[ dim ] = header.readUTF();
+                mDictionaries[ dim ] = new String[ header.readInt() ];
+                for( int i = 0; i < mDictionaries[ dim ].length; ++i ) {
+                    mDictionaries[ dim ][ i ] = header.readUTF();
+                }
+            }
+            mNumSeries = header.readInt();
+            mNumPoints = header.readInt();
+
+            // map each of the columns which follow the header
+            FileChannel channel = mFile.getChannel();
+            long offset = SeriesStoreWriter.MAGIC.length + 4 + headerData.length;
+            final long seriesColumnBytes = 4L * mNumSeries;
+            mSeriesKeys = new IntBuffer[ numDimensions ];
+            for( int dim = 0; dim < numDimensions; ++dim ) {
+                mSeriesKeys[ dim ] = channel.map( FileChannel.MapMode.READ_ONLY, offset, seriesColumnBytes ).asIntBuffer();
+                offset += seriesColumnBytes;
+            }
+            mSeriesVintages = channel.map( FileChannel.MapMode.READ_ONLY, offset, seriesColumnBytes ).asIntBuffer();
+            offset += seriesColumnBytes;
+            mSeriesFirstPoints = channel.map( FileChannel.MapMode.READ_ONLY, offset, seriesColumnBytes + 4 ).asIntBuffer();
+            offset += seriesColumnBytes + 4;
+            mPointYears = channel.map( FileChannel.MapMode.READ_ONLY, offset, 4L * mNumPoints ).asIntBuffer();
+            offset += 4L * mNumPoints;
+            mPointValues = channel.map( FileChannel.MapMode.READ_ONLY, offset, 8L * mNumPoints ).asDoubleBuffer();
+            offset += 8L * mNumPoints;
+            if( offset != mFile.length() ) {
+                throw new IOException( aFile + " is not a complete series store" );
+            }
+        }
+        catch( IOException error ) {
+            mFile.close();
+            throw error;
+        }
+    }
+
+    /**
+     * Get the names of the dimensions which identify a series, not including
+     * the vintage.
+     * @return The dimension names.
+     */
+    public String[] getDimensions() {
+        return mDimensions;
+    }
+
+    /**
+     * Get the distinct values of a dimension.
+     * @param aDimension The name of the dimension.
+     * @return The values of the dimension.
+     */
+    public String[] getDictionary( final String aDimension ) {
+        return mDictionaries[ getDimensionIndex( aDimension ) ];
+    }
+
+    /**
+     * Get the number of series in the store.
+     * @return The number of series.
+     */
+    public int getNumSeries() {
+        return mNumSeries;
+    }
+
+    /**
+     * Get the number of points in the store.
+     * @return The number of points.
+     */
+    public int getNumPoints() {
+        return mNumPoints;
+    }
+
+    /**
+     * Get the dimensions the series returned by a query will have keys for.
+     * @param aGroupBy The dimensions the query groups by or null if it does not.
+     * @return The names of the dimensions of the series keys.
+     */
+    public String[] getColumns( final String[] aGroupBy ) {
+        if( aGroupBy != null ) {
+            return aGroupBy;
+        }
+        String[] columns = Arrays.copyOf( mDimensions, mDimensions.length + 1 );
+        columns[ mDimensions.length ] = VINTAGE;
+        return columns;
+    }
+
+    /**
+     * Select series and optionally sum them by year grouped by some of the dimensions.
+     * @param aFilters The values allowed for each dimension by dimension name.  A
+     *                 dimension which is not given allows any value.
+     * @param aGroupBy The dimensions to group by or null to return each selected
+     *                 series as is.  An empty array sums all of the selected series.
+     * @return The series in the order they were stored, or the order each group
+     *         was first seen.
+     * @throws IllegalArgumentException If an unknown dimension is given.
+     */
+    public List<Series> query( final Map<String, String[]> aFilters, final String[] aGroupBy ) {
+        // find which dictionary values each filtered dimension allows
+        boolean[][] allowed = new boolean[ mDimensions.length ][];
+        List<Pattern> vintagePatterns = null;
+        for( Map.Entry<String, String[]> filter : aFilters.entrySet() ) {
+            List<Pattern> patterns = new ArrayList<Pattern>();
+            for( String value : filter.getValue() ) {
+                patterns.add( globToPattern( value ) );
+            }
+            if( filter.getKey().equals( VINTAGE ) ) {
+                vintagePatterns = patterns;
+                continue;
+            }
+            final int dim = getDimensionIndex( filter.getKey() );
+            allowed[ dim ] = new boolean[ mDictionaries[ dim ].length ];
+            boolean anyAllowed = false;
+            for( int i = 0; i < allowed[ dim ].length; ++i ) {
+                allowed[ dim ][ i ] = matchesAny( patterns, mDictionaries[ dim ][ i ] );
+                anyAllowed |= allowed[ dim ][ i ];
+            }
+            if( !anyAllowed ) {
+                return new ArrayList<Series>();
+            }
+        }
+        Map<Integer, Boolean> allowedVintages = new HashMap<Integer, Boolean>();
+
+        int[] groupDims = null;
+        if( aGroupBy != null ) {
+            groupDims = new int[ aGroupBy.length ];
+            for( int i = 0; i < aGroupBy.length; ++i ) {
+                groupDims[ i ] = aGroupBy[ i ].equals( VINTAGE ) ? -1 : getDimensionIndex( aGroupBy[ i ] );
+            }
+        }
+
+        List<Series> results = new ArrayList<Series>();
+        Map<String, String[]> groupKeys = new LinkedHashMap<String, String[]>();
+        Map<String, TreeMap<Integer, Double>> groupSums = new HashMap<String, TreeMap<Integer, Double>>();
+        for( int series = 0; series < mNumSeries; ++series ) {
+            if( !isSelected( series, allowed, vintagePatterns, allowedVintages ) ) {
+                continue;
+            }
+            final int firstPoint = mSeriesFirstPoints.get( series );
+            final int numPoints = mSeriesFirstPoints.get( series + 1 ) - firstPoint;
+            if( groupDims == null ) {
+                String[] keys = new String[ mDimensions.length + 1 ];
+                for( int dim = 0; dim < mDimensions.length; ++dim ) {
+                    keys[ dim ] = mDictionaries[ dim ][ mSeriesKeys[ dim ].get( series ) ];
+                }
+                keys[ mDimensions.length ] = formatVintage( mSeriesVintages.get( series ) );
+                int[] years = new int[ numPoints ];
+                double[] values = new double[ numPoints ];
+                for( int i = 0; i < numPoints; ++i ) {
+                    years[ i ] = mPointYears.get( firstPoint + i );
+                    values[ i ] = mPointValues.get( firstPoint + i );
+                }
+                results.add( new Series( keys, years, values ) );
+                continue;
+            }
+
+            String[] keys = new String[ groupDims.length ];
+            StringBuilder groupKey = new StringBuilder();
+            for( int i = 0; i < groupDims.length; ++i ) {
+                keys[ i ] = groupDims[ i ] == -1 ? formatVintage( mSeriesVintages.get( series ) )
+                    : mDictionaries[ groupDims[ i ] ][ mSeriesKeys[ groupDims[ i ] ].get( series ) ];
+                groupKey.append( keys[ i ] ).append( '\0' );
+            }
+            final String groupKeyStr = groupKey.toString();
+            TreeMap<Integer, Double> sums = groupSums.get( groupKeyStr );
+            if( sums == null ) {
+                sums = new TreeMap<Integer, Double>();
+                groupSums.put( groupKeyStr, sums );
+                groupKeys.put( groupKeyStr, keys );
+            }
+            for( int i = 0; i < numPoints; ++i ) {
+                final int year = mPointYears.get( firstPoint + i );
+                final Double sum = sums.get( year );
+                sums.put( year, ( sum == null ? 0.0 : sum ) + mPointValues.get( firstPoint + i ) );
+            }
+        }
+
+        for( Map.Entry<String, String[]> group : groupKeys.entrySet() ) {
+            TreeMap<Integer, Double> sums = groupSums.get( group.getKey() );
+            int[] years = new int[ sums.size() ];
+            double[] values = new double[ sums.size() ];
+            int i = 0;
+            for( Map.Entry<Integer, Double> sum : sums.entrySet() ) {
+                years[ i ] = sum.getKey();
+                values[ i ] = sum.getValue();
+                ++i;
+            }
+            results.add( new Series( group.getValue(), years, values ) );
+        }
+        return results;
+    }
+
+    /**
+     * Write the results of a query as CSV with a row for each point.
+     * @param aOut The stream to write to.
+     * @param aColumns The dimensions of the series keys, see getColumns.
+     * @param aResults The series returned by the query.
+     */
+    public static void writeCSV( final PrintStream aOut, final String[] aColumns, final List<Series> aResults ) {
+        StringBuilder line = new StringBuilder();
+        for( String column : aColumns ) {
+            line.append( ColumnarReader.quoteCSV( column ) ).append( ',' );
+        }
+        aOut.println( line.append( "year,value" ) );
+        for( Series series : aResults ) {
+            line.setLength( 0 );
+            for( String key : series.getKeys() ) {
+                line.append( ColumnarReader.quoteCSV( key ) ).append( ',' );
+            }
+            final int keysLength = line.length();
+            for( int i = 0; i < series.getYears().length; ++i ) {
+                line.setLength( keysLength );
+                line.append( series.getYears()[ i ] ).append( ',' ).append( series.getValues()[ i ] );
+                aOut.println( line );
+            }
+        }
+    }
+
+    /**
+     * Close the file.  Note the mapping will remain until it is garbage collected.
+     */
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Check if a series is selected by the filters.
+     * @param aSeries The index of the series.
+     * @param aAllowed The values allowed by each dimension or null if any are.
+     * @param aVintagePatterns The vintages allowed or null if any are.
+     * @param aAllowedVintages The vintages which have been checked already.
+     * @return True if the series is selected.
+     */
+    private boolean isSelected( final int aSeries, final boolean[][] aAllowed, final List<Pattern> aVintagePatterns,
+                                final Map<Integer, Boolean> aAllowedVintages )
+    {
+        for( int dim = 0; dim < aAllowed.length; ++dim ) {
+            if( aAllowed[ dim ] != null && !aAllowed[ dim ][ mSeriesKeys[ dim ].get( aSeries ) ] ) {
+                return false;
+            }
+        }
+        if( aVintagePatterns != null ) {
+            final int vintage = mSeriesVintages.get( aSeries );
+            Boolean vintageAllowed = aAllowedVintages.get( vintage );
+            if( vintageAllowed == null ) {
+                vintageAllowed = matchesAny( aVintagePatterns, formatVintage( vintage ) );
+                aAllowedVintages.put( vintage, vintageAllowed );
+            }
+            return vintageAllowed;
+        }
+        return true;
+    }
+
+    /**
+     * Get the index of a dimension by name.
+     * @param aDimension The name of the dimension.
+     * @return The index of the dimension.
+     * @throws IllegalArgumentException If there is no such dimension.
+     */
+    private int getDimensionIndex( final String aDimension ) {
+        for( int dim = 0; dim < mDimensions.length; ++dim ) {
+            if( mDimensions[ dim ].equals( aDimension ) ) {
+                return dim;
+            }
+        }
+        throw new IllegalArgumentException( "Unknown series dimension: " + aDimension );
+    }
+
+    /**
+     * Format a vintage as it is matched and returned.
+     * @param aVintage The vintage.
+     * @return The vintage as a string, empty if it is missing.
+     */
+    private static String formatVintage( final int aVintage ) {
+        return aVintage == SeriesStoreWriter.MISSING_YEAR ? "" : Integer.toString( aVintage );
+    }
+
+    /**
+     * Convert a value which may use the * and ? wildcards into a pattern.
+     * @param aGlob The value to convert.
+     * @return The pattern matching the value.
+     */
+    private static Pattern globToPattern( final String aGlob ) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for( int i = 0; i < aGlob.length(); ++i ) {
+            final char currChar = aGlob.charAt( i );
+            if( currChar == '*' || currChar == '?' ) {
+                if( i > literalStart ) {
+                    regex.append( Pattern.quote( aGlob.substring( literalStart, i ) ) );
+                }
+                regex.append( currChar == '*' ? ".*" : "." );
+                literalStart = i + 1;
+            }
+        }
+        if( aGlob.length() > literalStart ) {
+            regex.append( Pattern.quote( aGlob.substring( literalStart ) ) );
+        }
+        return Pattern.compile( regex.toString(), Pattern.DOTALL );
+    }
+
+    /**
+     * Check if a value matches any of the given patterns.
+     */
+    private static boolean matchesAny( final List<Pattern> aPatterns, final String aValue ) {
+        for( Pattern pattern : aPatterns ) {
+            if( pattern.matcher( aValue ).matches() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
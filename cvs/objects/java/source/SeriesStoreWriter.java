@@ -0,0 +1,287 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects year to value series as they are extracted from the results (see
+ * SeriesExtractor) and writes them to a series store file which SeriesStore can
+ * memory map and query without going through the XML database.  Each series is
+ * identified by a value for each of the DIMENSIONS and a vintage.  The layout of
+ * the file is (all numbers big endian):
+ *
+ *   MAGIC
+ *   int header length
+ *   header: int dimension count, then for each dimension: UTF name,
+ *           int dictionary size, then each UTF value
+ *           int series count, int point count
+ *   for each dimension: int dictionary index of the value of each series
+ *   int vintage of each series, MISSING_YEAR if it has none
+ *   int index of the first point of each series followed by the point count
+ *   int year of each point
+ *   double value of each point
+ *
+ * The points of each series are sorted by year.  Everything after the header is
+ * a fixed width primitive column so that it can be mapped and read in place.
+ */
+public class SeriesStoreWriter {
+    /**
+     * The bytes which start every file.
+     */
+    public static final byte[] MAGIC = { 'G', 'C', 'A', 'M', 'T', 'S', 'S', 1 };
+
+    /**
+     * The dimensions which identify a series, other than the vintage.
+     */
+    public static final String[] DIMENSIONS = { "region", "sector", "subsector", "technology", "variable", "unit" };
+
+    /**
+     * The value used to indicate a series has no vintage.
+     */
+    public static final int MISSING_YEAR = Integer.MIN_VALUE;
+
+    /**
+     * The points of a single series as they are collected.
+     */
+    private static class Series {
+        final String[] mKeys;
+        final int mVintage;
+        int[] mYears = new int[ 8 ];
+        double[] mValues = new double[ 8 ];
+        int mSize = 0;
+
+        Series( final String[] aKeys, final int aVintage ) {
+            mKeys = aKeys;
+            mVintage = aVintage;
+        }
+
+        void add( final int aYear, final double aValue ) {
+            if( mSize == mYears.length ) {
+                int[] newYears = new int[ mSize * 2 ];
+                double[] newValues = new double[ mSize * 2 ];
+                System.arraycopy( mYears, 0, newYears, 0, mSize );
+                System.arraycopy( mValues, 0, newValues, 0, mSize );
+                mYears = newYears;
+                mValues = newValues;
+            }
+            mYears[ mSize ] = aYear;
+            mValues[ mSize ] = aValue;
+            ++mSize;
+        }
+
+        /**
+         * Sort the points by year.  They almost always arrive in order already
+         * so an insertion sort is all we need.
+         */
+        void sortByYear() {
+            for( int i = 1; i < mSize; ++i ) {
+                final int year = mYears[ i ];
+                final double value = mValues[ i ];
+                int j = i - 1;
+                while( j >= 0 && mYears[ j ] > year ) {
+                    mYears[ j + 1 ] = mYears[ j ];
+                    mValues[ j + 1 ] = mValues[ j ];
+                    --j;
+                }
+                mYears[ j + 1 ] = year;
+                mValues[ j + 1 ] = value;
+            }
+        }
+    }
+
+    /**
+     * The series collected so far in the order they were first seen keyed by
+     * their dimension values and vintage.
+     */
+    private final Map<String, Series> mSeries = new LinkedHashMap<String, Series>();
+
+    /**
+     * The total number of points collected.
+     */
+    private long mNumPoints = 0;
+
+    /**
+     * Add a point to the series identified by the given keys and vintage.
+     * @param aKeys The value of each of the DIMENSIONS.
+     * @param aVintage The vintage of the series or MISSING_YEAR.
+     * @param aYear The year of the point.
+     * @param aValue The value of the point.
+     */
+    public void addPoint( final String[] aKeys, final int aVintage, final int aYear, final double aValue ) {
+        StringBuilder seriesKey = new StringBuilder();
+        for( String key : aKeys ) {
+            seriesKey.append( key ).append( '\0' );
+        }
+        seriesKey.append( aVintage );
+        final String seriesKeyStr = seriesKey.toString();
+        Series series = mSeries.get( seriesKeyStr );
+        if( series == null ) {
+            series = new Series( aKeys.clone(), aVintage );
+            mSeries.put( seriesKeyStr, series );
+        }
+        series.add( aYear, aValue );
+        ++mNumPoints;
+    }
+
+    /**
+     * Add all of the points collected by another writer, such as one which was
+     * collecting from a region shard.
+     * @param aOther The writer to add the points of.
+     */
+    public void addAll( final SeriesStoreWriter aOther ) {
+        for( Series series : aOther.mSeries.values() ) {
+            for( int i = 0; i < series.mSize; ++i ) {
+                addPoint( series.mKeys, series.mVintage, series.mYears[ i ], series.mValues[ i ] );
+            }
+        }
+    }
+
+    /**
+     * Get the number of series collected so far.
+     * @return The number of series.
+     */
+    public int getNumSeries() {
+        return mSeries.size();
+    }
+
+    /**
+     * Get the number of points collected so far.
+     * @return The number of points.
+     */
+    public long getNumPoints() {
+        return mNumPoints;
+    }
+
+    /**
+     * Write the collected series to the given file.  The file is written to a
+     * temporary file first and then moved into place so that readers never see a
+     * partially written store.
+     * @param aFile The file to write to.
+     * @throws IOException If the file could not be written.
+     */
+    public void write( final File aFile ) throws IOException {
+        // The years and values are each mapped as a single buffer when read.
+        if( mNumPoints > Integer.MAX_VALUE / 8 ) {
+            throw new IOException( "Too many points (" + mNumPoints + ") to write to a series store" );
+        }
+
+        // Dictionary encode each of the dimensions.
+        List<Map<String, Integer>> dictionaryIndices = new ArrayList<Map<String, Integer>>();
+        List<List<String>> dictionaries = new ArrayList<List<String>>();
+        for( int dim = 0; dim < DIMENSIONS.length; ++dim ) {
+            dictionaryIndices.add( new HashMap<String, Integer>() );
+            dictionaries.add( new ArrayList<String>() );
+        }
+        for( Series series : mSeries.values() ) {
+            series.sortByYear();
+            for( int dim = 0; dim < DIMENSIONS.length; ++dim ) {
+                if( !dictionaryIndices.get( dim ).containsKey( series.mKeys[ dim ] ) ) {
+                    dictionaryIndices.get( dim ).put( series.mKeys[ dim ], dictionaries.get( dim ).size() );
+                    dictionaries.get( dim ).add( series.mKeys[ dim ] );
+                }
+            }
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream( headerBytes );
+        header.writeInt( DIMENSIONS.length );
+        for( int dim = 0; dim < DIMENSIONS.length; ++dim ) {
+            header.writeUTF( DIMENSIONS[ dim ] );
+            header.writeInt( dictionaries.get( dim ).size() );
+            for( String value : dictionaries.get( dim ) ) {
+                header.writeUTF( value );
+            }
+        }
+        header.writeInt( mSeries.size() );
+        header.writeInt( (int)mNumPoints );
+        header.close();
+
+        File tempFile = new File( aFile.getPath() + ".tmp" );
+        File parentDir = tempFile.getAbsoluteFile().getParentFile();
+        if( !parentDir.isDirectory() && !parentDir.mkdirs() ) {
+            throw new IOException( "Could not create the series store directory " + parentDir );
+        }
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                    new FileOutputStream( tempFile ), XMLDBDriver.BUFFER_SIZE ) );
+        try {
+            out.write( MAGIC );
+            out.writeInt( headerBytes.size() );
+            headerBytes.writeTo( out );
+            for( int dim = 0; dim < DIMENSIONS.length; ++dim ) {
+                for( Series series : mSeries.values() ) {
+                    out.writeInt( dictionaryIndices.get( dim ).get( series.mKeys[ dim ] ) );
+                }
+            }
+            for( Series series : mSeries.values() ) {
+                out.writeInt( series.mVintage );
+            }
+            int firstPoint = 0;
+            for( Series series : mSeries.values() ) {
+                out.writeInt( firstPoint );
+                firstPoint += series.mSize;
+            }
+            out.writeInt( firstPoint );
+            for( Series series : mSeries.values() ) {
+                for( int i = 0; i < series.mSize; ++i ) {
+                    out.writeInt( series.mYears[ i ] );
+                }
+            }
+            for( Series series : mSeries.values() ) {
+                for( int i = 0; i < series.mSize; ++i ) {
+                    out.writeDouble( series.mValues[ i ] );
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        // replace any previous store for the same document
+        if( aFile.exists() && !aFile.delete() ) {
+            tempFile.delete();
+            throw new IOException( "Could not replace the series store " + aFile + ", it may be open" );
+        }
+        if( !tempFile.renameTo( aFile ) ) {
+            throw new IOException( "Could not move the series store into place at " + aFile );
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+
+/**
+ * A class that splits the scenario XML as it is streamed through into a shard
+ * per region so that each region may be loaded into the database in parallel.
+ * Each /scenario/world/region element is sent to it's own stream, obtained from
+ * a ShardTarget, and is replaced in the remaining "skeleton" document with a
+ * placeholder element which records the shard id.  Once everything has been
+ * stored the placeholders can be replaced with the shards to reconstruct the
+ * original document.
+ * Note the XML is scanned at the byte level and is never fully parsed which we
+ * can get away with since we only need to keep track of tags and the nesting
+ * depth, see XMLTagScanner.
+ */
+public class ShardByRegion extends XMLTagScanner implements Runnable {
+    /**
+     * The interface to get a stream to write a shard to.
+     */
+    public interface ShardTarget {
+        /**
+         * Open a new shard to write to.  The returned stream will be closed once
+         * the full shard has been written.
+         * @param aShardID The id of the shard which is also recorded in it's placeholder.
+         * @return A stream to write the shard to.
+         */
+        OutputStream openShard( final int aShardID ) throws IOException;
+    }
+
+    /**
+     * The name of the element left in the skeleton document in place of a shard.
+     * It has a single attribute id with the shard id.
+     */
+    public static final String PLACEHOLDER_ELEMENT = "xmldb-shard";
+
+    /**
+     * The depth at which the region elements will be found: scenario/world/region.
+     */
+    private static final int REGION_DEPTH = 2;
+
+    /**
+     * The names of the elements that must be open above a region element for
+     * it to be split into a shard.
+     */
+    private static final String[] REGION_PARENTS = { "scenario", "world" };
+
+    /**
+     * The name of the element which will be split into shards.
+     */
+    private static final String REGION_ELEMENT = "region";
+
+    /**
+     * The thread on which splitting will take place.
+     */
+    private final Thread mWorkerThread = new Thread( this );
+
+    /**
+     * Where to send the shards.
+     */
+    private final ShardTarget mShardTarget;
+
+    /**
+     * The stream to read the full XML document from.
+     */
+    private InputStream mInputStream = null;
+
+    /**
+     * The stream to write the skeleton document to.
+     */
+    private OutputStream mSkeletonStream = null;
+
+    /**
+     * The stream for the shard currently being written or null if we are
+     * currently not in a shard.
+     */
+    private OutputStream mShardStream = null;
+
+    /**
+     * The number of shards that have been created so far, also the id of
+     * the next shard.
+     */
+    private int mNumShards = 0;
+
+    /**
+     * The current element nesting depth.
+     */
+    private int mDepth = 0;
+
+    /**
+     * The names of the currently open elements above the region depth.
+     */
+    private final String[] mOpenNames = new String[ REGION_DEPTH ];
+
+    /**
+     * Constructor.
+     * @param aShardTarget Where to send the region shards.
+     */
+    public ShardByRegion( final ShardTarget aShardTarget ) {
+        mShardTarget = aShardTarget;
+    }
+
+    /**
+     * Set the stream to read the full XML document from.
+     * @param aInputStream The stream to read from.
+     */
+    public void setInputStream( InputStream aInputStream ) {
+        mInputStream = aInputStream;
+    }
+
+    /**
+     * Set the stream to write the skeleton document, with the regions replaced
+     * by placeholders, to.  It will be closed once splitting is done.
+     * @param aOutputStream The stream to write to.
+     */
+    public void setOutputStream( OutputStream aOutputStream ) {
+        mSkeletonStream = aOutputStream;
+    }
+
+    /**
+     * Start the worker thread to split the data as GCAM will start sending
+     * it soon.
+     */
+    public void start() {
+        mWorkerThread.start();
+    }
+
+    /**
+     * Cancel splitting the data presumably because there was an error.
+     */
+    public void cancel() {
+        mWorkerThread.interrupt();
+    }
+
+    /**
+     * Notify that no more XML will be sent.  This method will wait until all of
+     * the data has been split and sent on before returning.
+     */
+    public void finish() {
+        try {
+            mWorkerThread.join();
+        }
+        catch( InterruptedException interruptError ) {
+            interruptError.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the number of shards that were created.  Only valid after finish.
+     * @return The number of shards.
+     */
+    public int getNumShards() {
+        return mNumShards;
+    }
+
+    /**
+     * Split the XML as it is read.  The run function implements the Runnable
+     * interface so that it may run on a new thread.
+     */
+    public void run() {
+        try {
+            scan( mInputStream );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+        finally {
+            try {
+                if( mShardStream != null ) {
+                    mShardStream.close();
+                }
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+            try {
+                mSkeletonStream.close();
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Copy runs of text straight through to the current output.
+     */
+    protected void processText( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException {
+        currentOutput().write( aBuffer, aOffset, aLength );
+    }
+
+    /**
+     * Get the stream the current data should be sent to.
+     * @return The shard stream if we are in a shard otherwise the skeleton stream.
+     */
+    private OutputStream currentOutput() {
+        return mShardStream != null ? mShardStream : mSkeletonStream;
+    }
+
+    /**
+     * Check if the elements currently open are the ones that are expected to
+     * contain a region.
+     * @return True if the next element at the region depth should be a shard.
+     */
+    private boolean inRegionParent() {
+        if( mDepth != REGION_DEPTH ) {
+            return false;
+        }
+        for( int i = 0; i < REGION_DEPTH; ++i ) {
+            if( !REGION_PARENTS[ i ].equals( mOpenNames[ i ] ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decide where the completed tag should be written and keep track of
+     * the element depth.
+     */
+    protected void processTag() throws IOException {
+        if( isEndTag() ) {
+            // an end tag
+            --mDepth;
+            currentOutput().write( mTag, 0, mTagLength );
+            if( mShardStream != null && mDepth == REGION_DEPTH ) {
+                // we have closed the region so the shard is complete
+                mShardStream.close();
+                mShardStream = null;
+            }
+        }
+        else if( !isStartTag() ) {
+            // comments, CDATA, and processing instructions do not affect the structure
+            currentOutput().write( mTag, 0, mTagLength );
+        }
+        else {
+            // a start tag
+            final boolean isEmpty = isEmptyTag();
+            final String name = tagName();
+            if( mShardStream == null && inRegionParent() && name.equals( REGION_ELEMENT ) ) {
+                final int shardID = mNumShards++;
+                final String placeholder = "<" + PLACEHOLDER_ELEMENT + " id=\"" + shardID + "\"/>";
+                mSkeletonStream.write( placeholder.getBytes( UTF8 ) );
+                mShardStream = mShardTarget.openShard( shardID );
+                mShardStream.write( mTag, 0, mTagLength );
+                if( isEmpty ) {
+                    mShardStream.close();
+                    mShardStream = null;
+                }
+                else {
+                    ++mDepth;
+                }
+            }
+            else {
+                currentOutput().write( mTag, 0, mTagLength );
+                if( mDepth < mOpenNames.length ) {
+                    mOpenNames[ mDepth ] = name;
+                }
+                if( !isEmpty ) {
+                    ++mDepth;
+                }
+            }
+        }
+    }
+}
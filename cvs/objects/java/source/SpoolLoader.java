@@ -0,0 +1,226 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileFilter;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads spools written by SpoolWriter into the databases the results were
+ * destined for.  Each spool is loaded by mimicking the sequence of method calls
+ * GCAM would make on an XMLDBDriver so that any configured filter or batch
+ * queries are run at load time.  Spools destined for different databases may
+ * be loaded in parallel, however spools for the same database are always loaded
+ * one at a time as BaseX will only write to a database from one place at a time.
+ * Once a spool has been loaded without error it is deleted.
+ */
+public class SpoolLoader {
+    /**
+     * The configuration to use for each XMLDBDriver.
+     */
+    private final Properties mConfig;
+
+    /**
+     * Constructor.
+     * @param aConfig The XMLDBDriver configuration to load the spools with.  Any
+     *                spooling options will be ignored.
+     */
+    public SpoolLoader( final Properties aConfig ) {
+        mConfig = new Properties();
+        mConfig.putAll( aConfig );
+        // we would just be spooling the results again
+        mConfig.remove( "spool-dir" );
+    }
+
+    /**
+     * Find all of the complete spools at the given path.
+     * @param aPath Either a directory containing spools or a single .spool file.
+     * @return The spool files found.
+     */
+    public static List<File> findSpools( final String aPath ) {
+        File path = new File( aPath );
+        List<File> spools = new ArrayList<File>();
+        if( path.isDirectory() ) {
+            File[] found = path.listFiles( new FileFilter() {
+                public boolean accept( File aFile ) {
+                    return aFile.isFile() && aFile.getName().endsWith( SpoolWriter.SPOOL_EXTENSION );
+                }
+            } );
+            if( found != null ) {
+                for( File spool : found ) {
+                    spools.add( spool );
+                }
+            }
+        }
+        else {
+            spools.add( path );
+        }
+        return spools;
+    }
+
+    /**
+     * Load all of the given spools.
+     * @param aSpools The .spool files to load.
+     * @param aNumWorkers The maximum number of databases to load into at once.
+     * @return True if all spools were loaded without error.
+     */
+    public boolean loadAll( final List<File> aSpools, final int aNumWorkers ) {
+        // group the spools by the database they are destined for
+        Map<String, List<Properties>> spoolsByDB = new LinkedHashMap<String, List<Properties>>();
+        boolean noError = true;
+        for( File spool : aSpools ) {
+            try {
+                Properties spoolInfo = readSpoolInfo( spool );
+                String dbPath = spoolInfo.getProperty( "db-path" );
+                List<Properties> dbSpools = spoolsByDB.get( dbPath );
+                if( dbSpools == null ) {
+                    dbSpools = new ArrayList<Properties>();
+                    spoolsByDB.put( dbPath, dbSpools );
+                }
+                dbSpools.add( spoolInfo );
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+                noError = false;
+            }
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool( Math.max( 1, aNumWorkers ) );
+        List<Future<Boolean>> loads = new ArrayList<Future<Boolean>>();
+        for( final List<Properties> dbSpools : spoolsByDB.values() ) {
+            loads.add( workers.submit( new Callable<Boolean>() {
+                public Boolean call() {
+                    boolean dbNoError = true;
+                    for( Properties spoolInfo : dbSpools ) {
+                        dbNoError &= load( spoolInfo );
+                    }
+                    return dbNoError;
+                }
+            } ) );
+        }
+        for( Future<Boolean> load : loads ) {
+            try {
+                noError &= load.get();
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+                noError = false;
+            }
+        }
+        workers.shutdown();
+        return noError;
+    }
+
+    /**
+     * Read the description of a spool.  The location of the spooled XML will be
+     * resolved to the spool's directory and stored as "xml-file".
+     * @param aSpool The .spool file.
+     * @return The properties describing the spool.
+     */
+    private static Properties readSpoolInfo( final File aSpool ) throws IOException {
+        Properties spoolInfo = new Properties();
+        InputStream in = new FileInputStream( aSpool );
+        try {
+            spoolInfo.loadFromXML( in );
+        }
+        finally {
+            in.close();
+        }
+        if( spoolInfo.getProperty( "db-path" ) == null || spoolInfo.getProperty( "doc-name" ) == null
+            || spoolInfo.getProperty( "xml" ) == null )
+        {
+            throw new IOException( "Invalid spool: " + aSpool );
+        }
+        spoolInfo.setProperty( "spool-file", aSpool.getPath() );
+        spoolInfo.setProperty( "xml-file", new File( aSpool.getParentFile(), spoolInfo.getProperty( "xml" ) ).getPath() );
+        return spoolInfo;
+    }
+
+    /**
+     * Load a single spool and delete it if successful.
+     * @param aSpoolInfo The description of the spool.
+     * @return True if the spool was loaded without error.
+     */
+    private boolean load( final Properties aSpoolInfo ) {
+        final String docName = aSpoolInfo.getProperty( "doc-name" );
+        final File xmlFile = new File( aSpoolInfo.getProperty( "xml-file" ) );
+        System.out.println( "Loading " + docName + " from " + xmlFile );
+
+        boolean hadError = false;
+        XMLDBDriver driver = new XMLDBDriver( aSpoolInfo.getProperty( "db-path" ), docName, mConfig );
+        try {
+            InputStream xmlIn = new GZIPInputStream( new FileInputStream( xmlFile ), XMLDBDriver.BUFFER_SIZE );
+            try {
+                byte[] buffer = new byte[ XMLDBDriver.BUFFER_SIZE ];
+                int read;
+                while( !hadError && ( read = xmlIn.read( buffer ) ) != -1 ) {
+                    hadError = driver.receiveDataFromGCAM( buffer, read );
+                }
+            }
+            finally {
+                xmlIn.close();
+            }
+        }
+        catch( IOException error ) {
+            error.printStackTrace();
+            hadError = true;
+        }
+        // wait for the XML to be finished processing and stored
+        driver.finish();
+        // check before closing as the DB must still be open to verify the document
+        final boolean stored = driver.isStored();
+        // run any potential queries and close the DB
+        driver.finalizeAndClose();
+
+        // only discard the spool once the data is known to be safely in the DB
+        if( !hadError && stored ) {
+            xmlFile.delete();
+            new File( aSpoolInfo.getProperty( "spool-file" ) ).delete();
+        }
+        else {
+            System.out.println( "Keeping spooled data "+xmlFile+" as it could not be verified as stored" );
+        }
+        return !hadError && stored;
+    }
+}
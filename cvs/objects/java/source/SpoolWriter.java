@@ -0,0 +1,229 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A class that can stage GCAM results in a compressed spool file rather than
+ * storing them in the database directly.  Writing to the spool runs at disk
+ * speed so GCAM does not have to wait on the database, which may be busy or
+ * open by another user.  The spool can then be loaded into the database later
+ * with SpoolLoader, for instance by running XMLDBDriver --spool.
+ *
+ * Each spool consists of the compressed XML, NAME.xml.gz, and a small properties
+ * file, NAME.spool, which records the database and document name the results
+ * were destined for.  The properties file is only written once the XML is
+ * complete so it also serves to mark that the spool is ready to be loaded.
+ */
+public class SpoolWriter implements Runnable {
+    /**
+     * The file extension of the spooled XML.
+     */
+    public static final String DATA_EXTENSION = ".xml.gz";
+
+    /**
+     * The file extension of the properties which describe a spool.
+     */
+    public static final String SPOOL_EXTENSION = ".spool";
+
+    /**
+     * The file extension used for the XML while it is being written.
+     */
+    private static final String PARTIAL_EXTENSION = DATA_EXTENSION + ".part";
+
+    /**
+     * The thread on which writing to the spool will take place.
+     */
+    private final Thread mWorkerThread = new Thread( this );
+
+    /**
+     * The stream that will recieve data from GCAM to spool.
+     */
+    private InputStream mSpoolStream = null;
+
+    /**
+     * The file the XML is written to until it is complete.
+     */
+    private final File mPartialFile;
+
+    /**
+     * The description of this spool which will be written once it is complete.
+     */
+    private final Properties mSpoolInfo = new Properties();
+
+    /**
+     * A flag if spooling succeeded.
+     */
+    private volatile boolean mSucceeded = false;
+
+    /**
+     * Constructor which will create a new uniquely named spool in the given
+     * directory.
+     * @param aSpoolDir The directory to write the spool to.
+     * @param aDBLocation The location of the database the results are destined for.
+     * @param aDocName The name of the document the results are destined for.
+     */
+    public SpoolWriter( final String aSpoolDir, final String aDBLocation, final String aDocName ) throws IOException {
+        File spoolDir = new File( aSpoolDir );
+        spoolDir.mkdirs();
+        // The file names are made unique in case several GCAM runs are spooling to
+        // the same directory, perhaps from different nodes on a shared file system.
+        mPartialFile = File.createTempFile( aDocName.replaceAll( "[^A-Za-z0-9_-]", "_" ) + "-",
+                PARTIAL_EXTENSION, spoolDir );
+        // Note the database location is made absolute as the spool may be loaded
+        // from a different working directory.
+        mSpoolInfo.setProperty( "db-path", new File( aDBLocation ).getAbsolutePath() );
+        mSpoolInfo.setProperty( "doc-name", aDocName );
+        mSpoolInfo.setProperty( "xml", getSpoolName() + DATA_EXTENSION );
+    }
+
+    /**
+     * Get the unique name of this spool, without any extension.
+     * @return The name of the spool.
+     */
+    private String getSpoolName() {
+        String partialName = mPartialFile.getName();
+        return partialName.substring( 0, partialName.length() - PARTIAL_EXTENSION.length() );
+    }
+
+    /**
+     * Set the stream to recieve the XML data from GCAM.
+     * @param aInputStream The stream to read from, typically the consumer end of
+     *                     a ChunkPipe.
+     */
+    public void setInputStream( InputStream aInputStream ) {
+        mSpoolStream = aInputStream;
+    }
+
+    /**
+     * Start the worker thread to spool the data as GCAM will start sending
+     * it soon.
+     */
+    public void start() {
+        mWorkerThread.start();
+    }
+
+    /**
+     * Cancel writing the spool presumably because there was an error.  The
+     * incomplete spool will be removed.
+     */
+    public void cancel() {
+        // Set the flag that the thread should stop.  Note the pipe is canceled
+        // by the XMLDBDriver.
+        mWorkerThread.interrupt();
+    }
+
+    /**
+     * Notify that no more XML from GCAM will be sent.  This method will wait
+     * until all of the data has been written to the spool before returning.
+     */
+    public void finish() {
+        try {
+            // This will block until the spool is written
+            mWorkerThread.join();
+        }
+        catch( InterruptedException interruptError ) {
+            interruptError.printStackTrace();
+        }
+        if( mSucceeded ) {
+            System.out.println( "Results spooled to " + new File( mPartialFile.getParentFile(), getSpoolName() + SPOOL_EXTENSION ) );
+        }
+    }
+
+    /**
+     * Compresses the XML into the spool as it becomes available from GCAM then
+     * marks the spool as complete.  The run function implements the Runnable interface
+     * so that it may run on a new thread.  We must do this off of the main
+     * thread to avoid deadlock.
+     */
+    public void run() {
+        try {
+            OutputStream spoolOut = new BufferedOutputStream( new GZIPOutputStream( new FileOutputStream( mPartialFile ),
+                    XMLDBDriver.BUFFER_SIZE ) {
+                {
+                    // We are after throughput rather than the smallest file, GCAM
+                    // output compresses well even at this level.
+                    def.setLevel( Deflater.BEST_SPEED );
+                }
+            }, XMLDBDriver.BUFFER_SIZE );
+            try {
+                byte[] buffer = new byte[ XMLDBDriver.BUFFER_SIZE ];
+                int read;
+                while( ( read = mSpoolStream.read( buffer ) ) != -1 ) {
+                    spoolOut.write( buffer, 0, read );
+                }
+            }
+            finally {
+                spoolOut.close();
+            }
+
+            File spoolDir = mPartialFile.getParentFile();
+            if( !mPartialFile.renameTo( new File( spoolDir, getSpoolName() + DATA_EXTENSION ) ) ) {
+                throw new IOException( "Could not rename " + mPartialFile );
+            }
+            // Write the description to a temporary file and rename it so that a
+            // loader will never see it partially written.
+            File spoolInfoPartial = new File( spoolDir, getSpoolName() + SPOOL_EXTENSION + ".part" );
+            OutputStream spoolInfoOut = new FileOutputStream( spoolInfoPartial );
+            try {
+                mSpoolInfo.storeToXML( spoolInfoOut, "GCAM results spooled by XMLDBDriver" );
+            }
+            finally {
+                spoolInfoOut.close();
+            }
+            if( !spoolInfoPartial.renameTo( new File( spoolDir, getSpoolName() + SPOOL_EXTENSION ) ) ) {
+                throw new IOException( "Could not rename " + spoolInfoPartial );
+            }
+            mSucceeded = true;
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            mPartialFile.delete();
+        }
+        finally {
+            try {
+                mSpoolStream.close();
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class that replaces chosen subtrees of the scenario XML, such as each region
+ * or sector, with a reference to a copy stored only once in the database so that
+ * the many blocks which are identical from one scenario to the next, such as the
+ * calibration periods or regions a policy does not touch, are not stored again.
+ * Each subtree is identified by a SHA-1 hash of its content.  Subtrees nested
+ * within it have already been replaced by their references, so identical hashes
+ * mean identical content all of the way down.  A subtree which is not already
+ * known to the SubtreeTarget is sent to it to be stored.  Either way it is replaced
+ * in the document with a stub: its start tag, so that the name and attributes are
+ * still there, with the REF_ATTRIBUTE added and no content.
+ *
+ * The subtrees are chosen with ; separated paths of element names from the root
+ * where any name may be * such as:
+ *   /scenario/world/region;/scenario/world/region/*
+ * The references can be resolved with RESOLVE_FUNCTION.  Any content later
+ * appended to a stub is kept after the content of the stored subtree.  Note the
+ * document is stored with its root element renamed, see
+ * WriteLocalBaseXDB.ENCODED_ROOT_ELEMENT, so that tools which can not resolve the
+ * references do not read it as a scenario.
+ * Note the XML is scanned at the byte level and is never fully parsed, see
+ * XMLTagScanner, however the content of the subtrees which are currently open is
+ * buffered until they are complete.
+ */
+public class SubtreeDedup extends XMLTagScanner implements Runnable {
+    /**
+     * The interface to check for and store subtrees.
+     */
+    public interface SubtreeTarget {
+        /**
+         * Check if a subtree has already been stored.
+         * @param aHash The hash of the subtree.
+         * @return True if it has been stored.
+         */
+        boolean hasSubtree( final String aHash );
+
+        /**
+         * Open a new subtree to write to.  The returned stream will be closed once
+         * the full subtree has been written.
+         * @param aHash The hash of the subtree which is also recorded in its stubs.
+         * @return A stream to write the subtree to.
+         */
+        OutputStream openSubtree( final String aHash ) throws IOException;
+    }
+
+    /**
+     * The attribute added to a stub with the hash of the subtree it refers to.
+     */
+    public static final String REF_ATTRIBUTE = "xmldb-ref";
+
+    /**
+     * The path in the database under which the subtrees are stored as HASH.xml.
+     */
+    public static final String STORE_PATH = "xmldb-subtrees/";
+
+    /**
+     * An XQuery function declaration for local:resolve-subtrees($db, $node) which
+     * returns the node with every stub within it replaced by the subtree it refers
+     * to in the database $db and any renamed root element given its original
+     * name back.  Nodes without any stubs are returned as they are.  A stub whose
+     * subtree is missing is left in place so that it is clear data is missing.
+     */
+    public static final String RESOLVE_FUNCTION =
+        "declare function local:resolve-subtrees( $db as xs:string, $node as node() ) as node() { "
+        + "if( empty( $node/descendant-or-self::*/( @" + REF_ATTRIBUTE + " | @"
+        + WriteLocalBaseXDB.ROOT_NAME_ATTRIBUTE + " ) ) ) then $node "
+        + "else if( $node instance of document-node() ) then "
+        + "document { for $child in $node/node() return local:resolve-subtrees( $db, $child ) } "
+        + "else "
+        + "let $stored := if( $node/@" + REF_ATTRIBUTE + " ) "
+        + "then db:open( $db, concat( '" + STORE_PATH + "', $node/@" + REF_ATTRIBUTE + ", '.xml' ) )/* else () "
+        + "let $source := if( exists( $stored ) ) then $stored else $node "
+        + "let $name := $node/@" + WriteLocalBaseXDB.ROOT_NAME_ATTRIBUTE + " "
+        + "return element { if( $name ) then string( $name ) else node-name( $source ) } { "
+        + "$source/@* except $source/@" + WriteLocalBaseXDB.ROOT_NAME_ATTRIBUTE + ", "
+        + "for $child in ( $stored/node(), $node/node() ) return local:resolve-subtrees( $db, $child ) } "
+        + "}; ";
+
+    /**
+     * A buffer which can be hashed without copying it.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        void digestInto( final MessageDigest aDigest ) {
+            aDigest.update( buf, 0, count );
+        }
+    }
+
+    /**
+     * A subtree which is currently open.
+     */
+    private static class OpenSubtree {
+        /**
+         * The start tag of the subtree.
+         */
+        final byte[] mStartTag;
+
+        /**
+         * The depth of the subtree element, the root element is zero.
+         */
+        final int mDepth;
+
+        /**
+         * The content of the subtree so far including the start tag.
+         */
+        final Buffer mContent = new Buffer();
+
+        OpenSubtree( final byte[] aStartTag, final int aDepth ) {
+            mStartTag = aStartTag;
+            mDepth = aDepth;
+        }
+    }
+
+    /**
+     * The thread on which the subtrees will be replaced.
+     */
+    private final Thread mWorkerThread = new Thread( this );
+
+    /**
+     * Where to check for and store subtrees.
+     */
+    private final SubtreeTarget mSubtreeTarget;
+
+    /**
+     * The paths of the subtrees as element names from the root.
+     */
+    private final List<String[]> mPaths = new ArrayList<String[]>();
+
+    /**
+     * The names of the currently open elements.
+     */
+    private final List<String> mOpenNames = new ArrayList<String>();
+
+    /**
+     * The subtrees which are currently open, innermost last.
+     */
+    private final List<OpenSubtree> mOpenSubtrees = new ArrayList<OpenSubtree>();
+
+    /**
+     * Used to calculate the hash of each subtree.
+     */
+    private final MessageDigest mDigest;
+
+    /**
+     * The stream to read the full XML document from.
+     */
+    private InputStream mInputStream = null;
+
+    /**
+     * The stream to write the document with the stubs to.
+     */
+    private OutputStream mOutputStream = null;
+
+    /**
+     * The number of subtrees which were stored.
+     */
+    private int mNumStored = 0;
+
+    /**
+     * The number of subtrees which were already stored.
+     */
+    private int mNumReused = 0;
+
+    /**
+     * The number of bytes not stored again as the subtree was already stored.
+     */
+    private long mBytesReused = 0;
+
+    /**
+     * Constructor.
+     * @param aPaths The paths of the subtrees to store only once separated by ;.
+     * @param aSubtreeTarget Where to check for and store subtrees.
+     */
+    public SubtreeDedup( final String aPaths, final SubtreeTarget aSubtreeTarget ) {
+        mSubtreeTarget = aSubtreeTarget;
+        for( String pathStr : aPaths.split( ";" ) ) {
+            pathStr = pathStr.trim();
+            if( pathStr.isEmpty() ) {
+                continue;
+            }
+            if( !pathStr.startsWith( "/" ) || pathStr.length() == 1 || pathStr.contains( "[" ) ) {
+                throw new IllegalArgumentException( "Invalid dedup-subtrees path: " + pathStr );
+            }
+            mPaths.add( pathStr.substring( 1 ).split( "/" ) );
+        }
+        try {
+            mDigest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch( NoSuchAlgorithmException error ) {
+            throw new IllegalStateException( error );
+        }
+    }
+
+    /**
+     * Set the stream to read the full XML document from.
+     * @param aInputStream The stream to read from.
+     */
+    public void setInputStream( InputStream aInputStream ) {
+        mInputStream = aInputStream;
+    }
+
+    /**
+     * Set the stream to write the document, with the subtrees replaced by stubs,
+     * to.  It will be closed once done.
+     * @param aOutputStream The stream to write to.
+     */
+    public void setOutputStream( OutputStream aOutputStream ) {
+        mOutputStream = aOutputStream;
+    }
+
+    /**
+     * Start the worker thread to replace the subtrees as GCAM will start sending
+     * data soon.
+     */
+    public void start() {
+        mWorkerThread.start();
+    }
+
+    /**
+     * Cancel replacing subtrees presumably because there was an error.
+     */
+    public void cancel() {
+        mWorkerThread.interrupt();
+    }
+
+    /**
+     * Notify that no more XML will be sent.  This method will wait until all of
+     * the data has been sent on before returning.
+     */
+    public void finish() {
+        try {
+            mWorkerThread.join();
+        }
+        catch( InterruptedException interruptError ) {
+            interruptError.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the number of subtrees which were stored.  Only valid after finish.
+     * @return The number of subtrees stored.
+     */
+    public int getNumStored() {
+        return mNumStored;
+    }
+
+    /**
+     * Get the number of subtrees which had already been stored.  Only valid after
+     * finish.
+     * @return The number of subtrees reused.
+     */
+    public int getNumReused() {
+        return mNumReused;
+    }
+
+    /**
+     * Get the number of bytes which were not stored again as the subtrees had
+     * already been stored.  Only valid after finish.
+     * @return The number of bytes reused.
+     */
+    public long getBytesReused() {
+        return mBytesReused;
+    }
+
+    /**
+     * Replace the subtrees as the XML is read.  The run function implements the
+     * Runnable interface so that it may run on a new thread.
+     */
+    public void run() {
+        try {
+            scan( mInputStream );
+            if( !mOpenSubtrees.isEmpty() ) {
+                throw new IOException( "The document ended within a subtree" );
+            }
+            System.out.println( "Stored " + mNumStored + " new subtrees and reused " + mNumReused
+                                + " (" + mBytesReused + " bytes)" );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+        finally {
+            try {
+                mOutputStream.close();
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Copy runs of text straight through to the current output.
+     */
+    protected void processText( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException {
+        currentOutput().write( aBuffer, aOffset, aLength );
+    }
+
+    /**
+     * Get the stream the current data should be sent to.
+     * @return The content of the innermost open subtree if there is one otherwise
+     *         the output stream.
+     */
+    private OutputStream currentOutput() {
+        return mOpenSubtrees.isEmpty() ? mOutputStream : mOpenSubtrees.get( mOpenSubtrees.size() - 1 ).mContent;
+    }
+
+    /**
+     * Check if the currently open elements match any of the subtree paths.
+     * @return True if the innermost open element is the root of a subtree.
+     */
+    private boolean matchesAnyPath() {
+        for( String[] path : mPaths ) {
+            if( path.length != mOpenNames.size() ) {
+                continue;
+            }
+            boolean matches = true;
+            for( int i = 0; i < path.length && matches; ++i ) {
+                matches = path[ i ].equals( "*" ) || path[ i ].equals( mOpenNames.get( i ) );
+            }
+            if( matches ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collect the subtrees and keep track of the elements which are open.
+     */
+    protected void processTag() throws IOException {
+        if( isEndTag() ) {
+            currentOutput().write( mTag, 0, mTagLength );
+            mOpenNames.remove( mOpenNames.size() - 1 );
+            final int lastSubtree = mOpenSubtrees.size() - 1;
+            if( lastSubtree >= 0 && mOpenSubtrees.get( lastSubtree ).mDepth == mOpenNames.size() ) {
+                // we have closed the subtree so it is complete
+                replaceSubtree( mOpenSubtrees.remove( lastSubtree ) );
+            }
+        }
+        else if( !isStartTag() || isEmptyTag() ) {
+            // empty elements are not worth replacing with a stub of the same size
+            currentOutput().write( mTag, 0, mTagLength );
+        }
+        else {
+            mOpenNames.add( tagName() );
+            if( matchesAnyPath() ) {
+                byte[] startTag = new byte[ mTagLength ];
+                System.arraycopy( mTag, 0, startTag, 0, mTagLength );
+                mOpenSubtrees.add( new OpenSubtree( startTag, mOpenNames.size() - 1 ) );
+            }
+            currentOutput().write( mTag, 0, mTagLength );
+        }
+    }
+
+    /**
+     * Store the completed subtree, if it is not already, and write a stub in its place.
+     * @param aSubtree The completed subtree.
+     */
+    private void replaceSubtree( final OpenSubtree aSubtree ) throws IOException {
+        aSubtree.mContent.digestInto( mDigest );
+        final String hash = new BigInteger( 1, mDigest.digest() ).toString( 16 );
+        if( mSubtreeTarget.hasSubtree( hash ) ) {
+            ++mNumReused;
+            mBytesReused += aSubtree.mContent.size();
+        }
+        else {
+            OutputStream subtreeStream = mSubtreeTarget.openSubtree( hash );
+            try {
+                aSubtree.mContent.writeTo( subtreeStream );
+            }
+            finally {
+                subtreeStream.close();
+            }
+            ++mNumStored;
+        }
+
+        // the stub is the start tag with the reference added and closed off
+        int tagEnd = aSubtree.mStartTag.length - 1;
+        while( tagEnd > 0 && ( aSubtree.mStartTag[ tagEnd - 1 ] == ' ' || aSubtree.mStartTag[ tagEnd - 1 ] == '\t'
+                               || aSubtree.mStartTag[ tagEnd - 1 ] == '\n' || aSubtree.mStartTag[ tagEnd - 1 ] == '\r' ) )
+        {
+            --tagEnd;
+        }
+        OutputStream output = currentOutput();
+        output.write( aSubtree.mStartTag, 0, tagEnd );
+        output.write( ( " " + REF_ATTRIBUTE + "=\"" + hash + "\"/>" ).getBytes( UTF8 ) );
+    }
+}
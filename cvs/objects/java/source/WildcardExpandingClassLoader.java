@@ -35,11 +35,28 @@ import java.net.URL;
 import java.net.URI;
 import java.net.URLDecoder;
 import java.net.MalformedURLException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.CodeSource;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 /**
  * A custom class loader which simply expands any wildcard jar specifications
@@ -49,6 +66,17 @@ import java.util.Iterator;
  * This class loader will simply do the wild card expansion and rely on the
  * URLClassLoader to do the real work.  Note since Java 9 the URLClassLoader
  * is no longer the default so we will also manually lookup the classpath as well.
+ * <p>
+ * To speed up start up the expanded classpath along with an index of which jars
+ * contain each package is saved to the file given by the gcam.classpath.index
+ * system property (WildcardExpandingClassLoader.index in the working directory by
+ * default, set it empty to disable).  It is reused until the wildcard directories
+ * or any of the jars change.  Classes and resources are then read directly from the
+ * jars which contain their package rather than searching every jar in turn.  Note
+ * the JVM will not use a class data sharing archive for classes loaded by a custom
+ * system class loader so when one is available GCAM skips this class loader and
+ * instead uses the expanded classpath saved with the archive (see
+ * XMLDBOutputter::createContainer).
  *
  * @author Pralit Patel
  */
@@ -64,6 +92,28 @@ public class WildcardExpandingClassLoader extends URLClassLoader {
      */
     final static String PREFERED_BASEX_VER = "^.*[Bb][Aa][Ss][Ee][Xx]-8.6.7.*$";
 
+    /**
+     * The default file to save the classpath index to.
+     */
+    final static String DEFAULT_INDEX_FILE = "WildcardExpandingClassLoader.index";
+
+    /**
+     * The version of the classpath index file format.
+     */
+    final static int INDEX_VERSION = 1;
+
+    /**
+     * The index of which jars contain each package or null to leave all lookups
+     * to the URLClassLoader.
+     */
+    private final PackageIndex mIndex;
+
+    /**
+     * The jars from the classpath which have been opened for lookups, by their
+     * position in the classpath.
+     */
+    private final JarFile[] mJars;
+
     /**
      * Constructor which will expand any wildcard jar specifications then call
      * the constructor or the base URLClassLoader with this updated list of jars.
@@ -72,10 +122,221 @@ public class WildcardExpandingClassLoader extends URLClassLoader {
      *                           expanded.
      */
     public WildcardExpandingClassLoader( ClassLoader aParentClassLoader ) {
-        // cut the parent class loader out of the loop by copying it's search path
-        // and expanding the wildcard definitions then pointing directly to it's
+        // cut the parent class loader out of the loop by copying its search path
+        // and expanding the wildcard definitions then pointing directly to its
         // parent class loader
-        super( expandWildcardClasspath(), aParentClassLoader.getParent() );
+        this( loadIndex(), aParentClassLoader.getParent() );
+    }
+
+    /**
+     * Constructor which will search the classpath given by the index.
+     * @param aIndex The expanded classpath and the packages each jar contains.
+     * @param aParent The class loader to delegate to first.
+     */
+    private WildcardExpandingClassLoader( PackageIndex aIndex, ClassLoader aParent ) {
+        super( aIndex.mURLs, aParent );
+        mIndex = aIndex.mPackages != null ? aIndex : null;
+        mJars = new JarFile[ aIndex.mURLs.length ];
+    }
+
+    /**
+     * Get the expanded classpath and package index, from the saved index file if it
+     * is still up to date.  Otherwise the wildcards are expanded and the jars indexed
+     * and saved for next time.
+     * @return The classpath index.
+     */
+    private static PackageIndex loadIndex() {
+        final String classpath = System.getProperty( "java.class.path" );
+        final String indexPath = System.getProperty( "gcam.classpath.index", DEFAULT_INDEX_FILE );
+        if( indexPath.isEmpty() ) {
+            // just expand the wildcards and leave lookups to the URLClassLoader
+            return new PackageIndex( expandWildcardClasspath(), null );
+        }
+        final File indexFile = new File( indexPath );
+        PackageIndex index = PackageIndex.read( indexFile, classpath );
+        if( index != null ) {
+            boolean hasBaseX = false;
+            for( URL currURL : index.mURLs ) {
+                hasBaseX |= currURL.getFile().matches( BASEX_LIB_MATCH );
+            }
+            if( !hasBaseX ) {
+                System.out.println( "WARNING: did not recongnize any BaseX jars in classpath.  This may indicate missing jars or duplicate version mismatch.");
+            }
+        }
+        else {
+            index = PackageIndex.build( expandWildcardClasspath() );
+            index.write( indexFile, classpath );
+        }
+        return index;
+    }
+
+    /**
+     * Get the directory part of a class file or resource name which is used to
+     * look it up in the index.
+     * @param aEntryName The name of the entry in the jar.
+     * @return The directory the entry is in or an empty string for the root.
+     */
+    private static String getPackageDir( final String aEntryName ) {
+        final int lastSlash = aEntryName.lastIndexOf( '/' );
+        return lastSlash == -1 ? "" : aEntryName.substring( 0, lastSlash );
+    }
+
+    /**
+     * Get a jar from the classpath, opening it the first time it is used.
+     * @param aJar The position of the jar in the classpath.
+     * @return The opened jar.
+     * @throws IOException If the jar could not be opened.
+     */
+    private synchronized JarFile getJar( final int aJar ) throws IOException {
+        if( mJars[ aJar ] == null ) {
+            final File file = PackageIndex.toFile( mIndex.mURLs[ aJar ] );
+            if( file == null ) {
+                throw new IOException( "Not a local jar: " + mIndex.mURLs[ aJar ] );
+            }
+            mJars[ aJar ] = new JarFile( file );
+        }
+        return mJars[ aJar ];
+    }
+
+    /**
+     * Find a class by reading it directly from the jars which contain its package.
+     * @param aName The binary name of the class.
+     * @return The defined class.
+     * @throws ClassNotFoundException If the class could not be found.
+     */
+    @Override
+    protected Class<?> findClass( final String aName ) throws ClassNotFoundException {
+        if( mIndex == null ) {
+            return super.findClass( aName );
+        }
+        final String entryName = aName.replace( '.', '/' ).concat( ".class" );
+        try {
+            for( int jar : mIndex.getJars( getPackageDir( entryName ) ) ) {
+                final JarFile jarFile = getJar( jar );
+                final JarEntry entry = jarFile.getJarEntry( entryName );
+                if( entry != null ) {
+                    return defineClass( aName, jar, jarFile, entry );
+                }
+            }
+        }
+        catch( Exception error ) {
+            // something is not as the index expected, let the URLClassLoader sort it out
+            return super.findClass( aName );
+        }
+        throw new ClassNotFoundException( aName );
+    }
+
+    /**
+     * Read and define a class from a jar.
+     * @param aName The binary name of the class.
+     * @param aJar The position of the jar in the classpath.
+     * @param aJarFile The opened jar.
+     * @param aEntry The class file entry in the jar.
+     * @return The defined class.
+     * @throws IOException If the class file could not be read.
+     */
+    // getPackage is deprecated from Java 9 in favor of getDefinedPackage however
+    // that does not exist in the Java 7 we must still build for, and looking in
+    // the parents too is harmless as a package defined there is left alone.
+    @SuppressWarnings( "deprecation" )
+    private Class<?> defineClass( final String aName, final int aJar, final JarFile aJarFile,
+                                  final JarEntry aEntry ) throws IOException
+    {
+        final URL jarURL = mIndex.mURLs[ aJar ];
+        final int lastDot = aName.lastIndexOf( '.' );
+        if( lastDot != -1 ) {
+            final String packageName = aName.substring( 0, lastDot );
+            if( getPackage( packageName ) == null ) {
+                try {
+                    final Manifest manifest = aJarFile.getManifest();
+                    if( manifest != null ) {
+                        definePackage( packageName, manifest, jarURL );
+                    }
+                    else {
+                        definePackage( packageName, null, null, null, null, null, null, null );
+                    }
+                }
+                catch( IllegalArgumentException alreadyDefined ) {
+                    // defined by another thread in the mean time
+                }
+            }
+        }
+
+        final ByteArrayOutputStream classBytes = new ByteArrayOutputStream(
+            aEntry.getSize() > 0 ? (int)aEntry.getSize() : 8192 );
+        final InputStream classIn = aJarFile.getInputStream( aEntry );
+        try {
+            final byte[] buffer = new byte[ 8192 ];
+            int read;
+            while( ( read = classIn.read( buffer ) ) != -1 ) {
+                classBytes.write( buffer, 0, read );
+            }
+        }
+        finally {
+            classIn.close();
+        }
+        // Note the code signers are only available once the entry has been read.
+        return defineClass( aName, classBytes.toByteArray(), 0, classBytes.size(),
+                            new CodeSource( jarURL, aEntry.getCodeSigners() ) );
+    }
+
+    /**
+     * Find a resource in the jars which contain its directory.
+     * @param aName The name of the resource.
+     * @return The URL to the resource or null if it could not be found.
+     */
+    @Override
+    public URL findResource( final String aName ) {
+        if( mIndex == null || aName.endsWith( "/" ) ) {
+            return super.findResource( aName );
+        }
+        try {
+            for( int jar : mIndex.getJars( getPackageDir( aName ) ) ) {
+                if( getJar( jar ).getEntry( aName ) != null ) {
+                    return new URL( "jar:" + mIndex.mURLs[ jar ] + "!/" + aName );
+                }
+            }
+        }
+        catch( Exception error ) {
+            return super.findResource( aName );
+        }
+        return null;
+    }
+
+    /**
+     * Find all of the resources with the given name in the jars which contain its
+     * directory.
+     * @param aName The name of the resource.
+     * @return The URLs to each of the resources found in classpath order.
+     */
+    @Override
+    public Enumeration<URL> findResources( final String aName ) throws IOException {
+        if( mIndex == null || aName.endsWith( "/" ) ) {
+            return super.findResources( aName );
+        }
+        final List<URL> found = new ArrayList<URL>();
+        for( int jar : mIndex.getJars( getPackageDir( aName ) ) ) {
+            if( getJar( jar ).getEntry( aName ) != null ) {
+                found.add( new URL( "jar:" + mIndex.mURLs[ jar ] + "!/" + aName ) );
+            }
+        }
+        return Collections.enumeration( found );
+    }
+
+    /**
+     * Close the jars opened for lookups as well as those opened by the URLClassLoader.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized( this ) {
+            for( int i = 0; i < mJars.length; ++i ) {
+                if( mJars[ i ] != null ) {
+                    mJars[ i ].close();
+                    mJars[ i ] = null;
+                }
+            }
+        }
+        super.close();
     }
 
     /**
@@ -154,4 +415,245 @@ public class WildcardExpandingClassLoader extends URLClassLoader {
         }
         return ret.toArray( new URL[ 0 ] );
     }
+
+    /**
+     * Get the directories which the wildcard entries of a classpath expand.
+     * @param aClasspath The classpath.
+     * @return The directory of each wildcard entry.
+     */
+    private static List<File> getWildcardDirs( final String aClasspath ) {
+        List<File> dirs = new ArrayList<File>();
+        for( String currCP : aClasspath.split( System.getProperty( "path.separator" ) ) ) {
+            if( currCP.endsWith( "*" ) ) {
+                dirs.add( new File( currCP ).getAbsoluteFile().getParentFile() );
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * The expanded classpath and, for each directory found in the jars, the
+     * positions in the classpath of the jars which contain it.
+     */
+    private static class PackageIndex {
+        /**
+         * The expanded classpath.
+         */
+        final URL[] mURLs;
+
+        /**
+         * The jars which contain each package directory or null if the classpath
+         * can not be indexed.
+         */
+        final Map<String, int[]> mPackages;
+
+        PackageIndex( final URL[] aURLs, final Map<String, int[]> aPackages ) {
+            mURLs = aURLs;
+            mPackages = aPackages;
+        }
+
+        /**
+         * Get the positions in the classpath of the jars which contain the given
+         * package directory.
+         * @param aPackageDir The package directory.
+         * @return The jars in classpath order which will be empty if none do.
+         */
+        int[] getJars( final String aPackageDir ) {
+            final int[] jars = mPackages.get( aPackageDir );
+            return jars != null ? jars : new int[ 0 ];
+        }
+
+        /**
+         * Index each of the jars in the expanded classpath.  If the classpath contains
+         * a directory or a multi-release jar the lookups can not be routed by the
+         * index and are left to the URLClassLoader.
+         * @param aURLs The expanded classpath.
+         * @return The index.
+         */
+        static PackageIndex build( final URL[] aURLs ) {
+            Map<String, List<Integer>> packages = new HashMap<String, List<Integer>>();
+            for( int i = 0; i < aURLs.length; ++i ) {
+                final File file = toFile( aURLs[ i ] );
+                if( file == null || file.isDirectory() ) {
+                    return new PackageIndex( aURLs, null );
+                }
+                if( !file.exists() ) {
+                    // nothing to find here
+                    continue;
+                }
+                try {
+                    final JarFile jar = new JarFile( file );
+                    try {
+                        for( Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+                            final JarEntry entry = entries.nextElement();
+                            if( entry.getName().startsWith( "META-INF/versions/" ) ) {
+                                return new PackageIndex( aURLs, null );
+                            }
+                            if( entry.isDirectory() ) {
+                                continue;
+                            }
+                            final String packageDir = getPackageDir( entry.getName() );
+                            List<Integer> jars = packages.get( packageDir );
+                            if( jars == null ) {
+                                jars = new ArrayList<Integer>( 1 );
+                                packages.put( packageDir, jars );
+                            }
+                            if( jars.isEmpty() || jars.get( jars.size() - 1 ) != i ) {
+                                jars.add( i );
+                            }
+                        }
+                    }
+                    finally {
+                        jar.close();
+                    }
+                }
+                catch( IOException error ) {
+                    return new PackageIndex( aURLs, null );
+                }
+            }
+            Map<String, int[]> packageArrays = new HashMap<String, int[]>( packages.size() * 2 );
+            for( Map.Entry<String, List<Integer>> pkg : packages.entrySet() ) {
+                int[] jars = new int[ pkg.getValue().size() ];
+                for( int i = 0; i < jars.length; ++i ) {
+                    jars[ i ] = pkg.getValue().get( i );
+                }
+                packageArrays.put( pkg.getKey(), jars );
+            }
+            return new PackageIndex( aURLs, packageArrays );
+        }
+
+        /**
+         * Read a saved index if it is still up to date, that is it was built for the
+         * same classpath and none of the wildcard directories or jars in it have been
+         * modified since.
+         * @param aIndexFile The saved index.
+         * @param aClasspath The classpath to be expanded.
+         * @return The index or null if there is no up to date index saved.
+         */
+        static PackageIndex read( final File aIndexFile, final String aClasspath ) {
+            if( !aIndexFile.exists() ) {
+                return null;
+            }
+            try {
+                final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( aIndexFile ) ) );
+                try {
+                    // relative classpath entries depend on the working directory as well
+                    if( in.readInt() != INDEX_VERSION || !in.readUTF().equals( aClasspath )
+                        || !in.readUTF().equals( System.getProperty( "user.dir" ) ) )
+                    {
+                        return null;
+                    }
+                    for( File dir : getWildcardDirs( aClasspath ) ) {
+                        if( in.readLong() != dir.lastModified() ) {
+                            return null;
+                        }
+                    }
+                    final URL[] urls = new URL[ in.readInt() ];
+                    for( int i = 0; i < urls.length; ++i ) {
+                        urls[ i ] = new URL( in.readUTF() );
+                        final File file = toFile( urls[ i ] );
+                        final long lastModified = in.readLong();
+                        final long length = in.readLong();
+                        if( file == null || file.lastModified() != lastModified || file.length() != length ) {
+                            return null;
+                        }
+                    }
+                    if( !in.readBoolean() ) {
+                        return new PackageIndex( urls, null );
+                    }
+                    final int numPackages = in.readInt();
+                    Map<String, int[]> packages = new HashMap<String, int[]>( numPackages * 2 );
+                    for( int i = 0; i < numPackages; ++i ) {
+                        final String packageDir = in.readUTF();
+                        final int[] jars = new int[ in.readInt() ];
+                        for( int j = 0; j < jars.length; ++j ) {
+                            jars[ j ] = in.readInt();
+                        }
+                        packages.put( packageDir, jars );
+                    }
+                    return new PackageIndex( urls, packages );
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch( Exception error ) {
+                // the index is corrupt or from a different version, just rebuild it
+                return null;
+            }
+        }
+
+        /**
+         * Save the index so that it may be reused on the next start up.  It is written
+         * to a temporary file first then moved into place so that concurrent runs will
+         * never see a partial index.  Failing to save is silently ignored as it only
+         * means the index will be rebuilt next time.
+         * @param aIndexFile Where to save the index.
+         * @param aClasspath The classpath the index was built from.
+         */
+        void write( final File aIndexFile, final String aClasspath ) {
+            File tempFile = null;
+            try {
+                final File dir = aIndexFile.getAbsoluteFile().getParentFile();
+                tempFile = File.createTempFile( aIndexFile.getName(), ".tmp", dir );
+                final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ) ) );
+                try {
+                    out.writeInt( INDEX_VERSION );
+                    out.writeUTF( aClasspath );
+                    out.writeUTF( System.getProperty( "user.dir" ) );
+                    for( File wildcardDir : getWildcardDirs( aClasspath ) ) {
+                        out.writeLong( wildcardDir.lastModified() );
+                    }
+                    out.writeInt( mURLs.length );
+                    for( URL url : mURLs ) {
+                        final File file = toFile( url );
+                        out.writeUTF( url.toString() );
+                        out.writeLong( file != null ? file.lastModified() : -1 );
+                        out.writeLong( file != null ? file.length() : -1 );
+                    }
+                    out.writeBoolean( mPackages != null );
+                    if( mPackages != null ) {
+                        out.writeInt( mPackages.size() );
+                        for( Map.Entry<String, int[]> pkg : mPackages.entrySet() ) {
+                            out.writeUTF( pkg.getKey() );
+                            out.writeInt( pkg.getValue().length );
+                            for( int jar : pkg.getValue() ) {
+                                out.writeInt( jar );
+                            }
+                        }
+                    }
+                }
+                finally {
+                    out.close();
+                }
+                // renameTo will not replace an existing file on Windows
+                aIndexFile.delete();
+                if( tempFile.renameTo( aIndexFile ) ) {
+                    tempFile = null;
+                }
+            }
+            catch( Exception error ) {
+                // ignore, see above
+            }
+            finally {
+                if( tempFile != null ) {
+                    tempFile.delete();
+                }
+            }
+        }
+
+        /**
+         * Get the file a classpath URL refers to.
+         * @param aURL The classpath URL.
+         * @return The file or null if the URL is not a local file.
+         */
+        static File toFile( final URL aURL ) {
+            try {
+                return new File( aURL.toURI() );
+            }
+            catch( Exception error ) {
+                return null;
+            }
+        }
+    }
 }
@@ -30,17 +30,46 @@
 *
 */
 
-import java.io.PipedOutputStream;
-import java.io.PipedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.IOException;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.xml.transform.sax.SAXSource;
+
+import org.basex.build.xml.SAXWrapper;
 import org.basex.core.Context;
 import org.basex.core.MainOptions;
 import org.basex.core.cmd.Check;
 import org.basex.core.cmd.Add;
 import org.basex.core.cmd.Close;
+import org.basex.core.cmd.CreateDB;
+import org.basex.core.cmd.DropDB;
+import org.basex.core.cmd.XQuery;
+import org.basex.data.Data;
 import org.basex.query.QueryProcessor;
+import org.basex.query.iter.Iter;
+import org.basex.query.value.item.Item;
+import org.basex.query.value.node.DBNode;
 import org.basex.io.IO;
 
 /**
@@ -48,9 +77,23 @@ import org.basex.io.IO;
  * XML to a local BaseX database.  The XMLDBDriver will set up the interactions
  * and notify when to close as results may be filtered before reaching the database
  * and run queries after GCAM has cleaned up the Scenario.
+ * Optionally the regions may be split off into shards (see ShardByRegion) which
+ * are loaded into temporary databases in parallel and then put back into the
+ * scenario document once all of the data has arrived.
+ * The numeric year to value series may also be extracted as the data arrives and
+ * written to a series store next to the database (see SeriesExtractor) which the
+ * common queries can read far quicker than going through the XML.
+ * Subtrees which are identical across scenarios may be stored only once (see
+ * SubtreeDedup) in which case queries run by the driver are given a view of the
+ * documents with the subtrees resolved.  Such a document is stored with its root
+ * element renamed (see ENCODED_ROOT_ELEMENT) so that other tools reading the
+ * database, which can not resolve the subtrees, do not take it for a scenario
+ * with no data in it.  Similarly a scenario may be stored as
+ * the differences from a baseline scenario (see DeltaEncoder) which queries are
+ * given reconstructed in full (see DeltaMerger) and which is renamed the same way.
  * @author Pralit Patel
  */
-public class WriteLocalBaseXDB implements Runnable {
+public class WriteLocalBaseXDB implements Runnable, ShardByRegion.ShardTarget, SubtreeDedup.SubtreeTarget {
     /**
      * The database context needed to run commands on the DB.
      */
@@ -71,7 +114,13 @@ public class WriteLocalBaseXDB implements Runnable {
     /**
      * The stream that will transfer the XML read from GCAM and write it to the DB.
      */
-    private final PipedInputStream mWriteToDBStream = new PipedInputStream( XMLDBDriver.BUFFER_SIZE );
+    private InputStream mWriteToDBStream = null;
+
+    /**
+     * A source of SAX events to build the document from instead of
+     * mWriteToDBStream, or null to read from the stream.
+     */
+    private SAXSource mSAXSource = null;
 
     /**
      * The location of the database to write the XML to.
@@ -79,9 +128,263 @@ public class WriteLocalBaseXDB implements Runnable {
     private final String mDBLocation;
 
     /**
-     * A unique name to call the document to be added into the DB.
+     * A unique name to call the document to be added into the DB.  This is only
+     * changed if the name is already taken by a baseline, see protectBaseline.
+     */
+    private String mDocName;
+
+    /**
+     * The name of the database container, as BaseX will see it.
+     */
+    private String mContainerName = null;
+
+    /**
+     * If the database is to be stored in memory only.
+     */
+    private final boolean mInMemoryDB;
+
+    /**
+     * The key the database context is pooled under if it is being reused across
+     * scenarios, otherwise null.
+     */
+    private String mPoolKey = null;
+
+    /**
+     * The absolute path to the directory containing the database.
+     */
+    private String mDBPath = null;
+
+    /**
+     * The key identifying the database, see DBSessionPool.getKey.
+     */
+    private String mDBKey = null;
+
+    /**
+     * The pending build of the indexes or null if none has been started.
+     */
+    private volatile Future<?> mIndexBuild = null;
+
+    /**
+     * If data has been appended since the indexes were built, which drops them.
+     */
+    private volatile boolean mIndexesStale = false;
+
+    /**
+     * The number of seconds the database must be idle for before it is indexed
+     * once closed or -1 to not index it.
+     */
+    private int mIdleIndexSeconds = -1;
+
+    /**
+     * If whitespace should be stripped from the XML as it is stored (CHOP).
+     */
+    private boolean mChop = true;
+
+    /**
+     * If the internal BaseX XML parser should be used (INTPARSE).
+     */
+    private boolean mIntParse = true;
+
+    /**
+     * The workers which will load region shards in parallel.  If null sharding
+     * has not been enabled.
+     */
+    private ExecutorService mShardExecutor = null;
+
+    /**
+     * The pending loads of each shard.
+     */
+    private final List<Future<?>> mShardLoads = new CopyOnWriteArrayList<Future<?>>();
+
+    /**
+     * The pipes feeding each shard so they may be canceled if needed.
+     */
+    private final List<ChunkPipe> mShardPipes = new CopyOnWriteArrayList<ChunkPipe>();
+
+    /**
+     * The contexts each shard was loaded with.  We must keep them open until the
+     * shards have been merged as an in-memory database is discarded once closed.
+     */
+    private final List<Context> mShardContexts = new CopyOnWriteArrayList<Context>();
+
+    /**
+     * The bytes read and time spent blocked by shards which have already been
+     * merged and so their pipes have been released.
+     */
+    private volatile long mMergedShardBytesRead = 0;
+    private volatile long mMergedShardBlockedNanos = 0;
+
+    /**
+     * Limits the number of shards which may be open, loading or waiting to be
+     * loaded, at once to one more than the number of workers so that the splitter
+     * can not buffer up the whole document when the workers fall behind.
+     */
+    private Semaphore mShardSlots = null;
+
+    /**
+     * When the first shard of the current document was opened, or 0 if none has.
+     */
+    private long mShardLoadStartTime = 0;
+
+    /**
+     * The number of chunks that may be buffered for each shard.  This should be
+     * large enough to let the splitter run ahead while shards are being loaded.
+     */
+    private int mShardPipeDepth;
+
+    /**
+     * The chunk size to use in the shard pipes.
+     */
+    private int mShardChunkSize;
+
+    /**
+     * The maximum number of updating queries to keep for appendData.  GCAM only
+     * appends to a handful of locations so this is plenty.
+     */
+    private static final int APPEND_QUERY_CACHE_SIZE = 32;
+
+    /**
+     * The updating queries used by appendData keyed by the location they insert
+     * after.  The least recently used are dropped once the cache is full.
+     */
+    private final Map<String, String> mAppendQueries = new LinkedHashMap<String, String>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( final Map.Entry<String, String> aEldest ) {
+            return size() > APPEND_QUERY_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * The updating query which keeps data to one side, with the location it was to
+     * be inserted after, when our document is stored as the differences from a
+     * baseline.  The data and location must be bound to the external variables
+     * $data and $location as well as $db and $doc.
+     */
+    private static final String DELTA_APPEND_QUERY = "declare variable $db external; declare variable $doc external; "
+        + "declare variable $data external; declare variable $location external; "
+        + "insert node <" + DeltaEncoder.APPENDED_ELEMENT + " location=\"{$location}\">{ parse-xml-fragment($data) }</"
+        + DeltaEncoder.APPENDED_ELEMENT + "> as last into db:open($db, $doc)/*";
+
+    /**
+     * The element streamed appends are wrapped in while they are parsed so that
+     * the fragment may have any number of top level nodes.
+     */
+    private static final String APPEND_WRAPPER_ELEMENT = "xmldb-append";
+
+    /**
+     * The name the root element of our document is renamed to once stored if it
+     * can not be read as it is, such as when subtrees are deduplicated or it is
+     * stored as the differences from a baseline.  Tools
+     * such as the ModelInterface then do not find it as a scenario rather than
+     * finding a scenario with its data missing.  The original name is kept in the
+     * ROOT_NAME_ATTRIBUTE and is restored by SubtreeDedup.RESOLVE_FUNCTION.
+     */
+    public static final String ENCODED_ROOT_ELEMENT = "xmldb-encoded";
+    public static final String ROOT_NAME_ATTRIBUTE = "xmldb-root-name";
+
+    /**
+     * The number of chunks and chunk size of the pipe used for streamed appends.
+     * Appended data is typically much smaller than the scenario so these are
+     * more modest than the pipe GCAM writes the scenario through.
+     */
+    private static final int APPEND_PIPE_DEPTH = 4;
+    private static final int APPEND_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Used to give each scratch database built from SAX events a unique name.
+     */
+    private static final AtomicInteger sScratchCounter = new AtomicInteger();
+
+    /**
+     * The pipe a streamed append is being written to or null if no streamed
+     * append is in progress.
+     */
+    private ChunkPipe mAppendPipe = null;
+
+    /**
+     * The location the current streamed append will be inserted after.
+     */
+    private String mAppendLocation = null;
+
+    /**
+     * The thread parsing the current streamed append into a temporary database.
+     */
+    private Thread mAppendThread = null;
+
+    /**
+     * The context the current streamed append is parsed with.  It must be kept
+     * open until the data has been inserted as an in-memory database is discarded
+     * once closed.
+     */
+    private volatile Context mAppendContext = null;
+
+    /**
+     * If parsing the current streamed append succeeded.
+     */
+    private volatile boolean mAppendParsed = false;
+
+    /**
+     * The file to write the series store to or null if series should not be
+     * extracted.
+     */
+    private File mSeriesStoreFile = null;
+
+    /**
+     * The extractors collecting series from the document and each of the shards.
+     */
+    private final List<SeriesExtractor> mSeriesExtractors = new CopyOnWriteArrayList<SeriesExtractor>();
+
+    /**
+     * If the series are extracted before the data reaches us in which case the
+     * streams we read are not scanned again.
+     */
+    private boolean mSeriesTeedUpstream = false;
+
+    /**
+     * The directory new subtrees are written to until they are added to the database
+     * or null if subtrees are not being deduplicated.
+     */
+    private volatile File mSubtreeSpoolDir = null;
+
+    /**
+     * The hashes of the subtrees in the database or in the spool directory.
+     */
+    private final Set<String> mKnownSubtrees = Collections.synchronizedSet( new HashSet<String>() );
+
+    /**
+     * If subtrees are being deduplicated, in which case queries need them resolved.
+     */
+    private boolean mDedupSubtrees = false;
+
+    /**
+     * If the root element of our document has been renamed, see markEncoded.
+     */
+    private volatile boolean mEncoded = false;
+
+    /**
+     * If the resolved view given to queries should include all of the documents
+     * in the database rather than just ours.
+     */
+    private boolean mResolveAllDocs = false;
+
+    /**
+     * The pending load of the baseline index if our document is to be stored as
+     * the differences from a baseline otherwise null.  The result will be null if
+     * the baseline could not be loaded in which case it is stored in full.
+     */
+    private Future<DeltaEncoder.BaselineIndex> mBaselineLoad = null;
+
+    /**
+     * If writing the data was canceled in which case no series store is written.
      */
-    private final String mDocName;
+    private volatile boolean mCanceled = false;
+
+    /**
+     * If the data sent from GCAM was added to the database and if any part of
+     * storing it, such as a shard or the new subtrees, failed.  See isStored.
+     */
+    private volatile boolean mAdded = false;
+    private volatile boolean mHadStoreError = false;
 
     /**
      * Constructor which will open the DB and get ready to receive XML to put
@@ -95,9 +398,12 @@ public class WriteLocalBaseXDB implements Runnable {
      * @param aOpenDBWait A timeout in seconds to wait for user intervention before
      *                    attempting to write to a DB which appears to be open. A
      *                    negative value indicates to wait indefinately.
+     * @param aConfig The XMLDBDriver configuration which may override some of the
+     *                BaseX options used while adding data.
      */
     public WriteLocalBaseXDB( final String aDBLocation, final String aDocName,
-                              final boolean aInMemoryDB, final int aOpenDBWait ) throws Exception
+                              final boolean aInMemoryDB, final int aOpenDBWait,
+                              final Properties aConfig ) throws Exception
     {
         // Set the DB location and doc name.
         // Opening a DB in memory while having a DB location pointing to an actual on
@@ -106,13 +412,48 @@ public class WriteLocalBaseXDB implements Runnable {
         final String IN_MEM_DB_NAME = "./__IN_MEMORY_DB_CONTAINER__";
         mDBLocation = aInMemoryDB ? IN_MEM_DB_NAME : aDBLocation;
         mDocName = aDocName;
+        mInMemoryDB = aInMemoryDB;
 
         if ( aInMemoryDB ) {
             System.out.println("Opening in-memory database");
         }
 	
         // Open the database
-        openDB( aInMemoryDB, aOpenDBWait );
+        openDB( aInMemoryDB, aOpenDBWait, aConfig );
+        protectBaseline();
+    }
+
+    /**
+     * Make sure we do not add a second document with the name of one which other
+     * documents are stored as the differences from as they could then no longer
+     * be reconstructed.  Our document is instead stored under the first free name
+     * of the form name-N.
+     */
+    private void protectBaseline() {
+        if( mContext == null ) {
+            return;
+        }
+        try {
+            final String db = quoteString( mContainerName );
+            final String doc = quoteString( mDocName );
+            final String isBaseline = new XQuery( "db:exists(" + db + ", " + doc + ") and exists(collection("
+                + db + ")/*[@" + DeltaEncoder.BASELINE_ATTRIBUTE + " = " + doc + "])" ).execute( mContext );
+            if( !isBaseline.trim().equals( "true" ) ) {
+                return;
+            }
+            int suffix = 2;
+            while( new XQuery( "db:exists(" + db + ", " + quoteString( mDocName + "-" + suffix ) + ")" )
+                   .execute( mContext ).trim().equals( "true" ) )
+            {
+                ++suffix;
+            }
+            System.err.println( "WARNING: " + mDocName + " is the baseline of other documents, storing this run as "
+                                + mDocName + "-" + suffix + " instead." );
+            mDocName = mDocName + "-" + suffix;
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
     }
 
     /**
@@ -132,6 +473,22 @@ public class WriteLocalBaseXDB implements Runnable {
         return mContext;
     }
 
+    /**
+     * Get the name of the database container the document is stored in.
+     * @return The container name.
+     */
+    public String getContainerName() {
+        return mContainerName;
+    }
+
+    /**
+     * Get the name of the document the XML is stored as.
+     * @return The document name.
+     */
+    public String getDocName() {
+        return mDocName;
+    }
+
     /**
      * Opens the database.  We will "Check" the database which will open it
      * if it already exists or create a new one otherwise.
@@ -139,8 +496,10 @@ public class WriteLocalBaseXDB implements Runnable {
      * @param aOpenDBWait A timeout in seconds to wait for user intervention before
      *                    attempting to write to a DB which appears to be open. A
      *                    negative value indicates to wait indefinately.
+     * @param aConfig The XMLDBDriver configuration which may override some of the
+     *                BaseX options.
      */
-    private void openDB( final boolean aInMemoryDB, final int aOpenDBWait ) throws Exception {
+    private void openDB( final boolean aInMemoryDB, final int aOpenDBWait, final Properties aConfig ) throws Exception {
         // We need to seperate the path to the DB and the container name (last name in the path)
         File dbLocationFile = new File( mDBLocation ).getAbsoluteFile();
         // The path may be a relative path so we must convert it to absolute here.
@@ -153,26 +512,34 @@ public class WriteLocalBaseXDB implements Runnable {
             System.out.println( "WARNING: container name '"+containerNameUnmodified+
                     "' contains invalid characters, it has been changed to: '"+containerName+"'" );
         }
+        mContainerName = containerName;
+        mDBPath = path;
+        mDBKey = DBSessionPool.getKey( path, containerName, aInMemoryDB );
 
-        // The db Context will check the org.basex.DBPATH property when it is created
-        // and use it as the base path for finding all collections/containers
-        System.setProperty( "org.basex.DBPATH", path );
-        mContext = new Context();
+        // The database is no longer idle, if it is being indexed wait for that
+        // to finish.
+        IndexBuilder.cancelIdleBuild( mDBKey );
+
+        // Reuse the database if a previous scenario has already opened it in
+        // this process.
+        if( Boolean.parseBoolean( aConfig.getProperty( "reuse-db-session", "false" ) ) ) {
+            mPoolKey = mDBKey;
+            Context pooledContext = DBSessionPool.acquire( mPoolKey );
+            if( pooledContext != null ) {
+                mContext = pooledContext;
+                setParseOptions( aConfig );
+                return;
+            }
+        }
+
+        mContext = createContext( path );
 
         // Set some default behaviors
-        // TODO: experiment with these to see which gives us the best performance
         // Turn off all indexing
         mContext.options.set( MainOptions.ATTRINDEX, false );
         mContext.options.set( MainOptions.FTINDEX, false );
         mContext.options.set( MainOptions.UPDINDEX, false );
-
-        // Strip whitespace for internal representation
-        mContext.options.set( MainOptions.CHOP, true );
-        // Write data to disk as data is added to the DB rather than keeping it all
-        // in memory. This is useful for large documents such as from GCAM.
-        mContext.options.set( MainOptions.ADDCACHE, true );
-        // Use the internal BaseX XML parser which is faster than the Java default.
-        mContext.options.set( MainOptions.INTPARSE, true );
+        setParseOptions( aConfig );
         // Open the database in memory if requested.
         mContext.options.set( MainOptions.MAINMEM, aInMemoryDB );
 
@@ -202,126 +569,1075 @@ public class WriteLocalBaseXDB implements Runnable {
         // The Check command will open the database if it already exists or
         // create a new one otherwise.
         new Check( containerName ).execute( mContext );
+
+        if( mPoolKey != null && !DBSessionPool.register( mPoolKey, mContext ) ) {
+            // the process is shutting down so do not keep it open
+            mPoolKey = null;
+        }
     }
 
     /**
-     * Connect the PipedInputStream to the given PipedOutputStream to recieve the
-     * XML data through.  Note that the data may be filtered before arriving here.
-     * @param aOutputStream The PipedOutputStream to connect to.
+     * Create a new database context for the databases in the given directory.
+     * @param aPath The absolute path to the directory containing the databases.
+     * @return The new context.
      */
-    public void setInputStream( PipedOutputStream aOutputStream ) throws IOException {
-        // Only need to connect one end of the pipe and the other will
-        // automatically be connected as well.
-        aOutputStream.connect( mWriteToDBStream );
+    static Context createContext( final String aPath ) {
+        // The db Context will check the org.basex.DBPATH property when it is created
+        // and use it as the base path for finding all collections/containers.  As this
+        // is a global property we must ensure only one context is created at a time
+        // as spools may be loaded into different databases in parallel.
+        synchronized( WriteLocalBaseXDB.class ) {
+            System.setProperty( "org.basex.DBPATH", aPath );
+            return new Context();
+        }
     }
 
     /**
-     * Start the worker thread for adding the data as GCAM will start sending
-     * it soon.
+     * Check if the given database is "pinned" or open already, possibly by another
+     * process.
+     * @param aDBLocation The location of the database to check.
+     * @return True if the database is open elsewhere.
      */
-    public void start() {
-        // Start the add on a new thread which will add the XML as GCAM
-        // produces it.
-        mWorkerThread.start();
+    public static boolean isPinned( final String aDBLocation ) throws Exception {
+        File dbLocationFile = new File( aDBLocation ).getAbsoluteFile();
+        Context context = createContext( dbLocationFile.getParentFile().getCanonicalPath() );
+        try {
+            return context.pinned( IO.get( dbLocationFile.getName() ).dbName() );
+        }
+        finally {
+            context.close();
+        }
     }
 
     /**
-     * Cancel writing the data to the DB presumably because there was
-     * an error.
+     * Set the options which control how data is parsed as it is added.  These
+     * are set for each document as the context may be reused from a previous
+     * scenario.
+     * @param aConfig The XMLDBDriver configuration which may override some of the
+     *                BaseX options.
      */
-    public void cancel() {
-        // Set the flag that the thread should stop.
-        mWorkerThread.interrupt();
+    private void setParseOptions( final Properties aConfig ) {
+        // The parsing options may be overridden in the configuration so that their
+        // performance can be compared, see the XMLDBDriver benchmarks.
+        // Strip whitespace for internal representation
+        mChop = Boolean.parseBoolean( aConfig.getProperty( "basex-chop", "true" ) );
+        mContext.options.set( MainOptions.CHOP, mChop );
+        // Write data to disk as data is added to the DB rather than keeping it all
+        // in memory. This is useful for large documents such as from GCAM.
+        mContext.options.set( MainOptions.ADDCACHE,
+                Boolean.parseBoolean( aConfig.getProperty( "basex-addcache", "true" ) ) );
+        // Use the internal BaseX XML parser which is faster than the Java default.
+        mIntParse = Boolean.parseBoolean( aConfig.getProperty( "basex-intparse", "true" ) );
+        mContext.options.set( MainOptions.INTPARSE, mIntParse );
+    }
 
-        // Only need to stop the add command if it has started
-        if( mAddCommand != null ) {
-            // Signal the command that it should stop.
-            mAddCommand.stop();
-        }
+    /**
+     * Set the stream to recieve the XML data through.  Note that the data may be
+     * filtered before arriving here.
+     * @param aInputStream The stream to read from, typically the consumer end of
+     *                     a ChunkPipe.
+     */
+    public void setInputStream( InputStream aInputStream ) {
+        mWriteToDBStream = aInputStream;
     }
 
     /**
-     * Notify that no more XML from GCAM will be sent.  This method
-     * will wait until all of the data has been stored to the DB before
-     * returning.
+     * Set a source of SAX events to build the document from instead of reading
+     * XML from an input stream.  This is used to take the results of a filter
+     * without having to serialize and then parse them again.
+     * @param aSAXSource The source of the SAX events.
      */
-    public void finish() {
+    public void setSAXSource( SAXSource aSAXSource ) {
+        mSAXSource = aSAXSource;
+    }
+
+    /**
+     * Extract the year to value series as the data is added and write them to a
+     * series store once it is all stored.  Note data appended afterwards, with
+     * appendData etc, is not included.
+     * @param aStoreDir The directory to write the series store to.  The file is
+     *                  named by the container and document, see SeriesStore.getStoreFile.
+     */
+    public void enableSeriesStore( final File aStoreDir ) {
+        mSeriesStoreFile = SeriesStore.getStoreFile( aStoreDir, mContainerName, mDocName );
+    }
+
+    /**
+     * Get the file the series store will be written to.
+     * @return The series store file or null if series are not being extracted.
+     */
+    public File getSeriesStoreFile() {
+        return mSeriesStoreFile;
+    }
+
+    /**
+     * Store subtrees which are identical to ones already in the database only once.
+     * The XML that arrives through the input stream should then be the document
+     * with stubs created by SubtreeDedup which uses this class as its SubtreeTarget.
+     * The new subtrees are written to a temporary directory and added to the database
+     * along with the document.
+     * @param aResolveAllDocs If the view given to queries, see openResolvedView,
+     *                        should include all of the documents in the database
+     *                        rather than just ours.
+     */
+    public void enableSubtreeDedup( final boolean aResolveAllDocs ) throws Exception {
+        mDedupSubtrees = true;
+        mResolveAllDocs = aResolveAllDocs;
+        if( mContext == null ) {
+            return;
+        }
+        mSubtreeSpoolDir = Files.createTempDirectory( "xmldb-subtrees" ).toFile();
+
+        final String listQuery = "declare variable $db external; db:list($db, '" + SubtreeDedup.STORE_PATH + "')";
+        QueryProcessor queryProc = new QueryProcessor( listQuery, mContext );
         try {
-            // This will block until the database is done storing
-            // the data sent from GCAM.
-            mWorkerThread.join();
+            queryProc.bind( "db", mContainerName );
+            Iter paths = queryProc.iter();
+            for( Item path; ( path = paths.next() ) != null; ) {
+                String name = new File( new String( path.string( null ), "UTF-8" ) ).getName();
+                if( name.endsWith( ".xml" ) ) {
+                    mKnownSubtrees.add( name.substring( 0, name.length() - ".xml".length() ) );
+                }
+            }
         }
-        catch( InterruptedException interruptError ) {
-            interruptError.printStackTrace();
+        finally {
+            queryProc.close();
         }
     }
 
     /**
-     * GCAM is done potentially adding any more data and any potential queries
-     * have been run so we can go ahead and close the database.
+     * Check if a subtree is already in the database or waiting to be added.
+     * @param aHash The hash of the subtree.
+     * @return True if it has been stored.
      */
-    public void close() {
-        try {
-            // close the database
-            if( mContext != null ) {
-                new Close().execute( mContext );
-                mContext = null;
-            }
+    public boolean hasSubtree( final String aHash ) {
+        return mKnownSubtrees.contains( aHash );
+    }
+
+    /**
+     * Open a new subtree which will be added to the database once all of the data
+     * has arrived.
+     * @param aHash The hash of the subtree.
+     * @return The stream to write the subtree to.
+     */
+    public OutputStream openSubtree( final String aHash ) throws IOException {
+        if( mSubtreeSpoolDir == null ) {
+            throw new IOException( "Subtree deduplication has not been enabled" );
         }
-        catch( Exception error ) {
-            error.printStackTrace();
+        if( mCanceled ) {
+            throw new IOException( "Writing the data was canceled" );
         }
+        mKnownSubtrees.add( aHash );
+        return new BufferedOutputStream( new FileOutputStream( new File( mSubtreeSpoolDir, aHash + ".xml" ) ) );
     }
 
     /**
-     * Sets up the Add command to add the XML to the database as it becomes
-     * available from GCAM.  The run function implements the Runnable interface
-     * so that it may run on a new thread.  We must do this off of the main
-     * thread to avoid deadlock.
+     * Add the new subtrees to the database unless writing the data was canceled
+     * and remove the temporary directory.
      */
-    public void run() {
+    private synchronized void storeSubtrees() {
+        if( mSubtreeSpoolDir == null ) {
+            return;
+        }
+        File[] subtreeFiles = mSubtreeSpoolDir.listFiles();
         try {
-            mAddCommand = new Add( mDocName );
-            mAddCommand.setInput( mWriteToDBStream );
-            mAddCommand.execute( mContext );
+            if( !mCanceled && mContext != null && subtreeFiles != null && subtreeFiles.length > 0 ) {
+                new Add( SubtreeDedup.STORE_PATH, mSubtreeSpoolDir.getPath() ).execute( mContext );
+            }
         }
         catch( Exception error ) {
             error.printStackTrace();
+            mHadStoreError = true;
         }
         finally {
-            try {
-                mWriteToDBStream.close();
-            }
-            catch( IOException ioError ) {
-                // ignore
+            if( subtreeFiles != null ) {
+                for( File subtreeFile : subtreeFiles ) {
+                    subtreeFile.delete();
+                }
             }
+            mSubtreeSpoolDir.delete();
+            mSubtreeSpoolDir = null;
         }
     }
 
     /**
-     * Updates the existing document by inserting the given data after the
-     * given location.
-     * @param aData The XML data to insert.
-     * @param aLocation An XPath that describes where to insert the data after.
-     * @return True if the data was successfully updated, false otherwise.
+     * Get the name of the in memory database which holds the resolved view of the
+     * documents.
+     * @return The name of the view database.
      */
-    public boolean appendData( final String aData, final String aLocation ) {
-        if( mContext == null ) {
-            // Failed to open the database, an error would have already been printed.
-            return false;
-        }
+    public String getResolvedViewName() {
+        return ( mContainerName + "_" + mDocName ).replaceAll( "[^A-Za-z0-9_-]", "_" ) + "_resolved";
+    }
 
-        boolean noError = true;
+    /**
+     * Open a view of our document, or all of the documents if configured, with the
+     * subtrees stored by SubtreeDedup resolved and the documents stored as the
+     * differences from a baseline reconstructed for queries to run against.  The
+     * view is an in memory database named getResolvedViewName() which is opened
+     * in the returned context.  It must be closed with closeResolvedView.
+     * @return The context with the view opened or null if neither subtrees nor
+     *         differences are being stored or the view could not be created.
+     */
+    public Context openResolvedView() {
+        if( ( !mDedupSubtrees && mBaselineLoad == null ) || mContext == null ) {
+            return null;
+        }
+        final long startTime = System.nanoTime();
+        // The context is derived from ours so that our database is visible to it
+        // while the view is created.
+        Context viewContext = new Context( mContext );
+        viewContext.options.set( MainOptions.MAINMEM, true );
+        try {
+            new CreateDB( getResolvedViewName() ).execute( viewContext );
+            final String declarations = SubtreeDedup.RESOLVE_FUNCTION
+                + "declare variable $db external; declare variable $doc external; "
+                + "declare variable $view external; declare variable $all external; ";
+            final String paths = "for $path in if( $all ) then db:list($db)[not(starts-with(., '"
+                + SubtreeDedup.STORE_PATH + "'))] else $doc ";
+            final String isDelta = "exists(db:open($db, $path)/*/@" + DeltaEncoder.BASELINE_ATTRIBUTE + ")";
+            QueryProcessor queryProc = new QueryProcessor( declarations + paths + "where not(" + isDelta + ") "
+                + "return db:add($view, local:resolve-subtrees($db, db:open($db, $path)), $path)", viewContext );
+            try {
+                bindViewVariables( queryProc );
+                queryProc.value();
+            }
+            finally {
+                queryProc.close();
+            }
+
+            // The differences can only be merged with the baseline as it streams by.
+            List<String> deltaPaths = new ArrayList<String>();
+            queryProc = new QueryProcessor( declarations + paths + "where " + isDelta + " return $path", viewContext );
+            try {
+                bindViewVariables( queryProc );
+                Iter pathIter = queryProc.iter();
+                for( Item path; ( path = pathIter.next() ) != null; ) {
+                    deltaPaths.add( new String( path.string( null ), "UTF-8" ) );
+                }
+            }
+            finally {
+                queryProc.close();
+            }
+            for( String deltaPath : deltaPaths ) {
+                try {
+                    addMergedDocument( viewContext, deltaPath );
+                }
+                catch( Exception error ) {
+                    error.printStackTrace();
+                    System.err.println( "ERROR: Could not reconstruct " + deltaPath
+                                        + " from its baseline, it is left out of the queries." );
+                }
+            }
+            System.out.println( "Resolved documents for queries in " + ( System.nanoTime() - startTime ) / 1000000 + " ms" );
+            return viewContext;
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            closeResolvedView( viewContext );
+            return null;
+        }
+    }
+
+    /**
+     * Bind the external variables of the queries used to create the resolved view.
+     * @param aQueryProc The query to bind the variables of.
+     */
+    private void bindViewVariables( final QueryProcessor aQueryProc ) throws Exception {
+        aQueryProc.bind( "db", mContainerName );
+        aQueryProc.bind( "doc", mDocName );
+        aQueryProc.bind( "view", getResolvedViewName() );
+        aQueryProc.bind( "all", mResolveAllDocs );
+    }
+
+    /**
+     * Reconstruct a document stored as the differences from a baseline and add it
+     * to the resolved view.  The baseline is merged as it is read on a separate
+     * thread and any data appended to the document is then inserted.
+     * @param aViewContext The context with the view opened.
+     * @param aPath The path of the document.
+     */
+    private void addMergedDocument( final Context aViewContext, final String aPath ) throws Exception {
+        DeltaMerger merger = new DeltaMerger();
+        OutputStream deltaStream = merger.getDeltaStream();
+        serializeResolved( aPath, deltaStream );
+        deltaStream.close();
+
+        final String baselineName = merger.getBaselineName();
+        final ChunkPipe mergePipe = new ChunkPipe( APPEND_PIPE_DEPTH, APPEND_CHUNK_SIZE );
+        final OutputStream baselineStream = merger.getBaselineStream( mergePipe.getOutputStream() );
+        Thread baselineThread = new Thread( new Runnable() {
+            public void run() {
+                try {
+                    serializeResolved( baselineName, baselineStream );
+                    baselineStream.close();
+                }
+                catch( Exception error ) {
+                    error.printStackTrace();
+                    // make sure the view does not wait on us forever
+                    mergePipe.cancel();
+                }
+            }
+        }, "XMLDBDriver baseline merge" );
+        baselineThread.start();
+        try {
+            Add addMerged = new Add( aPath );
+            addMerged.setInput( mergePipe.getInputStream() );
+            addMerged.execute( aViewContext );
+        }
+        catch( Exception error ) {
+            // make sure the baseline does not wait on us forever
+            mergePipe.cancel();
+            throw error;
+        }
+        finally {
+            baselineThread.join();
+        }
+
+        for( String[] appended : merger.getAppended() ) {
+            QueryProcessor queryProc = new QueryProcessor( getAppendQuery( appended[ 0 ] ), aViewContext );
+            try {
+                queryProc.bind( "db", getResolvedViewName() );
+                queryProc.bind( "doc", aPath );
+                queryProc.bind( "data", appended[ 1 ] );
+                queryProc.value();
+            }
+            finally {
+                queryProc.close();
+            }
+        }
+    }
+
+    /**
+     * Write out a document with any subtrees stored by SubtreeDedup resolved.
+     * @param aDocName The name of the document.
+     * @param aOutputStream Where to write the document.
+     */
+    private void serializeResolved( final String aDocName, final OutputStream aOutputStream ) throws Exception {
+        final String db = quoteString( mContainerName );
+        new XQuery( SubtreeDedup.RESOLVE_FUNCTION + "declare option output:indent 'no'; "
+                    + "local:resolve-subtrees(" + db + ", db:open(" + db + ", " + quoteString( aDocName ) + "))" )
+            .execute( mContext, aOutputStream );
+    }
+
+    /**
+     * Quote a string to be used as a literal in an XQuery.
+     * @param aValue The string to quote.
+     * @return The string literal.
+     */
+    private static String quoteString( final String aValue ) {
+        return "'" + aValue.replace( "&", "&amp;" ).replace( "'", "''" ) + "'";
+    }
+
+    /**
+     * Store our document as the differences from the given baseline document, see
+     * DeltaEncoder.  The baseline is checked and indexed on a separate thread which
+     * the data will wait on before it is stored.  The XML that arrives through the
+     * input stream should then be the differences.  Data appended to the document
+     * is kept to one side until the document is reconstructed, see DeltaMerger.
+     * @param aBaselineDoc The name of the baseline document.
+     * @param aResolveAllDocs If the view given to queries, see openResolvedView,
+     *                        should include all of the documents in the database
+     *                        rather than just ours.
+     * @param aMaxIndexBytes The most memory in bytes the index of the baseline may
+     *                       use, see DeltaEncoder.BaselineIndex.
+     * @return The pending index of the baseline which will be null if it could
+     *         not be loaded in which case the document should be stored in full.
+     */
+    public Future<DeltaEncoder.BaselineIndex> loadBaseline( final String aBaselineDoc, final boolean aResolveAllDocs,
+                                                            final long aMaxIndexBytes )
+    {
+        mResolveAllDocs = aResolveAllDocs;
+        FutureTask<DeltaEncoder.BaselineIndex> baselineLoad = new FutureTask<DeltaEncoder.BaselineIndex>(
+            new Callable<DeltaEncoder.BaselineIndex>() {
+                public DeltaEncoder.BaselineIndex call() {
+                    try {
+                        final String problem = checkBaseline( aBaselineDoc );
+                        if( problem != null ) {
+                            System.err.println( "WARNING: " + problem + ", storing " + mDocName + " in full." );
+                            return null;
+                        }
+                        final long startTime = System.nanoTime();
+                        DeltaEncoder.BaselineIndex baseline = new DeltaEncoder.BaselineIndex( aMaxIndexBytes );
+                        OutputStream baselineStream = baseline.getOutputStream();
+                        serializeResolved( aBaselineDoc, baselineStream );
+                        baselineStream.close();
+                        System.out.println( "Indexed " + baseline.size() + " elements of the baseline " + aBaselineDoc
+                                            + " in " + ( System.nanoTime() - startTime ) / 1000000 + " ms using "
+                                            + baseline.getMemoryUsed() / ( 1024 * 1024 ) + " MB" );
+                        return baseline;
+                    }
+                    catch( Exception error ) {
+                        error.printStackTrace();
+                        System.err.println( "WARNING: Could not index the baseline " + aBaselineDoc + ", storing "
+                                            + mDocName + " in full." );
+                        return null;
+                    }
+                }
+            } );
+        mBaselineLoad = baselineLoad;
+        if( mContext == null ) {
+            baselineLoad.run();
+        }
+        else {
+            new Thread( baselineLoad, "XMLDBDriver baseline index" ).start();
+        }
+        return baselineLoad;
+    }
+
+    /**
+     * Check that the given document can be used as a baseline.
+     * @param aBaselineDoc The name of the baseline document.
+     * @return Why it can not be used or null if it can.
+     */
+    private String checkBaseline( final String aBaselineDoc ) throws Exception {
+        if( mContext == null ) {
+            return "The database is not open";
+        }
+        if( aBaselineDoc.equals( mDocName ) ) {
+            return "The baseline " + aBaselineDoc + " is the document being stored";
+        }
+        final String db = quoteString( mContainerName );
+        final String status = new XQuery( "let $root := db:open(" + db + ", " + quoteString( aBaselineDoc ) + ")/* "
+            + "return if( empty( $root ) ) then 'missing' else if( count( $root ) > 1 ) then 'duplicate' "
+            + "else if( $root/@" + DeltaEncoder.BASELINE_ATTRIBUTE + " ) then 'delta' else ''" ).execute( mContext );
+        if( status.trim().equals( "missing" ) ) {
+            return "The baseline " + aBaselineDoc + " does not exist";
+        }
+        if( status.trim().equals( "duplicate" ) ) {
+            return "There is more than one document named " + aBaselineDoc;
+        }
+        if( status.trim().equals( "delta" ) ) {
+            return "The baseline " + aBaselineDoc + " is itself stored as differences";
+        }
+        return null;
+    }
+
+    /**
+     * Check if our document is stored as the differences from a baseline.  This
+     * will wait for the baseline to be loaded.
+     * @return True if the document is stored as differences.
+     */
+    private boolean isStoredAsDelta() {
+        if( mBaselineLoad == null ) {
+            return false;
+        }
+        try {
+            return mBaselineLoad.get() != null;
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Close a view opened with openResolvedView.
+     * @param aViewContext The context returned by openResolvedView.
+     */
+    public void closeResolvedView( final Context aViewContext ) {
+        try {
+            new Close().execute( aViewContext );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+    }
+
+    /**
+     * Load region shards in parallel on the given number of workers.  The XML that
+     * arrives through the input stream should then be the skeleton document created
+     * by ShardByRegion which uses this class as it's ShardTarget.
+     * Each shard is parsed into it's own in memory database, regardless of the
+     * in-memory option, and copied into the document once all have been loaded.
+     * Note that BaseX also parses a document being added into memory before
+     * inserting it, unless ADDCACHE is set, so the copy only replaces that insert
+     * while the parsing is done in parallel.  At most aNumWorkers + 1 shards are
+     * buffered at once so the memory used by the shard pipes is bounded by
+     * ( aNumWorkers + 1 ) * aShardPipeDepth * aShardChunkSize.
+     * @param aNumWorkers The number of shards to load at the same time.
+     * @param aShardPipeDepth The number of chunks that may be buffered for each shard.
+     * @param aShardChunkSize The chunk size to use in the shard pipes.
+     */
+    public void enableSharding( final int aNumWorkers, final int aShardPipeDepth, final int aShardChunkSize ) {
+        mShardExecutor = Executors.newFixedThreadPool( aNumWorkers );
+        mShardSlots = new Semaphore( aNumWorkers + 1 );
+        mShardPipeDepth = aShardPipeDepth;
+        mShardChunkSize = aShardChunkSize;
+    }
+
+    /**
+     * Get the total number of bytes the shard workers have read so far.
+     * @return The number of bytes read into shards.
+     */
+    public long getShardBytesRead() {
+        long bytesRead = mMergedShardBytesRead;
+        for( ChunkPipe shardPipe : mShardPipes ) {
+            bytesRead += shardPipe.getBytesRead();
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Get the total time the shard workers have spent waiting for data.
+     * @return The time blocked in nanoseconds.
+     */
+    public long getShardBlockedNanos() {
+        long blockedNanos = mMergedShardBlockedNanos;
+        for( ChunkPipe shardPipe : mShardPipes ) {
+            blockedNanos += shardPipe.getConsumerBlockedNanos();
+        }
+        return blockedNanos;
+    }
+
+    /**
+     * Get the name of the temporary database a shard is loaded into.
+     * @param aShardID The id of the shard.
+     * @return The name of the shard database.
+     */
+    private String getShardDBName( final int aShardID ) {
+        return getShardDBPrefix() + aShardID;
+    }
+
+    /**
+     * Get the common prefix of all of the shard database names for this document.
+     * @return The shard database name prefix.
+     */
+    private String getShardDBPrefix() {
+        return ( mContainerName + "_" + mDocName ).replaceAll( "[^A-Za-z0-9_-]", "_" ) + "_shard";
+    }
 
-        // Add the document name to get the full location path
-        String fullLocation = "collection()[matches(document-uri(.), '" + mDocName + "')]" + aLocation;
+    /**
+     * Open a new shard which will be loaded into it's own temporary database by
+     * one of the shard workers as the data is written.  If all of the workers
+     * are busy the data will be buffered until one becomes available.
+     * @param aShardID The id of the shard.
+     * @return The stream to write the shard to.
+     */
+    public OutputStream openShard( final int aShardID ) throws IOException {
+        if( mShardExecutor == null ) {
+            throw new IOException( "Sharding has not been enabled" );
+        }
+        if( mShardLoadStartTime == 0 ) {
+            mShardLoadStartTime = System.nanoTime();
+        }
+        try {
+            mShardSlots.acquire();
+        }
+        catch( InterruptedException interruptError ) {
+            throw new IOException( "Interrupted waiting for a shard worker" );
+        }
+        final ChunkPipe shardPipe = new ChunkPipe( mShardPipeDepth, mShardChunkSize );
+        final String shardDBName = getShardDBName( aShardID );
+        mShardPipes.add( shardPipe );
+        mShardLoads.add( mShardExecutor.submit( new Runnable() {
+            public void run() {
+                try {
+                    // Each worker needs it's own context however it is derived from
+                    // ours so that the shards are visible to it when we merge.
+                    Context shardContext = new Context( mContext );
+                    mShardContexts.add( shardContext );
+                    shardContext.options.set( MainOptions.CHOP, mChop );
+                    shardContext.options.set( MainOptions.INTPARSE, mIntParse );
+                    // The shard is only kept until it is merged so writing it to
+                    // disk would just store the data twice.
+                    shardContext.options.set( MainOptions.MAINMEM, true );
+                    CreateDB createShard = new CreateDB( shardDBName );
+                    createShard.setInput( teeToSeriesExtractor( shardPipe.getInputStream() ) );
+                    createShard.execute( shardContext );
+                }
+                catch( Exception error ) {
+                    error.printStackTrace();
+                    mHadStoreError = true;
+                    // make sure the splitter does not wait on us forever
+                    shardPipe.cancel();
+                }
+                finally {
+                    mShardSlots.release();
+                }
+            }
+        } ) );
+        return shardPipe.getOutputStream();
+    }
 
-        // Construct the insert statement
-        String insertStatement = "insert node (" + aData + ") after " + fullLocation;
+    /**
+     * Wait for all of the shards to be loaded then replace each placeholder in the
+     * document with the corresponding shard and close the temporary shard databases.
+     * This is done in a single update and only copies the already built nodes so
+     * it is much quicker than parsing the regions would have been.
+     */
+    private void mergeShards() {
+        for( Future<?> shardLoad : mShardLoads ) {
+            try {
+                shardLoad.get();
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+            }
+        }
+        mShardExecutor.shutdown();
+        mShardExecutor = null;
+        if( mShardLoads.isEmpty() || mContext == null ) {
+            return;
+        }
+        final long mergeStartTime = System.nanoTime();
 
-        // Run the statement
-        QueryProcessor queryProc = new QueryProcessor( insertStatement, mContext );
+        // Any shard which failed to load will not exist and it's placeholder will be
+        // left in place so that it is clear data is missing.
+        final String mergeQuery = "declare variable $db external; declare variable $doc external; "
+            + "declare variable $prefix external; "
+            + "for $placeholder in db:open($db, $doc)/scenario/world/" + ShardByRegion.PLACEHOLDER_ELEMENT + " "
+            + "let $shard := concat($prefix, $placeholder/@id) "
+            + "where db:exists($shard) "
+            + "return replace node $placeholder with db:open($shard)/*";
+        QueryProcessor queryProc = new QueryProcessor( mergeQuery, mContext );
         try {
+            queryProc.bind( "db", mContainerName );
+            queryProc.bind( "doc", mDocName );
+            queryProc.bind( "prefix", getShardDBPrefix() );
+            queryProc.value();
+        }
+        catch( Exception queryError ) {
+            queryError.printStackTrace();
+            mHadStoreError = true;
+        }
+        finally {
+            queryProc.close();
+        }
+
+        // Report how long the serial merge took relative to the parallel loads
+        // so that it is clear if sharding is paying off.
+        final long endTime = System.nanoTime();
+        System.out.println( "Loaded " + mShardLoads.size() + " shards in "
+                            + ( mergeStartTime - mShardLoadStartTime ) / 1000000 + " ms and merged them in "
+                            + ( endTime - mergeStartTime ) / 1000000 + " ms" );
+        mShardLoadStartTime = 0;
+
+        // Now we can close and throw away the shards which being in memory are
+        // discarded once closed.
+        for( Context shardContext : mShardContexts ) {
+            try {
+                new Close().execute( shardContext );
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+            }
+        }
+        // Keep the totals from the shard pipes before letting them go.
+        mMergedShardBytesRead = getShardBytesRead();
+        mMergedShardBlockedNanos = getShardBlockedNanos();
+        mShardLoads.clear();
+        mShardPipes.clear();
+        mShardContexts.clear();
+    }
+
+    /**
+     * Start the worker thread for adding the data as GCAM will start sending
+     * it soon.
+     */
+    public void start() {
+        // Start the add on a new thread which will add the XML as GCAM
+        // produces it.
+        mWorkerThread.start();
+    }
+
+    /**
+     * Cancel writing the data to the DB presumably because there was
+     * an error.
+     */
+    public void cancel() {
+        // Set the flag that the thread should stop.
+        mWorkerThread.interrupt();
+        mCanceled = true;
+
+        // Only need to stop the add command if it has started
+        if( mAddCommand != null ) {
+            // Signal the command that it should stop.
+            mAddCommand.stop();
+        }
+
+        // Stop loading any shards
+        for( ChunkPipe shardPipe : mShardPipes ) {
+            shardPipe.cancel();
+        }
+        if( mShardExecutor != null ) {
+            mShardExecutor.shutdownNow();
+        }
+
+        // Stop any streamed append
+        if( mAppendPipe != null ) {
+            mAppendPipe.cancel();
+        }
+
+        // Throw away any new subtrees as the document referring to them is incomplete
+        if( mSubtreeSpoolDir != null ) {
+            storeSubtrees();
+        }
+    }
+
+    /**
+     * Notify that no more XML from GCAM will be sent.  This method
+     * will wait until all of the data has been stored to the DB before
+     * returning.
+     */
+    public void finish() {
+        try {
+            // This will block until the database is done storing
+            // the data sent from GCAM.
+            mWorkerThread.join();
+        }
+        catch( InterruptedException interruptError ) {
+            interruptError.printStackTrace();
+        }
+
+        // If the regions were split off we need to wait for them to be loaded
+        // too and put them back in the document.
+        if( mShardExecutor != null ) {
+            mergeShards();
+        }
+
+        // The document refers to the new subtrees so they must be added too.
+        if( mSubtreeSpoolDir != null ) {
+            storeSubtrees();
+        }
+
+        // Make sure tools which can not resolve the subtrees or reconstruct the
+        // differences do not take the document for a scenario.
+        if( ( mDedupSubtrees || isStoredAsDelta() ) && mAdded && !mCanceled && mContext != null ) {
+            markEncoded();
+        }
+
+        if( mSeriesStoreFile != null ) {
+            writeSeriesStore();
+        }
+    }
+
+    /**
+     * Rename the root element of our document to ENCODED_ROOT_ELEMENT keeping the
+     * original name in the ROOT_NAME_ATTRIBUTE.
+     */
+    private void markEncoded() {
+        try {
+            QueryProcessor queryProc = new QueryProcessor( "declare variable $db external; declare variable $doc external; "
+                + "for $root in db:open($db, $doc)/* return ( "
+                + "insert node attribute " + ROOT_NAME_ATTRIBUTE + " { name($root) } into $root, "
+                + "rename node $root as '" + ENCODED_ROOT_ELEMENT + "' )", mContext );
+            try {
+                queryProc.bind( "db", mContainerName );
+                queryProc.bind( "doc", mDocName );
+                queryProc.value();
+            }
+            finally {
+                queryProc.close();
+            }
+            mEncoded = true;
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            mHadStoreError = true;
+        }
+    }
+
+    /**
+     * Get the location in our document as it is stored of a location in the full
+     * document.  Once the root element has been renamed, see markEncoded, the
+     * first step is made to match it whatever its name.
+     * @param aLocation An XPath from the root of the full document.
+     * @return The XPath to use in our document.
+     */
+    private String toStoredLocation( final String aLocation ) {
+        return mEncoded ? aLocation.replaceFirst( "^/[^/\\[]+", "/*" ) : aLocation;
+    }
+
+    /**
+     * Check that all of the data sent from GCAM was stored.  This should be called
+     * after finish and before close.  Besides checking that nothing failed along
+     * the way the document is looked up in the database to be sure it is there.
+     * @return True if the data was stored without error.
+     */
+    public boolean isStored() {
+        if( !mAdded || mHadStoreError || mCanceled || mContext == null ) {
+            return false;
+        }
+        try {
+            final String exists = new XQuery( "db:exists(" + quoteString( mContainerName ) + ", "
+                                              + quoteString( mDocName ) + ")" ).execute( mContext );
+            return exists.trim().equals( "true" );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Combine the series collected from the document and any shards and write
+     * them to the series store.
+     */
+    private void writeSeriesStore() {
+        if( mCanceled || mSeriesExtractors.isEmpty() ) {
+            return;
+        }
+        SeriesStoreWriter seriesWriter = null;
+        for( SeriesExtractor extractor : mSeriesExtractors ) {
+            if( extractor.hasFailed() ) {
+                System.err.println( "WARNING: Could not extract all of the series, not writing " + mSeriesStoreFile );
+                return;
+            }
+            if( seriesWriter == null ) {
+                seriesWriter = extractor.getWriter();
+            }
+            else {
+                seriesWriter.addAll( extractor.getWriter() );
+            }
+        }
+        mSeriesExtractors.clear();
+        try {
+            seriesWriter.write( mSeriesStoreFile );
+        }
+        catch( IOException error ) {
+            error.printStackTrace();
+        }
+    }
+
+    /**
+     * Start building the text and attribute indexes in the background now that
+     * the data has been stored, see IndexBuilder.  Any later append or call to
+     * awaitIndexes will wait for it.
+     */
+    public void buildIndexesAsync() {
+        if( mContext != null ) {
+            mIndexesStale = false;
+            mIndexBuild = IndexBuilder.buildAsync( mContext, mContainerName );
+        }
+    }
+
+    /**
+     * Wait for the indexes started with buildIndexesAsync to be built.  If data
+     * has been appended since, which drops the indexes, they are built again.
+     */
+    public void awaitIndexes() {
+        awaitIndexBuild();
+        if( mIndexesStale && mContext != null ) {
+            IndexBuilder.build( mContext, mContainerName );
+            mIndexesStale = false;
+        }
+    }
+
+    /**
+     * Wait for any pending build of the indexes before the database is updated.
+     * @return True if the indexes were being built.
+     */
+    private boolean awaitIndexBuild() {
+        final Future<?> indexBuild = mIndexBuild;
+        if( indexBuild == null ) {
+            return false;
+        }
+        try {
+            indexBuild.get();
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+        mIndexBuild = null;
+        return true;
+    }
+
+    /**
+     * Have the indexes built once the database has been idle for the given time
+     * after it is closed, see IndexBuilder.
+     * @param aIdleSeconds The number of seconds the database must be idle for.
+     */
+    public void indexWhenIdle( final int aIdleSeconds ) {
+        mIdleIndexSeconds = aIdleSeconds;
+    }
+
+    /**
+     * GCAM is done potentially adding any more data and any potential queries
+     * have been run so we can go ahead and close the database.
+     */
+    public void close() {
+        // clean up the new subtrees if finish was never reached
+        if( mSubtreeSpoolDir != null ) {
+            storeSubtrees();
+        }
+        final boolean wasOpen = mContext != null;
+        if( mPoolKey != null ) {
+            // leave the database open for the next scenario, it will be
+            // closed by XMLDBDriver.shutdown
+            if( mContext != null ) {
+                DBSessionPool.release( mPoolKey );
+                mContext = null;
+            }
+        }
+        else {
+            try {
+                // close the database
+                if( mContext != null ) {
+                    new Close().execute( mContext );
+                    mContext = null;
+                }
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+            }
+        }
+        if( wasOpen && mIdleIndexSeconds >= 0 ) {
+            IndexBuilder.scheduleIdleBuild( mDBKey, mDBPath, mContainerName, mInMemoryDB, mIdleIndexSeconds );
+        }
+    }
+
+    /**
+     * Sets up the Add command to add the XML to the database as it becomes
+     * available from GCAM.  The run function implements the Runnable interface
+     * so that it may run on a new thread.  We must do this off of the main
+     * thread to avoid deadlock.
+     */
+    public void run() {
+        try {
+            if( mContext == null ) {
+                // Failed to open the database, an error would have already been printed.
+                // The input is still closed below so that the stage feeding us stops.
+                return;
+            }
+            // The baseline is read from the database so it must be done before we
+            // start writing to it.
+            isStoredAsDelta();
+            if( mSAXSource != null ) {
+                if( mSeriesStoreFile != null ) {
+                    SeriesExtractor extractor = new SeriesExtractor();
+                    mSeriesExtractors.add( extractor );
+                    mSAXSource = new SAXSource( extractor.tee( mSAXSource.getXMLReader() ), mSAXSource.getInputSource() );
+                }
+                addFromSAXSource();
+            }
+            else {
+                mWriteToDBStream = teeToSeriesExtractor( mWriteToDBStream );
+                mAddCommand = new Add( mDocName );
+                mAddCommand.setInput( mWriteToDBStream );
+                mAddCommand.execute( mContext );
+            }
+            mAdded = true;
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+        }
+        finally {
+            try {
+                if( mWriteToDBStream != null ) {
+                    mWriteToDBStream.close();
+                }
+                else if( mSAXSource != null && mSAXSource.getInputSource().getByteStream() != null ) {
+                    mSAXSource.getInputSource().getByteStream().close();
+                }
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Have the data read from the given stream scanned for series if a series
+     * store has been enabled.
+     * @param aInputStream The stream the data will be read from.
+     * @return The stream to read the data from instead.
+     */
+    private InputStream teeToSeriesExtractor( final InputStream aInputStream ) {
+        if( mSeriesStoreFile == null || mSeriesTeedUpstream ) {
+            return aInputStream;
+        }
+        SeriesExtractor extractor = new SeriesExtractor();
+        mSeriesExtractors.add( extractor );
+        return extractor.tee( aInputStream );
+    }
+
+    /**
+     * Have the full data read from the given stream scanned for series before it
+     * reaches us, such as before subtrees are replaced by stubs.  The streams we
+     * read will then not be scanned.
+     * @param aInputStream The stream the data will be read from.
+     * @return The stream to read the data from instead.
+     */
+    InputStream teeUpstreamToSeriesExtractor( final InputStream aInputStream ) {
+        InputStream teedStream = teeToSeriesExtractor( aInputStream );
+        mSeriesTeedUpstream = true;
+        return teedStream;
+    }
+
+    /**
+     * Build the document from the SAX events of the SAX source then add it to the
+     * database.  The Add command only accepts serialized XML so the events are
+     * built into a scratch database with the BaseX SAX parser and the built nodes
+     * are then copied into our database, just as shards are merged.  The scratch
+     * database is only kept in memory, so the document is not written to disk
+     * twice, however it does mean the whole document is held on the heap while it
+     * is copied.
+     */
+    private void addFromSAXSource() throws Exception {
+        // The name must not collide with any other writer building a scratch
+        // database at the same time.
+        final String scratchDBName = ( mContainerName + "_" + mDocName ).replaceAll( "[^A-Za-z0-9_-]", "_" )
+            + "_sax" + sScratchCounter.incrementAndGet();
+        Context scratchContext = new Context( mContext );
+        scratchContext.options.set( MainOptions.MAINMEM, true );
+        Data scratchData = CreateDB.create( scratchDBName, new SAXWrapper( mSAXSource, scratchContext.options ),
+                                            scratchContext, scratchContext.options );
+        try {
+            final String addQuery = "declare variable $db external; declare variable $doc external; "
+                + "declare variable $node external; "
+                + "db:add($db, $node, $doc)";
+            QueryProcessor queryProc = new QueryProcessor( addQuery, mContext );
+            try {
+                queryProc.bind( "db", mContainerName );
+                queryProc.bind( "doc", mDocName );
+                queryProc.bind( "node", new DBNode( scratchData ) );
+                queryProc.value();
+            }
+            finally {
+                queryProc.close();
+            }
+        }
+        finally {
+            scratchData.close();
+        }
+    }
+
+    /**
+     * Updates the existing document by inserting the given data after the
+     * given location.  Note the data is parsed as XML, with parse-xml-fragment,
+     * rather than pasted into the query text as it once was.  So it must be a
+     * well formed XML fragment, which GCAM's output always is, and is no longer
+     * evaluated as an XQuery expression: curly braces are kept as text rather
+     * than run as enclosed expressions, and whitespace between elements is not
+     * dropped as boundary whitespace but only by the parser's chop option.
+     * @param aData The XML data to insert.
+     * @param aLocation An XPath that describes where to insert the data after.
+     * @return True if the data was successfully updated, false otherwise.
+     */
+    public boolean appendData( final String aData, final String aLocation ) {
+        if( mContext == null ) {
+            // Failed to open the database, an error would have already been printed.
+            return false;
+        }
+        mIndexesStale |= awaitIndexBuild();
+
+        boolean noError = true;
+
+        // The data is bound as an external variable rather than pasted into the
+        // query so that the query stays small whatever the size of the data.
+        // BaseX still compiles each QueryProcessor but that is now only the few
+        // lines of the query rather than the data as well.
+        final boolean isDelta = isStoredAsDelta();
+        QueryProcessor queryProc = new QueryProcessor( isDelta ? DELTA_APPEND_QUERY
+                                                               : getAppendQuery( toStoredLocation( aLocation ) ),
+                                                       mContext );
+        try {
+            queryProc.bind( "db", mContainerName );
+            queryProc.bind( "doc", mDocName );
+            queryProc.bind( "data", aData );
+            if( isDelta ) {
+                queryProc.bind( "location", aLocation );
+            }
             // not expecting anything to be in the results
             queryProc.value();
         }
@@ -334,5 +1650,220 @@ public class WriteLocalBaseXDB implements Runnable {
         }
         return noError;
     }
-}
 
+    /**
+     * Get the name of the temporary database a streamed append is parsed into.
+     * @return The name of the append database.
+     */
+    private String getAppendDBName() {
+        return ( mContainerName + "_" + mDocName ).replaceAll( "[^A-Za-z0-9_-]", "_" ) + "_append";
+    }
+
+    /**
+     * Begin a streamed append of data after the given location.  The data is then
+     * sent in any number of calls to appendChunk and inserted by appendEnd.  The
+     * data is parsed as it arrives into a temporary database and the built nodes
+     * are copied into the document so that the data never needs to be held as a
+     * string or spliced into query text.
+     * @param aLocation An XPath that describes where to insert the data after.
+     * @return True if the append was started, false otherwise.
+     */
+    public boolean appendBegin( final String aLocation ) {
+        if( mContext == null ) {
+            // Failed to open the database, an error would have already been printed.
+            return false;
+        }
+        if( mAppendPipe != null ) {
+            System.err.println( "ERROR: Could not begin append as the previous append has not ended." );
+            return false;
+        }
+        mIndexesStale |= awaitIndexBuild();
+
+        final ChunkPipe appendPipe = new ChunkPipe( APPEND_PIPE_DEPTH, APPEND_CHUNK_SIZE );
+        final String appendDBName = getAppendDBName();
+        mAppendParsed = false;
+        Thread appendThread = new Thread( new Runnable() {
+            public void run() {
+                try {
+                    // The context is derived from ours so that the append database
+                    // is visible to it when we insert.
+                    Context appendContext = new Context( mContext );
+                    mAppendContext = appendContext;
+                    appendContext.options.set( MainOptions.CHOP, mChop );
+                    appendContext.options.set( MainOptions.INTPARSE, mIntParse );
+                    appendContext.options.set( MainOptions.MAINMEM, mInMemoryDB );
+                    CreateDB createAppend = new CreateDB( appendDBName );
+                    createAppend.setInput( appendPipe.getInputStream() );
+                    createAppend.execute( appendContext );
+                    mAppendParsed = true;
+                }
+                catch( Exception error ) {
+                    error.printStackTrace();
+                    // make sure appendChunk does not wait on us forever
+                    appendPipe.cancel();
+                }
+            }
+        } );
+
+        // Only record the append as in progress once it is up and running so that
+        // a failure here does not block any later appends.
+        try {
+            appendThread.start();
+            appendPipe.getOutputStream().write( ( "<" + APPEND_WRAPPER_ELEMENT + ">" ).getBytes( "UTF-8" ) );
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            appendPipe.cancel();
+            try {
+                if( appendThread.isAlive() ) {
+                    appendThread.join();
+                }
+            }
+            catch( InterruptedException interruptError ) {
+                interruptError.printStackTrace();
+            }
+            discardAppendDB();
+            return false;
+        }
+        mAppendPipe = appendPipe;
+        mAppendLocation = aLocation;
+        mAppendThread = appendThread;
+        return true;
+    }
+
+    /**
+     * Send the next chunk of data for the current streamed append.
+     * @param aData The buffer containing the data.
+     * @param aLength The number of bytes in the buffer to append.
+     * @return True if the data was accepted, false otherwise.
+     */
+    public boolean appendChunk( final byte[] aData, final int aLength ) {
+        if( mAppendPipe == null ) {
+            System.err.println( "ERROR: Could not append data as no append has begun." );
+            return false;
+        }
+        try {
+            mAppendPipe.getOutputStream().write( aData, 0, aLength );
+        }
+        catch( IOException error ) {
+            error.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * End the current streamed append, waiting for the data to be parsed then
+     * inserting it into the document.
+     * @return True if the data was successfully updated, false otherwise.
+     */
+    public boolean appendEnd() {
+        if( mAppendPipe == null ) {
+            System.err.println( "ERROR: Could not end append as no append has begun." );
+            return false;
+        }
+
+        boolean noError = true;
+        try {
+            OutputStream appendStream = mAppendPipe.getOutputStream();
+            appendStream.write( ( "</" + APPEND_WRAPPER_ELEMENT + ">" ).getBytes( "UTF-8" ) );
+            appendStream.close();
+        }
+        catch( IOException error ) {
+            error.printStackTrace();
+            mAppendPipe.cancel();
+            noError = false;
+        }
+        try {
+            mAppendThread.join();
+        }
+        catch( InterruptedException interruptError ) {
+            interruptError.printStackTrace();
+            noError = false;
+        }
+
+        if( noError && mAppendParsed ) {
+            // The locations are only valid in the full document so when storing the
+            // differences the data is kept to one side with its location.
+            final boolean isDelta = isStoredAsDelta();
+            final String insertQuery = "declare variable $db external; declare variable $doc external; "
+                + "declare variable $append external; declare variable $location external; "
+                + ( isDelta
+                    ? "insert node <" + DeltaEncoder.APPENDED_ELEMENT + " location=\"{$location}\">{ "
+                      + "db:open($append)/" + APPEND_WRAPPER_ELEMENT + "/node() }</" + DeltaEncoder.APPENDED_ELEMENT + "> "
+                      + "as last into db:open($db, $doc)/*"
+                    : "insert node db:open($append)/" + APPEND_WRAPPER_ELEMENT + "/node() "
+                      + "after db:open($db, $doc)" + toStoredLocation( mAppendLocation ) );
+            QueryProcessor queryProc = new QueryProcessor( insertQuery, mContext );
+            try {
+                queryProc.bind( "db", mContainerName );
+                queryProc.bind( "doc", mDocName );
+                queryProc.bind( "append", getAppendDBName() );
+                queryProc.bind( "location", mAppendLocation );
+                // not expecting anything to be in the results
+                queryProc.value();
+            }
+            catch( Exception queryError ) {
+                queryError.printStackTrace();
+                noError = false;
+            }
+            finally {
+                queryProc.close();
+            }
+        }
+        else {
+            noError = false;
+        }
+
+        // Now we can close and throw away the append database.
+        discardAppendDB();
+        mAppendPipe = null;
+        mAppendLocation = null;
+        mAppendThread = null;
+        return noError;
+    }
+
+    /**
+     * Close and throw away the temporary database a streamed append was parsed into.
+     */
+    private void discardAppendDB() {
+        if( mAppendContext != null ) {
+            try {
+                new Close().execute( mAppendContext );
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+            }
+        }
+        if( !mInMemoryDB ) {
+            try {
+                new DropDB( getAppendDBName() ).execute( mContext );
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+            }
+        }
+        mAppendContext = null;
+    }
+
+    /**
+     * Get the updating query which will insert data after the given location.
+     * The document is opened directly by name in our container rather than searching
+     * the document-uri of every document in the collection which would get slower as
+     * the database grows.  The data must be bound to the external variable $data as
+     * well as $db and $doc.  Queries are cached by the location as GCAM typically
+     * appends to the same locations over and over.
+     * @param aLocation An XPath that describes where to insert the data after.
+     * @return The text of the updating query.
+     */
+    private String getAppendQuery( final String aLocation ) {
+        String appendQuery = mAppendQueries.get( aLocation );
+        if( appendQuery == null ) {
+            appendQuery = "declare variable $db external; declare variable $doc external; "
+                + "declare variable $data external; "
+                + "insert node parse-xml-fragment($data) after db:open($db, $doc)" + aLocation;
+            mAppendQueries.put( aLocation, appendQuery );
+        }
+        return appendQuery;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A long running process which keeps the JVM, BaseX, the ModelInterface, and the
+ * databases themselves open and warmed up so that many short GCAM runs do not each
+ * pay to start them.  GCAM still creates an XMLDBDriver as usual however if
+ * daemon-address is configured the driver simply forwards everything to the daemon
+ * with an XMLDBDaemonClient.  The daemon then runs a regular XMLDBDriver for each
+ * connection with its own XMLDBDriver.properties, of which a client may only
+ * override the few settings in CLIENT_CONFIG_KEYS that tune how the document is
+ * stored, so that a client can not have the daemon run scripts or write to paths
+ * of its choosing, and the database must be within daemon-db-dir.  Databases
+ * are always kept open between runs (see reuse-db-session).  The daemon only
+ * listens on the loopback interface and should be started in the same
+ * directory GCAM runs in so that any relative paths in the configuration are
+ * found.  As any local user could connect to the port the daemon writes a random
+ * token to a file only its user may read (see daemon-token-file) and rejects any
+ * session which does not start with it.
+ *
+ * Each connection is a session for a single document using a simple protocol.
+ * Strings are sent as an int byte length followed by UTF-8 bytes and each message
+ * starts with a byte type:
+ *   OPEN: token, db location, doc name, int property count, then each key and value
+ *   DATA: int length, bytes
+ *   FINISH
+ *   APPEND: data, location
+ *   APPEND_BEGIN: location
+ *   APPEND_CHUNK: int length, bytes
+ *   APPEND_END
+ *   FINALIZE
+ * The lengths and counts are limited, see the MAX_ constants, so that a client
+ * can not have the daemon allocate arbitrary amounts of memory, least of all
+ * before it has sent the token.  The client splits larger DATA and APPEND_CHUNK
+ * messages up and APPEND is meant for small data which would otherwise be
+ * streamed with APPEND_BEGIN.
+ * The daemon replies to every message but DATA and APPEND_CHUNK with a single
+ * byte which is 1 for success and 0 otherwise.  So as not to wait on a reply for
+ * every buffer a failure to handle DATA is instead reported by the reply to FINISH,
+ * which is only a success if the document was verified to be stored, and likewise
+ * for APPEND_CHUNK by the reply to APPEND_END.  The reply to FINALIZE repeats that
+ * of FINISH.  The connection is closed after FINALIZE.
+ */
+public class XMLDBDaemon {
+    /**
+     * The message types.
+     */
+    public static final byte OPEN = 1;
+    public static final byte DATA = 2;
+    public static final byte FINISH = 3;
+    public static final byte APPEND = 4;
+    public static final byte APPEND_BEGIN = 5;
+    public static final byte APPEND_CHUNK = 6;
+    public static final byte APPEND_END = 7;
+    public static final byte FINALIZE = 8;
+
+    /**
+     * The default port to listen on.
+     */
+    public static final int DEFAULT_PORT = 17474;
+
+    /**
+     * The default file the session token is written to.
+     */
+    public static final String DEFAULT_TOKEN_FILE = "XMLDBDaemon.token";
+
+    /**
+     * The default directory databases must be in, where GCAM keeps its output
+     * relative to the exe directory the daemon is started in.
+     */
+    public static final String DEFAULT_DB_DIR = "../output";
+
+    /**
+     * The longest token which will be read, the 64 hex digits createToken makes.
+     */
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    /**
+     * The longest database location, document name, configuration key or value,
+     * or append location which will be read.
+     */
+    private static final int MAX_NAME_LENGTH = 1 << 16;
+
+    /**
+     * The most configuration properties a session may send.
+     */
+    private static final int MAX_PROPERTIES = 1024;
+
+    /**
+     * The most data in bytes an APPEND message may send.
+     */
+    private static final int MAX_APPEND_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The largest DATA or APPEND_CHUNK message, the client splits up larger ones.
+     */
+    public static final int MAX_CHUNK_LENGTH = 16 * XMLDBDriver.BUFFER_SIZE;
+
+    /**
+     * The configuration keys a client may override.
+     */
+    private static final Set<String> CLIENT_CONFIG_KEYS = Collections.unmodifiableSet( new HashSet<String>(
+        Arrays.asList( "open-db-wait", "projection-include", "projection-exclude", "pipe-depth", "pipe-chunk-size",
+                       "shard-workers", "shard-pipe-depth", "basex-chop", "basex-addcache", "basex-intparse",
+                       "index-policy", "metrics-log-interval" ) ) );
+
+    /**
+     * The configuration of the daemon which each session starts from.
+     */
+    private static Properties sConfig = null;
+
+    /**
+     * The token each session must start with.
+     */
+    private static byte[] sToken = null;
+
+    /**
+     * The directory the databases of all sessions must be in.
+     */
+    private static File sDBDir = null;
+
+    private XMLDBDaemon() {
+        // only static methods
+    }
+
+    /**
+     * Listen for connections and run a session for each one on its own thread.
+     * This method does not return.
+     * @param aPort The port to listen on.
+     * @throws IOException If the socket could not be opened.
+     */
+    public static void serve( final int aPort ) throws IOException {
+        try {
+            sConfig = XMLDBDriver.loadConfig();
+        }
+        catch( Exception error ) {
+            throw new IOException( "Could not read the configuration", error );
+        }
+        // we are the daemon and the point is to keep the database open
+        sConfig.remove( "daemon-address" );
+        sConfig.setProperty( "reuse-db-session", "true" );
+        final File tokenFile = new File( sConfig.getProperty( "daemon-token-file", DEFAULT_TOKEN_FILE ) );
+        sToken = createToken( tokenFile ).getBytes( "UTF-8" );
+        sDBDir = new File( sConfig.getProperty( "daemon-db-dir", DEFAULT_DB_DIR ) ).getCanonicalFile();
+
+        ServerSocket serverSocket = new ServerSocket( aPort, 50, InetAddress.getByName( null ) );
+        System.out.println( "XMLDBDriver daemon listening on " + serverSocket.getLocalSocketAddress() );
+        // The daemon runs until it is killed so close the databases it kept open
+        // then.  Any indexes still waiting for the databases to be idle are left
+        // to be built the next time rather than holding up the exit.
+        Runtime.getRuntime().addShutdownHook( new Thread( "XMLDBDaemon shutdown" ) {
+            public void run() {
+                DBSessionPool.closeAll();
+                tokenFile.delete();
+            }
+        } );
+        while( true ) {
+            final Socket socket = serverSocket.accept();
+            new Thread( new Runnable() {
+                public void run() {
+                    try {
+                        runSession( socket );
+                    }
+                    catch( Exception error ) {
+                        error.printStackTrace();
+                    }
+                    finally {
+                        try {
+                            socket.close();
+                        }
+                        catch( IOException ioError ) {
+                            // ignore
+                        }
+                    }
+                }
+            }, "XMLDBDaemon session" ).start();
+        }
+    }
+
+    /**
+     * Run a session for a single document.  If the client goes away without
+     * finalizing the data is discarded.
+     * @param aSocket The connection to the client.
+     * @throws IOException If there was an error communicating with the client.
+     */
+    private static void runSession( final Socket aSocket ) throws IOException {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( aSocket.getInputStream(),
+                                                                           XMLDBDriver.BUFFER_SIZE ) );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( aSocket.getOutputStream() ) );
+        if( in.readByte() != OPEN ) {
+            throw new IOException( "Expected the session to start with OPEN" );
+        }
+        if( !MessageDigest.isEqual( readString( in, MAX_TOKEN_LENGTH ).getBytes( "UTF-8" ), sToken ) ) {
+            reply( out, false );
+            throw new IOException( "Rejected a session with an invalid token" );
+        }
+        final String dbLocation = readString( in, MAX_NAME_LENGTH );
+        final String docName = readString( in, MAX_NAME_LENGTH );
+        if( !isInDBDir( dbLocation ) || docName.isEmpty() ) {
+            reply( out, false );
+            throw new IOException( "Rejected a session for " + dbLocation + " which is not in " + sDBDir );
+        }
+        Properties config = new Properties();
+        config.putAll( sConfig );
+        final int numProperties = readCount( in, MAX_PROPERTIES );
+        for( int i = 0; i < numProperties; ++i ) {
+            final String key = readString( in, MAX_NAME_LENGTH );
+            final String value = readString( in, MAX_NAME_LENGTH );
+            if( CLIENT_CONFIG_KEYS.contains( key ) ) {
+                config.setProperty( key, value );
+            }
+        }
+        System.out.println( "Storing " + docName + " in " + dbLocation );
+        XMLDBDriver driver = new XMLDBDriver( dbLocation, docName, config );
+        reply( out, true );
+
+        byte[] buffer = new byte[ XMLDBDriver.BUFFER_SIZE ];
+        boolean finalized = false;
+        // the status of the messages which are not replied to right away
+        boolean dataOK = true;
+        boolean appendOK = true;
+        boolean stored = false;
+        try {
+            while( !finalized ) {
+                final byte type = in.readByte();
+                switch( type ) {
+                case DATA:
+                case APPEND_CHUNK:
+                    final int length = readCount( in, MAX_CHUNK_LENGTH );
+                    if( length > buffer.length ) {
+                        buffer = new byte[ length ];
+                    }
+                    in.readFully( buffer, 0, length );
+                    // once there has been an error the rest is discarded
+                    if( type == DATA ) {
+                        dataOK = dataOK && !driver.receiveDataFromGCAM( buffer, length );
+                    }
+                    else {
+                        appendOK = appendOK && driver.appendChunk( buffer, length );
+                    }
+                    break;
+                case FINISH:
+                    driver.finish();
+                    stored = dataOK && driver.isStored();
+                    reply( out, stored );
+                    break;
+                case APPEND:
+                    final String data = readString( in, MAX_APPEND_LENGTH );
+                    reply( out, driver.appendData( data, readString( in, MAX_NAME_LENGTH ) ) );
+                    break;
+                case APPEND_BEGIN:
+                    appendOK = true;
+                    reply( out, driver.appendBegin( readString( in, MAX_NAME_LENGTH ) ) );
+                    break;
+                case APPEND_END:
+                    // always end the append so the driver is not left waiting on it
+                    final boolean appended = driver.appendEnd();
+                    reply( out, appendOK && appended );
+                    break;
+                case FINALIZE:
+                    driver.finalizeAndClose();
+                    finalized = true;
+                    reply( out, stored );
+                    break;
+                default:
+                    throw new IOException( "Unknown message type " + type );
+                }
+            }
+        }
+        finally {
+            if( !finalized ) {
+                // the client went away, the incomplete document will fail to parse and
+                // not be stored but we make sure the database is released for the next
+                // session
+                driver.finish();
+                driver.finalizeAndClose();
+            }
+        }
+    }
+
+    /**
+     * Check that a database location sent by a client is within sDBDir.
+     * @param aDBLocation The location of the database.
+     * @return True if the database is in the directory.
+     */
+    private static boolean isInDBDir( final String aDBLocation ) throws IOException {
+        if( aDBLocation.isEmpty() ) {
+            return false;
+        }
+        final File dbFile = new File( aDBLocation ).getCanonicalFile();
+        return !dbFile.equals( sDBDir ) && dbFile.toPath().startsWith( sDBDir.toPath() );
+    }
+
+    /**
+     * Read a length or count sent by a client checking that it is within limits.
+     * @param aIn The stream to read from.
+     * @param aMax The largest value allowed.
+     * @return The value.
+     * @throws IOException If the value is negative or larger than aMax.
+     */
+    private static int readCount( final DataInputStream aIn, final int aMax ) throws IOException {
+        final int count = aIn.readInt();
+        if( count < 0 || count > aMax ) {
+            throw new IOException( "Rejected a length of " + count + " which is not within 0 and " + aMax );
+        }
+        return count;
+    }
+
+    /**
+     * Create a new random token and write it to the given file which only the
+     * current user may read.
+     * @param aTokenFile The file to write the token to.
+     * @return The token.
+     */
+    private static String createToken( final File aTokenFile ) throws IOException {
+        byte[] random = new byte[ 32 ];
+        new SecureRandom().nextBytes( random );
+        final String token = new BigInteger( 1, random ).toString( 16 );
+        // restrict the permissions before anything is written
+        aTokenFile.delete();
+        if( !aTokenFile.createNewFile() ) {
+            throw new IOException( "Could not create the token file " + aTokenFile );
+        }
+        if( !aTokenFile.setReadable( false, false ) || !aTokenFile.setReadable( true, true ) ) {
+            System.err.println( "WARNING: Could not restrict the token file " + aTokenFile + " to this user." );
+        }
+        OutputStream out = new FileOutputStream( aTokenFile );
+        try {
+            out.write( token.getBytes( "UTF-8" ) );
+        }
+        finally {
+            out.close();
+        }
+        return token;
+    }
+
+    /**
+     * Send a reply to the client.
+     */
+    private static void reply( final DataOutputStream aOut, final boolean aSuccess ) throws IOException {
+        aOut.writeByte( aSuccess ? 1 : 0 );
+        aOut.flush();
+    }
+
+    /**
+     * Write a string as its byte length and UTF-8 bytes.
+     */
+    static void writeString( final DataOutputStream aOut, final String aValue ) throws IOException {
+        byte[] utf8 = aValue.getBytes( "UTF-8" );
+        aOut.writeInt( utf8.length );
+        aOut.write( utf8 );
+    }
+
+    /**
+     * Read a string written by writeString.
+     * @param aIn The stream to read from.
+     * @param aMaxLength The largest byte length allowed.
+     * @throws IOException If the string is longer than aMaxLength.
+     */
+    static String readString( final DataInputStream aIn, final int aMaxLength ) throws IOException {
+        byte[] utf8 = new byte[ readCount( aIn, aMaxLength ) ];
+        aIn.readFully( utf8 );
+        return new String( utf8, "UTF-8" );
+    }
+}
@@ -0,0 +1,227 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * The client side of a session with an XMLDBDaemon.  An XMLDBDriver configured
+ * with daemon-address forwards all of the calls GCAM makes to the daemon through
+ * this class rather than opening the database itself.  See XMLDBDaemon for the
+ * protocol.
+ */
+public class XMLDBDaemonClient {
+    /**
+     * The connection to the daemon.
+     */
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+    private final DataOutputStream mOut;
+
+    /**
+     * A buffer to copy direct buffers into before sending them.
+     */
+    private byte[] mCopyBuffer = new byte[ XMLDBDriver.BUFFER_SIZE ];
+
+    /**
+     * Constructor which will connect to the daemon and open a session.
+     * @param aAddress The address of the daemon as HOST:PORT or just PORT on this host.
+     * @param aDBLocation The location of the database to open.
+     * @param aDocName A unique document name to use to store the XML in the DB.
+     * @param aConfig The configuration for the daemon to use for this session, of
+     *                which the daemon will only use a few settings, along with the
+     *                daemon-token-file to authenticate with.
+     * @throws IOException If the daemon could not be reached or failed to open
+     *                     the session.
+     */
+    public XMLDBDaemonClient( final String aAddress, final String aDBLocation, final String aDocName,
+                              final Properties aConfig ) throws IOException
+    {
+        // the daemon only accepts sessions from those who can read its token
+        final String token = new String( Files.readAllBytes( new File( aConfig.getProperty( "daemon-token-file",
+            XMLDBDaemon.DEFAULT_TOKEN_FILE ) ).toPath() ), "UTF-8" ).trim();
+        final int portSeparator = aAddress.lastIndexOf( ':' );
+        final String host = portSeparator == -1 ? "localhost" : aAddress.substring( 0, portSeparator );
+        mSocket = new Socket( host, Integer.parseInt( aAddress.substring( portSeparator + 1 ).trim() ) );
+        mIn = new DataInputStream( new BufferedInputStream( mSocket.getInputStream() ) );
+        mOut = new DataOutputStream( new BufferedOutputStream( mSocket.getOutputStream(), XMLDBDriver.BUFFER_SIZE ) );
+
+        mOut.writeByte( XMLDBDaemon.OPEN );
+        XMLDBDaemon.writeString( mOut, token );
+        // the daemon may be running from somewhere else
+        XMLDBDaemon.writeString( mOut, new File( aDBLocation ).getAbsolutePath() );
+        XMLDBDaemon.writeString( mOut, aDocName );
+        mOut.writeInt( aConfig.stringPropertyNames().size() );
+        for( String key : aConfig.stringPropertyNames() ) {
+            XMLDBDaemon.writeString( mOut, key );
+            XMLDBDaemon.writeString( mOut, aConfig.getProperty( key ) );
+        }
+        if( !readReply() ) {
+            close();
+            throw new IOException( "The XMLDBDriver daemon could not open " + aDocName );
+        }
+    }
+
+    /**
+     * Send data from GCAM.
+     * @param aBuffer The raw XML data from GCAM.
+     * @param aLength The amount of data that was sent in the buffer.
+     */
+    public void sendData( final byte[] aBuffer, final int aLength ) throws IOException {
+        writeChunks( XMLDBDaemon.DATA, aBuffer, aLength );
+    }
+
+    /**
+     * Send data from GCAM in a direct buffer.  The data is copied out before
+     * returning so GCAM may reuse the buffer right away.
+     * @param aBuffer The raw XML data from GCAM.
+     * @param aLength The amount of data that was sent in the buffer.
+     */
+    public void sendData( final ByteBuffer aBuffer, final int aLength ) throws IOException {
+        if( mCopyBuffer.length < aLength ) {
+            mCopyBuffer = new byte[ aLength ];
+        }
+        ByteBuffer data = aBuffer.duplicate();
+        data.clear();
+        data.get( mCopyBuffer, 0, aLength );
+        sendData( mCopyBuffer, aLength );
+    }
+
+    /**
+     * Signal that no more data will be sent and wait for it all to be stored.
+     * @return True if all of the data sent was verified to be stored.
+     */
+    public boolean finish() throws IOException {
+        mOut.writeByte( XMLDBDaemon.FINISH );
+        return readReply();
+    }
+
+    /**
+     * Insert the given data after the given location.
+     * @return True if the data was successfully updated.
+     */
+    public boolean appendData( final String aData, final String aLocation ) throws IOException {
+        mOut.writeByte( XMLDBDaemon.APPEND );
+        XMLDBDaemon.writeString( mOut, aData );
+        XMLDBDaemon.writeString( mOut, aLocation );
+        return readReply();
+    }
+
+    /**
+     * Begin a streamed append after the given location.
+     * @return True if the append was started.
+     */
+    public boolean appendBegin( final String aLocation ) throws IOException {
+        mOut.writeByte( XMLDBDaemon.APPEND_BEGIN );
+        XMLDBDaemon.writeString( mOut, aLocation );
+        return readReply();
+    }
+
+    /**
+     * Send the next chunk of a streamed append.
+     */
+    public void appendChunk( final byte[] aData, final int aLength ) throws IOException {
+        writeChunks( XMLDBDaemon.APPEND_CHUNK, aData, aLength );
+    }
+
+    /**
+     * Write data as one or more messages of the given type each no larger than
+     * the daemon will accept.
+     * @param aType The message type.
+     * @param aData The data to send.
+     * @param aLength The amount of data to send.
+     */
+    private void writeChunks( final byte aType, final byte[] aData, final int aLength ) throws IOException {
+        int offset = 0;
+        do {
+            final int length = Math.min( aLength - offset, XMLDBDaemon.MAX_CHUNK_LENGTH );
+            mOut.writeByte( aType );
+            mOut.writeInt( length );
+            mOut.write( aData, offset, length );
+            offset += length;
+        } while( offset < aLength );
+    }
+
+    /**
+     * End the streamed append.
+     * @return True if the data was successfully updated.
+     */
+    public boolean appendEnd() throws IOException {
+        mOut.writeByte( XMLDBDaemon.APPEND_END );
+        return readReply();
+    }
+
+    /**
+     * Have the daemon run any final processing and release the database then
+     * close the connection.
+     * @return True if the data sent was stored.
+     */
+    public boolean finalizeAndClose() throws IOException {
+        try {
+            mOut.writeByte( XMLDBDaemon.FINALIZE );
+            return readReply();
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Close the connection.  If the session was not finalized the daemon will
+     * discard it.
+     */
+    public void close() {
+        try {
+            mSocket.close();
+        }
+        catch( IOException ioError ) {
+            // ignore
+        }
+    }
+
+    /**
+     * Send anything buffered and wait for the daemon's reply.
+     * @return True if the daemon reported success.
+     */
+    private boolean readReply() throws IOException {
+        mOut.flush();
+        return mIn.readByte() == 1;
+    }
+}
@@ -31,10 +31,30 @@
 */
 
 import java.util.Properties;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.io.FileInputStream;
-import java.io.PipedOutputStream;
+import java.io.InputStream;
 import java.io.IOException;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.transform.sax.SAXSource;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import org.basex.core.Context;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -48,9 +68,17 @@ import joptsimple.OptionException;
  * via the receiveDataFromGCAM method.  When all data has been sent the finish
  * method is called which will wait until the BaseX has finished adding all of
  * the data.  Users can optionally configure this class to:
+ *  - Keep or drop elements by path as the XML is streamed into the database.
  *  - Apply a filter on the XML as it is streamed into the database.
+ *  - Split the regions off of the XML so that they can be stored in parallel.
+ *  - Fan the XML out to additional, independently filtered, databases at the same time.
  *  - Run a Model Interface batch file to execute queries after a GCAM scenario has
  *    finished running.
+ *  - Export query results directly to compact columnar files for analysis.
+ *  - Run live queries on a snapshot of the results as each model period is solved
+ *    (see openLive).
+ *  - Stage the XML in a compressed spool file to be loaded into the database later.
+ *  - Print telemetry about each stage periodically, it is always available over JMX.
  *  - Create the database in memory so that they can be queries and discarded without
  *    the performance penalty to writing thmm to disk.
  *
@@ -58,21 +86,65 @@ import joptsimple.OptionException;
  */
 public class XMLDBDriver {
     /**
-     * The stream that will read XML from GCAM to write to the DB (or filter if configured).
+     * The pipe that will read XML from GCAM to write to the DB (or filter if configured).
+     * GCAM may hand over buffers backed by native memory which will be read in place.
      */
-    private final PipedOutputStream mReadFromGCAMStream = new PipedOutputStream();
+    private ChunkPipe mReadFromGCAMPipe = null;
+
+    /**
+     * The pipes connecting any intermediate stages (filter, sharding) to the
+     * next stage.  We keep them so that they can all be canceled in case of error.
+     */
+    private final List<ChunkPipe> mStagePipes = new ArrayList<ChunkPipe>();
 
     /**
      * The class that will handle writing database to the BaseX DB.
      */
     private WriteLocalBaseXDB mWriteDB = null;
 
+    /**
+     * A class that can be used to quickly keep or drop elements from the GCAM output
+     * XML before it reaches the DB.  If null no elements will be dropped.
+     */
+    private ProjectionFilter mProjectionFilter = null;
+
+    /**
+     * A stage to convert the binary event stream from GCAM to XML for the stages
+     * which need to scan the XML text or null if none is needed.
+     */
+    private BinaryEventConverter mBinaryEventConverter = null;
+
+    /**
+     * If GCAM may send the binary event stream (see BinaryEventReader) rather than
+     * textual XML.
+     */
+    private boolean mBinaryEvents = false;
+
     /**
      * A class that can be used to filter GCAM output XML before it reaches the DB.
      * If null output will be writen to the database unfiltered.
      */
     private FilterOutput mFilterOutput = null;
 
+    /**
+     * A class that can be used to split the regions off of the GCAM output XML
+     * so that they may be loaded into the DB in parallel.  If null the output will
+     * be written to the database as a single document.
+     */
+    private ShardByRegion mShardByRegion = null;
+
+    /**
+     * A class that can be used to store subtrees which are identical across scenarios
+     * only once in the database.  If null every scenario is stored in full.
+     */
+    private SubtreeDedup mSubtreeDedup = null;
+
+    /**
+     * A class that can be used to store the scenario as the differences from a
+     * baseline scenario.  If null the scenario is stored in full.
+     */
+    private DeltaEncoder mDeltaEncoder = null;
+
     /**
      * A class that can be used to run queries against the BaseX DB.
      * If null no queries will be run. These will wait to run until finalizeAndClose
@@ -81,67 +153,560 @@ public class XMLDBDriver {
      */
     private RunQueries mRunQueries = null;
 
+    /**
+     * When the text and attribute indexes should be built, one of the IndexBuilder
+     * policies.
+     */
+    private String mIndexPolicy = IndexBuilder.NEVER;
+
+    /**
+     * The number of seconds the database must be idle for before it is indexed
+     * when using the IndexBuilder.IDLE policy.
+     */
+    private int mIndexIdleSeconds = 0;
+
+    /**
+     * A class that can be used to export query results to columnar files.  If null
+     * no exports will be run.  These are run after any batch queries.
+     */
+    private ExportQueries mExportQueries = null;
+
+    /**
+     * A class that runs live queries on a snapshot of the results of the period just
+     * solved.  This is only set for drivers created with openLive in which case there
+     * is no database to write to.
+     */
+    private LiveQueries mLiveQueries = null;
+
+    /**
+     * A class that can be used to stage the GCAM output XML in a compressed spool
+     * file to be loaded into the database later.  If null the output will be written
+     * to the database directly.
+     */
+    private SpoolWriter mSpoolWriter = null;
+
+    /**
+     * Additional drivers which each receive a copy of the XML from GCAM to store
+     * in their own database with their own stages (see fan-out-sinks).
+     */
+    private final List<XMLDBDriver> mFanOutSinks = new ArrayList<XMLDBDriver>();
+
+    /**
+     * The name of the fan-out sink this driver is storing or null if it is the
+     * primary driver GCAM is talking to.
+     */
+    private String mSinkName = null;
+
+    /**
+     * The connection to a warm XMLDBDaemon which is storing the results on this
+     * driver's behalf or null if they are stored in this process (see daemon-address).
+     */
+    private XMLDBDaemonClient mDaemonClient = null;
+
+    /**
+     * The stage options which a fan-out sink does not inherit from the primary
+     * configuration and must instead set for itself.
+     */
+    private static final String[] FAN_OUT_STAGE_OPTIONS = { "projection-include", "projection-exclude",
+        "filter-script", "shard-workers", "batch-queries", "batch-logfile", "export-queries" };
+
+    /**
+     * Telemetry about each stage so that bottlenecks can be identified.
+     */
+    private IngestMetrics mMetrics = null;
+
+    /**
+     * If finishAsync should let the data finish being stored in the background.
+     * GCAM frees the native memory behind the direct buffers it sends as soon as
+     * finish returns so in this case they are copied rather than read in place.
+     */
+    private boolean mAsyncFinish = false;
+
+    /**
+     * The thread finishes started with finishAsync run on, one at a time in the
+     * order they were started.
+     */
+    private static final ExecutorService sFinishExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        public Thread newThread( final Runnable aTask ) {
+            // GCAM calls shutdown, which waits for any pending finish, before it
+            // exits so this need not keep the JVM alive
+            Thread finishThread = new Thread( aTask, "XMLDBDriver finish" );
+            finishThread.setDaemon( true );
+            return finishThread;
+        }
+    } );
+
+    /**
+     * The completion of a finish started with finishAsync or null if none is pending.
+     */
+    private volatile Future<?> mPendingFinish = null;
+
+    /**
+     * If the document was verified to be stored in the database by finish.
+     */
+    private volatile boolean mStored = false;
+
+    /**
+     * The completion of the most recent finish started with finishAsync for each
+     * database, see getFinishKey.  This is static so that the next scenario in a
+     * batch will not open a database until the previous one is done being stored
+     * in it, while fan-out sinks and live drivers do not wait on each other.
+     */
+    private static final Map<String, Future<?>> sPendingFinishes = new ConcurrentHashMap<String, Future<?>>();
+
+    /**
+     * The key of this driver's finish in sPendingFinishes.
+     */
+    private String mFinishKey = null;
+
     /**
      * The buffer size to use in all of these streams passing around data.
      * We use a buffer size of 1 MB which seems large enough to keep the DB continuously
-     * fed with data to write.
+     * fed with data to write.  This is the default chunk size of the pipes between
+     * stages and may be overridden with pipe-chunk-size.
      */
     public static final int BUFFER_SIZE = 1024 * 1024;
 
+    /**
+     * The default number of chunks that may be in flight between any two stages.
+     * This may be overridden with pipe-depth.
+     */
+    public static final int DEFAULT_PIPE_DEPTH = 4;
+
     /**
      * Constructor which will open the DB and get ready to receive XML to put
-     * into the DB.
+     * into the DB.  The configuration will be read from XMLDBDriver.properties
+     * in the current directory if it exists.
      * @param aDBLocation The location of the database to open.
      * @param aDocName A unique document name to use to store the XML in the DB.
      */
     public XMLDBDriver( final String aDBLocation, final String aDocName ) {
+        Properties config;
+        try {
+            config = loadConfig();
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            return;
+        }
+        initialize( aDBLocation, aDocName, config );
+    }
+
+    /**
+     * Constructor which will open the DB and get ready to receive XML to put
+     * into the DB using the given configuration rather than reading it from
+     * XMLDBDriver.properties.  This is useful for tools such as benchmarks which
+     * want to try out different configurations.
+     * @param aDBLocation The location of the database to open.
+     * @param aDocName A unique document name to use to store the XML in the DB.
+     * @param aConfig The configuration properties, see XMLDBDriver.properties for
+     *                the available options.
+     */
+    public XMLDBDriver( final String aDBLocation, final String aDocName, final Properties aConfig ) {
+        initialize( aDBLocation, aDocName, aConfig );
+    }
+
+    /**
+     * Constructor for a fan-out sink which will open the DB and get ready to
+     * receive a copy of the XML the primary driver receives.
+     * @param aDBLocation The location of the database to open.
+     * @param aDocName A unique document name to use to store the XML in the DB.
+     * @param aConfig The configuration properties of the sink.
+     * @param aSinkName The name of the fan-out sink.
+     */
+    private XMLDBDriver( final String aDBLocation, final String aDocName, final Properties aConfig,
+                         final String aSinkName )
+    {
+        mSinkName = aSinkName;
+        initialize( aDBLocation, aDocName, aConfig );
+    }
+
+    /**
+     * Constructor for a driver which will receive a snapshot of the results after
+     * a model period has been solved to run live queries on.
+     * @param aDBLocation The location of the database the final results will be stored in.
+     * @param aDocName The document name the final results will be stored as.
+     * @param aConfig The configuration properties.
+     * @param aPeriod The period just solved.
+     * @param aYear The year of the period just solved.
+     */
+    private XMLDBDriver( final String aDBLocation, final String aDocName, final Properties aConfig,
+                         final int aPeriod, final int aYear )
+    {
+        // make sure the previous period's queries are done so results are published in order
+        mFinishKey = getFinishKey( aDBLocation, true );
+        awaitFinish( sPendingFinishes.get( mFinishKey ) );
+        try {
+            int pipeDepth = Integer.parseInt( aConfig.getProperty( "pipe-depth", Integer.toString( DEFAULT_PIPE_DEPTH ) ) );
+            int pipeChunkSize = Integer.parseInt( aConfig.getProperty( "pipe-chunk-size", Integer.toString( BUFFER_SIZE ) ) );
+            mReadFromGCAMPipe = new ChunkPipe( pipeDepth, pipeChunkSize );
+            mAsyncFinish = Boolean.parseBoolean( aConfig.getProperty( "async-finish", "false" ) );
+            mLiveQueries = new LiveQueries( aConfig.getProperty( "live-queries" ),
+                                            aConfig.getProperty( "live-output", "live_queries.jsonl" ), aDocName, aPeriod, aYear );
+
+            // the snapshot may be trimmed down to just what the queries need (off by default)
+            InputStream nextStageInput = mReadFromGCAMPipe.getInputStream();
+            String projectionInclude = aConfig.getProperty( "live-projection-include", "" );
+            String projectionExclude = aConfig.getProperty( "live-projection-exclude", "" );
+            if( !projectionInclude.trim().isEmpty() || !projectionExclude.trim().isEmpty() ) {
+                mProjectionFilter = new ProjectionFilter( projectionInclude, projectionExclude );
+                ChunkPipe projectionPipe = new ChunkPipe( pipeDepth, pipeChunkSize );
+                mStagePipes.add( projectionPipe );
+                mProjectionFilter.setInputStream( nextStageInput );
+                mProjectionFilter.setOutputStream( projectionPipe.getOutputStream() );
+                nextStageInput = projectionPipe.getInputStream();
+                mProjectionFilter.start();
+            }
+            mLiveQueries.setInputStream( nextStageInput );
+            mLiveQueries.start();
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            cancelWrite();
+        }
+    }
+
+    /**
+     * Create a driver to receive a snapshot of the results after a model period has
+     * been solved and run the live queries configured with live-queries on it.  The
+     * queries are run when finish is called, in the background if async-finish is set,
+     * so that GCAM may continue with the next period.
+     * @param aDBLocation The location of the database the final results will be stored in.
+     * @param aDocName The document name the final results will be stored as.
+     * @param aPeriod The period just solved.
+     * @param aYear The year of the period just solved.
+     * @return The driver to send the snapshot to or null if no live queries have
+     *         been configured.
+     */
+    public static XMLDBDriver openLive( final String aDBLocation, final String aDocName, final int aPeriod,
+                                        final int aYear )
+    {
+        Properties config;
+        try {
+            config = loadConfig();
+        }
+        catch( Exception error ) {
+            error.printStackTrace();
+            return null;
+        }
+        if( config.getProperty( "live-queries", "" ).isEmpty() ) {
+            return null;
+        }
+        return new XMLDBDriver( aDBLocation, aDocName, config, aPeriod, aYear );
+    }
+
+    /**
+     * Read the configuration from XMLDBDriver.properties in the current directory.
+     * @return The configuration properties which will be empty if the file does not
+     *         exist.
+     */
+    static Properties loadConfig() throws Exception {
         Properties config = new Properties();
+        File configFile = new File( "XMLDBDriver.properties" );
+        if( configFile.exists() ) {
+            config.loadFromXML( new FileInputStream( configFile ) );
+        }
+        return config;
+    }
+
+    /**
+     * Open the DB and set up and start all of the stages to get ready to receive
+     * XML to put into the DB.
+     * @param aDBLocation The location of the database to open.
+     * @param aDocName A unique document name to use to store the XML in the DB.
+     * @param config The configuration properties.
+     */
+    private void initialize( final String aDBLocation, final String aDocName, final Properties config ) {
+        mFinishKey = getFinishKey( aDBLocation, false );
+        // optionally hand everything off to a daemon which already has the JVM warmed
+        // up and the database open (off by default)
+        String daemonAddress = config.getProperty( "daemon-address", "" ).trim();
+        if( !daemonAddress.isEmpty() && mSinkName == null ) {
+            try {
+                mDaemonClient = new XMLDBDaemonClient( daemonAddress, aDBLocation, aDocName, config );
+                return;
+            }
+            catch( Exception error ) {
+                System.err.println( "WARNING: Could not use the XMLDBDriver daemon at " + daemonAddress
+                                    + ", storing results in process: " + error );
+            }
+        }
+        mMetrics = new IngestMetrics( aDocName, mSinkName );
+        // make sure the previous scenario is done being stored before opening the
+        // database again
+        awaitFinish( sPendingFinishes.get( mFinishKey ) );
         try {
-            File configFile = new File( "XMLDBDriver.properties" );
-            if( configFile.exists() ) {
-                config.loadFromXML( new FileInputStream( configFile ) );
+            // set up the pipe which will receive data from GCAM first so that it
+            // is ready even if opening the database takes some time
+            int pipeDepth = Integer.parseInt( config.getProperty( "pipe-depth", Integer.toString( DEFAULT_PIPE_DEPTH ) ) );
+            int pipeChunkSize = Integer.parseInt( config.getProperty( "pipe-chunk-size", Integer.toString( BUFFER_SIZE ) ) );
+            mReadFromGCAMPipe = new ChunkPipe( pipeDepth, pipeChunkSize );
+
+            mAsyncFinish = Boolean.parseBoolean( config.getProperty( "async-finish", "false" ) );
+
+            // optionally stage the output in a spool to load later either always or
+            // only if the database is open elsewhere (off by default)
+            String spoolDir = config.getProperty( "spool-dir", "" );
+            String spoolWhen = config.getProperty( "spool-when", "always" );
+            if( !spoolDir.isEmpty() && ( spoolWhen.equals( "always" )
+                    || ( spoolWhen.equals( "pinned" ) && WriteLocalBaseXDB.isPinned( aDBLocation ) ) ) )
+            {
+                // Note the filter and batch queries will be run when the spool is loaded.
+                mSpoolWriter = new SpoolWriter( spoolDir, aDBLocation, aDocName );
+                mSpoolWriter.setInputStream( mReadFromGCAMPipe.getInputStream() );
+                int metricsLogInterval = Integer.parseInt( config.getProperty( "metrics-log-interval", "0" ) );
+                mMetrics.setEnds( mReadFromGCAMPipe, null );
+                mMetrics.start( metricsLogInterval );
+                mSpoolWriter.start();
+                return;
             }
 
-            // always open the database optionally in memory (off by default)
+            // GCAM may send a compact binary event stream rather than XML (off by default)
+            // Note spools and the daemon are always sent XML.
+            mBinaryEvents = Boolean.parseBoolean( config.getProperty( "binary-events", "false" ) );
+
+            // otherwise open the database optionally in memory (off by default)
             boolean inMemDB = Boolean.parseBoolean( config.getProperty( "in-memory", "false" ) );
             int openDBWait = Integer.parseInt( config.getProperty( "open-db-wait", "-1" ) );
-            mWriteDB = new WriteLocalBaseXDB( aDBLocation, aDocName, inMemDB, openDBWait );
+            mWriteDB = new WriteLocalBaseXDB( aDBLocation, aDocName, inMemDB, openDBWait, config );
+
+            // optionally extract the year to value series into a store which can be
+            // queried without the database (off by default)
+            String seriesStoreDir = config.getProperty( "series-store-dir", "" );
+            if( !seriesStoreDir.isEmpty() ) {
+                mWriteDB.enableSeriesStore( new File( seriesStoreDir ) );
+            }
+
+            // optionally build the text and attribute indexes in the background once
+            // the data has been stored or once the database is idle (off by default)
+            mIndexPolicy = IndexBuilder.checkPolicy( config.getProperty( "index-policy", IndexBuilder.NEVER ) );
+            mIndexIdleSeconds = Integer.parseInt( config.getProperty( "index-idle-seconds", "300" ) );
+            IndexBuilder.setNumWorkers( Integer.parseInt( config.getProperty( "index-workers", "1" ) ) );
+
+            // open any additional databases the XML should be fanned out to (none by default)
+            // Note when spooling they will be fanned out to when the spool is loaded.
+            if( mSinkName == null ) {
+                createFanOutSinks( aDocName, config );
+            }
+
+            // optionally keep or drop elements by path (off by default)
+            String projectionInclude = config.getProperty( "projection-include", "" );
+            String projectionExclude = config.getProperty( "projection-exclude", "" );
+            if( !projectionInclude.trim().isEmpty() || !projectionExclude.trim().isEmpty() ) {
+                mProjectionFilter = new ProjectionFilter( projectionInclude, projectionExclude );
+            }
 
             // optionally filter output using an XSLT style script (off by default)
             String filterScript = config.getProperty( "filter-script", "" );
             mFilterOutput = filterScript.isEmpty() ? null : new FilterOutput( filterScript );
 
+            // optionally store identical subtrees across scenarios only once (off by default)
+            final boolean resolveAllDocs = config.getProperty( "dedup-query-view", "current" ).equals( "all" );
+            String dedupSubtrees = config.getProperty( "dedup-subtrees", "" );
+            if( !dedupSubtrees.trim().isEmpty() ) {
+                mWriteDB.enableSubtreeDedup( resolveAllDocs );
+                mSubtreeDedup = new SubtreeDedup( dedupSubtrees, mWriteDB );
+            }
+
+            // optionally store only the differences from a baseline scenario (off by default)
+            String baselineDoc = config.getProperty( "baseline-doc", "" );
+            if( !baselineDoc.isEmpty() ) {
+                long maxIndexBytes = Long.parseLong( config.getProperty( "baseline-index-max-mb", "1024" ) ) * 1024 * 1024;
+                mDeltaEncoder = new DeltaEncoder( baselineDoc, mWriteDB.loadBaseline( baselineDoc, resolveAllDocs, maxIndexBytes ) );
+            }
+
+            // optionally load regions in parallel on the given number of workers (off by default)
+            int shardWorkers = Integer.parseInt( config.getProperty( "shard-workers", "0" ) );
+            if( shardWorkers > 0 ) {
+                int shardPipeDepth = Integer.parseInt( config.getProperty( "shard-pipe-depth", "16" ) );
+                mWriteDB.enableSharding( shardWorkers, shardPipeDepth, pipeChunkSize );
+                mShardByRegion = new ShardByRegion( mWriteDB );
+            }
+
             // optionally run a batch query (off by default), with output optionally routed to a log file
             String batchLog  = config.getProperty( "batch-logfile", "" );
             String batchFile = config.getProperty( "batch-queries", "" );
-            mRunQueries = batchFile.isEmpty() ? null : new RunQueries( batchFile, batchLog );
+            // which may have results cached across scenarios
+            int batchCacheSize = Integer.parseInt( config.getProperty( "batch-query-cache-size", "0" ) );
+            mRunQueries = batchFile.isEmpty() ? null : new RunQueries( batchFile, batchLog, batchCacheSize );
+
+            // optionally export query results to columnar files (off by default)
+            String exportFile = config.getProperty( "export-queries", "" );
+            if( !exportFile.isEmpty() ) {
+                int rowGroupSize = Integer.parseInt( config.getProperty( "export-row-group-size",
+                            Integer.toString( ColumnarWriter.DEFAULT_ROW_GROUP_SIZE ) ) );
+                mExportQueries = new ExportQueries( exportFile, config.getProperty( "export-dir", "exports" ), rowGroupSize );
+            }
 
             // connect up the XML streams so that it passes from:
-            // GCAM -> Filter (if it exists) -> DB
-            if( mFilterOutput != null ) {
-                mFilterOutput.setInputStream( mReadFromGCAMStream );
-                mWriteDB.setInputStream( mFilterOutput.getOutputStream() );
+            // GCAM -> Projection (if it exists) -> Filter (if it exists) -> Delta (if enabled)
+            // -> Dedup (if enabled) -> Shard by region (if enabled) -> DB
+            InputStream nextStageInput = mReadFromGCAMPipe.getInputStream();
+            // each stage is attached to it's own pipes for the metrics
+            mMetrics.setEnds( mReadFromGCAMPipe, mWriteDB );
+            // The binary events are decoded straight into SAX events for the filter or the
+            // DB.  The projection, delta, deduplication, and sharding scan the XML text so
+            // need it converted first.
+            XMLReader binaryEventReader = null;
+            if( mBinaryEvents && ( mProjectionFilter != null || mDeltaEncoder != null || mSubtreeDedup != null
+                                   || mShardByRegion != null ) ) {
+                mBinaryEventConverter = new BinaryEventConverter();
+                ChunkPipe convertPipe = new ChunkPipe( pipeDepth, pipeChunkSize );
+                mStagePipes.add( convertPipe );
+                mBinaryEventConverter.setInputStream( nextStageInput );
+                mBinaryEventConverter.setOutputStream( convertPipe.getOutputStream() );
+                nextStageInput = convertPipe.getInputStream();
+                mMetrics.addStage( "convert", convertPipe );
             }
-            else {
-                mWriteDB.setInputStream( mReadFromGCAMStream );
+            else if( mBinaryEvents ) {
+                binaryEventReader = new BinaryEventReader();
+            }
+            if( mProjectionFilter != null ) {
+                ChunkPipe projectionPipe = new ChunkPipe( pipeDepth, pipeChunkSize );
+                mStagePipes.add( projectionPipe );
+                mProjectionFilter.setInputStream( nextStageInput );
+                mProjectionFilter.setOutputStream( projectionPipe.getOutputStream() );
+                nextStageInput = projectionPipe.getInputStream();
+                mMetrics.addStage( "projection", projectionPipe );
+            }
+            // The filter may hand its results to the DB as SAX events rather than
+            // serializing them to be parsed again, unless they need to be split up
+            // by region, compared to the baseline, or deduplicated first.  This is off
+            // by default as the events must be built in memory before being copied in.
+            boolean filterSAXHandoff = mFilterOutput != null && mShardByRegion == null && mSubtreeDedup == null
+                && mDeltaEncoder == null
+                && Boolean.parseBoolean( config.getProperty( "filter-sax-handoff", "false" ) );
+            if( filterSAXHandoff ) {
+                mWriteDB.setSAXSource( binaryEventReader != null
+                    ? mFilterOutput.getSAXSource( nextStageInput, binaryEventReader )
+                    : mFilterOutput.getSAXSource( nextStageInput ) );
+                nextStageInput = null;
+                mMetrics.addStage( IngestMetrics.FILTER_STAGE, null );
+            }
+            else if( mFilterOutput != null ) {
+                ChunkPipe filterPipe = new ChunkPipe( pipeDepth, pipeChunkSize );
+                mStagePipes.add( filterPipe );
+                if( binaryEventReader != null ) {
+                    mFilterOutput.setXMLReader( binaryEventReader );
+                }
+                mFilterOutput.setInputStream( nextStageInput );
+                mFilterOutput.setOutputStream( filterPipe.getOutputStream() );
+                nextStageInput = filterPipe.getInputStream();
+                mMetrics.addStage( IngestMetrics.FILTER_STAGE, filterPipe );
+            }
+            if( mDeltaEncoder != null || mSubtreeDedup != null ) {
+                // the series are extracted from the full data rather than the differences or stubs
+                nextStageInput = mWriteDB.teeUpstreamToSeriesExtractor( nextStageInput );
+            }
+            if( mDeltaEncoder != null ) {
+                ChunkPipe deltaPipe = new ChunkPipe( pipeDepth, pipeChunkSize );
+                mStagePipes.add( deltaPipe );
+                mDeltaEncoder.setInputStream( nextStageInput );
+                mDeltaEncoder.setOutputStream( deltaPipe.getOutputStream() );
+                nextStageInput = deltaPipe.getInputStream();
+                mMetrics.addStage( "delta", deltaPipe );
+            }
+            if( mSubtreeDedup != null ) {
+                ChunkPipe dedupPipe = new ChunkPipe( pipeDepth, pipeChunkSize );
+                mStagePipes.add( dedupPipe );
+                mSubtreeDedup.setInputStream( nextStageInput );
+                mSubtreeDedup.setOutputStream( dedupPipe.getOutputStream() );
+                nextStageInput = dedupPipe.getInputStream();
+                mMetrics.addStage( "dedup", dedupPipe );
+            }
+            if( mShardByRegion != null ) {
+                ChunkPipe shardPipe = new ChunkPipe( pipeDepth, pipeChunkSize );
+                mStagePipes.add( shardPipe );
+                mShardByRegion.setInputStream( nextStageInput );
+                mShardByRegion.setOutputStream( shardPipe.getOutputStream() );
+                nextStageInput = shardPipe.getInputStream();
+                mMetrics.addStage( IngestMetrics.SHARD_STAGE, shardPipe );
+            }
+            if( nextStageInput != null && binaryEventReader != null && mFilterOutput == null ) {
+                mWriteDB.setSAXSource( new SAXSource( binaryEventReader, new InputSource( nextStageInput ) ) );
             }
+            else if( nextStageInput != null ) {
+                mWriteDB.setInputStream( nextStageInput );
+            }
+
+            // publish metrics over JMX and optionally print them every so many seconds (off by default)
+            int metricsLogInterval = Integer.parseInt( config.getProperty( "metrics-log-interval", "0" ) );
+            mMetrics.start( metricsLogInterval );
 
             // start the workers for filtering and storing data however not
             // running queries which will wait until finalizeAndClose.
-            if( mFilterOutput != null ) {
+            if( mBinaryEventConverter != null ) {
+                mBinaryEventConverter.start();
+            }
+            if( mProjectionFilter != null ) {
+                mProjectionFilter.start();
+            }
+            if( mFilterOutput != null && !filterSAXHandoff ) {
                 mFilterOutput.start();
             }
+            if( mDeltaEncoder != null ) {
+                mDeltaEncoder.start();
+            }
+            if( mSubtreeDedup != null ) {
+                mSubtreeDedup.start();
+            }
+            if( mShardByRegion != null ) {
+                mShardByRegion.start();
+            }
             mWriteDB.start();
         }
         catch( Exception error ) {
             error.printStackTrace();
-            try {
-                mReadFromGCAMStream.close();
+            cancelWrite();
+        }
+    }
+
+    /**
+     * Create a driver for each of the sinks listed in fan-out-sinks.  The configuration
+     * of a sink named NAME is the primary configuration without the stage options
+     * (FAN_OUT_STAGE_OPTIONS) overridden by any option given as fan-out.NAME.OPTION.
+     * A sink which fails to open is reported and skipped so that the rest may continue.
+     * @param aDocName The document name to use if the sink does not set doc-name.
+     * @param aConfig The primary configuration properties.
+     */
+    private void createFanOutSinks( final String aDocName, final Properties aConfig ) {
+        for( String sinkName : aConfig.getProperty( "fan-out-sinks", "" ).split( ";" ) ) {
+            sinkName = sinkName.trim();
+            if( sinkName.isEmpty() ) {
+                continue;
             }
-            catch( IOException ioError ) {
-                // ignore
+            Properties sinkConfig = new Properties();
+            sinkConfig.putAll( aConfig );
+            sinkConfig.remove( "fan-out-sinks" );
+            // the raw XML is only ever spooled once by the primary driver
+            sinkConfig.remove( "spool-dir" );
+            for( String option : FAN_OUT_STAGE_OPTIONS ) {
+                sinkConfig.remove( option );
             }
-            cancelWrite();
+            final String sinkPrefix = "fan-out." + sinkName + ".";
+            for( String key : aConfig.stringPropertyNames() ) {
+                if( key.startsWith( sinkPrefix ) ) {
+                    sinkConfig.setProperty( key.substring( sinkPrefix.length() ), aConfig.getProperty( key ) );
+                }
+            }
+            // the sinks receive whatever format GCAM sends the primary driver and
+            // are finished along with it so must copy GCAM's buffers if it does
+            sinkConfig.setProperty( "binary-events", Boolean.toString( mBinaryEvents ) );
+            sinkConfig.setProperty( "async-finish", Boolean.toString( mAsyncFinish ) );
+            final String sinkDBLocation = sinkConfig.getProperty( "db-path", "" );
+            if( sinkDBLocation.isEmpty() ) {
+                System.err.println( "ERROR: No " + sinkPrefix + "db-path was given.  Skipping fan-out sink " + sinkName + "." );
+                continue;
+            }
+            XMLDBDriver sink = new XMLDBDriver( sinkDBLocation, sinkConfig.getProperty( "doc-name", aDocName ),
+                                                sinkConfig, sinkName );
+            if( sink.mWriteDB == null ) {
+                // the error has already been reported
+                System.err.println( "ERROR: Skipping fan-out sink " + sinkName + "." );
+                sink.finalizeAndClose();
+                continue;
+            }
+            mFanOutSinks.add( sink );
         }
     }
 
@@ -150,15 +715,93 @@ public class XMLDBDriver {
      * an error.
      */
     private void cancelWrite() {
+        // wake up anyone waiting on the pipes so they can see the cancellation
+        if( mReadFromGCAMPipe != null ) {
+            mReadFromGCAMPipe.cancel();
+        }
+        for( ChunkPipe stagePipe : mStagePipes ) {
+            stagePipe.cancel();
+        }
+
         // stop any workers processing data if they have even been started.
+        if( mBinaryEventConverter != null ) {
+            mBinaryEventConverter.cancel();
+            mBinaryEventConverter = null;
+        }
+        if( mProjectionFilter != null ) {
+            mProjectionFilter.cancel();
+            mProjectionFilter = null;
+        }
+        if( mSpoolWriter != null ) {
+            mSpoolWriter.cancel();
+            mSpoolWriter = null;
+        }
+        if( mLiveQueries != null ) {
+            mLiveQueries.cancel();
+            mLiveQueries = null;
+        }
         if( mFilterOutput != null ) {
             mFilterOutput.cancel();
             mFilterOutput = null;
         }
+        if( mDeltaEncoder != null ) {
+            mDeltaEncoder.cancel();
+            mDeltaEncoder = null;
+        }
+        if( mSubtreeDedup != null ) {
+            mSubtreeDedup.cancel();
+            mSubtreeDedup = null;
+        }
+        if( mShardByRegion != null ) {
+            mShardByRegion.cancel();
+            mShardByRegion = null;
+        }
         if( mWriteDB != null ) {
             mWriteDB.cancel();
             mWriteDB = null;
         }
+
+        // GCAM will stop sending data so the sinks would only store part of it
+        for( XMLDBDriver sink : mFanOutSinks ) {
+            sink.cancelWrite();
+        }
+    }
+
+    /**
+     * Send any remaining data from GCAM and signal the end of the stream to the
+     * first stage.
+     */
+    private void sendEndOfData() {
+        if( mReadFromGCAMPipe != null ) {
+            try {
+                mReadFromGCAMPipe.getOutputStream().close();
+            }
+            catch( IOException ioError ) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Send a copy of the data GCAM sent to each of the fan-out sinks.  Each sink
+     * has its own pipe and workers so GCAM will only wait if the pipe of one of
+     * them is full.  A sink which fails is reported and dropped so that the others
+     * may continue.
+     * @param aBuffer The raw XML data from GCAM.
+     * @param aLength The amount of data that was sent in the buffer.
+     */
+    private void sendToFanOutSinks( final Object aBuffer, final int aLength ) {
+        for( Iterator<XMLDBDriver> it = mFanOutSinks.iterator(); it.hasNext(); ) {
+            XMLDBDriver sink = it.next();
+            boolean hadError = aBuffer instanceof ByteBuffer ?
+                sink.receiveDataFromGCAM( (ByteBuffer)aBuffer, aLength ) :
+                sink.receiveDataFromGCAM( (byte[])aBuffer, aLength );
+            if( hadError ) {
+                System.err.println( "ERROR: Dropping fan-out sink " + sink.mSinkName + " after an error." );
+                sink.finalizeAndClose();
+                it.remove();
+            }
+        }
     }
 
     /**
@@ -167,26 +810,151 @@ public class XMLDBDriver {
      * returning.
      */
     public void finish() {
-        try {
-            mReadFromGCAMStream.close();
+        if( mDaemonClient != null ) {
+            try {
+                mStored = mDaemonClient.finish();
+                if( !mStored ) {
+                    System.err.println( "ERROR: The XMLDBDriver daemon failed to store the results." );
+                }
+            }
+            catch( IOException ioError ) {
+                ioError.printStackTrace();
+                dropDaemonClient();
+            }
+            return;
         }
-        catch( IOException ioError ) {
-            // ignore
+        final long startTime = System.nanoTime();
+        // signal the end of the stream to all of the sinks before waiting on any of
+        // them so that they all finish storing at the same time
+        sendEndOfData();
+        for( XMLDBDriver sink : mFanOutSinks ) {
+            sink.sendEndOfData();
         }
 
         // This will block until the database is done storing
         // the data sent from GCAM.
+        if( mSpoolWriter != null ) {
+            mSpoolWriter.finish();
+        }
+        if( mBinaryEventConverter != null ) {
+            mBinaryEventConverter.finish();
+        }
+        if( mProjectionFilter != null ) {
+            mProjectionFilter.finish();
+        }
+        if( mLiveQueries != null ) {
+            mLiveQueries.finish();
+        }
         if( mFilterOutput != null ) {
             mFilterOutput.finish();
         }
+        if( mDeltaEncoder != null ) {
+            mDeltaEncoder.finish();
+        }
+        if( mSubtreeDedup != null ) {
+            mSubtreeDedup.finish();
+        }
+        if( mShardByRegion != null ) {
+            mShardByRegion.finish();
+        }
         if( mWriteDB != null ) {
             mWriteDB.finish();
+            mStored = mWriteDB.isStored();
+            // GCAM is cleaning up while finishing asynchronously so overlap the
+            // index build with that as well
+            if( IndexBuilder.AFTER_SCENARIO.equals( mIndexPolicy ) ) {
+                mWriteDB.buildIndexesAsync();
+            }
+        }
+        for( XMLDBDriver sink : mFanOutSinks ) {
+            sink.finish();
+        }
+        if( mMetrics != null ) {
+            mMetrics.setFinishNanos( System.nanoTime() - startTime );
         }
 
         // note we keep the database open in case additional processing
         // will occur.
     }
 
+    /**
+     * Check if the document sent from GCAM was verified to be stored in the
+     * database.  This is only known once finish has returned.
+     * @return True if the document was stored without error.
+     */
+    public boolean isStored() {
+        return mStored;
+    }
+
+    /**
+     * Notify that no more XML from GCAM will be sent without waiting for the data
+     * to be stored, unless async-finish has been disabled.  GCAM may then go on to
+     * clean up while the database catches up.  Any later call to append data,
+     * finalizeAndClose, or opening the next driver will wait for the data to be
+     * stored first.
+     * @return A handle which completes once all of the data has been stored.
+     */
+    public Future<?> finishAsync() {
+        FutureTask<Void> finishTask = new FutureTask<Void>( new Runnable() {
+            public void run() {
+                finish();
+            }
+        }, null );
+        mPendingFinish = finishTask;
+        if( mAsyncFinish ) {
+            if( mFinishKey != null ) {
+                sPendingFinishes.put( mFinishKey, finishTask );
+            }
+            sFinishExecutor.execute( finishTask );
+        }
+        else {
+            finishTask.run();
+        }
+        return finishTask;
+    }
+
+    /**
+     * Get the key pending finishes are kept under in sPendingFinishes.
+     * @param aDBLocation The location of the database.
+     * @param aLive If the driver is for live queries which are kept apart from the
+     *              drivers actually storing results in the database.
+     * @return The key for the database.
+     */
+    private static String getFinishKey( final String aDBLocation, final boolean aLive ) {
+        final String path = new File( aDBLocation ).getAbsolutePath();
+        return aLive ? "live:" + path : path;
+    }
+
+    /**
+     * Wait for a finish started with finishAsync to complete.
+     * @param aFinish The pending finish or null if there is none.
+     */
+    private static void awaitFinish( final Future<?> aFinish ) {
+        if( aFinish != null ) {
+            try {
+                aFinish.get();
+            }
+            catch( Exception error ) {
+                error.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Release everything kept open across scenarios in this process: any indexes
+     * put off until the databases were idle are built and the databases kept open
+     * by reuse-db-session or for live queries are closed.  GCAM calls this once it is done with the
+     * database as it never destroys the JVM so shutdown hooks would not run.
+     */
+    public static void shutdown() {
+        for( Future<?> pendingFinish : sPendingFinishes.values() ) {
+            awaitFinish( pendingFinish );
+        }
+        LiveQueries.closeContext();
+        IndexBuilder.runIdleBuildsNow();
+        DBSessionPool.closeAll();
+    }
+
     /**
      * Run any final processing that the user may have requested then close
      * the database out.  At this point GCAM has cleaned out it's memory and
@@ -194,45 +962,224 @@ public class XMLDBDriver {
      * time to run queries if requested and then close the database.
      */
     public void finalizeAndClose() {
+        if( mLiveQueries != null ) {
+            // There is no database to close and GCAM should not wait on the queries,
+            // the next driver opened will wait for them instead.
+            return;
+        }
+        awaitFinish( mPendingFinish );
+        if( mDaemonClient != null ) {
+            try {
+                // the daemon confirms if the results were stored, any failure would
+                // already have been reported by finish
+                mStored = mDaemonClient.finalizeAndClose();
+            }
+            catch( IOException ioError ) {
+                ioError.printStackTrace();
+            }
+            mDaemonClient = null;
+            return;
+        }
+        final long startTime = System.nanoTime();
+        // the sinks run their own batch queries, if any, and close their databases
+        for( XMLDBDriver sink : mFanOutSinks ) {
+            sink.finalizeAndClose();
+        }
+        mFanOutSinks.clear();
+
         // error checking if an earlier error has already closed the database.
         if( mWriteDB == null ) {
-            if( mRunQueries != null ) {
-                System.err.println( "ERROR: Database has already been closed.  Could not run batch queries." );
+            if( mRunQueries != null || mExportQueries != null ) {
+                System.err.println( "ERROR: Database has already been closed.  Could not run batch queries or exports." );
             }
             // else there were no queries to run and the earlier error was already printed so no need to print again
+            if( mMetrics != null ) {
+                mMetrics.stop();
+            }
             return;
         }
 
+        // The queries may make use of the indexes so wait for them to be built.
+        mWriteDB.awaitIndexes();
+
+        // If subtrees were deduplicated or only the differences from a baseline stored
+        // the queries are run on a view with the full documents.
+        Context queryContext = mWriteDB.getContext();
+        String queryDBName = mWriteDB.getContainerName();
+        Context resolvedView = null;
+        if( mRunQueries != null || mExportQueries != null ) {
+            resolvedView = mWriteDB.openResolvedView();
+            if( resolvedView != null ) {
+                queryContext = resolvedView;
+                queryDBName = mWriteDB.getResolvedViewName();
+            }
+        }
+
         // If the user wanted to run some queries now is the time to run them.
         if( mRunQueries != null ) {
-            mRunQueries.start( mWriteDB.getDBLocation(), mWriteDB.getContext() );
+            mRunQueries.start( mWriteDB.getDBLocation(), queryContext );
             // finish will blcok until the queries have funished running.
             mRunQueries.finish();
         }
+        if( mExportQueries != null ) {
+            mExportQueries.run( queryContext, queryDBName, mWriteDB.getDocName() );
+        }
+        if( resolvedView != null ) {
+            mWriteDB.closeResolvedView( resolvedView );
+        }
 
+        if( IndexBuilder.IDLE.equals( mIndexPolicy ) ) {
+            mWriteDB.indexWhenIdle( mIndexIdleSeconds );
+        }
         mWriteDB.close();
+        mMetrics.setFinalizeAndCloseNanos( System.nanoTime() - startTime );
+        mMetrics.stop();
     }
 
     /**
      * Receives data from GCAM in a buffer intending to be sent from
-     * a stream.
+     * a stream.  Note the data will be copied before returning so that GCAM
+     * can reuse aBuffer.
      * @param aBuffer The raw XML data from GCAM.
      * @param aLength The amount of data that was sent in the buffer.
      * @return An error flag set to true if an error occurred.
      */
     public boolean receiveDataFromGCAM( byte[] aBuffer, int aLength ) {
+        if( mDaemonClient != null ) {
+            try {
+                mDaemonClient.sendData( aBuffer, aLength );
+                return false;
+            }
+            catch( IOException ioError ) {
+                ioError.printStackTrace();
+                dropDaemonClient();
+                return true;
+            }
+        }
+        if( mReadFromGCAMPipe == null ) {
+            // There was an error in set up which has already been reported.
+            return true;
+        }
         boolean hadError = false;
         try {
-            mReadFromGCAMStream.write( aBuffer, 0, aLength );
+            mReadFromGCAMPipe.getOutputStream().write( aBuffer, 0, aLength );
+            sendToFanOutSinks( aBuffer, aLength );
         }
         catch ( IOException ioError ) {
             ioError.printStackTrace();
             cancelWrite();
             hadError = true;
         }
-        finally {
-            return hadError;
+        return hadError;
+    }
+
+    /**
+     * Receives data from GCAM in a direct buffer created over native memory
+     * (i.e. with NewDirectByteBuffer).  The data will be read in place by the
+     * filter or database without first copying it into the Java heap.  GCAM
+     * must cycle through getDirectBufferRingSize() such buffers and may only
+     * reuse aBuffer once it has sent all of the others.  If async-finish is set
+     * the data is copied instead as GCAM will free the buffers while it is still
+     * being stored.
+     * @param aBuffer A direct buffer containing the raw XML data from GCAM.
+     * @param aLength The amount of data that was sent in the buffer.
+     * @return An error flag set to true if an error occurred.
+     */
+    public boolean receiveDataFromGCAM( ByteBuffer aBuffer, int aLength ) {
+        if( mDaemonClient != null ) {
+            try {
+                // the data is copied to be sent so GCAM could reuse the buffer right away
+                mDaemonClient.sendData( aBuffer, aLength );
+                return false;
+            }
+            catch( IOException ioError ) {
+                ioError.printStackTrace();
+                dropDaemonClient();
+                return true;
+            }
+        }
+        if( mReadFromGCAMPipe == null ) {
+            // There was an error in set up which has already been reported.
+            return true;
+        }
+        boolean hadError = false;
+        try {
+            // Use a view of the buffer so that GCAM's buffer object is left untouched
+            // as the data is read.
+            ByteBuffer data = aBuffer.duplicate();
+            data.clear();
+            data.limit( aLength );
+            if( mAsyncFinish ) {
+                mReadFromGCAMPipe.write( data );
+            }
+            else {
+                mReadFromGCAMPipe.offer( data );
+            }
+            // the sinks read the same buffer in place as well
+            sendToFanOutSinks( aBuffer, aLength );
+        }
+        catch ( IOException ioError ) {
+            ioError.printStackTrace();
+            cancelWrite();
+            hadError = true;
+        }
+        return hadError;
+    }
+
+    /**
+     * Get the number of direct buffers GCAM should cycle through when sending data
+     * via receiveDataFromGCAM( ByteBuffer, int ).  This is one more than the pipe
+     * depth so that GCAM may always fill one buffer while the rest are in flight.
+     * As the fan-out sinks read the same buffers the deepest of all of their pipes
+     * is used.
+     * @return The number of direct buffers to use.
+     */
+    public int getDirectBufferRingSize() {
+        int ringSize = ( mReadFromGCAMPipe != null ? mReadFromGCAMPipe.getDepth() : DEFAULT_PIPE_DEPTH ) + 1;
+        for( XMLDBDriver sink : mFanOutSinks ) {
+            ringSize = Math.max( ringSize, sink.getDirectBufferRingSize() );
+        }
+        return ringSize;
+    }
+
+    /**
+     * Close the connection to the daemon after an error.  The daemon will discard
+     * the session and further calls will report an error.
+     */
+    private void dropDaemonClient() {
+        mDaemonClient.close();
+        mDaemonClient = null;
+    }
+
+    /**
+     * Check if GCAM may send the results as a binary event stream (see
+     * BinaryEventReader) rather than as textual XML.  This is only the case if
+     * binary-events has been set and the results are not being spooled or sent to
+     * a daemon.
+     * @return True if GCAM may send binary events.
+     */
+    public boolean acceptsBinaryEvents() {
+        return mBinaryEvents;
+    }
+
+    /**
+     * Check if the database is available to append data to and print an error
+     * if not.
+     * @return True if data may be appended.
+     */
+    private boolean canAppend() {
+        if( mDaemonClient != null ) {
+            return true;
+        }
+        if( mSpoolWriter != null ) {
+            System.err.println( "ERROR: Could not append data as the results are being spooled to be loaded later." );
+            return false;
         }
+        if( mWriteDB == null ) {
+            System.err.println( "ERROR: Could not append data as database has already been closed." );
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -243,15 +1190,104 @@ public class XMLDBDriver {
      * @return True if the data was successfully updated, false otherwise.
      */
     public boolean appendData( final String aData, final String aLocation ) {
-        if( mWriteDB == null ) {
-            System.err.println( "ERROR: Could not append data as database has already been closed." );
+        // the document must be complete before we can add to it
+        awaitFinish( mPendingFinish );
+        if( !canAppend() ) {
             return false;
         }
+        else if( mDaemonClient != null ) {
+            try {
+                return mDaemonClient.appendData( aData, aLocation );
+            }
+            catch( IOException ioError ) {
+                ioError.printStackTrace();
+                dropDaemonClient();
+                return false;
+            }
+        }
         else {
             return mWriteDB.appendData( aData, aLocation );
         }
     }
 
+    /**
+     * Begin a streamed append of data after the given location.  The data is
+     * then sent with appendChunk and inserted when appendEnd is called.  This
+     * avoids having to build the entire fragment as a string which is useful
+     * when the data to append is large.
+     * @param aLocation An XPath that describes where to insert the data after.
+     * @return True if the append was started, false otherwise.
+     */
+    public boolean appendBegin( final String aLocation ) {
+        // the document must be complete before we can add to it
+        awaitFinish( mPendingFinish );
+        if( !canAppend() ) {
+            return false;
+        }
+        else if( mDaemonClient != null ) {
+            try {
+                return mDaemonClient.appendBegin( aLocation );
+            }
+            catch( IOException ioError ) {
+                ioError.printStackTrace();
+                dropDaemonClient();
+                return false;
+            }
+        }
+        else {
+            return mWriteDB.appendBegin( aLocation );
+        }
+    }
+
+    /**
+     * Send the next chunk of data for the current streamed append.
+     * @param aData The buffer containing the XML data.
+     * @param aLength The number of bytes in the buffer to append.
+     * @return True if the data was accepted, false otherwise.
+     */
+    public boolean appendChunk( final byte[] aData, final int aLength ) {
+        if( !canAppend() ) {
+            return false;
+        }
+        else if( mDaemonClient != null ) {
+            try {
+                mDaemonClient.appendChunk( aData, aLength );
+                return true;
+            }
+            catch( IOException ioError ) {
+                ioError.printStackTrace();
+                dropDaemonClient();
+                return false;
+            }
+        }
+        else {
+            return mWriteDB.appendChunk( aData, aLength );
+        }
+    }
+
+    /**
+     * End the current streamed append and insert the data into the document.
+     * @return True if the data was successfully updated, false otherwise.
+     */
+    public boolean appendEnd() {
+        if( !canAppend() ) {
+            return false;
+        }
+        else if( mDaemonClient != null ) {
+            try {
+                return mDaemonClient.appendEnd();
+            }
+            catch( IOException ioError ) {
+                ioError.printStackTrace();
+                dropDaemonClient();
+                return false;
+            }
+        }
+        else {
+            return mWriteDB.appendEnd();
+        }
+    }
+
     /**
      * Print the help/usage options for running the XMLDBDriver directly from the command line.
      * The usage method and description of each of the command line arguments are printed then
@@ -263,6 +1299,13 @@ public class XMLDBDriver {
         try {
             System.err.println( "USAGE:" );
             System.err.println( "   java -cp XMLDBDriver.jar XMLDBDriver --db-path=PATH --doc-name=NAME --xml=FILE\nor" );
+            System.err.println( "   java -cp XMLDBDriver.jar XMLDBDriver --spool=PATH [--spool-workers=N]\nor" );
+            System.err.println( "   java -cp XMLDBDriver.jar XMLDBDriver --export-to-csv=FILE\nor" );
+            System.err.println( "   java -cp XMLDBDriver.jar XMLDBDriver --series=FILE [--where=DIM=VALUE,...]... [--group-by=DIM,...]"
+                                + " [--list-values=DIM]\nor" );
+            System.err.println( "   java -cp XMLDBDriver.jar XMLDBDriver --events-to-xml=FILE | --xml-to-events=FILE\nor" );
+            System.err.println( "   java -cp XMLDBDriver.jar XMLDBDriver --daemon[=PORT]\nor" );
+            System.err.println( "   java -cp XMLDBDriver.jar XMLDBDriver --train-cds [--xml=FILE]\nor" );
             System.err.println( "   java -cp XMLDBDriver.jar XMLDBDriver --print-java-path\n" );
             System.err.println( "NOTE: If the first form is used, the arguments -db-path, --doc-name, and --xml are all required." );
             System.err.println("      Options can be abbreviated using any unique prefix, e.g., --db=XXX --doc=YYY -x foo.xml\n" );
@@ -281,6 +1324,12 @@ public class XMLDBDriver {
      *  - Test out a filter script to ensure it behaves as expected
      *  - Accumulate exported runs into a database
      *  - Simply run queries on an exported XML file (likely using an in-memory DB)
+     *  - Load results which GCAM staged in a spool (see spool-dir) into the database
+     *  - Print a file exported with export-queries as CSV
+     *  - Query the series extracted into a series store (see series-store-dir)
+     *  - Convert between XML and the binary event stream GCAM may send
+     *  - Run as a daemon which GCAM runs send their results to (see daemon-address)
+     *  - Create a class data sharing archive to speed up starting Java in GCAM
      *
      * @param aArgs The command line arguments are required (the properties file is loaded as always):
      *  java -jar XMLDBDriver.jar --db-path [Path to DB]
@@ -301,6 +1350,24 @@ public class XMLDBDriver {
         parser.accepts( "db-path", "Path to XML database" ).withRequiredArg();
         parser.accepts( "doc-name", "The unique name to call the document in the DB" ).withRequiredArg();
         parser.accepts( "xml", "The exported GCAM results XML file to load" ).withRequiredArg();
+        parser.accepts( "spool", "A spool directory or .spool file of staged GCAM results to load" ).withRequiredArg();
+        parser.accepts( "spool-workers", "The number of databases to load spools into at once" ).withRequiredArg();
+        parser.accepts( "export-to-csv", "Print an exported columnar file as CSV" ).withRequiredArg();
+        parser.accepts( "series", "Query a series store (see series-store-dir) printing the results as CSV" )
+            .withRequiredArg();
+        parser.accepts( "where", "With --series only select series with one of the given comma separated values"
+                        + " of a dimension, may use * and ? wildcards and be given more than once" ).withRequiredArg();
+        parser.accepts( "group-by", "With --series sum the selected series by year grouped by the given comma"
+                        + " separated dimensions, or all of them if empty" ).withRequiredArg();
+        parser.accepts( "list-values", "With --series print the values of the given dimension" ).withRequiredArg();
+        parser.accepts( "events-to-xml", "Print a binary event stream (see binary-events) as XML" ).withRequiredArg();
+        parser.accepts( "xml-to-events", "Convert an XML file to a binary event stream written to standard out" )
+            .withRequiredArg();
+        parser.accepts( "daemon", "Keep running and store results sent from GCAM runs configured with daemon-address" )
+            .withOptionalArg();
+        parser.accepts( "train-cds", "Create a class data sharing archive for GCAM to start Java with by running a"
+                        + " sample workload, or the results given with --xml, through the driver" );
+        parser.accepts( "cds-workload", "Run the sample workload used by --train-cds (internal)" );
         parser.accepts( "print-java-home", "Print the path to the Java home directory and exit" );
 
         // Parse the command line options
@@ -332,6 +1399,71 @@ public class XMLDBDriver {
             }
         }
 
+        // If the spool option is set load the staged results into the databases
+        // they were destined for then exit.
+        if( opts.has( "spool" ) ) {
+            int spoolWorkers = opts.has( "spool-workers" ) ? Integer.parseInt( (String)opts.valueOf( "spool-workers" ) ) : 1;
+            SpoolLoader loader = new SpoolLoader( loadConfig() );
+            boolean success = loader.loadAll( SpoolLoader.findSpools( (String)opts.valueOf( "spool" ) ), spoolWorkers );
+            shutdown();
+            System.exit( success ? 0 : 1 );
+        }
+
+        // If the export-to-csv option is set print the exported file and exit.
+        if( opts.has( "export-to-csv" ) ) {
+            ColumnarReader reader = new ColumnarReader( new File( (String)opts.valueOf( "export-to-csv" ) ) );
+            try {
+                reader.writeCSV( System.out );
+            }
+            finally {
+                reader.close();
+            }
+            System.exit( 0 );
+        }
+
+        // If the series option is set query the series store and exit.
+        if( opts.has( "series" ) ) {
+            querySeriesStore( opts );
+            System.exit( 0 );
+        }
+
+        // If either of the binary event conversion options are set convert the file
+        // and exit.
+        if( opts.has( "events-to-xml" ) || opts.has( "xml-to-events" ) ) {
+            boolean toXML = opts.has( "events-to-xml" );
+            InputStream in = new FileInputStream( (String)opts.valueOf( toXML ? "events-to-xml" : "xml-to-events" ) );
+            try {
+                if( toXML ) {
+                    BinaryEventConverter.toXML( in, System.out );
+                }
+                else {
+                    BinaryEventConverter.fromXML( in, System.out );
+                }
+            }
+            finally {
+                in.close();
+            }
+            System.exit( 0 );
+        }
+
+        // If the train-cds option is set create the class data sharing archive and
+        // exit.  Note the workload option is what the JVM dumping the archive runs.
+        if( opts.has( "train-cds" ) ) {
+            boolean success = CDSTraining.train( opts.has( "xml" ) ? (String)opts.valueOf( "xml" ) : null );
+            System.exit( success ? 0 : 1 );
+        }
+        if( opts.has( "cds-workload" ) ) {
+            CDSTraining.runWorkload( opts.has( "xml" ) ? (String)opts.valueOf( "xml" ) : null );
+            System.exit( 0 );
+        }
+
+        // If the daemon option is set keep serving sessions until killed.
+        if( opts.has( "daemon" ) ) {
+            XMLDBDaemon.serve( opts.hasArgument( "daemon" ) ? Integer.parseInt( (String)opts.valueOf( "daemon" ) )
+                                                            : XMLDBDaemon.DEFAULT_PORT );
+            System.exit( 0 );
+        }
+
         // Note all options that print help/diagnostics and quite should have already been
         // handled by this point and exited.
         // Get the options for running the XMLDBDriver.  Each of these options are required
@@ -346,25 +1478,80 @@ public class XMLDBDriver {
 
         // Run the XMLDBDriver by mimicking the sequence of method calls GCAM would make
         XMLDBDriver driver = new XMLDBDriver( dbPath, docName );
-
-        // copy the XML file through processing streams via receiveDataFromGCAM
-        FileInputStream xmlRead = new FileInputStream( xmlFile );
-        byte[] buffer = new byte[ XMLDBDriver.BUFFER_SIZE ];
-        int read = 0;
-        while( ( read = xmlRead.read( buffer ) ) != -1 ) {
-            boolean hadError = driver.receiveDataFromGCAM( buffer, read );
-            if( hadError ) {
-                // There was an error in set up.  Those messages have already been
-                // printed so we just need to stop trying to send data.
-                break;
-            }
-        }
-        xmlRead.close();
+        sendFile( driver, xmlFile );
 
         // wait for the XML to be finished processing and stored
         driver.finish();
         // run any potential queries and close the DB
         driver.finalizeAndClose();
+        shutdown();
+    }
+
+    /**
+     * Query a series store as directed by the series command line options and print
+     * the results to standard out.
+     * @param aOpts The parsed command line options.
+     * @throws IOException If the series store could not be read.
+     */
+    private static void querySeriesStore( final OptionSet aOpts ) throws IOException {
+        SeriesStore store = new SeriesStore( new File( (String)aOpts.valueOf( "series" ) ) );
+        try {
+            if( aOpts.has( "list-values" ) ) {
+                for( String value : store.getDictionary( (String)aOpts.valueOf( "list-values" ) ) ) {
+                    System.out.println( value );
+                }
+                return;
+            }
+            Map<String, String[]> filters = new LinkedHashMap<String, String[]>();
+            for( Object where : aOpts.valuesOf( "where" ) ) {
+                String[] dimAndValues = ( (String)where ).split( "=", 2 );
+                if( dimAndValues.length != 2 ) {
+                    throw new IllegalArgumentException( "Expected --where=DIM=VALUE,... but got: " + where );
+                }
+                filters.put( dimAndValues[ 0 ].trim(), dimAndValues[ 1 ].split( "," ) );
+            }
+            String[] groupBy = null;
+            if( aOpts.has( "group-by" ) ) {
+                String groupByList = ( (String)aOpts.valueOf( "group-by" ) ).trim();
+                groupBy = groupByList.isEmpty() ? new String[ 0 ] : groupByList.split( "\\s*,\\s*" );
+            }
+            SeriesStore.writeCSV( System.out, store.getColumns( groupBy ), store.query( filters, groupBy ) );
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Copy an XML file through the processing streams via receiveDataFromGCAM using
+     * a ring of direct buffers as GCAM does.
+     * @param aDriver The driver to send the XML to.
+     * @param aXMLFile The XML file to send.
+     * @throws IOException If the file could not be read.
+     */
+    static void sendFile( final XMLDBDriver aDriver, final String aXMLFile ) throws IOException {
+        FileChannel xmlRead = new FileInputStream( aXMLFile ).getChannel();
+        ByteBuffer[] buffers = new ByteBuffer[ aDriver.getDirectBufferRingSize() ];
+        for( int i = 0; i < buffers.length; ++i ) {
+            buffers[ i ] = ByteBuffer.allocateDirect( XMLDBDriver.BUFFER_SIZE );
+        }
+        int currBuffer = 0;
+        int read = 0;
+        try {
+            while( ( read = xmlRead.read( buffers[ currBuffer ] ) ) != -1 ) {
+                boolean hadError = aDriver.receiveDataFromGCAM( buffers[ currBuffer ], read );
+                if( hadError ) {
+                    // There was an error in set up.  Those messages have already been
+                    // printed so we just need to stop trying to send data.
+                    break;
+                }
+                currBuffer = ( currBuffer + 1 ) % buffers.length;
+                buffers[ currBuffer ].clear();
+            }
+        }
+        finally {
+            xmlRead.close();
+        }
     }
 }
 
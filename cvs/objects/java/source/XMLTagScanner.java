@@ -0,0 +1,311 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A base class for stages which need to follow the structure of the XML as it
+ * is streamed through but do not need to fully parse it.  The XML is scanned at
+ * the byte level: runs of text between tags are handed over as is, without being
+ * copied, and each tag (start, end, comment, CDATA section, or processing
+ * instruction) is collected and handed over once it is complete.  Subclasses can
+ * then pick out the element names and attributes only for the tags they care
+ * about.  UTF-8 (or any ASCII compatible encoding) is assumed.
+ */
+public abstract class XMLTagScanner {
+    /**
+     * The charset the XML is assumed to be in.
+     */
+    protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /**
+     * The bytes of a tag (or comment etc) that is currently being read.
+     * Text between tags is never copied into here but passed on directly.
+     */
+    protected byte[] mTag = new byte[ 1024 ];
+
+    /**
+     * The number of bytes currently in mTag, zero if we are not in a tag.
+     */
+    protected int mTagLength = 0;
+
+    /**
+     * If we are in a quoted attribute value the quote character otherwise zero.
+     */
+    private byte mQuote = 0;
+
+    /**
+     * Called with each run of text between tags.  The buffer is only valid for
+     * the duration of the call.
+     * @param aBuffer The buffer containing the text.
+     * @param aOffset The offset of the text in the buffer.
+     * @param aLength The length of the text.
+     */
+    protected abstract void processText( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException;
+
+    /**
+     * Called with each complete tag which is in mTag.
+     */
+    protected abstract void processTag() throws IOException;
+
+    /**
+     * Scan through the input handing over runs of text and tags as they are found.
+     * @param aInputStream The stream to read the XML from until the end.
+     */
+    protected void scan( final InputStream aInputStream ) throws IOException {
+        byte[] buffer = new byte[ XMLDBDriver.BUFFER_SIZE ];
+        int read;
+        while( ( read = aInputStream.read( buffer ) ) != -1 ) {
+            scan( buffer, 0, read );
+        }
+    }
+
+    /**
+     * Scan through the next block of input handing over runs of text and tags as
+     * they are found.  This may be used when the XML is pushed to us rather than
+     * read from a stream.  A tag may be split across blocks.
+     * @param aBuffer The buffer containing the next block of XML.
+     * @param aOffset The offset of the block in the buffer.
+     * @param aLength The length of the block.
+     */
+    protected void scan( final byte[] aBuffer, final int aOffset, final int aLength ) throws IOException {
+        final int end = aOffset + aLength;
+        int runStart = aOffset;
+        for( int i = aOffset; i < end; ++i ) {
+            final byte currByte = aBuffer[ i ];
+            if( mTagLength == 0 ) {
+                if( currByte == '<' ) {
+                    if( i > runStart ) {
+                        processText( aBuffer, runStart, i - runStart );
+                    }
+                    appendToTag( currByte );
+                }
+            }
+            else {
+                appendToTag( currByte );
+                if( isTagComplete( currByte ) ) {
+                    processTag();
+                    mTagLength = 0;
+                    mQuote = 0;
+                    runStart = i + 1;
+                }
+            }
+        }
+        if( mTagLength == 0 && end > runStart ) {
+            processText( aBuffer, runStart, end - runStart );
+        }
+    }
+
+    /**
+     * Add a byte to the current tag, growing the buffer if necessary.
+     * @param aByte The byte to add.
+     */
+    private void appendToTag( final byte aByte ) {
+        if( mTagLength == mTag.length ) {
+            byte[] newTag = new byte[ mTag.length * 2 ];
+            System.arraycopy( mTag, 0, newTag, 0, mTagLength );
+            mTag = newTag;
+        }
+        mTag[ mTagLength++ ] = aByte;
+    }
+
+    /**
+     * Check if the byte just added completes the current tag.  Start/end tags and
+     * processing instructions end at the first > not in a quoted attribute value,
+     * comments must end with --> and CDATA sections with ]]>.
+     * @param aByte The byte just added to the tag.
+     * @return True if the tag is now complete.
+     */
+    private boolean isTagComplete( final byte aByte ) {
+        if( mTag[ 1 ] == '!' ) {
+            if( aByte != '>' ) {
+                return false;
+            }
+            if( startsWith( "<!--" ) ) {
+                return mTagLength >= 7 && endsWith( "-->" );
+            }
+            if( startsWith( "<![CDATA[" ) ) {
+                return mTagLength >= 12 && endsWith( "]]>" );
+            }
+            return mTagLength >= 3;
+        }
+        if( mQuote != 0 ) {
+            if( aByte == mQuote ) {
+                mQuote = 0;
+            }
+            return false;
+        }
+        if( aByte == '"' || aByte == '\'' ) {
+            mQuote = aByte;
+            return false;
+        }
+        return aByte == '>' && mTagLength > 1;
+    }
+
+    /**
+     * Check if the current tag starts with the given ASCII string.
+     * @param aPrefix The string to check for.
+     * @return True if the tag starts with aPrefix.
+     */
+    protected boolean startsWith( final String aPrefix ) {
+        if( mTagLength < aPrefix.length() ) {
+            return false;
+        }
+        for( int i = 0; i < aPrefix.length(); ++i ) {
+            if( mTag[ i ] != aPrefix.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the current tag ends with the given ASCII string.
+     * @param aSuffix The string to check for.
+     * @return True if the tag ends with aSuffix.
+     */
+    protected boolean endsWith( final String aSuffix ) {
+        final int offset = mTagLength - aSuffix.length();
+        if( offset < 0 ) {
+            return false;
+        }
+        for( int i = 0; i < aSuffix.length(); ++i ) {
+            if( mTag[ offset + i ] != aSuffix.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the current tag is an end tag.
+     * @return True if the current tag is an end tag.
+     */
+    protected boolean isEndTag() {
+        return mTag[ 1 ] == '/';
+    }
+
+    /**
+     * Check if the current tag is a start tag, rather than an end tag, comment,
+     * CDATA section, or processing instruction.
+     * @return True if the current tag is a start tag.
+     */
+    protected boolean isStartTag() {
+        return mTag[ 1 ] != '/' && mTag[ 1 ] != '!' && mTag[ 1 ] != '?';
+    }
+
+    /**
+     * Check if the current start tag is an empty element tag, i.e. <name/>.
+     * @return True if the current tag is empty.
+     */
+    protected boolean isEmptyTag() {
+        return mTag[ mTagLength - 2 ] == '/';
+    }
+
+    /**
+     * Get the length of the element name of the current start tag.
+     * @return The number of bytes in the element name.
+     */
+    private int tagNameEnd() {
+        int end = 1;
+        while( end < mTagLength && mTag[ end ] != '>' && mTag[ end ] != '/'
+               && !isWhitespace( mTag[ end ] ) )
+        {
+            ++end;
+        }
+        return end;
+    }
+
+    /**
+     * Get the element name of the current start tag.
+     * @return The element name.
+     */
+    protected String tagName() {
+        return new String( mTag, 1, tagNameEnd() - 1, UTF8 );
+    }
+
+    /**
+     * Parse the attributes of the current start tag.  Note entities in the values
+     * are not expanded.
+     * @return The attributes by name.
+     */
+    protected Map<String, String> tagAttributes() {
+        Map<String, String> attributes = new HashMap<String, String>();
+        int pos = tagNameEnd();
+        while( true ) {
+            while( pos < mTagLength && isWhitespace( mTag[ pos ] ) ) {
+                ++pos;
+            }
+            final int nameStart = pos;
+            while( pos < mTagLength && mTag[ pos ] != '=' && mTag[ pos ] != '>' && mTag[ pos ] != '/'
+                   && !isWhitespace( mTag[ pos ] ) )
+            {
+                ++pos;
+            }
+            final int nameEnd = pos;
+            while( pos < mTagLength && mTag[ pos ] != '=' && mTag[ pos ] != '>' ) {
+                ++pos;
+            }
+            if( nameEnd == nameStart || pos >= mTagLength || mTag[ pos ] != '=' ) {
+                return attributes;
+            }
+            ++pos;
+            while( pos < mTagLength && mTag[ pos ] != '"' && mTag[ pos ] != '\'' ) {
+                ++pos;
+            }
+            if( pos >= mTagLength ) {
+                return attributes;
+            }
+            final byte quote = mTag[ pos++ ];
+            final int valueStart = pos;
+            while( pos < mTagLength && mTag[ pos ] != quote ) {
+                ++pos;
+            }
+            attributes.put( new String( mTag, nameStart, nameEnd - nameStart, UTF8 ),
+                            new String( mTag, valueStart, pos - valueStart, UTF8 ) );
+            ++pos;
+        }
+    }
+
+    /**
+     * Check if the given byte is XML whitespace.
+     * @param aByte The byte to check.
+     * @return True if it is whitespace.
+     */
+    private static boolean isWhitespace( final byte aByte ) {
+        return aByte == ' ' || aByte == '\t' || aByte == '\n' || aByte == '\r';
+    }
+}
@@ -0,0 +1,266 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests that BinaryEventReader decodes the binary event wire format, as GCAM
+ * writes it, into the same SAX events as the equivalent XML.
+ */
+public class BinaryEventReaderTest {
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /**
+     * Records the SAX events as strings with the text of an element combined and
+     * whitespace only text dropped.
+     */
+    private static class RecordingHandler extends DefaultHandler {
+        final List<String> mEvents = new ArrayList<String>();
+        private final StringBuilder mText = new StringBuilder();
+
+        private void flushText() {
+            if( !mText.toString().trim().isEmpty() ) {
+                mEvents.add( "text:" + mText );
+            }
+            mText.setLength( 0 );
+        }
+
+        @Override
+        public void startElement( final String aURI, final String aLocalName, final String aQName,
+                                  final Attributes aAttrs )
+        {
+            flushText();
+            StringBuilder event = new StringBuilder( "start:" ).append( aQName );
+            for( int i = 0; i < aAttrs.getLength(); ++i ) {
+                event.append( " " ).append( aAttrs.getQName( i ) ).append( "=" ).append( aAttrs.getValue( i ) );
+            }
+            mEvents.add( event.toString() );
+        }
+
+        @Override
+        public void endElement( final String aURI, final String aLocalName, final String aQName ) {
+            flushText();
+            mEvents.add( "end:" + aQName );
+        }
+
+        @Override
+        public void characters( final char[] aChars, final int aStart, final int aLength ) {
+            mText.append( aChars, aStart, aLength );
+        }
+    }
+
+    /**
+     * Builds a binary event stream by hand following the wire format.
+     */
+    private static class StreamBuilder {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final DataOutputStream mOut = new DataOutputStream( mBytes );
+
+        StreamBuilder() throws IOException {
+            mOut.write( BinaryEventReader.MAGIC );
+        }
+
+        StreamBuilder varint( long aValue ) throws IOException {
+            while( ( aValue & ~0x7FL ) != 0 ) {
+                mOut.write( (int)( ( aValue & 0x7F ) | 0x80 ) );
+                aValue >>>= 7;
+            }
+            mOut.write( (int)aValue );
+            return this;
+        }
+
+        StreamBuilder string( final String aValue ) throws IOException {
+            final byte[] utf8 = aValue.getBytes( UTF8 );
+            varint( utf8.length );
+            mOut.write( utf8 );
+            return this;
+        }
+
+        StreamBuilder define( final int aId, final String aName ) throws IOException {
+            mOut.write( BinaryEventReader.DEFINE_NAME );
+            return varint( aId ).string( aName );
+        }
+
+        StreamBuilder start( final int aId ) throws IOException {
+            mOut.write( BinaryEventReader.START_ELEMENT );
+            return varint( aId );
+        }
+
+        StreamBuilder attribute( final int aId ) throws IOException {
+            mOut.write( BinaryEventReader.ATTRIBUTE );
+            return varint( aId );
+        }
+
+        StreamBuilder text() throws IOException {
+            mOut.write( BinaryEventReader.TEXT );
+            return this;
+        }
+
+        StreamBuilder stringValue( final String aValue ) throws IOException {
+            mOut.write( BinaryEventReader.STRING );
+            return string( aValue );
+        }
+
+        StreamBuilder doubleValue( final double aValue ) throws IOException {
+            mOut.write( BinaryEventReader.DOUBLE );
+            mOut.writeDouble( aValue );
+            return this;
+        }
+
+        StreamBuilder intValue( final long aValue ) throws IOException {
+            mOut.write( BinaryEventReader.INT );
+            return varint( ( aValue << 1 ) ^ ( aValue >> 63 ) );
+        }
+
+        StreamBuilder end() throws IOException {
+            mOut.write( BinaryEventReader.END_ELEMENT );
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return mBytes.toByteArray();
+        }
+    }
+
+    private static List<String> read( final byte[] aStream ) throws IOException, SAXException {
+        RecordingHandler handler = new RecordingHandler();
+        BinaryEventReader reader = new BinaryEventReader();
+        reader.setContentHandler( handler );
+        reader.parse( new InputSource( new ByteArrayInputStream( aStream ) ) );
+        return handler.mEvents;
+    }
+
+    private static List<String> parseXML( final String aXML ) throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        SAXParserFactory.newInstance().newSAXParser().parse( new ByteArrayInputStream( aXML.getBytes( UTF8 ) ), handler );
+        return handler.mEvents;
+    }
+
+    @Test
+    public void testWireFormat() throws Exception {
+        final byte[] stream = new StreamBuilder()
+            .define( 0, "scenario" )
+            .start( 0 )
+            // names may be defined between an element and its attributes
+            .define( 1, "name" ).attribute( 1 ).stringValue( "ref \u00e9" )
+            .define( 300, "value" ).define( 2, "year" )
+            .start( 300 ).attribute( 2 ).intValue( 2010 ).text().doubleValue( 1.5 ).end()
+            .start( 300 ).attribute( 2 ).intValue( -5 ).text().intValue( -3 ).end()
+            .start( 300 ).text().doubleValue( 2500.0 ).text().stringValue( " units" ).end()
+            .end()
+            .toByteArray();
+        assertEquals( parseXML( "<scenario name=\"ref \u00e9\">"
+                                + "<value year=\"2010\">1.5</value>"
+                                + "<value year=\"-5\">-3</value>"
+                                + "<value>2500 units</value>"
+                                + "</scenario>" ),
+                      read( stream ) );
+    }
+
+    @Test
+    public void testWriterRoundTrip() throws Exception {
+        // numbers which would not read back as the same text must stay strings
+        final String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<scenario name=\"s\" date=\"2024-01-01\">\n"
+            + "  <region name=\"USA\">\n"
+            + "    <value year=\"1975\" unit=\"EJ\">12.5</value>\n"
+            + "    <value year=\"1990\">1.50</value>\n"
+            + "    <value year=\"2005\">007</value>\n"
+            + "    <value year=\"2010\">-0</value>\n"
+            + "    <value year=\"2020\">1e5</value>\n"
+            + "    <value year=\"2030\">-123456789012</value>\n"
+            + "    <value year=\"2040\">0.1</value>\n"
+            + "    <label>a &amp; b &lt; c</label>\n"
+            + "    <empty/>\n"
+            + "  </region>\n"
+            + "</scenario>";
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        SAXParserFactory.newInstance().newSAXParser()
+            .parse( new ByteArrayInputStream( xml.getBytes( UTF8 ) ), new BinaryEventWriter( binary ) );
+        assertEquals( parseXML( xml ), read( binary.toByteArray() ) );
+    }
+
+    @Test
+    public void testTextualXMLIsParsed() throws Exception {
+        final String xml = "<scenario name=\"s\"><value year=\"2010\">1.5</value></scenario>";
+        assertEquals( parseXML( xml ), read( xml.getBytes( UTF8 ) ) );
+    }
+
+    @Test
+    public void testFormatDouble() {
+        assertEquals( "2010", BinaryEventReader.formatDouble( 2010.0 ) );
+        assertEquals( "-0.25", BinaryEventReader.formatDouble( -0.25 ) );
+        assertEquals( "NaN", BinaryEventReader.formatDouble( Double.NaN ) );
+        assertEquals( "-INF", BinaryEventReader.formatDouble( Double.NEGATIVE_INFINITY ) );
+    }
+
+    private static void assertRejected( final byte[] aStream ) throws IOException {
+        try {
+            read( aStream );
+            fail( "The stream should have been rejected" );
+        }
+        catch( SAXException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInvalidStreams() throws IOException {
+        // a name used before it is defined
+        assertRejected( new StreamBuilder().start( 0 ).end().toByteArray() );
+        // an end without a start
+        assertRejected( new StreamBuilder().define( 0, "a" ).start( 0 ).end().end().toByteArray() );
+        // the stream ends with an element still open
+        assertRejected( new StreamBuilder().define( 0, "a" ).start( 0 ).toByteArray() );
+        // an unknown value type
+        StreamBuilder badValue = new StreamBuilder().define( 0, "a" ).start( 0 ).text();
+        badValue.mOut.write( 9 );
+        assertRejected( badValue.toByteArray() );
+    }
+}
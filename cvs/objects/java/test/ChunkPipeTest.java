@@ -0,0 +1,232 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that data passed through a ChunkPipe comes out the other end whole, in
+ * order, and that either side is woken up when the other cancels.
+ */
+public class ChunkPipeTest {
+    /**
+     * Create some data which does not line up with the chunk size.
+     * @param aLength The number of bytes.
+     * @return Random bytes.
+     */
+    private static byte[] randomData( final int aLength ) {
+        byte[] data = new byte[ aLength ];
+        new Random( aLength ).nextBytes( data );
+        return data;
+    }
+
+    /**
+     * Read everything from a pipe on a new thread.
+     */
+    private static class Reader extends Thread {
+        private final InputStream mIn;
+        final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        volatile Exception mError = null;
+
+        Reader( final InputStream aIn ) {
+            mIn = aIn;
+            start();
+        }
+
+        public void run() {
+            try {
+                byte[] buffer = new byte[ 777 ];
+                int read;
+                while( ( read = mIn.read( buffer ) ) != -1 ) {
+                    mData.write( buffer, 0, read );
+                }
+            }
+            catch( Exception error ) {
+                mError = error;
+            }
+        }
+
+        byte[] await() throws Exception {
+            join( 10000 );
+            assertTrue( "The reader did not finish", !isAlive() );
+            if( mError != null ) {
+                throw mError;
+            }
+            return mData.toByteArray();
+        }
+    }
+
+    @Test
+    public void testStreamRoundTrip() throws Exception {
+        final byte[] data = randomData( 100003 );
+        ChunkPipe pipe = new ChunkPipe( 2, 1024 );
+        Reader reader = new Reader( pipe.getInputStream() );
+        OutputStream out = pipe.getOutputStream();
+        // a mix of single bytes and writes larger and smaller than a chunk
+        int pos = 0;
+        for( int length = 1; pos < data.length; length = length * 3 % 5000 + 1 ) {
+            length = Math.min( length, data.length - pos );
+            if( length == 1 ) {
+                out.write( data[ pos ] );
+            }
+            else {
+                out.write( data, pos, length );
+            }
+            pos += length;
+        }
+        out.close();
+        assertArrayEquals( data, reader.await() );
+        assertEquals( data.length, pipe.getBytesWritten() );
+        assertEquals( data.length, pipe.getBytesRead() );
+    }
+
+    @Test
+    public void testOfferedBuffersStayInOrder() throws Exception {
+        final byte[] data = randomData( 50000 );
+        ChunkPipe pipe = new ChunkPipe( 3, 4096 );
+        Reader reader = new Reader( pipe.getInputStream() );
+        // alternate between direct buffers read in place, heap buffers which are
+        // copied, and data written to the stream which is only flushed by offer
+        int pos = 0;
+        for( int i = 0; pos < data.length; ++i ) {
+            final int length = Math.min( 3000 + i, data.length - pos );
+            if( i % 3 == 0 ) {
+                ByteBuffer direct = ByteBuffer.allocateDirect( length );
+                direct.put( data, pos, length ).flip();
+                pipe.offer( direct );
+            }
+            else if( i % 3 == 1 ) {
+                pipe.offer( ByteBuffer.wrap( data, pos, length ) );
+            }
+            else {
+                pipe.getOutputStream().write( data, pos, length );
+            }
+            pos += length;
+        }
+        pipe.getOutputStream().close();
+        assertArrayEquals( data, reader.await() );
+    }
+
+    @Test
+    public void testDirectBufferMayBeReusedAfterDepthOffers() throws Exception {
+        final int depth = 2;
+        final byte[] data = randomData( 64 * 1000 );
+        ChunkPipe pipe = new ChunkPipe( depth, 1024 );
+        Reader reader = new Reader( pipe.getInputStream() );
+        // reuse a ring of depth + 1 direct buffers as GCAM does
+        ByteBuffer[] ring = new ByteBuffer[ depth + 1 ];
+        for( int i = 0; i < ring.length; ++i ) {
+            ring[ i ] = ByteBuffer.allocateDirect( 1000 );
+        }
+        for( int i = 0; i < 64; ++i ) {
+            ByteBuffer buffer = ring[ i % ring.length ];
+            buffer.clear();
+            buffer.put( data, i * 1000, 1000 ).flip();
+            pipe.offer( buffer );
+            assertTrue( pipe.getQueuedChunks() <= depth );
+        }
+        pipe.finishWriting();
+        assertArrayEquals( data, reader.await() );
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception {
+        ChunkPipe pipe = new ChunkPipe( 1, 16 );
+        Reader reader = new Reader( pipe.getInputStream() );
+        pipe.offer( ByteBuffer.allocateDirect( 0 ) );
+        pipe.finishWriting();
+        assertEquals( 0, reader.await().length );
+        assertEquals( -1, pipe.getInputStream().read() );
+    }
+
+    @Test
+    public void testCancelWakesBlockedReader() throws Exception {
+        ChunkPipe pipe = new ChunkPipe( 1, 16 );
+        Reader reader = new Reader( pipe.getInputStream() );
+        Thread.sleep( 50 );
+        pipe.cancel();
+        try {
+            reader.await();
+            fail( "The reader should have seen the pipe closed" );
+        }
+        catch( IOException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCancelWakesBlockedWriter() throws Exception {
+        final ChunkPipe pipe = new ChunkPipe( 1, 16 );
+        final Exception[] error = new Exception[ 1 ];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    // nothing reads so the second chunk must wait for room
+                    pipe.getOutputStream().write( new byte[ 64 ] );
+                }
+                catch( Exception writeError ) {
+                    error[ 0 ] = writeError;
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep( 50 );
+        assertTrue( "The writer should be waiting for room", writer.isAlive() );
+        pipe.cancel();
+        writer.join( 10000 );
+        assertTrue( error[ 0 ] instanceof IOException );
+    }
+
+    @Test( expected = IOException.class )
+    public void testWriteAfterFinish() throws Exception {
+        ChunkPipe pipe = new ChunkPipe( 1, 16 );
+        pipe.finishWriting();
+        ByteBuffer buffer = ByteBuffer.allocateDirect( 8 );
+        pipe.offer( buffer );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testInvalidDepth() {
+        new ChunkPipe( 0, 16 );
+    }
+}
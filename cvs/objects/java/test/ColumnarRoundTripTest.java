@@ -0,0 +1,195 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that tables written by ColumnarWriter read back the same with
+ * ColumnarReader.
+ */
+public class ColumnarRoundTripTest {
+    private static final String[] NAMES = { "region", "label", "year", "value" };
+
+    private static final byte[] TYPES = { ColumnarWriter.DICTIONARY, ColumnarWriter.STRING,
+                                          ColumnarWriter.INT, ColumnarWriter.DOUBLE };
+
+    private static final String[][] ROWS = {
+        { "USA", "a, \"quoted\"", "1975", "1.5" },
+        { "China", "", "1990", "" },
+        { "USA", "\u00e9l\u00e9ctricit\u00e9", "", "-0.25" },
+        { "EU-15", "x", "-2147483647", "1e300" },
+        { "China", "y", "2147483647", "0" },
+        { "USA", "z", "2100", "12345.678" },
+        { "India", "last", "2100", "-1" }
+    };
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile( "columnar", ".gcol" );
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private void writeRows( final int aRowGroupSize ) throws IOException {
+        ColumnarWriter writer = new ColumnarWriter( mFile, NAMES, TYPES, aRowGroupSize );
+        for( String[] row : ROWS ) {
+            writer.addRow( row );
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        writeRows( 3 );
+        ColumnarReader reader = new ColumnarReader( mFile );
+        try {
+            assertArrayEquals( NAMES, reader.getColumnNames() );
+            assertArrayEquals( TYPES, reader.getColumnTypes() );
+            assertEquals( ROWS.length, reader.getNumRows() );
+            assertEquals( 3, reader.getNumRowGroups() );
+            assertArrayEquals( new String[] { "USA", "China", "EU-15", "India" }, reader.getDictionary( 0 ) );
+            assertEquals( null, reader.getDictionary( 1 ) );
+
+            int row = 0;
+            for( int rowGroup = 0; rowGroup < reader.getNumRowGroups(); ++rowGroup ) {
+                Object[] columns = reader.readRowGroup( rowGroup );
+                final String[] regions = (String[])columns[ 0 ];
+                for( int i = 0; i < regions.length; ++i, ++row ) {
+                    assertEquals( ROWS[ row ][ 0 ], regions[ i ] );
+                    assertEquals( ROWS[ row ][ 1 ], ( (String[])columns[ 1 ] )[ i ] );
+                    final int year = ( (int[])columns[ 2 ] )[ i ];
+                    if( ROWS[ row ][ 2 ].isEmpty() ) {
+                        assertEquals( ColumnarWriter.MISSING_INT, year );
+                    }
+                    else {
+                        assertEquals( Integer.parseInt( ROWS[ row ][ 2 ] ), year );
+                    }
+                    final double value = ( (double[])columns[ 3 ] )[ i ];
+                    if( ROWS[ row ][ 3 ].isEmpty() ) {
+                        assertTrue( Double.isNaN( value ) );
+                    }
+                    else {
+                        assertEquals( Double.parseDouble( ROWS[ row ][ 3 ] ), value, 0 );
+                    }
+                }
+            }
+            assertEquals( ROWS.length, row );
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testWriteCSV() throws IOException {
+        writeRows( ColumnarWriter.DEFAULT_ROW_GROUP_SIZE );
+        ColumnarReader reader = new ColumnarReader( mFile );
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        try {
+            assertEquals( 1, reader.getNumRowGroups() );
+            reader.writeCSV( new PrintStream( csv, true, "UTF-8" ) );
+        }
+        finally {
+            reader.close();
+        }
+        String[] lines = csv.toString( "UTF-8" ).split( "\r?\n" );
+        assertEquals( ROWS.length + 1, lines.length );
+        assertEquals( "region,label,year,value", lines[ 0 ] );
+        assertEquals( "USA,\"a, \"\"quoted\"\"\",1975,1.5", lines[ 1 ] );
+        assertEquals( "China,,1990,", lines[ 2 ] );
+        assertEquals( "USA,\u00e9l\u00e9ctricit\u00e9,,-0.25", lines[ 3 ] );
+    }
+
+    @Test
+    public void testEmptyTable() throws IOException {
+        new ColumnarWriter( mFile, NAMES, TYPES, 10 ).close();
+        ColumnarReader reader = new ColumnarReader( mFile );
+        try {
+            assertEquals( 0, reader.getNumRows() );
+            assertEquals( 0, reader.getNumRowGroups() );
+            assertEquals( 0, reader.getDictionary( 0 ).length );
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testTruncatedFileIsRejected() throws IOException {
+        writeRows( 3 );
+        RandomAccessFile file = new RandomAccessFile( mFile, "rw" );
+        try {
+            file.setLength( file.length() - 1 );
+        }
+        finally {
+            file.close();
+        }
+        try {
+            new ColumnarReader( mFile ).close();
+            fail( "A truncated file should be rejected" );
+        }
+        catch( IOException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testParseType() {
+        assertEquals( ColumnarWriter.DICTIONARY, ColumnarWriter.parseType( "dictionary" ) );
+        assertEquals( ColumnarWriter.DOUBLE, ColumnarWriter.parseType( "double" ) );
+        try {
+            ColumnarWriter.parseType( "float" );
+            fail( "An unknown type should be rejected" );
+        }
+        catch( IllegalArgumentException expected ) {
+            // expected
+        }
+    }
+}
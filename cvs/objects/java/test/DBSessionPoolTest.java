@@ -0,0 +1,95 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.basex.core.Context;
+import org.junit.Test;
+
+/**
+ * Tests the reference counting in DBSessionPool.  Closing the pool can not be
+ * undone so everything is checked in a single test which closes it last.
+ */
+public class DBSessionPoolTest {
+    @Test
+    public void testRefCounting() {
+        assertEquals( "memory:../output/database_basexdb",
+                      DBSessionPool.getKey( "../output", "database_basexdb", true ) );
+        assertEquals( "disk:../output/database_basexdb",
+                      DBSessionPool.getKey( "../output", "database_basexdb", false ) );
+
+        final String idleKey = DBSessionPool.getKey( "pool-test", "idle", false );
+        final String busyKey = DBSessionPool.getKey( "pool-test", "busy", false );
+        assertFalse( DBSessionPool.isPooled( idleKey ) );
+        assertNull( DBSessionPool.acquire( idleKey ) );
+        assertNull( DBSessionPool.acquireIfIdle( idleKey ) );
+
+        // registering counts as the first acquire
+        final Context idle = new Context();
+        assertTrue( DBSessionPool.register( idleKey, idle ) );
+        assertTrue( DBSessionPool.isPooled( idleKey ) );
+        assertNull( DBSessionPool.acquireIfIdle( idleKey ) );
+        assertSame( idle, DBSessionPool.acquire( idleKey ) );
+        DBSessionPool.release( idleKey );
+        assertNull( DBSessionPool.acquireIfIdle( idleKey ) );
+        DBSessionPool.release( idleKey );
+        assertSame( idle, DBSessionPool.acquireIfIdle( idleKey ) );
+        DBSessionPool.release( idleKey );
+        // extra releases must not drive the count negative
+        DBSessionPool.release( idleKey );
+        assertSame( idle, DBSessionPool.acquireIfIdle( idleKey ) );
+        DBSessionPool.release( idleKey );
+
+        final Context busy = new Context();
+        assertTrue( DBSessionPool.register( busyKey, busy ) );
+        assertSame( busy, DBSessionPool.acquire( busyKey ) );
+
+        // idle databases are closed right away and busy ones once released
+        DBSessionPool.closeAll();
+        assertFalse( DBSessionPool.isPooled( idleKey ) );
+        assertTrue( DBSessionPool.isPooled( busyKey ) );
+        assertNull( DBSessionPool.acquire( busyKey ) );
+        DBSessionPool.release( busyKey );
+        assertTrue( DBSessionPool.isPooled( busyKey ) );
+        DBSessionPool.release( busyKey );
+        assertFalse( DBSessionPool.isPooled( busyKey ) );
+
+        // nothing more is pooled once closed
+        assertFalse( DBSessionPool.register( idleKey, new Context() ) );
+        assertFalse( DBSessionPool.isPooled( idleKey ) );
+        assertNull( DBSessionPool.acquire( idleKey ) );
+    }
+}
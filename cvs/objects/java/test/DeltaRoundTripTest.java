@@ -0,0 +1,225 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests that a scenario stored as the differences from a baseline by DeltaEncoder
+ * is reconstructed by DeltaMerger.
+ */
+public class DeltaRoundTripTest {
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final String BASELINE = "<?xml version=\"1.0\"?>\n"
+        + "<scenario name=\"reference\" date=\"1\">\n"
+        + "  <world>\n"
+        + "    <region name=\"USA\">\n"
+        + "      <value year=\"2010\">1.5</value>\n"
+        + "      <value year=\"2020\">2.5</value>\n"
+        + "      <value year=\"2020\">3.5</value>\n"
+        + "      <dropped><inner>1</inner></dropped>\n"
+        + "    </region>\n"
+        + "    <region name=\"China\"><value year=\"2010\">4</value><empty/></region>\n"
+        + "  </world>\n"
+        + "</scenario>";
+
+    private static final String SCENARIO = "<?xml version=\"1.0\"?>\n"
+        + "<policy name=\"tax\" date=\"2\">\n"
+        + "  <world>\n"
+        + "    <region name=\"USA\">\n"
+        + "      <first/>\n"
+        + "      <value year=\"2010\">1.5</value>\n"
+        + "      <value year=\"2020\">2.75</value>\n"
+        + "      <added a=\"&amp;\"><inner>x &lt; y</inner></added>\n"
+        + "      <value year=\"2020\">3.5</value>\n"
+        + "    </region>\n"
+        + "    <region name=\"China\"><value year=\"2010\">4</value><empty>text</empty></region>\n"
+        + "  </world>\n"
+        + "</policy>";
+
+    /**
+     * Get the pending load of the baseline index as WriteLocalBaseXDB would.
+     * @param aBaseline The baseline XML or null if it could not be loaded.
+     */
+    private static FutureTask<DeltaEncoder.BaselineIndex> loadBaseline( final String aBaseline ) throws IOException {
+        final DeltaEncoder.BaselineIndex index;
+        if( aBaseline != null ) {
+            index = new DeltaEncoder.BaselineIndex( 64 * 1024 * 1024 );
+            OutputStream indexStream = index.getOutputStream();
+            indexStream.write( aBaseline.getBytes( UTF8 ) );
+            indexStream.close();
+        }
+        else {
+            index = null;
+        }
+        FutureTask<DeltaEncoder.BaselineIndex> load = new FutureTask<DeltaEncoder.BaselineIndex>(
+            new Callable<DeltaEncoder.BaselineIndex>() {
+                public DeltaEncoder.BaselineIndex call() {
+                    return index;
+                }
+            } );
+        load.run();
+        return load;
+    }
+
+    private static String encode( final String aBaseline, final String aScenario ) throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder( "reference", loadBaseline( aBaseline ) );
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        encoder.setInputStream( new ByteArrayInputStream( aScenario.getBytes( UTF8 ) ) );
+        encoder.setOutputStream( delta );
+        encoder.start();
+        encoder.finish();
+        return new String( delta.toByteArray(), UTF8 );
+    }
+
+    private static String merge( final DeltaMerger aMerger, final String aDelta, final String aBaseline ) throws IOException {
+        aMerger.getDeltaStream().write( aDelta.getBytes( UTF8 ) );
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        OutputStream baselineStream = aMerger.getBaselineStream( full );
+        baselineStream.write( aBaseline.getBytes( UTF8 ) );
+        baselineStream.close();
+        return new String( full.toByteArray(), UTF8 );
+    }
+
+    /**
+     * Parse a document dropping the whitespace only text, which is only
+     * indentation and is not kept in the same places by the merge.
+     */
+    private static Document parse( final String aXML ) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse( new InputSource( new ByteArrayInputStream( aXML.getBytes( UTF8 ) ) ) );
+        removeWhitespace( doc.getDocumentElement() );
+        return doc;
+    }
+
+    private static void removeWhitespace( final Node aNode ) {
+        Node child = aNode.getFirstChild();
+        while( child != null ) {
+            Node next = child.getNextSibling();
+            if( child.getNodeType() == Node.TEXT_NODE && child.getNodeValue().trim().isEmpty() ) {
+                aNode.removeChild( child );
+            }
+            else {
+                removeWhitespace( child );
+            }
+            child = next;
+        }
+    }
+
+    private static void assertSameDocument( final String aExpected, final String aActual ) throws Exception {
+        assertTrue( "expected:\n" + aExpected + "\nbut was:\n" + aActual,
+                    parse( aExpected ).getDocumentElement().isEqualNode( parse( aActual ).getDocumentElement() ) );
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final String delta = encode( BASELINE, SCENARIO );
+        assertTrue( delta.contains( DeltaEncoder.BASELINE_ATTRIBUTE + "=\"reference\"" ) );
+        assertTrue( delta.contains( "<" + DeltaEncoder.TEXT_ELEMENT + " at=\"4\">2.75</" ) );
+        assertTrue( delta.contains( "<" + DeltaEncoder.DELETE_ELEMENT + " at=\"6\"/>" ) );
+        assertFalse( "only the outermost deleted element is listed",
+                     delta.contains( "<" + DeltaEncoder.DELETE_ELEMENT + " at=\"7\"/>" ) );
+
+        DeltaMerger merger = new DeltaMerger();
+        assertSameDocument( SCENARIO, merge( merger, delta, BASELINE ) );
+        assertEquals( "reference", merger.getBaselineName() );
+        assertTrue( merger.getAppended().isEmpty() );
+    }
+
+    @Test
+    public void testUnchangedScenarioHasNoDifferences() throws Exception {
+        final String delta = encode( BASELINE, BASELINE );
+        assertFalse( delta.contains( DeltaEncoder.TEXT_ELEMENT ) );
+        assertFalse( delta.contains( DeltaEncoder.INSERT_ELEMENT ) );
+        assertFalse( delta.contains( DeltaEncoder.DELETE_ELEMENT ) );
+        assertSameDocument( BASELINE, merge( new DeltaMerger(), delta, BASELINE ) );
+    }
+
+    @Test
+    public void testAppendedDataIsReturned() throws Exception {
+        String delta = encode( BASELINE, SCENARIO );
+        delta = delta.replace( "</policy>", "<" + DeltaEncoder.APPENDED_ELEMENT + " location=\"/scenario/world\">"
+                               + "<cost>1</cost><cost>2</cost></" + DeltaEncoder.APPENDED_ELEMENT + ">\n</policy>" );
+        DeltaMerger merger = new DeltaMerger();
+        assertSameDocument( SCENARIO, merge( merger, delta, BASELINE ) );
+        List<String[]> appended = merger.getAppended();
+        assertEquals( 1, appended.size() );
+        assertEquals( "/scenario/world", appended.get( 0 )[ 0 ] );
+        assertEquals( "<cost>1</cost><cost>2</cost>", appended.get( 0 )[ 1 ] );
+    }
+
+    @Test
+    public void testChangedBaselineIsRejected() throws Exception {
+        final String delta = encode( BASELINE, SCENARIO );
+        final boolean[] closed = new boolean[ 1 ];
+        OutputStream full = new ByteArrayOutputStream() {
+            public void close() {
+                closed[ 0 ] = true;
+            }
+        };
+        DeltaMerger merger = new DeltaMerger();
+        merger.getDeltaStream().write( delta.getBytes( UTF8 ) );
+        OutputStream baselineStream = merger.getBaselineStream( full );
+        baselineStream.write( BASELINE.replace( "1.5", "1.6" ).getBytes( UTF8 ) );
+        try {
+            baselineStream.close();
+            fail( "A changed baseline should be rejected" );
+        }
+        catch( IOException expected ) {
+            assertFalse( "The output should be left open", closed[ 0 ] );
+        }
+    }
+
+    @Test
+    public void testMissingBaselineCopiesScenario() throws Exception {
+        assertEquals( SCENARIO, encode( null, SCENARIO ) );
+    }
+}
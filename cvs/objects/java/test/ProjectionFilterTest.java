@@ -0,0 +1,122 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+/**
+ * Tests which elements the ProjectionFilter keeps for include and exclude paths.
+ */
+public class ProjectionFilterTest {
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final String XML = "<scenario name=\"s\">"
+        + "<world>"
+        + "<region name=\"USA\"><sector name=\"elec\"><GHG name=\"CO2\">1</GHG><GHG name=\"CH4\">2</GHG></sector></region>"
+        + "<region name=\"China\"><sector name=\"elec\"><GHG name=\"CO2\">3</GHG></sector><price>4</price></region>"
+        + "</world>"
+        + "<model-version>7</model-version>"
+        + "</scenario>";
+
+    /**
+     * Run the XML through a filter.
+     * @param aIncludes The paths to keep.
+     * @param aExcludes The paths to drop.
+     * @return The filtered XML.
+     */
+    private static String filter( final String aIncludes, final String aExcludes ) {
+        ProjectionFilter filter = new ProjectionFilter( aIncludes, aExcludes );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.setInputStream( new ByteArrayInputStream( XML.getBytes( UTF8 ) ) );
+        filter.setOutputStream( out );
+        filter.start();
+        filter.finish();
+        return new String( out.toByteArray(), UTF8 );
+    }
+
+    @Test
+    public void testNothingFiltered() {
+        assertEquals( XML, filter( "", "" ) );
+    }
+
+    @Test
+    public void testExcludeAtAnyDepth() {
+        assertEquals( "<scenario name=\"s\">"
+                      + "<world>"
+                      + "<region name=\"USA\"><sector name=\"elec\"><GHG name=\"CO2\">1</GHG></sector></region>"
+                      + "<region name=\"China\"><sector name=\"elec\"><GHG name=\"CO2\">3</GHG></sector><price>4</price></region>"
+                      + "</world>"
+                      + "<model-version>7</model-version>"
+                      + "</scenario>",
+                      filter( "", "GHG[@name='CH4']" ) );
+    }
+
+    @Test
+    public void testIncludeKeepsAncestorsOnly() {
+        // the elements leading down to the included region are kept but not their
+        // other children
+        assertEquals( "<scenario name=\"s\">"
+                      + "<world>"
+                      + "<region name=\"China\"><sector name=\"elec\"><GHG name=\"CO2\">3</GHG></sector><price>4</price></region>"
+                      + "</world>"
+                      + "</scenario>",
+                      filter( "/scenario/world/region[@name='China']", "" ) );
+    }
+
+    @Test
+    public void testIncludeAndExclude() {
+        assertEquals( "<scenario name=\"s\">"
+                      + "<world>"
+                      + "<region name=\"China\"><price>4</price></region>"
+                      + "</world>"
+                      + "<model-version>7</model-version>"
+                      + "</scenario>",
+                      filter( "/scenario/world/region[@name='China'];/scenario/model-version", "region/sector" ) );
+    }
+
+    @Test
+    public void testWildcardStep() {
+        assertEquals( "<scenario name=\"s\">"
+                      + "<world>"
+                      + "<region name=\"USA\"></region>"
+                      + "<region name=\"China\"><price>4</price></region>"
+                      + "</world>"
+                      + "<model-version>7</model-version>"
+                      + "</scenario>",
+                      filter( "", "region/*[@name='elec']" ) );
+    }
+}
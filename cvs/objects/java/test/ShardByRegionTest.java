@@ -0,0 +1,126 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests that ShardByRegion splits out each region and that putting the shards
+ * back in place of the placeholders gives the original document.
+ */
+public class ShardByRegionTest {
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /**
+     * Collects the shards in memory.
+     */
+    private static class MemoryTarget implements ShardByRegion.ShardTarget {
+        final Map<Integer, ByteArrayOutputStream> mShards = new TreeMap<Integer, ByteArrayOutputStream>();
+
+        public OutputStream openShard( final int aShardID ) {
+            ByteArrayOutputStream shard = new ByteArrayOutputStream();
+            mShards.put( aShardID, shard );
+            return shard;
+        }
+
+        String get( final int aShardID ) {
+            return new String( mShards.get( aShardID ).toByteArray(), UTF8 );
+        }
+    }
+
+    private MemoryTarget mTarget;
+
+    private String shard( final String aXML ) {
+        mTarget = new MemoryTarget();
+        ShardByRegion sharder = new ShardByRegion( mTarget );
+        ByteArrayOutputStream skeleton = new ByteArrayOutputStream();
+        sharder.setInputStream( new ByteArrayInputStream( aXML.getBytes( UTF8 ) ) );
+        sharder.setOutputStream( skeleton );
+        sharder.start();
+        sharder.finish();
+        assertEquals( mTarget.mShards.size(), sharder.getNumShards() );
+        return new String( skeleton.toByteArray(), UTF8 );
+    }
+
+    /**
+     * Replace the placeholders in the skeleton with the shards.
+     */
+    private String reassemble( final String aSkeleton ) {
+        Matcher placeholder = Pattern.compile( "<" + ShardByRegion.PLACEHOLDER_ELEMENT + " id=\"(\\d+)\"/>" )
+            .matcher( aSkeleton );
+        StringBuffer full = new StringBuffer();
+        while( placeholder.find() ) {
+            placeholder.appendReplacement( full, Matcher.quoteReplacement( mTarget.get( Integer.parseInt( placeholder.group( 1 ) ) ) ) );
+        }
+        placeholder.appendTail( full );
+        return full.toString();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final String xml = "<?xml version=\"1.0\"?>\n<scenario name=\"s\">\n  <world>\n"
+            + "    <region name=\"USA\">\n      <sector name=\"a\"><region>nested</region></sector>\n    </region>\n"
+            + "    <!-- between -->\n"
+            + "    <region name=\"Empty\"/>\n"
+            + "    <region name=\"China\"><![CDATA[</region>]]></region>\n"
+            + "    <market>1</market>\n"
+            + "  </world>\n  <region name=\"not in world\"/>\n</scenario>";
+        final String skeleton = shard( xml );
+        assertEquals( 3, mTarget.mShards.size() );
+        assertTrue( mTarget.get( 0 ).startsWith( "<region name=\"USA\">" ) );
+        assertTrue( mTarget.get( 0 ).endsWith( "</sector>\n    </region>" ) );
+        assertEquals( "<region name=\"Empty\"/>", mTarget.get( 1 ) );
+        assertEquals( "<region name=\"China\"><![CDATA[</region>]]></region>", mTarget.get( 2 ) );
+        assertFalse( skeleton.contains( "USA" ) );
+        assertTrue( skeleton.contains( "<region name=\"not in world\"/>" ) );
+        assertEquals( xml, reassemble( skeleton ) );
+    }
+
+    @Test
+    public void testNoRegions() {
+        final String xml = "<scenario><world><market/></world></scenario>";
+        assertEquals( xml, shard( xml ) );
+        assertEquals( 0, mTarget.mShards.size() );
+    }
+}
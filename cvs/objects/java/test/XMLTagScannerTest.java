@@ -0,0 +1,149 @@
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+*/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests that XMLTagScanner hands over the same tags and text however the XML is
+ * split up into blocks.
+ */
+public class XMLTagScannerTest {
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final String XML = "<?xml version=\"1.0\"?>\n"
+        + "<scenario name=\"a > b\" date='x'>\n"
+        + "  <!-- a <comment> -->\n"
+        + "  <region name=\"USA\"><value year=\"2010\">1.5</value><empty/></region>\n"
+        + "  <text><![CDATA[<not a tag>]]></text>\n"
+        + "</scenario>";
+
+    /**
+     * Records each text run and tag along with what the scanner made of it.
+     */
+    private static class RecordingScanner extends XMLTagScanner {
+        final List<String> mEvents = new ArrayList<String>();
+        final StringBuilder mText = new StringBuilder();
+        final List<Map<String, String>> mAttributes = new ArrayList<Map<String, String>>();
+
+        protected void processText( final byte[] aBuffer, final int aOffset, final int aLength ) {
+            mText.append( new String( aBuffer, aOffset, aLength, UTF8 ) );
+        }
+
+        protected void processTag() {
+            if( mText.length() > 0 ) {
+                mEvents.add( "text:" + mText );
+                mText.setLength( 0 );
+            }
+            final String tag = new String( mTag, 0, mTagLength, UTF8 );
+            if( isEndTag() ) {
+                mEvents.add( "end:" + tag );
+            }
+            else if( isStartTag() ) {
+                mEvents.add( ( isEmptyTag() ? "empty:" : "start:" ) + tagName() );
+                mAttributes.add( tagAttributes() );
+            }
+            else {
+                mEvents.add( "other:" + tag );
+            }
+        }
+
+        List<String> finish() {
+            if( mText.length() > 0 ) {
+                mEvents.add( "text:" + mText );
+            }
+            return mEvents;
+        }
+    }
+
+    private static RecordingScanner scanInBlocks( final byte[] aXML, final int aBlockSize ) throws IOException {
+        RecordingScanner scanner = new RecordingScanner();
+        for( int pos = 0; pos < aXML.length; pos += aBlockSize ) {
+            scanner.scan( aXML, pos, Math.min( aBlockSize, aXML.length - pos ) );
+        }
+        scanner.finish();
+        return scanner;
+    }
+
+    @Test
+    public void testTagsAndText() throws IOException {
+        RecordingScanner scanner = scanInBlocks( XML.getBytes( UTF8 ), XML.length() );
+        List<String> events = scanner.mEvents;
+        assertEquals( "other:<?xml version=\"1.0\"?>", events.get( 0 ) );
+        assertEquals( "start:scenario", events.get( 2 ) );
+        assertEquals( "other:<!-- a <comment> -->", events.get( 4 ) );
+        assertEquals( "start:region", events.get( 6 ) );
+        assertEquals( "start:value", events.get( 7 ) );
+        assertEquals( "text:1.5", events.get( 8 ) );
+        assertEquals( "end:</value>", events.get( 9 ) );
+        assertEquals( "empty:empty", events.get( 10 ) );
+        assertTrue( events.contains( "other:<![CDATA[<not a tag>]]>" ) );
+        assertEquals( "end:</scenario>", events.get( events.size() - 1 ) );
+
+        // a > within a quoted value does not end the tag
+        assertEquals( "a > b", scanner.mAttributes.get( 0 ).get( "name" ) );
+        assertEquals( "x", scanner.mAttributes.get( 0 ).get( "date" ) );
+        assertEquals( "2010", scanner.mAttributes.get( 2 ).get( "year" ) );
+        assertTrue( scanner.mAttributes.get( 3 ).isEmpty() );
+    }
+
+    @Test
+    public void testTagsSplitAcrossBlocks() throws IOException {
+        final byte[] xml = XML.getBytes( UTF8 );
+        final List<String> expected = scanInBlocks( xml, xml.length ).mEvents;
+        for( int blockSize = 1; blockSize < 20; ++blockSize ) {
+            assertEquals( "block size " + blockSize, expected, scanInBlocks( xml, blockSize ).mEvents );
+        }
+    }
+
+    @Test
+    public void testLongTagGrowsBuffer() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for( int i = 0; i < 5000; ++i ) {
+            value.append( (char)( 'a' + i % 26 ) );
+        }
+        final String xml = "<e long=\"" + value + "\"/>";
+        RecordingScanner scanner = scanInBlocks( xml.getBytes( UTF8 ), 100 );
+        assertEquals( "empty:e", scanner.mEvents.get( 0 ) );
+        assertEquals( value.toString(), scanner.mAttributes.get( 0 ).get( "long" ) );
+        assertFalse( scanner.mEvents.size() > 1 );
+    }
+}
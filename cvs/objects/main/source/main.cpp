@@ -75,6 +75,7 @@
 #include "util/logger/include/logger_factory.h"
 #include "util/base/include/timer.h"
 #include "util/base/include/version.h"
+#include "reporting/include/xml_db_outputter.h"
 
 using namespace std;
 using namespace xercesc;
@@ -198,6 +199,10 @@ int main( int argc, char *argv[] ) {
     mainLog.setLevel( ILogger::WARNING ); // Increase level so that user will know that model is done
     mainLog << "Model exiting successfully." << endl;
     runner->cleanup();
+
+    // The database may have been kept open across scenarios and have work put
+    // off until GCAM is done with it.
+    XMLDBOutputter::shutdown();
     
     // Return exit code based on whether the model succeeded(Non-zero is failure by convention).
     return success ? 0 : 1; 
@@ -47,14 +47,18 @@
 #include <stack>
 #include <memory>
 #include <iosfwd>
+#include <vector>
 #include <boost/iostreams/filtering_stream.hpp>
 #include "util/base/include/default_visitor.h"
 
 #if( __HAVE_JAVA__ )
 #include <jni.h>
 #include <boost/iostreams/concepts.hpp>
+#include <boost/shared_ptr.hpp>
 #endif
 
+class BinaryEventWriter;
+
 /*!
 * \ingroup Objects
 * \brief A visitor which writes model results to an XML database.
@@ -64,12 +68,16 @@
 
 class XMLDBOutputter : public DefaultVisitor {
 public:
-    XMLDBOutputter();
+    explicit XMLDBOutputter( const int aLivePeriod = -1 );
 
     ~XMLDBOutputter();
 
     static bool checkJavaWorking();
 
+    static void shutdown();
+
+    bool isOpen() const;
+
     void finish() const;
     void finalizeAndClose();
 
@@ -229,6 +237,12 @@ public:
     virtual void endVisitBuildingServiceInput( const BuildingServiceInput* aBuildingServiceInput, const int aPeriod );
 
     bool appendData( const std::string& aData, const std::string& aLocation );
+
+    bool appendBegin( const std::string& aLocation );
+
+    bool appendChunk( const char* aData, const size_t aLength );
+
+    bool appendEnd();
 private:
     //! A boost iostream which will send output to the DB as it is printed.
     mutable boost::iostreams::filtering_ostream mBuffer;
@@ -258,6 +272,10 @@ private:
     //! Tabs object.
     std::auto_ptr<Tabs> mTabs;
 
+    //! Writer used when the XMLDBDriver accepts binary events rather than XML
+    //! text, null otherwise.
+    std::auto_ptr<BinaryEventWriter> mBinaryWriter;
+
     //! Weak pointer to the current region's GDP object.
     const GDP* mGDP;
 
@@ -300,7 +318,7 @@ private:
     //! the like of the XMLDBOutputter.
     const std::auto_ptr<JNIContainer> mJNIContainer;
 
-    static std::auto_ptr<JNIContainer> createContainer( const bool aTestingOnly );
+    static std::auto_ptr<JNIContainer> createContainer( const bool aTestingOnly, const int aLivePeriod );
 #endif
     static const std::string createContainerName( const std::string& aScenarioName );
 
@@ -337,6 +355,9 @@ private:
      *          of memory to keep the XML document in memory at any point.  Using
      *          the boost::iostreams interface to accomplish this is much easier
      *          and less error prone than trying to do it in the std::iostream.
+     * \details When available the data is handed to Java in direct ByteBuffers
+     *          which wrap native memory so that Java can read it in place rather
+     *          than having it copied into the Java heap first.
      * \note If an error is raised while trying to write the data to the DB the
      *       error flag in this class will be set.  Since there is no way to stop
      *       visiting once it has starting the best we can do is ignore all data
@@ -350,17 +371,49 @@ private:
         // boost::iostreams::sink methods
         virtual std::streamsize write( const char* aData, std::streamsize aLength );
     private:
+        /*!
+         * \brief A ring of native buffers each wrapped in a Java direct ByteBuffer.
+         * \details Java will read the data in place after receiveDataFromGCAM returns
+         *          so a buffer may only be reused once all of the others have been
+         *          sent.  Boost will copy the sink around so this is shared.
+         */
+        struct DirectBufferRing {
+            DirectBufferRing( JNIEnv* aJavaEnv );
+            ~DirectBufferRing();
+
+            //! The Java environment to release the global references with.
+            JNIEnv* mJavaEnv;
+
+            //! The native memory backing each buffer.
+            std::vector<char*> mNativeBuffers;
+
+            //! Global references to the Java direct ByteBuffers wrapping mNativeBuffers.
+            std::vector<jobject> mJNIBuffers;
+
+            //! The index of the next buffer to fill.
+            size_t mNext;
+        };
+
         //! A weak pointer to the JNIContainer to communicate with Java
         const JNIContainer* mJNIContainer;
 
         //! A JNI method ID to the Java method that will receive the data.
         jmethodID mReceiveDataMID;
 
+        //! A JNI method ID to the Java method that will receive the data in a direct
+        //! ByteBuffer.  May be null if we are using an older XMLDBDriver.
+        jmethodID mReceiveDirectDataMID;
+
         const std::streamsize BUFFER_SIZE;
 
+
         //! A JNI buffer that can be data can be put in to send to Java.
         jbyteArray mJNIBuffer;
 
+        //! The direct buffers to send data to Java, only set if mReceiveDirectDataMID
+        //! was found.
+        boost::shared_ptr<DirectBufferRing> mDirectBufferRing;
+
         //! An error flag which may be set if there is an error writing the data
         //! on the Java side.
         bool mErrorFlag;
@@ -132,6 +132,8 @@
 
 #include <string>
 #include <sstream>
+#include <fstream>
+#include <cstring>
 
 #include <boost/math/tr1.hpp>
 
@@ -179,13 +181,19 @@ XMLDBOutputter::JNIContainer::~JNIContainer() {
 #endif
 
 /*! \brief Constructor
+* \details If a live period is given the results will instead be sent to any live
+*          queries configured in the XMLDBDriver to be evaluated as soon as that
+*          period has been solved.  In that case the outputter will only be open if
+*          live queries have been configured, see isOpen.
+* \param aLivePeriod The period which has just been solved to send live results
+*                    for or -1 to write the final results to the database.
 */
-XMLDBOutputter::XMLDBOutputter():
+XMLDBOutputter::XMLDBOutputter( const int aLivePeriod ):
 mTabs( new Tabs ),
 mGDP( 0 ),
 mSubsectorDepth( 0 )
 #if( __HAVE_JAVA__ )
-,mJNIContainer( createContainer( false ) )
+,mJNIContainer( createContainer( false, aLivePeriod ) )
 #endif
 {
 #if( DEBUG_XML_DB )
@@ -197,9 +205,30 @@ mSubsectorDepth( 0 )
 #endif
 
 #if( __HAVE_JAVA__ )
-    // Set Java as the sink of data for mBuffer.
+    // Set Java as the sink of data for mBuffer.  We give it a buffer the same size
+    // as the one the sink uses to pass data to Java so that each call into Java will
+    // carry a full buffer rather than the small default.
     SendToJavaIOSink sendToJavaSink( mJNIContainer.get() );
-    mBuffer.push( sendToJavaSink );
+    mBuffer.push( sendToJavaSink, 1024 * 1024 );
+
+#if( !DEBUG_XML_DB )
+    // Ask Java if it would rather receive binary events than XML text which saves
+    // formatting all of the numbers only to have them parsed again.  We keep
+    // writing text when debugging so that debug_db.xml stays readable.
+    if( mJNIContainer.get() ) {
+        JNIEnv* env = mJNIContainer->mJavaEnv;
+        jmethodID acceptsBinaryMID = env->GetMethodID( mJNIContainer->mWriteDBClass,
+                                                       "acceptsBinaryEvents", "()Z" );
+        if( !acceptsBinaryMID ) {
+            // An older XMLDBDriver which only accepts text.
+            env->ExceptionClear();
+        }
+        else if( env->CallBooleanMethod( mJNIContainer->mWriteDBInstance, acceptsBinaryMID ) ) {
+            mBinaryWriter.reset( new BinaryEventWriter( mBuffer ) );
+            mTabs->setBinaryWriter( mBinaryWriter.get() );
+        }
+    }
+#endif
 #else
     mBuffer.push( null_sink() );
 #endif
@@ -226,7 +255,7 @@ XMLDBOutputter::~XMLDBOutputter(){
  */
 bool XMLDBOutputter::checkJavaWorking() {
 #if( __HAVE_JAVA__ )
-    auto_ptr<JNIContainer> testContainer = createContainer( true );
+    auto_ptr<JNIContainer> testContainer = createContainer( true, -1 );
     // if we get back a null container then some error occured
     // createContainer would have already print any error messages.
     return testContainer.get();
@@ -236,11 +265,58 @@ bool XMLDBOutputter::checkJavaWorking() {
 #endif
 }
 
+/*!
+ * \brief Let the XMLDBDriver finish any work it put off until GCAM is done and
+ *        close any databases it kept open across scenarios.
+ * \details The JVM is never destroyed, see ~JNIContainer, so Java shutdown hooks
+ *          will not run and this must be called explicitly before GCAM exits.  It
+ *          does nothing if Java was never started.
+ */
+void XMLDBOutputter::shutdown() {
+#if( __HAVE_JAVA__ )
+    JavaVM* javaVM = JNIContainer::mJavaVM;
+    if( !javaVM ) {
+        return;
+    }
+
+    JNIEnv* env = 0;
+    javaVM->AttachCurrentThread( (void**)&env, 0 );
+    if( !env ) {
+        return;
+    }
+    jclass driverClass = env->FindClass( "XMLDBDriver" );
+    jmethodID shutdownMID = driverClass ? env->GetStaticMethodID( driverClass, "shutdown", "()V" ) : 0;
+    if( !shutdownMID ) {
+        ILogger& mainLog = ILogger::getLogger( "main_log" );
+        mainLog.setLevel( ILogger::WARNING );
+        mainLog << "Failed to find JNI method: shutdown" << endl;
+        return;
+    }
+    env->CallStaticVoidMethod( driverClass, shutdownMID );
+    env->DeleteLocalRef( driverClass );
+#endif
+}
+
+/*!
+ * \brief Check if Java is ready to receive the results.
+ * \details This is useful to avoid generating results for live queries when none
+ *          have been configured.
+ * \return True if the results will be sent to Java.
+ */
+bool XMLDBOutputter::isOpen() const {
+#if( __HAVE_JAVA__ )
+    return mJNIContainer.get();
+#else
+    return false;
+#endif
+}
+
 /*!
  * \brief Write the output to the database.
  * \details In order to keep the memory usage down data has been writing to the
  *          database as XML was being generated.  We will signal that no more data
- *          will be generated and wait for it to finish here.
+ *          will be generated.  The database may continue storing the data in the
+ *          background in which case finalizeAndClose will wait for it to finish.
  */
 void XMLDBOutputter::finish() const {
     // Close mBuffer so that no more data can be written.
@@ -252,9 +328,25 @@ void XMLDBOutputter::finish() const {
         // have already been given.
         return;
     }
-    // First we need to look up the appropriate "finish" Java method with no
-    // arguments and void return: "()V" then call it.
-    jmethodID finishMID = mJNIContainer->mJavaEnv->GetMethodID( mJNIContainer->mWriteDBClass, "finish", "()V" );
+    // Prefer the "finishAsync" Java method with no arguments which returns a
+    // completion handle: "()Ljava/util/concurrent/Future;".  It lets the database
+    // finish storing the data while we go on to clean up, and the Java side will
+    // wait for it in finalizeAndClose.
+    JNIEnv* env = mJNIContainer->mJavaEnv;
+    jmethodID finishAsyncMID = env->GetMethodID( mJNIContainer->mWriteDBClass, "finishAsync",
+                                                 "()Ljava/util/concurrent/Future;" );
+    if( finishAsyncMID ) {
+        // We do not need to hold on to the handle.
+        jobject finishHandle = env->CallObjectMethod( mJNIContainer->mWriteDBInstance, finishAsyncMID );
+        env->DeleteLocalRef( finishHandle );
+        return;
+    }
+    // An older XMLDBDriver, clear the NoSuchMethodError and use finish instead.
+    env->ExceptionClear();
+
+    // Look up the appropriate "finish" Java method with no arguments and void
+    // return: "()V" then call it.
+    jmethodID finishMID = env->GetMethodID( mJNIContainer->mWriteDBClass, "finish", "()V" );
     if( !finishMID ) {
         ILogger& mainLog = ILogger::getLogger( "main_log" );
         mainLog.setLevel( ILogger::SEVERE );
@@ -264,7 +356,7 @@ void XMLDBOutputter::finish() const {
 
     // The java method will wait until the database is done processing all data
     // before returning.
-    mJNIContainer->mJavaEnv->CallVoidMethod( mJNIContainer->mWriteDBInstance, finishMID );
+    env->CallVoidMethod( mJNIContainer->mWriteDBInstance, finishMID );
 #endif
 }
 
@@ -302,11 +394,16 @@ void XMLDBOutputter::finalizeAndClose() {
  * \param aTestingOnly A flag if set indicates we don't want to actually start the
  *                     process for writing, instead are only interested if all of
  *                     the Java machinery is in place to successfully write to the DB.
+ * \param aLivePeriod The period to send live results for or -1 to write the final
+ *                    results to the database.
  * \return An initialized Java environment with the Write DB class loaded and
- *         ready to accept data to write/alter to the database.  If an error occurs
- *         a null container will be returned.
+ *         ready to accept data to write/alter to the database.  If an error occurs,
+ *         or there are no live queries to send live results to, a null container
+ *         will be returned.
  */
-auto_ptr<XMLDBOutputter::JNIContainer> XMLDBOutputter::createContainer( const bool aTestingOnly ) {
+auto_ptr<XMLDBOutputter::JNIContainer> XMLDBOutputter::createContainer( const bool aTestingOnly,
+                                                                         const int aLivePeriod )
+{
     // Create a Java instance.
     auto_ptr<JNIContainer> jniContainer( new JNIContainer );
 
@@ -319,17 +416,38 @@ auto_ptr<XMLDBOutputter::JNIContainer> XMLDBOutputter::createContainer( const bo
 
     // Start the Java VM with the following settings
     JavaVMInitArgs vmArgs;
-    JavaVMOption* options = new JavaVMOption[ 2 ];
-    // Note that JNI will not expand the wildcards in the classpath as it would
-    // in every other means of setting the classpath.  To work aroudnd this we
-    // will need to use a custom class loader that will do the expansion prior to
-    // loading any classes.
-    const string classpath = "-Djava.class.path=XMLDBDriver.jar" + string( PATH_SEPARATOR ) + string( JARS_LIB )
-        + string( PATH_SEPARATOR ) + "../output/modelinterface/ModelInterface.jar";
-    options[ 0 ].optionString = const_cast<char*>( classpath.c_str() );
-    options[ 1 ].optionString = const_cast<char*>( "-Djava.system.class.loader=WildcardExpandingClassLoader" );
+    vector<string> optionStrings;
+    // If a class data sharing archive of the BaseX, Joost, etc. classes is available
+    // we map it in to skip loading and verifying them.  The JVM will only use the
+    // archive for classes loaded by its own class loader from the same classpath the
+    // archive was created with so the expanded classpath is saved alongside it.
+    const string cdsArchive = "XMLDBDriver.jsa";
+    ifstream cdsClasspathFile( ( cdsArchive + ".classpath" ).c_str() );
+    string cdsClasspath;
+    if( cdsClasspathFile && getline( cdsClasspathFile, cdsClasspath ) && !cdsClasspath.empty()
+        && ifstream( cdsArchive.c_str() ) )
+    {
+        optionStrings.push_back( "-Djava.class.path=" + cdsClasspath );
+        optionStrings.push_back( "-XX:SharedArchiveFile=" + cdsArchive );
+        // fall back to loading the classes as usual if the archive does not match
+        // this JVM
+        optionStrings.push_back( "-Xshare:auto" );
+    }
+    else {
+        // Note that JNI will not expand the wildcards in the classpath as it would
+        // in every other means of setting the classpath.  To work aroudnd this we
+        // will need to use a custom class loader that will do the expansion prior to
+        // loading any classes.
+        optionStrings.push_back( "-Djava.class.path=XMLDBDriver.jar" + string( PATH_SEPARATOR ) + string( JARS_LIB )
+            + string( PATH_SEPARATOR ) + "../output/modelinterface/ModelInterface.jar" );
+        optionStrings.push_back( "-Djava.system.class.loader=WildcardExpandingClassLoader" );
+    }
+    JavaVMOption* options = new JavaVMOption[ optionStrings.size() ];
+    for( size_t i = 0; i < optionStrings.size(); ++i ) {
+        options[ i ].optionString = const_cast<char*>( optionStrings[ i ].c_str() );
+    }
     vmArgs.version = JNI_VERSION_1_6;
-    vmArgs.nOptions = 2;
+    vmArgs.nOptions = static_cast<jint>( optionStrings.size() );
     vmArgs.options = options;
     vmArgs.ignoreUnrecognized = false;
     if( !jniContainer->mJavaVM ) {
@@ -398,6 +516,42 @@ auto_ptr<XMLDBOutputter::JNIContainer> XMLDBOutputter::createContainer( const bo
     jstring jXMLDBContainerName = jniContainer->mJavaEnv->NewStringUTF( xmldbContainerName.c_str() );
     jstring jDocName = jniContainer->mJavaEnv->NewStringUTF( docName.c_str() );
 
+    if( aLivePeriod != -1 ) {
+        // Find the static factory for live results: "openLive" which takes the database,
+        // document name, period, and year: "(Ljava/lang/String;Ljava/lang/String;II)LXMLDBDriver;".
+        // It returns null if no live queries have been configured in which case
+        // we quietly skip sending the results.
+        jmethodID openLiveMID = jniContainer->mJavaEnv->GetStaticMethodID( jniContainer->mWriteDBClass,
+            "openLive", "(Ljava/lang/String;Ljava/lang/String;II)LXMLDBDriver;" );
+        jobject liveInstance = 0;
+        if( openLiveMID ) {
+            liveInstance = jniContainer->mJavaEnv->CallStaticObjectMethod( jniContainer->mWriteDBClass, openLiveMID,
+                jXMLDBContainerName, jDocName, aLivePeriod, scenario->getModeltime()->getper_to_yr( aLivePeriod ) );
+            if( jniContainer->mJavaEnv->ExceptionCheck() ) {
+                // Report the error and carry on without live results.
+                jniContainer->mJavaEnv->ExceptionDescribe();
+                jniContainer->mJavaEnv->ExceptionClear();
+                liveInstance = 0;
+            }
+        }
+        else {
+            // An older XMLDBDriver which does not support live queries.
+            jniContainer->mJavaEnv->ExceptionClear();
+        }
+        // This is called for every period so do not let the local references
+        // pile up as we never return to Java.
+        jniContainer->mJavaEnv->DeleteLocalRef( jXMLDBContainerName );
+        jniContainer->mJavaEnv->DeleteLocalRef( jDocName );
+        if( !liveInstance ) {
+            jniContainer->mWriteDBInstance = 0;
+            jniContainer.reset( 0 );
+            return jniContainer;
+        }
+        jniContainer->mWriteDBInstance = jniContainer->mJavaEnv->NewGlobalRef( liveInstance );
+        jniContainer->mJavaEnv->DeleteLocalRef( liveInstance );
+        return jniContainer;
+    }
+
     // Call the constructor to get an instance of writeDBClassName.
     jniContainer->mWriteDBInstance = jniContainer->mJavaEnv->NewGlobalRef(
         jniContainer->mJavaEnv->NewObject( jniContainer->mWriteDBClass, writeDBCtorMID, jXMLDBContainerName, jDocName ) );
@@ -455,11 +609,13 @@ bool XMLDBOutputter::appendData( const string& aData, const string& aLocation )
         return false;
     }
 
+    JNIEnv* env = mJNIContainer->mJavaEnv;
+
     // Find the appendData method for the class which takes two string arguments:
     // "(Ljava/lang/String;Ljava/lang/String;)Z".  The arguments are the data, and
     // an XPath which gives the location after which to insert the data.  It will
     // return a bool "Z" if it successfully appended the data or not.
-    jmethodID appendDataMID = mJNIContainer->mJavaEnv->GetMethodID( mJNIContainer->mWriteDBClass,
+    jmethodID appendDataMID = env->GetMethodID( mJNIContainer->mWriteDBClass,
         "appendData", "(Ljava/lang/String;Ljava/lang/String;)Z" );
     if( !appendDataMID ) {
         ILogger& mainLog = ILogger::getLogger( "main_log" );
@@ -468,18 +624,132 @@ bool XMLDBOutputter::appendData( const string& aData, const string& aLocation )
         return false;
     }
 
-    // Convert the C++ string to a Java String so that they can be passed to the Java method.
-    jstring jData = mJNIContainer->mJavaEnv->NewStringUTF( aData.c_str() );
-    jstring jLocation = mJNIContainer->mJavaEnv->NewStringUTF( aLocation.c_str() );
+    // Convert the C++ strings to Java Strings so that they can be passed to the Java method.
+    // Note the data is parsed as an XML fragment, not evaluated as an XQuery expression.
+    jstring jData = env->NewStringUTF( aData.c_str() );
+    jstring jLocation = env->NewStringUTF( aLocation.c_str() );
 
     // Call the appendData method
-    return mJNIContainer->mJavaEnv->CallBooleanMethod( mJNIContainer->mWriteDBInstance, appendDataMID, jData, jLocation );
+    bool success = env->CallBooleanMethod( mJNIContainer->mWriteDBInstance, appendDataMID, jData, jLocation );
+    env->DeleteLocalRef( jData );
+    env->DeleteLocalRef( jLocation );
+    return success;
+#else
+    return false;
+#endif
+}
+
+/*! \brief Begin a streamed append of data at a given location to an already written
+*          database container.
+* \details The data is then sent in pieces with appendChunk and added to the container
+*          when appendEnd is called.  This avoids having to build the entire data as a
+*          single string which is useful when it is large.
+* \param aLocation XPath of the location to add the data.
+* \return Whether the append was started successfully.
+*/
+bool XMLDBOutputter::appendBegin( const string& aLocation ) {
+#if( __HAVE_JAVA__ )
+    // Check if creating the container failed.
+    if( !mJNIContainer.get() ){
+        // An error message will have been printed by create container.
+        return false;
+    }
+
+    JNIEnv* env = mJNIContainer->mJavaEnv;
+    jmethodID appendBeginMID = env->GetMethodID( mJNIContainer->mWriteDBClass,
+        "appendBegin", "(Ljava/lang/String;)Z" );
+    if( !appendBeginMID ) {
+        ILogger& mainLog = ILogger::getLogger( "main_log" );
+        mainLog.setLevel( ILogger::SEVERE );
+        mainLog << "Failed to find the appendBegin Java method" << endl;
+        return false;
+    }
+
+    jstring jLocation = env->NewStringUTF( aLocation.c_str() );
+    bool success = env->CallBooleanMethod( mJNIContainer->mWriteDBInstance, appendBeginMID, jLocation );
+    env->DeleteLocalRef( jLocation );
+    return success;
+#else
+    return false;
+#endif
+}
+
+/*! \brief Send the next piece of data for a streamed append.
+* \param aData The data to send.
+* \param aLength The number of characters in aData to send.
+* \return Whether the data was sent successfully.
+*/
+bool XMLDBOutputter::appendChunk( const char* aData, const size_t aLength ) {
+#if( __HAVE_JAVA__ )
+    // Check if creating the container failed.
+    if( !mJNIContainer.get() ){
+        // An error message will have been printed by create container.
+        return false;
+    }
+
+    JNIEnv* env = mJNIContainer->mJavaEnv;
+    jmethodID appendChunkMID = env->GetMethodID( mJNIContainer->mWriteDBClass,
+        "appendChunk", "([BI)Z" );
+    if( !appendChunkMID ) {
+        ILogger& mainLog = ILogger::getLogger( "main_log" );
+        mainLog.setLevel( ILogger::SEVERE );
+        mainLog << "Failed to find the appendChunk Java method" << endl;
+        return false;
+    }
+
+    jbyteArray jData = env->NewByteArray( aLength );
+    env->SetByteArrayRegion( jData, 0, aLength, reinterpret_cast<const jbyte*>( aData ) );
+    bool success = env->CallBooleanMethod( mJNIContainer->mWriteDBInstance, appendChunkMID,
+                                           jData, static_cast<jint>( aLength ) );
+    env->DeleteLocalRef( jData );
+    return success;
+#else
+    return false;
+#endif
+}
+
+/*! \brief End a streamed append which will add the data to the container.
+* \return Whether the data was added successfully.
+*/
+bool XMLDBOutputter::appendEnd() {
+#if( __HAVE_JAVA__ )
+    // Check if creating the container failed.
+    if( !mJNIContainer.get() ){
+        // An error message will have been printed by create container.
+        return false;
+    }
+
+    JNIEnv* env = mJNIContainer->mJavaEnv;
+    jmethodID appendEndMID = env->GetMethodID( mJNIContainer->mWriteDBClass,
+        "appendEnd", "()Z" );
+    if( !appendEndMID ) {
+        ILogger& mainLog = ILogger::getLogger( "main_log" );
+        mainLog.setLevel( ILogger::SEVERE );
+        mainLog << "Failed to find the appendEnd Java method" << endl;
+        return false;
+    }
+
+    return env->CallBooleanMethod( mJNIContainer->mWriteDBInstance, appendEndMID );
 #else
     return false;
 #endif
 }
 
 void XMLDBOutputter::startVisitScenario( const Scenario* aScenario, const int aPeriod ){
+    if( mBinaryWriter.get() ) {
+        // The same content as below written as binary events.
+        mBinaryWriter->writeHeader();
+        mBinaryWriter->startElement( mBuffer, aScenario->getXMLNameStatic() );
+        mBinaryWriter->attribute( mBuffer, "name", aScenario->getName() );
+        mBinaryWriter->attribute( mBuffer, "date", util::XMLCreateDate( gGlobalTime ) );
+        mTabs->increaseIndent();
+
+        stringstream modelVersion;
+        modelVersion << "ver_" << __ObjECTS_VER__ << "_r" << __REVISION_NUMBER__;
+        XMLWriteElement( modelVersion.str(), "model-version", mBuffer, mTabs.get() );
+        return;
+    }
+
     // write heading for XML input file
     mBuffer << "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" << endl;
     mBuffer << "<" << aScenario->getXMLNameStatic() << " name=\""
@@ -1524,12 +1794,10 @@ void XMLDBOutputter::endVisitPopulationSGMFixed( const PopulationSGMFixed* aPopu
 }
 
 void XMLDBOutputter::startVisitAgeCohort( const AgeCohort* aAgeCohort, const int aPeriod ){
-    // have to write out tag by hand because of the "ageGroup" attribtue
-    Tabs* tabs = mTabs.get();
-    tabs->writeTabs( mBuffer );
-    mBuffer << "<" << AgeCohort::getXMLNameStatic() << " ageGroup=\"" << aAgeCohort->getAgeGroup()
-        << "\">" << endl;
-    tabs->increaseIndent();
+    // have to write out the attributes explicitly because of the "ageGroup" attribtue
+    map<string, string> attrs;
+    attrs[ "ageGroup" ] = aAgeCohort->getAgeGroup();
+    XMLWriteOpeningTag( AgeCohort::getXMLNameStatic(), mBuffer, mTabs.get(), attrs );
 }
 
 void XMLDBOutputter::endVisitAgeCohort( const AgeCohort* aAgeCohort, const int aPeriod ){
@@ -1594,16 +1862,8 @@ void XMLDBOutputter::startVisitLandLeaf( const LandLeaf* aLandLeaf,
 {
     // Write the opening LandLeaf tag except we need to decompose the name and write
     // each out as an attribute.
-    // TODO: just put this in as a utility such as XMLWriteOpeningTagWithAttributes?
     map<string, string> decomposedNames = decomposeLandName( aLandLeaf->getName() );
-    mTabs->writeTabs( mBuffer );
-    mBuffer << "<" << LandLeaf::getXMLNameStatic();
-    typedef typename map<string, string>::const_iterator MapIterator;
-    for( MapIterator entry = decomposedNames.begin(); entry != decomposedNames.end(); ++entry ){
-        mBuffer << " " << entry->first <<"=\"" << entry->second << "\"";
-    }
-    mBuffer << ">" << std::endl;
-    mTabs->increaseIndent();
+    XMLWriteOpeningTag( LandLeaf::getXMLNameStatic(), mBuffer, mTabs.get(), decomposedNames );
 
     // Loop over the periods to output LandLeaf information.
     // The loops are separated so the types are grouped together to make it easier to
@@ -2179,15 +2439,92 @@ XMLDBOutputter::SendToJavaIOSink::SendToJavaIOSink( const JNIContainer* aJNICont
 // Get the receiveDataFromGCAM method from the write DB class with arguments of a byte
 // array "[B", an integer "I", and a return type of bool "Z" 
 mReceiveDataMID( aJNIContainer ? aJNIContainer->mJavaEnv->GetMethodID( aJNIContainer->mWriteDBClass, "receiveDataFromGCAM", "([BI)Z") : 0 ),
+// The direct ByteBuffer method is optional so we will look it up in the body.
+mReceiveDirectDataMID( 0 ),
 // The same buffer size as the one used in Java, if we try to tune this we should
 // adjust it both here and in Java.
 BUFFER_SIZE( 1024 * 1024 ),
 mJNIBuffer( aJNIContainer ? aJNIContainer->mJavaEnv->NewByteArray( BUFFER_SIZE  ) : 0 ),
 // If any of the required JNI data structures were not properly set then set the error flag.
 mErrorFlag( !mJNIContainer || !mReceiveDataMID || !mJNIBuffer )
+{
+    if( mErrorFlag ) {
+        return;
+    }
+
+    // Get the receiveDataFromGCAM method which takes a direct java.nio.ByteBuffer "Ljava/nio/ByteBuffer;"
+    // instead of a byte array.
+    mReceiveDirectDataMID = mJNIContainer->mJavaEnv->GetMethodID( mJNIContainer->mWriteDBClass,
+        "receiveDataFromGCAM", "(Ljava/nio/ByteBuffer;I)Z" );
+    if( !mReceiveDirectDataMID ) {
+        // An older XMLDBDriver which can only receive byte arrays, we can still
+        // send data that way so clear the NoSuchMethodError and carry on.
+        mJNIContainer->mJavaEnv->ExceptionClear();
+        return;
+    }
+
+    // Java will tell us how many buffers to cycle through as it depends on how many
+    // it has been configured to hold on to at once.
+    jmethodID ringSizeMID = mJNIContainer->mJavaEnv->GetMethodID( mJNIContainer->mWriteDBClass,
+        "getDirectBufferRingSize", "()I" );
+    if( !ringSizeMID ) {
+        mJNIContainer->mJavaEnv->ExceptionClear();
+        return;
+    }
+    const int ringSize = mJNIContainer->mJavaEnv->CallIntMethod( mJNIContainer->mWriteDBInstance, ringSizeMID );
+    if( mJNIContainer->mJavaEnv->ExceptionCheck() || ringSize < 1 ) {
+        mJNIContainer->mJavaEnv->ExceptionClear();
+        return;
+    }
+
+    // Allocate the native buffers and wrap them as Java direct ByteBuffers so
+    // that Java can read the data without it being copied into the Java heap.
+    // The ByteBuffers are kept as global references, which the ring releases,
+    // as an outputter is created for every period when sending live results.
+    mDirectBufferRing.reset( new DirectBufferRing( mJNIContainer->mJavaEnv ) );
+    for( int i = 0; i < ringSize; ++i ) {
+        char* nativeBuffer = new char[ BUFFER_SIZE ];
+        mDirectBufferRing->mNativeBuffers.push_back( nativeBuffer );
+        jobject localBuffer = mJNIContainer->mJavaEnv->NewDirectByteBuffer( nativeBuffer, BUFFER_SIZE );
+        if( !localBuffer ) {
+            // The JVM does not support direct access to native memory, fall back
+            // to copying into the byte array.
+            mJNIContainer->mJavaEnv->ExceptionClear();
+            mDirectBufferRing.reset();
+            return;
+        }
+        mDirectBufferRing->mJNIBuffers.push_back( mJNIContainer->mJavaEnv->NewGlobalRef( localBuffer ) );
+        mJNIContainer->mJavaEnv->DeleteLocalRef( localBuffer );
+    }
+}
+
+/*!
+ * \brief Constructor
+ * \param aJavaEnv The Java environment used to release the ByteBuffers.
+ */
+XMLDBOutputter::SendToJavaIOSink::DirectBufferRing::DirectBufferRing( JNIEnv* aJavaEnv ):
+mJavaEnv( aJavaEnv ),
+mNext( 0 )
 {
 }
 
+/*!
+ * \brief Destructor
+ * \details Free the native memory.  Java will no longer be reading from these
+ *          buffers as either the XMLDBDriver finish has returned, which waits
+ *          for all of the data to be read, or the XMLDBDriver finishes in the
+ *          background in which case it copies the data out of each buffer before
+ *          receiveDataFromGCAM returns.
+ */
+XMLDBOutputter::SendToJavaIOSink::DirectBufferRing::~DirectBufferRing() {
+    for( vector<jobject>::iterator it = mJNIBuffers.begin(); it != mJNIBuffers.end(); ++it ) {
+        mJavaEnv->DeleteGlobalRef( *it );
+    }
+    for( vector<char*>::iterator it = mNativeBuffers.begin(); it != mNativeBuffers.end(); ++it ) {
+        delete[] *it;
+    }
+}
+
 /*!
  * \brief Destructor
  */
@@ -2208,9 +2545,21 @@ streamsize XMLDBOutputter::SendToJavaIOSink::write( const char *aData, std::stre
     const jbyte* jniData = reinterpret_cast<const jbyte*>( aData );
     while( !mErrorFlag && offset < aLength ) {
         streamsize numRead = min( aLength - offset, BUFFER_SIZE );
-        mJNIContainer->mJavaEnv->SetByteArrayRegion( mJNIBuffer, 0, numRead, jniData+offset );
-        mErrorFlag = mJNIContainer->mJavaEnv->CallBooleanMethod( mJNIContainer->mWriteDBInstance,
-            mReceiveDataMID, mJNIBuffer, numRead );
+        if( mDirectBufferRing.get() ) {
+            // Fill the next native buffer in the ring and let Java read it in place.
+            // Java will block if it still holds all of the other buffers so it is
+            // safe to reuse this one once we cycle back around.
+            DirectBufferRing& ring = *mDirectBufferRing;
+            memcpy( ring.mNativeBuffers[ ring.mNext ], aData + offset, numRead );
+            mErrorFlag = mJNIContainer->mJavaEnv->CallBooleanMethod( mJNIContainer->mWriteDBInstance,
+                mReceiveDirectDataMID, ring.mJNIBuffers[ ring.mNext ], static_cast<jint>( numRead ) );
+            ring.mNext = ( ring.mNext + 1 ) % ring.mNativeBuffers.size();
+        }
+        else {
+            mJNIContainer->mJavaEnv->SetByteArrayRegion( mJNIBuffer, 0, numRead, jniData+offset );
+            mErrorFlag = mJNIContainer->mJavaEnv->CallBooleanMethod( mJNIContainer->mWriteDBInstance,
+                mReceiveDataMID, mJNIBuffer, numRead );
+        }
         offset += numRead;
     }
     return offset;
@@ -0,0 +1,230 @@
+#ifndef _BINARY_EVENT_WRITER_H_
+#define _BINARY_EVENT_WRITER_H_
+#if defined(_MSC_VER)
+#pragma once
+#endif
+
+/*
+* LEGAL NOTICE
+* This computer software was prepared by Battelle Memorial Institute,
+* hereinafter the Contractor, under Contract No. DE-AC05-76RL0 1830
+* with the Department of Energy (DOE). NEITHER THE GOVERNMENT NOR THE
+* CONTRACTOR MAKES ANY WARRANTY, EXPRESS OR IMPLIED, OR ASSUMES ANY
+* LIABILITY FOR THE USE OF THIS SOFTWARE. This notice including this
+* sentence must appear on any copies of this computer software.
+* 
+* EXPORT CONTROL
+* User agrees that the Software will not be shipped, transferred or
+* exported into any country or used in any manner prohibited by the
+* United States Export Administration Act or any other applicable
+* export laws, restrictions or regulations (collectively the "Export Laws").
+* Export of the Software may require some form of license or other
+* authority from the U.S. Government, and failure to obtain such
+* export control license may result in criminal liability under
+* U.S. laws. In addition, if the Software is identified as export controlled
+* items under the Export Laws, User represents and warrants that User
+* is not a citizen, or otherwise located within, an embargoed nation
+* (including without limitation Iran, Syria, Sudan, Cuba, and North Korea)
+*     and that User is not otherwise prohibited
+* under the Export Laws from receiving the Software.
+* 
+* Copyright 2011 Battelle Memorial Institute.  All Rights Reserved.
+* Distributed as open-source under the terms of the Educational Community 
+* License version 2.0 (ECL 2.0). http://www.opensource.org/licenses/ecl2.php
+* 
+* For further details, see: http://www.globalchange.umd.edu/models/gcam/
+*
+
+
+/*! 
+* \file binary_event_writer.h  
+* \ingroup util
+* \brief Header file for the BinaryEventWriter class.
+*/
+
+#include <iostream>
+#include <string>
+#include <sstream>
+#include <map>
+#include <cstring>
+#include <boost/cstdint.hpp>
+
+/*!
+* \ingroup util
+* \brief Writes XML as a compact binary event stream rather than as text.
+* \details The XMLDBDriver may accept the results as a stream of events in which
+*          element and attribute names are sent once and afterwards referred to by
+*          id and numbers are sent as raw doubles.  This saves formatting the XML
+*          here only to have it parsed again in Java.  See BinaryEventReader.java
+*          for the details of the format which must be kept in sync with this class.
+*
+*          When a Tabs object has a BinaryEventWriter set the XMLWrite functions in
+*          xml_helper.h will write events rather than text.  Events may be written
+*          to temporary buffers which are later copied into the main stream, or
+*          discarded, so the name definitions are always written directly to the
+*          main stream given at construction.  This ensures a name is defined before
+*          it is used wherever the events referring to it end up.
+*/
+class BinaryEventWriter {
+public:
+    /*!
+     * \brief Constructor.
+     * \param aMainStream The stream which all events eventually end up in, the name
+     *                    definitions are written to it directly.
+     */
+    explicit BinaryEventWriter( std::ostream& aMainStream ):mMainStream( aMainStream ) {}
+
+    /*!
+     * \brief Write the header which identifies the stream as binary events.
+     * \details This must be the first thing written to the main stream.
+     */
+    void writeHeader() {
+        const char magic[] = { 'G', 'C', 'A', 'M', 'E', 'V', 'T', 1 };
+        mMainStream.write( magic, sizeof( magic ) );
+    }
+
+    /*!
+     * \brief Open an element.  Any attributes must be written immediately after.
+     * \param aOut The stream to write to.
+     * \param aName The name of the element.
+     */
+    void startElement( std::ostream& aOut, const std::string& aName ) {
+        const unsigned int nameId = getNameId( aName );
+        aOut.put( START_ELEMENT );
+        writeVarint( aOut, nameId );
+    }
+
+    /*!
+     * \brief Write an attribute of the element just opened.
+     * \param aOut The stream to write to.
+     * \param aName The name of the attribute.
+     * \param aValue The value of the attribute.
+     */
+    template<class T>
+    void attribute( std::ostream& aOut, const std::string& aName, const T& aValue ) {
+        const unsigned int nameId = getNameId( aName );
+        aOut.put( ATTRIBUTE );
+        writeVarint( aOut, nameId );
+        writeValue( aOut, aValue );
+    }
+
+    /*!
+     * \brief Write the text content of the current element.
+     * \param aOut The stream to write to.
+     * \param aValue The value to write.
+     */
+    template<class T>
+    void text( std::ostream& aOut, const T& aValue ) {
+        aOut.put( TEXT );
+        writeValue( aOut, aValue );
+    }
+
+    /*!
+     * \brief Close the current element.
+     * \param aOut The stream to write to.
+     */
+    void endElement( std::ostream& aOut ) {
+        aOut.put( END_ELEMENT );
+    }
+
+private:
+    //! The event tags.
+    enum EventTag {
+        DEFINE_NAME = 1,
+        START_ELEMENT = 2,
+        ATTRIBUTE = 3,
+        TEXT = 4,
+        END_ELEMENT = 5
+    };
+
+    //! The value types.
+    enum ValueType {
+        STRING = 1,
+        DOUBLE = 2,
+        INT = 3
+    };
+
+    //! The stream to write name definitions to.
+    std::ostream& mMainStream;
+
+    //! The id of each name defined so far.
+    std::map<std::string, unsigned int> mNameIds;
+
+    /*!
+     * \brief Get the id of a name, defining it in the main stream if it is new.
+     * \param aName The element or attribute name.
+     * \return The id of the name.
+     */
+    unsigned int getNameId( const std::string& aName ) {
+        std::map<std::string, unsigned int>::const_iterator iter = mNameIds.find( aName );
+        if( iter != mNameIds.end() ) {
+            return iter->second;
+        }
+        const unsigned int nameId = static_cast<unsigned int>( mNameIds.size() );
+        mNameIds[ aName ] = nameId;
+        mMainStream.put( DEFINE_NAME );
+        writeVarint( mMainStream, nameId );
+        writeString( mMainStream, aName );
+        return nameId;
+    }
+
+    void writeValue( std::ostream& aOut, const double aValue ) {
+        aOut.put( DOUBLE );
+        // big endian regardless of the platform
+        boost::uint64_t bits;
+        std::memcpy( &bits, &aValue, sizeof( bits ) );
+        char bytes[ 8 ];
+        for( int i = 7; i >= 0; --i ) {
+            bytes[ i ] = static_cast<char>( bits & 0xFF );
+            bits >>= 8;
+        }
+        aOut.write( bytes, sizeof( bytes ) );
+    }
+
+    void writeValue( std::ostream& aOut, const int aValue ) {
+        aOut.put( INT );
+        const boost::int64_t value = aValue;
+        // zigzag encode so that small negative numbers stay small
+        writeVarint( aOut, ( static_cast<boost::uint64_t>( value ) << 1 ) ^ static_cast<boost::uint64_t>( value >> 63 ) );
+    }
+
+    void writeValue( std::ostream& aOut, const bool aValue ) {
+        // as the text would be written
+        writeValue( aOut, aValue ? 1 : 0 );
+    }
+
+    void writeValue( std::ostream& aOut, const std::string& aValue ) {
+        aOut.put( STRING );
+        writeString( aOut, aValue );
+    }
+
+    void writeValue( std::ostream& aOut, const char* aValue ) {
+        aOut.put( STRING );
+        writeString( aOut, aValue );
+    }
+
+    /*!
+     * \brief Write any other value as the text it would have been written as.
+     */
+    template<class T>
+    void writeValue( std::ostream& aOut, const T& aValue ) {
+        std::ostringstream text;
+        text << aValue;
+        writeValue( aOut, text.str() );
+    }
+
+    static void writeString( std::ostream& aOut, const std::string& aValue ) {
+        writeVarint( aOut, aValue.size() );
+        aOut.write( aValue.data(), aValue.size() );
+    }
+
+    static void writeVarint( std::ostream& aOut, boost::uint64_t aValue ) {
+        while( aValue >= 0x80 ) {
+            aOut.put( static_cast<char>( ( aValue & 0x7F ) | 0x80 ) );
+            aValue >>= 7;
+        }
+        aOut.put( static_cast<char>( aValue ) );
+    }
+};
+
+#endif // _BINARY_EVENT_WRITER_H_
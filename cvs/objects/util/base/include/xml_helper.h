@@ -103,6 +103,7 @@
 #include "util/base/include/iparsable.h"
 #include "util/base/include/time_vector.h"
 #include "util/base/include/value.h"
+#include "util/base/include/binary_event_writer.h"
 
 /*!
  * \ingroup Objects
@@ -121,6 +122,9 @@ private:
    unsigned short mTabWidth;
    //! Use tabs or spaces
    bool mUseTabs;
+   //! Weak pointer to a writer to write binary events with rather than XML text,
+   //! or null to write text.
+   BinaryEventWriter* mBinaryWriter;
 public:
 
    enum { DEFAULT_TAB_WIDTH = 3 };
@@ -129,7 +133,7 @@ public:
    Tabs(
       bool           aUseTabs  = true,
       unsigned short aTabWidth = DEFAULT_TAB_WIDTH )
-      : mNumTabs(0), mTabWidth(aTabWidth), mUseTabs(aUseTabs) {}
+      : mNumTabs(0), mTabWidth(aTabWidth), mUseTabs(aUseTabs), mBinaryWriter(0) {}
 
    //! Increase the current level of indentation.
    void increaseIndent() { ++mNumTabs; }
@@ -141,6 +145,15 @@ public:
       }
    }
 
+   /*! \brief Set a writer so that the XMLWrite functions write binary events
+    *         rather than XML text.
+    * \param aBinaryWriter The writer to use or null to write text.
+    */
+   void setBinaryWriter( BinaryEventWriter* aBinaryWriter ) { mBinaryWriter = aBinaryWriter; }
+
+   //! Get the writer to write binary events with or null if XML text should be written.
+   BinaryEventWriter* getBinaryWriter() const { return mBinaryWriter; }
+
    /*! Write out the contained number of tabs to the specified output stream.
     *
     * \param out Stream to which to write the tabs->
@@ -727,6 +740,23 @@ std::string XMLHelper<T>::safeTranscode( const XMLCh* toTranscode ) {
 template<class T>
 void XMLWriteElement( const T value, const std::string elementName, std::ostream& out, const Tabs* tabs, const int year = 0, const std::string name = "", const bool fillout = false ) {
 
+   BinaryEventWriter* binaryWriter = tabs->getBinaryWriter();
+   if( binaryWriter ) {
+      binaryWriter->startElement( out, elementName );
+      if( name != "" ) {
+         binaryWriter->attribute( out, "name", name );
+      }
+      if( year != 0 ) {
+         binaryWriter->attribute( out, "year", year );
+      }
+      if( fillout ) {
+         binaryWriter->attribute( out, "fillout", 1 );
+      }
+      binaryWriter->text( out, value );
+      binaryWriter->endElement( out );
+      return;
+   }
+
    tabs->writeTabs( out );
 
    out << "<" << elementName;
@@ -762,9 +792,20 @@ void XMLWriteElementWithAttributes( const T value, const std::string elementName
                                    std::ostream& out, const Tabs* tabs,
                                    const std::map<std::string, U> aAttrs )
 {
+    typedef typename std::map<std::string, U>::const_iterator MapIterator;
+    BinaryEventWriter* binaryWriter = tabs->getBinaryWriter();
+    if( binaryWriter ) {
+        binaryWriter->startElement( out, elementName );
+        for( MapIterator entry = aAttrs.begin(); entry != aAttrs.end(); ++entry ){
+            binaryWriter->attribute( out, entry->first, entry->second );
+        }
+        binaryWriter->text( out, value );
+        binaryWriter->endElement( out );
+        return;
+    }
+
     tabs->writeTabs( out );
     out << "<" << elementName;
-    typedef typename std::map<std::string, U>::const_iterator MapIterator;
     for( MapIterator entry = aAttrs.begin(); entry != aAttrs.end(); ++entry ){
         out << " " << entry->first <<"=\"" << entry->second << "\"";
     }
@@ -785,6 +826,16 @@ void XMLWriteElementWithAttributes( const T value, const std::string elementName
 
 inline void XMLWriteElementTag( const std::string& elementName, std::ostream& out, Tabs* tabs, const std::string& tagType = "", const std::string& typeName = "")
 {
+   BinaryEventWriter* binaryWriter = tabs->getBinaryWriter();
+   if( binaryWriter ) {
+      binaryWriter->startElement( out, elementName );
+      if ( ( typeName != "" ) &&  ( tagType != "") ){
+         binaryWriter->attribute( out, tagType, typeName );
+      }
+      tabs->increaseIndent();
+      return;
+   }
+
    tabs->writeTabs( out );
 
    out << "<" << elementName;
@@ -808,6 +859,10 @@ inline void XMLWriteElementTag( const std::string& elementName, std::ostream& ou
 inline void XMLWriteCloseElementTag( std::string& elementName, std::ostream& out, Tabs* tabs)
 {
     tabs->decreaseIndent();
+    if( tabs->getBinaryWriter() ) {
+        tabs->getBinaryWriter()->endElement( out );
+        return;
+    }
     tabs->writeTabs( out );
     out << "</" << elementName;
     out << ">" << std::endl;
@@ -828,6 +883,22 @@ inline void XMLWriteCloseElementTag( std::string& elementName, std::ostream& out
 */
 inline void XMLWriteOpeningTag( const std::string& elementName, std::ostream& out, Tabs* tabs, const std::string& name = "", const int year = 0, const std::string& type = "" ) {
 
+    BinaryEventWriter* binaryWriter = tabs->getBinaryWriter();
+    if( binaryWriter ) {
+        binaryWriter->startElement( out, elementName );
+        if( year ){
+            binaryWriter->attribute( out, "year", year );
+        }
+        if ( name != "" ){
+            binaryWriter->attribute( out, "name", name );
+        }
+        if( type != "" ){
+            binaryWriter->attribute( out, "type", type );
+        }
+        tabs->increaseIndent();
+        return;
+    }
+
     tabs->writeTabs( out );
     out << "<" << elementName;
 
@@ -855,6 +926,16 @@ inline void XMLWriteOpeningTag( const std::string& elementName, std::ostream& ou
  */
 inline void XMLWriteOpeningTag( const std::string& aElementName, std::ostream& aOut, Tabs* aTabs, const std::map<std::string, std::string>& aAttrs ) {
     
+    BinaryEventWriter* binaryWriter = aTabs->getBinaryWriter();
+    if( binaryWriter ) {
+        binaryWriter->startElement( aOut, aElementName );
+        for( auto iter = aAttrs.begin(); iter != aAttrs.end(); ++iter ) {
+            binaryWriter->attribute( aOut, (*iter).first, (*iter).second );
+        }
+        aTabs->increaseIndent();
+        return;
+    }
+
     aTabs->writeTabs( aOut );
     aOut << "<" << aElementName;
 
@@ -876,6 +957,10 @@ inline void XMLWriteOpeningTag( const std::string& aElementName, std::ostream& a
 inline void XMLWriteClosingTag( const std::string& elementName, std::ostream& out, Tabs* tabs ) {
 
     tabs->decreaseIndent();
+    if( tabs->getBinaryWriter() ) {
+        tabs->getBinaryWriter()->endElement( out );
+        return;
+    }
     tabs->writeTabs( out );
     out << "</" << elementName;
     out << ">" << std::endl;